@@ -0,0 +1,83 @@
+package com.github.anastasop.koskino.jmh;
+
+import java.io.File;
+import java.io.InputStream;
+import java.util.Random;
+
+// Inputs shared by the benchmarks
+final class BenchData {
+	private static final String[] WORDS = {
+		"venti", "arena", "score", "block", "index", "fossil", "plan9", "koskino",
+		"the", "of", "and", "data", "pointer", "root", "dir", "backup",
+	};
+
+	private BenchData() {
+	}
+
+	// "random" is incompressible, "text" compresses roughly like source code
+	static byte[] block(int size, String content, long seed) {
+		Random random = new Random(seed);
+		byte[] b = new byte[size];
+		if ("random".equals(content)) {
+			random.nextBytes(b);
+			return b;
+		}
+		int pos = 0;
+		while (pos < size) {
+			byte[] w = (WORDS[random.nextInt(WORDS.length)] + (random.nextInt(8) == 0? "\n": " ")).getBytes();
+			int n = Math.min(w.length, size - pos);
+			System.arraycopy(w, 0, b, pos, n);
+			pos += n;
+		}
+		return b;
+	}
+
+	// tmpfs when there is one, so the storage benchmarks measure the code
+	// and not the disk
+	static File scratchDir() {
+		File shm = new File("/dev/shm");
+		if (shm.isDirectory() && shm.canWrite()) {
+			return shm;
+		}
+		return new File(System.getProperty("java.io.tmpdir"));
+	}
+
+	static void deleteRecursively(File f) {
+		File[] children = f.listFiles();
+		if (children != null) {
+			for (File c: children) {
+				deleteRecursively(c);
+			}
+		}
+		f.delete();
+	}
+
+	// an endless stream that replays the same bytes
+	static class LoopInputStream extends InputStream {
+		private final byte[] data;
+		private int pos;
+
+		LoopInputStream(byte[] data) {
+			this.data = data;
+		}
+
+		@Override
+		public int read() {
+			if (pos == data.length) {
+				pos = 0;
+			}
+			return data[pos++] & 0xff;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) {
+			if (pos == data.length) {
+				pos = 0;
+			}
+			int n = Math.min(len, data.length - pos);
+			System.arraycopy(data, pos, b, off, n);
+			pos += n;
+			return n;
+		}
+	}
+}
@@ -0,0 +1,56 @@
+package com.github.anastasop.koskino.jmh;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.github.anastasop.koskino.io.BackendBlockWriter;
+import com.github.anastasop.koskino.io.StrouckiRecordIOReader;
+import com.github.anastasop.koskino.storage.BackendBlock;
+import com.github.anastasop.koskino.storage.Block;
+
+// Compression and decompression of the per-block files of the stroucki storage
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class BlockFormatBenchmark {
+	@Param({"8192", "57344"})
+	public int blockSize;
+
+	@Param({"random", "text"})
+	public String content;
+
+	private Block block;
+	private byte[] stored;
+
+	@Setup
+	public void setup() throws IOException {
+		block = new Block((byte)0, BenchData.block(blockSize, content, 1));
+		stored = BackendBlockWriter.fromBlock(block).getData();
+	}
+
+	@Benchmark
+	public BackendBlock fromBlock() throws IOException {
+		return BackendBlockWriter.fromBlock(block);
+	}
+
+	@Benchmark
+	public Block readBlock() throws IOException {
+		return new StrouckiRecordIOReader(new ByteArrayInputStream(stored), (byte)0).readBlock();
+	}
+}
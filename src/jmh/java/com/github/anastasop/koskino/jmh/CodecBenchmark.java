@@ -0,0 +1,101 @@
+package com.github.anastasop.koskino.jmh;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.github.anastasop.koskino.ProtocolException;
+import com.github.anastasop.koskino.Score;
+import com.github.anastasop.koskino.VtMessage;
+import com.github.anastasop.koskino.VtMessageReader;
+import com.github.anastasop.koskino.VtMessageSerializer;
+
+// Decoding requests with VtMessageReader.read and encoding responses with
+// VtMessageSerializer.writeMessage, as the server does for every block
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class CodecBenchmark {
+	@Param({"1024", "8192", "57344"})
+	public int blockSize;
+
+	private VtMessageReader twriteReader;
+	private VtMessageReader treadReader;
+	private VtMessageSerializer serializer;
+	private VtMessage rread;
+	private VtMessage rwrite;
+	private ByteArrayOutputStream out;
+
+	@Setup
+	public void setup() throws IOException {
+		serializer = new VtMessageSerializer();
+		byte[] data = BenchData.block(blockSize, "random", 1);
+		Score score = Score.forBlock(data);
+
+		VtMessage twrite = new VtMessage(VtMessage.VtTwrite, (byte)1);
+		twrite.setData(data);
+		twriteReader = new VtMessageReader(new BenchData.LoopInputStream(encode(twrite)));
+
+		VtMessage tread = new VtMessage(VtMessage.VtTread, (byte)1);
+		tread.score = score;
+		tread.count = blockSize;
+		treadReader = new VtMessageReader(new BenchData.LoopInputStream(encode(tread)));
+
+		rread = new VtMessage(VtMessage.VtRread, (byte)1);
+		rread.setData(data);
+		rwrite = new VtMessage(VtMessage.VtRwrite, (byte)1);
+		rwrite.score = score;
+		out = new ByteArrayOutputStream(blockSize + 64);
+	}
+
+	private byte[] encode(VtMessage msg) throws IOException {
+		ByteArrayOutputStream b = new ByteArrayOutputStream();
+		serializer.writeMessage(msg, b);
+		return b.toByteArray();
+	}
+
+	@Benchmark
+	public int readTwrite() throws IOException, ProtocolException {
+		VtMessage msg = twriteReader.read();
+		int n = msg.dataLength;
+		msg.recycle();
+		return n;
+	}
+
+	@Benchmark
+	public int readTread() throws IOException, ProtocolException {
+		VtMessage msg = treadReader.read();
+		int n = msg.count;
+		msg.recycle();
+		return n;
+	}
+
+	@Benchmark
+	public int writeRread() throws IOException {
+		out.reset();
+		serializer.writeMessage(rread, out);
+		return out.size();
+	}
+
+	@Benchmark
+	public int writeRwrite() throws IOException {
+		out.reset();
+		serializer.writeMessage(rwrite, out);
+		return out.size();
+	}
+}
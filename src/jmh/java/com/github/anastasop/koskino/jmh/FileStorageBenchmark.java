@@ -0,0 +1,86 @@
+package com.github.anastasop.koskino.jmh;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.github.anastasop.koskino.Score;
+import com.github.anastasop.koskino.storage.Block;
+import com.github.anastasop.koskino.storage.FileStorageService;
+
+// FileStorageService get and put in a scratch directory on tmpfs. Every
+// iteration starts from an empty arena so that the log stays small.
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class FileStorageBenchmark {
+	private static final int N_STORED = 4096;
+
+	@Param({"8192"})
+	public int blockSize;
+
+	private File dir;
+	private FileStorageService storage;
+	private byte[] data;
+	private long nextBlock;
+	private Score[] stored;
+	private int nextRead;
+
+	@Setup(Level.Iteration)
+	public void setup() throws IOException {
+		dir = new File(BenchData.scratchDir(), "koskino-jmh-" + System.nanoTime());
+		dir.mkdirs();
+		storage = FileStorageService.forName(dir, "arena0");
+		data = BenchData.block(blockSize, "random", 1);
+		stored = new Score[N_STORED];
+		for (int i = 0; i < N_STORED; i++) {
+			stored[i] = storage.put(unique(), 0, data.length, (byte)0);
+		}
+		storage.sync();
+		nextRead = 0;
+	}
+
+	@TearDown(Level.Iteration)
+	public void tearDown() throws Exception {
+		storage.close();
+		BenchData.deleteRecursively(dir);
+	}
+
+	// data stamped with a counter, so put never finds it already stored
+	private byte[] unique() {
+		long n = nextBlock++;
+		for (int i = 0; i < 8; i++) {
+			data[i] = (byte)(n >>> (8 * i));
+		}
+		return data;
+	}
+
+	@Benchmark
+	public Score put() throws IOException {
+		return storage.put(unique(), 0, data.length, (byte)0);
+	}
+
+	@Benchmark
+	public Block get() throws IOException {
+		Score score = stored[nextRead];
+		nextRead = (nextRead + 1) % N_STORED;
+		return storage.get(score, (byte)0);
+	}
+}
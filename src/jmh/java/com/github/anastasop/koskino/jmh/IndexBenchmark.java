@@ -0,0 +1,104 @@
+package com.github.anastasop.koskino.jmh;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.github.anastasop.koskino.Score;
+import com.github.anastasop.koskino.storage.BlockAddress;
+import com.github.anastasop.koskino.storage.BlockIndex;
+import com.github.anastasop.koskino.storage.CompactBlockIndex;
+import com.github.anastasop.koskino.storage.DiskBlockIndex;
+import com.github.anastasop.koskino.storage.MemoryBlockIndex;
+
+// Lookups of indexed and of unknown scores in the block indexes. The disk
+// index is checkpointed before measuring and gets a cache of a few pages, so
+// most lookups read a bucket page, from tmpfs.
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class IndexBenchmark {
+	private static final int N_LOOKUPS = 4096;
+
+	@Param({"memory", "compact", "disk"})
+	public String index;
+
+	@Param({"1000000"})
+	public int blocks;
+
+	private File dir;
+	private BlockIndex blockIndex;
+	private Score[] present;
+	private Score[] absent;
+	private int next;
+
+	@Setup
+	public void setup() throws IOException {
+		dir = new File(BenchData.scratchDir(), "koskino-jmh-" + System.nanoTime());
+		dir.mkdirs();
+		switch (index) {
+		case "memory":
+			blockIndex = new MemoryBlockIndex();
+			break;
+		case "compact":
+			blockIndex = new CompactBlockIndex(blocks);
+			break;
+		default:
+			blockIndex = DiskBlockIndex.open(new File(dir, "arena.index"), blocks, 16);
+		}
+		Random random = new Random(1);
+		byte[] b = new byte[20];
+		present = new Score[N_LOOKUPS];
+		for (int i = 0; i < blocks; i++) {
+			random.nextBytes(b);
+			Score score = Score.fromBytes(b.clone());
+			blockIndex.putIfAbsent(score, new BlockAddress(0, 4096L + 8192L * i, 8192, (byte)0, (byte)0));
+			if (i % (blocks / N_LOOKUPS) == 0 && i / (blocks / N_LOOKUPS) < N_LOOKUPS) {
+				present[i / (blocks / N_LOOKUPS)] = score;
+			}
+		}
+		blockIndex.checkpoint(new long[] {4096L + 8192L * blocks}, true);
+		absent = new Score[N_LOOKUPS];
+		for (int i = 0; i < N_LOOKUPS; i++) {
+			random.nextBytes(b);
+			absent[i] = Score.fromBytes(b.clone());
+		}
+	}
+
+	@TearDown
+	public void tearDown() throws IOException {
+		blockIndex.close();
+		BenchData.deleteRecursively(dir);
+	}
+
+	@Benchmark
+	public BlockAddress getPresent() throws IOException {
+		Score score = present[next];
+		next = (next + 1) % N_LOOKUPS;
+		return blockIndex.get(score);
+	}
+
+	@Benchmark
+	public BlockAddress getAbsent() throws IOException {
+		Score score = absent[next];
+		next = (next + 1) % N_LOOKUPS;
+		return blockIndex.get(score);
+	}
+}
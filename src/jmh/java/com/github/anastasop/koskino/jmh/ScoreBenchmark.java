@@ -0,0 +1,48 @@
+package com.github.anastasop.koskino.jmh;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.github.anastasop.koskino.Score;
+
+// SHA-1 of a block and the hex form used for file names and index keys
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ScoreBenchmark {
+	@Param({"1024", "8192", "57344"})
+	public int blockSize;
+
+	private byte[] data;
+	private Score score;
+
+	@Setup
+	public void setup() {
+		data = BenchData.block(blockSize, "random", 1);
+		score = Score.forBlock(data);
+	}
+
+	@Benchmark
+	public Score forBlock() {
+		return Score.forBlock(data, 0, data.length);
+	}
+
+	@Benchmark
+	public String scoreToString() {
+		return score.toString();
+	}
+}
@@ -3,10 +3,15 @@
  */
 package ascient.threading;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 import java.util.concurrent.Semaphore;
 
@@ -21,6 +26,10 @@ import ascient.interfaces.Queue;
  */
 public class FCFSQueue<T> implements Queue<T> {
 
+  // queues not yet shut down, for reporting
+  private static final Set<FCFSQueue<?>> live =
+      Collections.newSetFromMap(new ConcurrentHashMap<FCFSQueue<?>, Boolean>());
+
   // queue name
   private String name;
 
@@ -33,7 +42,8 @@ public class FCFSQueue<T> implements Queue<T> {
   private Object listLock = new Object();
 
   // queue status
-  private boolean shutdown = false;
+  private volatile boolean shutdown = false;
+  private Thread dispatcher;
   private int cycles = 0;
 
   // task status
@@ -91,16 +101,23 @@ public class FCFSQueue<T> implements Queue<T> {
 
   public FCFSQueue(String name) {
     this.name = name;
-    new Thread(new Dispatcher<T>()).start();
+    this.dispatcher = Threads.newThread(new Dispatcher<T>(), name + "-dispatcher");
+    dispatcher.start();
+    live.add(this);
+  }
+
+  /**
+   * @return the queues that have not been shut down, whose rates and
+   *         lengths the server metrics report
+   */
+  public static List<FCFSQueue<?>> liveQueues() {
+    return new ArrayList<FCFSQueue<?>>(live);
   }
 
   @Override
   public void put(RunnableTask<T> r) {
     arrival.click();
     cycles++;
-    if (cycles % 100 == 0) {
-      System.out.println(report());
-    }
     try {
       taskList.put(r);
     } catch (InterruptedException e) {
@@ -142,8 +159,9 @@ public class FCFSQueue<T> implements Queue<T> {
       return task;
 
     } catch (InterruptedException e) {
-      // TODO Auto-generated catch block
-      e.printStackTrace();
+      if (!shutdown) {
+        e.printStackTrace();
+      }
     }
     return null;
 
@@ -188,6 +206,30 @@ public class FCFSQueue<T> implements Queue<T> {
     }
   }
 
+  public String getName() {
+    return name;
+  }
+
+  public int getLength() {
+    synchronized (lengthLock) {
+      return length;
+    }
+  }
+
+  /**
+   * @return exponentially weighted arrivals per second
+   */
+  public double getArrivalRate() {
+    return arrival.getArrivalRate();
+  }
+
+  /**
+   * @return exponentially weighted services per second
+   */
+  public double getServiceRate() {
+    return service.getServiceRate();
+  }
+
   public String report() {
     int mylen = length;
     double mylambda = arrival.getArrivalRate();
@@ -212,9 +254,20 @@ public class FCFSQueue<T> implements Queue<T> {
   public void setShutdown(boolean flag) {
     shutdown = flag;
   }
+
+  /**
+   * Stops the dispatcher and the worker threads. Tasks already handed to the
+   * workers still run to completion.
+   */
+  public void shutdown() {
+    live.remove(this);
+    shutdown = true;
+    dispatcher.interrupt();
+    executor.shutdown();
+  }
   
-  int poolSize = 4;
-  ExecutorService executor = Executors.newFixedThreadPool(poolSize);
+  int poolSize = Threads.poolSize(4);
+  ExecutorService executor = Threads.newPool(poolSize);
   //ExecutorService executor = new ThreadPoolExecutor(0, 10, 10, TimeUnit.SECONDS, workQueue, handler);
  
   //ExecutorService executor = Executors.newWorkStealingPool(4);
@@ -225,12 +278,29 @@ public class FCFSQueue<T> implements Queue<T> {
       Semaphore semaphorePool = new Semaphore(poolSize);
 
       while (!shutdown) {
-        LimitedReleaseSemaphore s = new LimitedReleaseSemaphore(semaphorePool);
+        final LimitedReleaseSemaphore s = new LimitedReleaseSemaphore(semaphorePool);
         //System.out.println(name+"val: "+semaphorePool.availablePermits());
         RunnableTask<T> r = take();
+        if (r == null) {
+          // interrupted by shutdown()
+          s.release();
+          continue;
+        }
         //executor.execute(command);
         //System.out.println("A");
-        Future<T> result = executor.submit(r.getCallable());
+        final Callable<T> callable = r.getCallable();
+        // the permit goes back as soon as the task finishes, so tasks nobody
+        // waits on with returnValue() do not starve the pool
+        Future<T> result = executor.submit(new Callable<T>() {
+          @Override
+          public T call() throws Exception {
+            try {
+              return callable.call();
+            } finally {
+              s.release();
+            }
+          }
+        });
         //System.out.println("B");
 
         r.setSemaphore(s);
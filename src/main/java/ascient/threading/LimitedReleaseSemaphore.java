@@ -12,8 +12,9 @@ public class LimitedReleaseSemaphore {
     try {
       s.acquire();
     } catch (InterruptedException e) {
-      // TODO Auto-generated catch block
-      e.printStackTrace();
+      // no permit was taken, so there is nothing to release
+      this.active = false;
+      Thread.currentThread().interrupt();
     }
   }
   public synchronized void release() {
@@ -20,7 +20,7 @@ public class RunnableTask<T> {
   Future<T> returnValue;
   LimitedReleaseSemaphore s;
   Object returnLock = new Object();
-  boolean isDone = false;
+  volatile boolean isDone = false;
   
   public RunnableTask(Callable<T>callable) {
     this.callable = callable;
@@ -48,7 +48,7 @@ public class RunnableTask<T> {
   public T returnValue() throws InterruptedException, ExecutionException {
     T retval;
     synchronized (returnLock) {
-      if (!isDone) {
+      while (!isDone) {
         try {
           returnLock.wait();
         } catch (InterruptedException e) {
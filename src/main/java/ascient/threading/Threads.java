@@ -0,0 +1,94 @@
+package ascient.threading;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Creates the threads and pools used by the server, either as platform
+ * threads or, when enabled and the running JVM has them (Java 21+), as
+ * virtual threads. Virtual threads are reached through reflection so the
+ * code still builds for older targets.
+ */
+public final class Threads {
+  // concurrency allowed per queue when threads are virtual, where a
+  // blocked thread costs next to nothing
+  private static final int VIRTUAL_POOL_SIZE = 256;
+
+  private static volatile boolean virtual = false;
+  private static Method ofVirtual;
+  private static Method builderName;
+  private static Method builderUnstarted;
+  private static Method newVirtualExecutor;
+
+  private Threads() {
+  }
+
+  /**
+   * Switches between platform and virtual threads for everything created
+   * afterwards.
+   *
+   * @return false if virtual threads were asked for but are not available
+   */
+  public static synchronized boolean useVirtualThreads(boolean flag) {
+    if (!flag) {
+      virtual = false;
+      return true;
+    }
+    try {
+      Class<?> builder = Class.forName("java.lang.Thread$Builder");
+      ofVirtual = Thread.class.getMethod("ofVirtual");
+      builderName = builder.getMethod("name", String.class);
+      builderUnstarted = builder.getMethod("unstarted", Runnable.class);
+      newVirtualExecutor = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+      // preview builds throw here unless preview features are enabled
+      ofVirtual.invoke(null);
+    } catch (Exception e) {
+      virtual = false;
+      return false;
+    }
+    virtual = true;
+    return true;
+  }
+
+  public static boolean isVirtual() {
+    return virtual;
+  }
+
+  /**
+   * @return an unstarted thread
+   */
+  public static Thread newThread(Runnable r, String name) {
+    if (virtual) {
+      try {
+        Object builder = builderName.invoke(ofVirtual.invoke(null), name);
+        return (Thread)builderUnstarted.invoke(builder, r);
+      } catch (Exception e) {
+        throw new IllegalStateException("failed to create virtual thread", e);
+      }
+    }
+    return new Thread(r, name);
+  }
+
+  /**
+   * A fixed pool of size platform threads, or a thread per task executor
+   * when threads are virtual.
+   */
+  public static ExecutorService newPool(int size) {
+    if (virtual) {
+      try {
+        return (ExecutorService)newVirtualExecutor.invoke(null);
+      } catch (Exception e) {
+        throw new IllegalStateException("failed to create virtual thread executor", e);
+      }
+    }
+    return Executors.newFixedThreadPool(size);
+  }
+
+  /**
+   * @return how many tasks a queue should run at once
+   */
+  public static int poolSize(int platformSize) {
+    return virtual ? Math.max(platformSize, VIRTUAL_POOL_SIZE) : platformSize;
+  }
+}
@@ -0,0 +1,50 @@
+package com.github.anastasop.koskino;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// A pool of equally sized byte arrays, so that message payloads can be read
+// into recycled buffers instead of fresh allocations. At most maxRetained
+// buffers are kept; anything returned beyond that is left to the GC.
+public class BufferPool {
+	public static final int BUFFER_SIZE = 64 * 1024;
+
+	// shared by all connections
+	public static final BufferPool MESSAGES = new BufferPool(BUFFER_SIZE, 1024);
+
+	private final int bufferSize;
+	private final int maxRetained;
+	private final ConcurrentLinkedQueue<byte[]> free = new ConcurrentLinkedQueue<byte[]>();
+	private final AtomicInteger nFree = new AtomicInteger();
+
+	public BufferPool(int bufferSize, int maxRetained) {
+		this.bufferSize = bufferSize;
+		this.maxRetained = maxRetained;
+	}
+
+	public int getBufferSize() {
+		return bufferSize;
+	}
+
+	public byte[] acquire() {
+		byte[] b = free.poll();
+		if (b == null) {
+			return new byte[bufferSize];
+		}
+		nFree.decrementAndGet();
+		return b;
+	}
+
+	// buffers of another size, such as one-off allocations for oversized
+	// messages, are ignored
+	public void release(byte[] b) {
+		if (b == null || b.length != bufferSize) {
+			return;
+		}
+		if (nFree.incrementAndGet() > maxRetained) {
+			nFree.decrementAndGet();
+			return;
+		}
+		free.add(b);
+	}
+}
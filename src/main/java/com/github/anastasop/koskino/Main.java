@@ -1,17 +1,36 @@
 package com.github.anastasop.koskino;
 
+import java.io.File;
 import java.io.IOException;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.management.JMException;
 
 import org.kohsuke.args4j.CmdLineException;
 import org.kohsuke.args4j.CmdLineParser;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import ascient.threading.Threads;
+
+import com.github.anastasop.koskino.metrics.AdminServer;
+import com.github.anastasop.koskino.metrics.ServerMetrics;
+import com.github.anastasop.koskino.storage.ArenaStorageService;
+import com.github.anastasop.koskino.storage.BlockCache;
+import com.github.anastasop.koskino.storage.BlockIndex;
+import com.github.anastasop.koskino.storage.CachingStorageService;
+import com.github.anastasop.koskino.storage.CompactBlockIndex;
+import com.github.anastasop.koskino.storage.DiskBlockIndex;
 import com.github.anastasop.koskino.storage.FileStorageService;
+import com.github.anastasop.koskino.storage.MemoryBlockIndex;
 import com.github.anastasop.koskino.storage.StorageService;
 import com.github.anastasop.koskino.storage.StrouckiStorageService;
+import com.github.anastasop.koskino.storage.TieredStorageService;
 
 public class Main implements Runnable {
 	public static void main(String[] args) throws IOException {
@@ -32,22 +51,100 @@ public class Main implements Runnable {
 		}
 		*/
 		
+		if (options.virtualThreads && !Threads.useVirtualThreads(true)) {
+			System.err.println("virtual threads are not available in this JVM, using platform threads");
+		}
+		try {
+			ServerMetrics.INSTANCE.registerMBean();
+		} catch (JMException e) {
+			System.err.println("failed to register the metrics MBean: " + e.getMessage());
+		}
+		if (options.adminPort != null) {
+			new AdminServer(options.adminPort, ServerMetrics.INSTANCE).start();
+		}
+		StorageService storage = openStorage(options);
+		if (options.cacheMiB > 0) {
+			BlockCache cache = new BlockCache((long)options.cacheMiB << 20, options.cacheOffHeap);
+			cache.exportMetrics();
+			storage = new CachingStorageService(storage, cache, options.prefetch);
+		} else if (options.prefetch > 0) {
+			System.err.println("--prefetch reads ahead into the cache, it needs --cache");
+		}
+		if (options.nio) {
+			new NioServer(options.port, storage, options.eventLoops, options.workers, options.maxInFlight).run();
+			return;
+		}
 		Main m = new Main();
 		m.port = options.port;
-		m.storage = StrouckiStorageService.forName(options.arenaDir, options.arenaName);
+		m.storage = storage;
+		m.maxInFlight = options.maxInFlight;
 		m.run();
 	}
 	
+	private static StorageService openStorage(MainOptions options) throws IOException {
+		File arenaDir = options.arenaDir != null ? options.arenaDir : new File(".");
+		String arenaName = options.arenaName != null ? options.arenaName : "arena";
+		switch (options.engine) {
+		case "stroucki":
+			return StrouckiStorageService.forName(options.arenaDir, options.arenaName, options.filterBits);
+		case "file":
+			return FileStorageService.forName(arenaDir, arenaName, options.filterBits, (long)options.logSizeMiB << 20);
+		case "arena":
+			BlockIndex index;
+			if (options.index.equals("compact")) {
+				index = new CompactBlockIndex();
+			} else if (options.index.equals("memory")) {
+				index = new MemoryBlockIndex();
+			} else if (options.index.equals("disk")) {
+				arenaDir.mkdirs();
+				index = DiskBlockIndex.open(new File(arenaDir, arenaName + ".index"), options.indexBlocks,
+						(int)((long)options.indexCacheMiB * 1024 * 1024 / DiskBlockIndex.PAGE_SIZE));
+			} else {
+				System.err.printf("unknown index %s%n", options.index);
+				System.exit(2);
+				return null;
+			}
+			if (options.capacityDir != null) {
+				return TieredStorageService.forName(arenaDirs(arenaDir, options.stripeDirs), options.capacityDir,
+						options.fastTierMiB << 20, arenaName, (long)options.arenaSizeMiB << 20, options.arenaWriters, index,
+						options.filterBits);
+			}
+			return ArenaStorageService.forName(arenaDirs(arenaDir, options.stripeDirs), arenaName,
+					(long)options.arenaSizeMiB << 20, options.arenaWriters, index, options.filterBits);
+		default:
+			System.err.printf("unknown storage engine %s%n", options.engine);
+			System.exit(2);
+			return null;
+		}
+	}
+	
+	// the arena directory and the ones the arenas are striped over
+	private static File[] arenaDirs(File arenaDir, String stripeDirs) {
+		List<File> dirs = new ArrayList<>();
+		dirs.add(arenaDir);
+		if (stripeDirs != null) {
+			for (String dir : stripeDirs.split(",")) {
+				if (!dir.trim().isEmpty()) {
+					dirs.add(new File(dir.trim()));
+				}
+			}
+		}
+		return dirs.toArray(new File[dirs.size()]);
+	}
+	
 	private Logger logger = LoggerFactory.getLogger(Main.class);
 	private StorageService storage;
 	private int port;
+	private int maxInFlight;
 	
 	@Override
 	public void run() {
 		ServerSocket ear = null;
 		try {
-			ear = new ServerSocket(port);
+			// accepted sockets then have channels, which zero-copy reads need
+			ear = ServerSocketChannel.open().socket();
 			ear.setReuseAddress(true);
+			ear.bind(new InetSocketAddress(port));
 		} catch (IOException e) {
 			logger.error("failed to create ServerSocket: {}", e.getMessage());
 			closeServerSocketAndExit(ear);
@@ -57,13 +154,31 @@ public class Main implements Runnable {
 		for (;;) {
 			Socket peer = null;
 			try {
-				peer = ear.accept();
-				logger.info("Accept connection from " + peer.getInetAddress());
+				peer = ear.getChannel().accept().socket();
 			} catch (IOException e) {
 				logger.error("failed to accept a socket: {}", e.getMessage());
 				closeServerSocketAndExit(ear);
 			}
-			new Thread(new VtProcessor(peer, storage)).start();
+			try {
+				// a reply is written as a header and a file region, which Nagle
+				// would hold back until the client acks the header
+				peer.setTcpNoDelay(true);
+			} catch (IOException e) {
+				// the peer is gone already, the others are not affected
+				logger.warn("dropping connection from {}: {}", peer.getInetAddress(), e.getMessage());
+				closeQuietly(peer);
+				continue;
+			}
+			logger.info("Accept connection from " + peer.getInetAddress());
+			Threads.newThread(new VtProcessor(peer, storage, maxInFlight), "vtprocessor").start();
+		}
+	}
+	
+	private void closeQuietly(Socket s) {
+		try {
+			s.close();
+		} catch (IOException e) {
+			//
 		}
 	}
 	
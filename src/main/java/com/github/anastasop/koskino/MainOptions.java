@@ -4,13 +4,76 @@ import java.io.File;
 
 import org.kohsuke.args4j.Option;
 
+import com.github.anastasop.koskino.storage.ArenaStorageService;
+import com.github.anastasop.koskino.storage.ScoreFilter;
+
 public class MainOptions {
 	@Option(name = "-p", aliases = {"--port"}, usage = "server port. Default 40000", required = false)
 	public Integer port = 40000;
 
+	@Option(name = "--virtual-threads", usage = "run connections and storage tasks on virtual threads (Java 21+)", required = false)
+	public boolean virtualThreads = false;
+
 	@Option(name = "-d", aliases = {"--arenas"}, usage = "directory to store arenas", required = false)
 	public File arenaDir;
 
 	@Option(name = "-u", aliases = {"--use"}, usage = "arena name to use", required = false)
 	public String arenaName;
+
+	@Option(name = "--engine", usage = "storage engine: stroucki (a file per block), file (one log) or arena (preallocated arena segments). Default stroucki", required = false)
+	public String engine = "stroucki";
+
+	@Option(name = "--arena-size", usage = "size in MiB of the arena segments of the arena engine. Default 1024", required = false)
+	public Integer arenaSizeMiB = (int)(ArenaStorageService.DEFAULT_ARENA_SIZE >> 20);
+
+	@Option(name = "--stripe", usage = "comma separated directories, on other devices than --arenas, that the arena engine spreads its arenas over", required = false)
+	public String stripeDirs;
+
+	@Option(name = "--capacity-tier", usage = "directory on slower, larger devices that the arena engine moves its coldest full arenas to", required = false)
+	public File capacityDir;
+
+	@Option(name = "--fast-tier-size", usage = "MiB of arenas kept in --arenas and --stripe with --capacity-tier, before the coldest full ones move there. Default 65536", required = false)
+	public Long fastTierMiB = 65536L;
+
+	@Option(name = "--arena-writers", usage = "arenas written concurrently by the arena engine. Default 4", required = false)
+	public Integer arenaWriters = ArenaStorageService.DEFAULT_WRITERS;
+
+	@Option(name = "--index", usage = "index of the arena engine: compact (off-heap, 32 bytes a block), memory or disk (bucket pages in <arena name>.index). Default compact", required = false)
+	public String index = "compact";
+
+	@Option(name = "--index-blocks", usage = "blocks a new disk index is sized for, fixed when it is created. Default 16777216", required = false)
+	public Long indexBlocks = 16L << 20;
+
+	@Option(name = "--index-cache", usage = "MiB of disk index pages cached in memory. Default 64", required = false)
+	public Integer indexCacheMiB = 64;
+
+	@Option(name = "--log-size", usage = "size in MiB after which the file engine starts a new log segment, 0 for a single log. Default 0", required = false)
+	public Integer logSizeMiB = 0;
+
+	@Option(name = "--filter-bits", usage = "bits a block of the Bloom filter asked before the index or the block files, 0 for none. Default 16", required = false)
+	public Integer filterBits = ScoreFilter.DEFAULT_BITS_PER_SCORE;
+
+	@Option(name = "--cache", usage = "MiB of decompressed blocks cached for reads. Default 0, no cache", required = false)
+	public Integer cacheMiB = 0;
+
+	@Option(name = "--prefetch", usage = "children of the pointer, dir and root blocks served that are read ahead into the cache. Default 0, none", required = false)
+	public Integer prefetch = 0;
+
+	@Option(name = "--cache-offheap", usage = "keep the cached blocks in direct memory, outside the heap (see -XX:MaxDirectMemorySize)", required = false)
+	public boolean cacheOffHeap = false;
+
+	@Option(name = "--max-in-flight", usage = "requests a connection may have outstanding. Default 32", required = false)
+	public Integer maxInFlight = VtProcessor.DEFAULT_MAX_IN_FLIGHT;
+
+	@Option(name = "--nio", usage = "serve connections from a few selector threads instead of a thread per connection", required = false)
+	public boolean nio = false;
+
+	@Option(name = "--event-loops", usage = "number of selector threads in nio mode. Default number of cpus", required = false)
+	public Integer eventLoops = Runtime.getRuntime().availableProcessors();
+
+	@Option(name = "--admin-port", usage = "local port that serves a plain text dump of the metrics. Default none", required = false)
+	public Integer adminPort;
+
+	@Option(name = "--workers", usage = "number of request worker threads in nio mode. Default 16", required = false)
+	public Integer workers = 16;
 }
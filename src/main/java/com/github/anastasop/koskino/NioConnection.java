@@ -0,0 +1,433 @@
+package com.github.anastasop.koskino;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.github.anastasop.koskino.metrics.ServerMetrics;
+import com.github.anastasop.koskino.metrics.Stage;
+import com.github.anastasop.koskino.storage.BlockRegion;
+
+// One venti connection served by a NioEventLoop. All the reading and framing
+// happens on the event loop thread; complete requests run on the worker pool
+// and their responses are queued back for the event loop to write.
+class NioConnection {
+	private static final byte[] SERVER_VERSION = "venti-02:04-koskino\n".getBytes();
+	private static final int MAX_VERSION_LINE = 64;
+	private static final int INITIAL_READ_BUFFER = 4096;
+	// a buffer grown for a large frame is kept for the next ones, and given
+	// back after this many reads in a row found it holding no more than
+	// INITIAL_READ_BUFFER bytes
+	private static final int SMALL_READS_TO_SHRINK = 64;
+	private static final int MAX_GATHER = 64;
+
+	private Logger logger = LoggerFactory.getLogger(NioConnection.class);
+
+	private final SocketChannel channel;
+	private final NioEventLoop loop;
+	private final VtRequestHandler handler;
+	private final ExecutorService workers;
+	private final int maxInFlight;
+	private final VtMessageReader msgReader = new VtMessageReader();
+	private final VtMessageSerializer serializer = new VtMessageSerializer();
+	private SelectionKey key;
+
+	// read side, touched only by the event loop thread
+	private ByteBuffer readBuf = ByteBuffer.allocate(INITIAL_READ_BUFFER);
+	private int smallReads = 0;
+	private boolean versionLineSeen = false;
+	private int inFlight = 0;
+	// tags of the requests not yet answered
+	private final boolean[] tagsInUse = new boolean[256];
+	private boolean stalled = false;
+	private boolean goodbye = false;
+
+	// write side, shared with the workers; holds ByteBuffers, BlockRegions
+	// and a ResponseSent after the last buffer of every response
+	private final ArrayDeque<Object> writeQueue = new ArrayDeque<Object>();
+	private final ByteBuffer[] gather = new ByteBuffer[MAX_GATHER];
+	private boolean closed = false;
+
+	// reached in the write queue once a response is on the wire
+	private static class ResponseSent {
+		final byte reqType;
+		final long receivedNanos;
+		final long queuedNanos;
+		final VtMessage resp;
+
+		ResponseSent(VtMessage req, VtMessage resp) {
+			this.reqType = req.msgType;
+			this.receivedNanos = req.receivedNanos;
+			this.queuedNanos = System.nanoTime();
+			this.resp = resp;
+		}
+
+		void record() {
+			long now = System.nanoTime();
+			ServerMetrics.INSTANCE.record(reqType, Stage.SOCKET_WRITE, now - queuedNanos);
+			ServerMetrics.INSTANCE.record(reqType, Stage.TOTAL, now - receivedNanos);
+			ServerMetrics.INSTANCE.responseSent(resp);
+		}
+	}
+
+	NioConnection(SocketChannel channel, NioEventLoop loop, VtRequestHandler handler, ExecutorService workers, int maxInFlight) {
+		this.channel = channel;
+		this.loop = loop;
+		this.handler = handler;
+		this.workers = workers;
+		this.maxInFlight = maxInFlight;
+	}
+
+	void register(SelectionKey key) {
+		this.key = key;
+		synchronized (writeQueue) {
+			writeQueue.add(ByteBuffer.wrap(SERVER_VERSION));
+		}
+		updateInterest();
+	}
+
+	void onReadable() throws IOException, ProtocolException {
+		int n = channel.read(readBuf);
+		if (n < 0) {
+			close();
+			return;
+		}
+		smallReads = readBuf.position() <= INITIAL_READ_BUFFER? smallReads + 1: 0;
+		readBuf.flip();
+		try {
+			if (versionLineSeen || readVersionLine()) {
+				readFrames();
+			}
+		} finally {
+			compactReadBuffer();
+		}
+		updateInterest();
+	}
+
+	private void readFrames() throws ProtocolException {
+		while (!goodbye) {
+			if (inFlight >= maxInFlight) {
+				// frames may stay buffered; resumed when a request completes
+				stalled = true;
+				return;
+			}
+			if (!readFrame()) {
+				return;
+			}
+		}
+	}
+
+	private boolean readVersionLine() throws IOException {
+		int limit = readBuf.limit();
+		for (int i = readBuf.position(); i < limit; i++) {
+			if (readBuf.get(i) == '\n') {
+				byte[] line = new byte[i - readBuf.position()];
+				readBuf.get(line);
+				readBuf.get(); // skip LF
+				logger.info("Version line: {}", new String(line));
+				versionLineSeen = true;
+				return true;
+			}
+		}
+		if (readBuf.remaining() >= MAX_VERSION_LINE) {
+			throw new IOException("version line too long");
+		}
+		return false;
+	}
+
+	// decodes one message if readBuf holds a complete frame
+	private boolean readFrame() throws ProtocolException {
+		int nBytesOfLength = msgReader.getLengthBytes();
+		if (readBuf.remaining() < nBytesOfLength) {
+			return false;
+		}
+		int start = readBuf.position();
+		int messageLength = 0;
+		for (int i = 0; i < nBytesOfLength; i++) {
+			messageLength <<= 8;
+			messageLength |= readBuf.get(start + i) & 0xff;
+		}
+		if (messageLength == 0) {
+			throw new ProtocolException("premature end of message (length 0)");
+		}
+		if (messageLength > VtMessageReader.MAX_MESSAGE_LENGTH) {
+			throw new ProtocolException("VtMessage too long. Accepts up to " + VtMessageReader.MAX_MESSAGE_LENGTH);
+		}
+		if (readBuf.remaining() < nBytesOfLength + messageLength) {
+			// make room for the whole frame
+			if (readBuf.capacity() < nBytesOfLength + messageLength) {
+				ByteBuffer bigger = ByteBuffer.allocate(nBytesOfLength + messageLength);
+				bigger.put(readBuf);
+				bigger.flip();
+				readBuf = bigger;
+			}
+			return false;
+		}
+
+		readBuf.position(start + nBytesOfLength);
+		VtMessage req = msgReader.decode(readBuf.array(), readBuf.arrayOffset() + readBuf.position(), messageLength);
+		readBuf.position(readBuf.position() + messageLength);
+		if (req.msgType == VtMessage.VtThello) {
+			msgReader.setProtocolVersion(req.version);
+		}
+		if (req.msgType == VtMessage.VtTgoodbye) {
+			goodbye = true;
+		}
+		submit(req);
+		return true;
+	}
+
+	private void compactReadBuffer() {
+		if (readBuf.capacity() > INITIAL_READ_BUFFER && smallReads >= SMALL_READS_TO_SHRINK
+				&& readBuf.remaining() <= INITIAL_READ_BUFFER) {
+			ByteBuffer smaller = ByteBuffer.allocate(INITIAL_READ_BUFFER);
+			smaller.put(readBuf);
+			readBuf = smaller;
+			smallReads = 0;
+		} else {
+			readBuf.compact();
+		}
+	}
+
+	private void submit(final VtMessage req) {
+		inFlight++;
+		if (tagsInUse[req.tag & 0xff]) {
+			// the request it would be confused with is answered as usual
+			VtMessage resp = new VtMessage(VtMessage.VtRerror, req.tag);
+			resp.error = "tag " + (req.tag & 0xff) + " is already in use";
+			complete(req, resp, false);
+			req.recycle();
+			return;
+		}
+		tagsInUse[req.tag & 0xff] = true;
+		Runnable task = new Runnable() {
+			@Override
+			public void run() {
+				ServerMetrics.INSTANCE.record(req.msgType, Stage.QUEUE_WAIT, System.nanoTime() - req.receivedNanos);
+				VtMessage resp = null;
+				try {
+					resp = handler.handle(req);
+				} catch (Exception e) {
+					logger.error("failed to process {}: {}", req, e.getMessage());
+					resp = new VtMessage(VtMessage.VtRerror, req.tag);
+					resp.error = "internal error: " + e.getMessage();
+				}
+				complete(req, resp, true);
+				req.recycle();
+			}
+		};
+		try {
+			workers.execute(task);
+		} catch (RejectedExecutionException e) {
+			logger.error("worker pool rejected request: {}", e.getMessage());
+			close();
+		}
+	}
+
+	// called by a worker thread once a request has been processed. Only the
+	// header is encoded, the payload is queued as it came from the storage.
+	// A response that cannot be encoded is replaced by a VtRerror for its tag,
+	// and if that fails too the connection is closed, so the client is never
+	// left waiting. freeTag is false for a request rejected for its tag, which
+	// is still the tag of the request in flight.
+	private void complete(VtMessage req, VtMessage resp, final boolean freeTag) {
+		ByteBuffer header = null;
+		ByteBuffer payload = null;
+		if (resp != null) {
+			long start = System.nanoTime();
+			try {
+				header = encodeHeader(req, resp);
+				payload = VtMessageSerializer.payload(resp);
+			} catch (Exception e) {
+				logger.error("failed to serialize {}: {}", resp, e.getMessage());
+				closeRegion(resp.region);
+				resp = new VtMessage(VtMessage.VtRerror, req.tag);
+				resp.error = "internal error: " + e.getMessage();
+				header = null;
+				try {
+					header = encodeHeader(req, resp);
+				} catch (Exception e2) {
+					logger.error("failed to serialize {}: {}", resp, e2.getMessage());
+				}
+			}
+			ServerMetrics.INSTANCE.record(req.msgType, Stage.ENCODE, System.nanoTime() - start);
+		}
+		final ResponseSent sent = resp != null? new ResponseSent(req, resp): null;
+		final ByteBuffer response = header;
+		final ByteBuffer data = payload;
+		final BlockRegion region = resp != null? resp.region: null;
+		final boolean unanswered = resp != null && header == null;
+		final int tag = req.tag & 0xff;
+		loop.execute(new Runnable() {
+			@Override
+			public void run() {
+				inFlight--;
+				if (freeTag) {
+					tagsInUse[tag] = false;
+				}
+				if (unanswered) {
+					close();
+				}
+				if (closed) {
+					closeRegion(region);
+				} else if (response != null) {
+					synchronized (writeQueue) {
+						writeQueue.add(response);
+						if (data != null) {
+							writeQueue.add(data);
+						}
+						if (region != null) {
+							writeQueue.add(region);
+						}
+						writeQueue.add(sent);
+					}
+				}
+				if (stalled && !closed) {
+					stalled = false;
+					drainBuffered();
+				}
+				updateInterest();
+			}
+		});
+	}
+
+	private ByteBuffer encodeHeader(VtMessage req, VtMessage resp) throws ProtocolException {
+		synchronized (serializer) {
+			if (req.msgType == VtMessage.VtThello) {
+				serializer.setProtocolVersion(req.version);
+			}
+			return serializer.encodeHeader(resp);
+		}
+	}
+
+	private static void closeRegion(BlockRegion region) {
+		if (region != null) {
+			try {
+				region.close();
+			} catch (IOException e) {
+				//
+			}
+		}
+	}
+
+	void onWritable() throws IOException {
+		synchronized (writeQueue) {
+			while (!writeQueue.isEmpty()) {
+				Object next = writeQueue.peek();
+				if (next instanceof BlockRegion) {
+					BlockRegion region = (BlockRegion)next;
+					ServerMetrics.INSTANCE.addBytesOut(region.transferTo(channel));
+					if (!region.isDone()) {
+						break;
+					}
+					region.close();
+					writeQueue.poll();
+				} else if (next instanceof ResponseSent) {
+					((ResponseSent)next).record();
+					writeQueue.poll();
+				} else if (!writeBuffers()) {
+					break;
+				}
+			}
+		}
+		updateInterest();
+	}
+
+	// writes the buffers at the head of the queue, up to the next region, with
+	// one gathering write. Returns false if the socket did not take them all.
+	private boolean writeBuffers() throws IOException {
+		int n = 0;
+		for (Object o: writeQueue) {
+			if (o instanceof BlockRegion || n == MAX_GATHER) {
+				break;
+			}
+			if (o instanceof ByteBuffer) {
+				gather[n++] = (ByteBuffer)o;
+			}
+		}
+		ServerMetrics.INSTANCE.addBytesOut(channel.write(gather, 0, n));
+		boolean all = !gather[n - 1].hasRemaining();
+		Arrays.fill(gather, 0, n, null);
+		while (!writeQueue.isEmpty()) {
+			Object o = writeQueue.peek();
+			if (o instanceof ResponseSent) {
+				((ResponseSent)o).record();
+			} else if (!(o instanceof ByteBuffer) || ((ByteBuffer)o).hasRemaining()) {
+				break;
+			}
+			writeQueue.poll();
+		}
+		return all;
+	}
+
+	// runs on the event loop thread
+	void updateInterest() {
+		if (closed || !key.isValid()) {
+			return;
+		}
+		boolean pendingWrites;
+		synchronized (writeQueue) {
+			pendingWrites = !writeQueue.isEmpty();
+		}
+		if (goodbye && inFlight == 0 && !pendingWrites) {
+			close();
+			return;
+		}
+		int ops = 0;
+		if (!goodbye && !stalled) {
+			ops |= SelectionKey.OP_READ;
+		}
+		if (pendingWrites) {
+			ops |= SelectionKey.OP_WRITE;
+		}
+		key.interestOps(ops);
+	}
+
+	private void drainBuffered() {
+		readBuf.flip();
+		try {
+			readFrames();
+		} catch (ProtocolException e) {
+			logger.error("protocol exception: {}", e.getMessage());
+			close();
+		} finally {
+			compactReadBuffer();
+		}
+	}
+
+	void close() {
+		if (closed) {
+			return;
+		}
+		closed = true;
+		if (key != null) {
+			key.cancel();
+		}
+		try {
+			channel.close();
+		} catch (IOException e) {
+			//
+		}
+		synchronized (writeQueue) {
+			for (Object pending: writeQueue) {
+				if (pending instanceof BlockRegion) {
+					try {
+						((BlockRegion)pending).close();
+					} catch (IOException e) {
+						//
+					}
+				}
+			}
+			writeQueue.clear();
+		}
+		logger.info("connection closed");
+	}
+}
@@ -0,0 +1,93 @@
+package com.github.anastasop.koskino;
+
+import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+// A selector thread that owns a set of connections. Other threads hand it
+// work through execute(), which wakes up the selector.
+class NioEventLoop implements Runnable {
+	private Logger logger = LoggerFactory.getLogger(NioEventLoop.class);
+
+	private final Selector selector;
+	private final VtRequestHandler handler;
+	private final ExecutorService workers;
+	private final int maxInFlight;
+	private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+
+	NioEventLoop(VtRequestHandler handler, ExecutorService workers, int maxInFlight) throws IOException {
+		this.selector = Selector.open();
+		this.handler = handler;
+		this.workers = workers;
+		this.maxInFlight = maxInFlight;
+	}
+
+	void execute(Runnable task) {
+		tasks.add(task);
+		selector.wakeup();
+	}
+
+	void addConnection(final SocketChannel channel) {
+		execute(new Runnable() {
+			@Override
+			public void run() {
+				NioConnection conn = new NioConnection(channel, NioEventLoop.this, handler, workers, maxInFlight);
+				try {
+					channel.configureBlocking(false);
+					conn.register(channel.register(selector, 0, conn));
+				} catch (ClosedChannelException e) {
+					conn.close();
+				} catch (IOException e) {
+					logger.error("failed to register connection: {}", e.getMessage());
+					conn.close();
+				}
+			}
+		});
+	}
+
+	@Override
+	public void run() {
+		for (;;) {
+			try {
+				selector.select();
+			} catch (IOException e) {
+				logger.error("select failed: {}", e.getMessage());
+				return;
+			}
+
+			Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+			while (it.hasNext()) {
+				SelectionKey key = it.next();
+				it.remove();
+				NioConnection conn = (NioConnection)key.attachment();
+				try {
+					if (key.isValid() && key.isWritable()) {
+						conn.onWritable();
+					}
+					if (key.isValid() && key.isReadable()) {
+						conn.onReadable();
+					}
+				} catch (IOException e) {
+					logger.info("IOException: Closing Connection: {}", e.getMessage());
+					conn.close();
+				} catch (ProtocolException e) {
+					logger.error("protocol exception: {}", e.getMessage());
+					conn.close();
+				}
+			}
+
+			Runnable task;
+			while ((task = tasks.poll()) != null) {
+				task.run();
+			}
+		}
+	}
+}
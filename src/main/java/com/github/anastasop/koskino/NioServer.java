@@ -0,0 +1,87 @@
+package com.github.anastasop.koskino;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ExecutorService;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import ascient.threading.Threads;
+
+import com.github.anastasop.koskino.storage.StorageService;
+
+// Non blocking venti server. A blocking accept loop spreads connections over a
+// few selector threads, which frame messages and hand complete requests to a
+// shared worker pool. Idle connections cost a selection key and a small read
+// buffer instead of a thread.
+public class NioServer implements Runnable {
+	private Logger logger = LoggerFactory.getLogger(NioServer.class);
+
+	private final int port;
+	private final NioEventLoop[] loops;
+
+	public NioServer(int port, StorageService storage, int nEventLoops, int nWorkers, int maxInFlight) throws IOException {
+		this.port = port;
+		VtRequestHandler handler = new VtRequestHandler(storage, true);
+		ExecutorService workers = Threads.newPool(nWorkers);
+		this.loops = new NioEventLoop[nEventLoops];
+		for (int i = 0; i < nEventLoops; i++) {
+			loops[i] = new NioEventLoop(handler, workers, maxInFlight);
+		}
+	}
+
+	@Override
+	public void run() {
+		ServerSocketChannel ear;
+		try {
+			ear = ServerSocketChannel.open();
+			ear.socket().setReuseAddress(true);
+			ear.socket().bind(new InetSocketAddress(port));
+		} catch (IOException e) {
+			logger.error("failed to create ServerSocketChannel: {}", e.getMessage());
+			return;
+		}
+
+		for (int i = 0; i < loops.length; i++) {
+			Thread t = new Thread(loops[i], "koskino-loop-" + i);
+			t.setDaemon(true);
+			t.start();
+		}
+
+		logger.info("koskino listens at {} with {} event loops", ear.socket().getLocalSocketAddress(), loops.length);
+		int next = 0;
+		for (;;) {
+			SocketChannel peer;
+			try {
+				peer = ear.accept();
+			} catch (IOException e) {
+				logger.error("failed to accept a socket: {}", e.getMessage());
+				break;
+			}
+			try {
+				// see Main, replies go out as a header and a file region
+				peer.socket().setTcpNoDelay(true);
+			} catch (IOException e) {
+				// the peer is gone already, the others are not affected
+				logger.warn("dropping connection from {}: {}", peer.socket().getInetAddress(), e.getMessage());
+				try {
+					peer.close();
+				} catch (IOException ignored) {
+					//
+				}
+				continue;
+			}
+			logger.info("Accept connection from " + peer.socket().getInetAddress());
+			loops[next].addConnection(peer);
+			next = (next + 1) % loops.length;
+		}
+		try {
+			ear.close();
+		} catch (IOException e) {
+			//
+		}
+	}
+}
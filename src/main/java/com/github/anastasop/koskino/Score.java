@@ -1,6 +1,7 @@
 package com.github.anastasop.koskino;
 
 import java.security.MessageDigest;
+import java.util.Arrays;
 import java.security.NoSuchAlgorithmException;
 
 public class Score {
@@ -11,6 +12,10 @@ public class Score {
 	}
 	
 	public static Score forBlock(byte[] b) {
+		return forBlock(b, 0, b.length);
+	}
+	
+	public static Score forBlock(byte[] b, int off, int len) {
 	  MessageDigest md;
     try {
       md = MessageDigest.getInstance("SHA-1");
@@ -21,7 +26,7 @@ public class Score {
       e.printStackTrace();
       throw new InternalError(e);
     }
-	  md.update(b);
+	  md.update(b, off, len);
 	  byte[] hash = md.digest();
 		return new Score(hash);
 	}
@@ -45,6 +50,24 @@ public class Score {
 	    return new String(hexChars);
 	}
 
+	// the bytes are a SHA-1, so any four of them make a good hash
+	@Override
+	public int hashCode() {
+		byte[] b = scoreHashCode;
+		return (b[0] & 0xFF) << 24 | (b[1] & 0xFF) << 16 | (b[2] & 0xFF) << 8 | (b[3] & 0xFF);
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		if (this == o) {
+			return true;
+		}
+		if (!(o instanceof Score)) {
+			return false;
+		}
+		return Arrays.equals(scoreHashCode, ((Score)o).scoreHashCode);
+	}
+
 	@Override
 	public String toString() {
 		return bytesToHex(scoreHashCode);
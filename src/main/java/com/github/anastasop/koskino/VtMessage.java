@@ -1,5 +1,7 @@
 package com.github.anastasop.koskino;
 
+import com.github.anastasop.koskino.storage.BlockRegion;
+
 public class VtMessage {
 	public static final byte VtRerror = 1;
 	public static final byte VtTping = 2;
@@ -35,7 +37,22 @@ public class VtMessage {
 	public Score score;
 	public byte blockType;
 	public int count;
+	// the payload is data[dataOffset, dataOffset + dataLength); decoded
+	// VtTwrite messages point into a pooled buffer
 	public byte[] data;
+	public int dataOffset;
+	public int dataLength;
+	// VtRread only: payload still in the storage file, sent instead of data
+	public BlockRegion region;
+	
+	// set on messages handed out by a VtMessageReader, which takes them back
+	// in recycle()
+	VtMessageReader owner;
+	boolean pooledData;
+	// System.nanoTime() when the reader started decoding the request
+	long receivedNanos;
+	final byte[] scoreBytes = new byte[20];
+	final Score reusableScore = Score.fromBytes(scoreBytes);
 	
 	public VtMessage() {}
 	
@@ -43,6 +60,51 @@ public class VtMessage {
 		this.msgType = msgType;
 		this.tag = tag;
 	}
+
+	public void setData(byte[] data) {
+		this.data = data;
+		this.dataOffset = 0;
+		this.dataLength = data == null? 0: data.length;
+	}
+
+	// Returns a decoded request and its payload buffer for reuse. The message,
+	// its data and its score must not be used afterwards.
+	public void recycle() {
+		if (owner == null) {
+			return;
+		}
+		if (pooledData) {
+			BufferPool.MESSAGES.release(data);
+		}
+		VtMessageReader reader = owner;
+		clear();
+		reader.recycle(this);
+	}
+
+	void clear() {
+		msgType = 0;
+		tag = 0;
+		pad = 0;
+		type = 0;
+		error = null;
+		version = null;
+		uid = null;
+		strength = 0;
+		crypto = null;
+		codec = null;
+		sid = null;
+		auth = null;
+		score = null;
+		blockType = 0;
+		count = 0;
+		data = null;
+		dataOffset = 0;
+		dataLength = 0;
+		region = null;
+		owner = null;
+		pooledData = false;
+		receivedNanos = 0;
+	}
 	
 	@Override
 	public String toString() {
@@ -85,10 +147,10 @@ public class VtMessage {
 			s = String.format("VtTread:%d:%s:(type)%d:(pad)%d:(count)%d", tag, score, type, pad, count);
 			break;
 		case VtMessage.VtRread:
-			s = String.format("VtRread:%d:(count of data)%d", tag, data.length);
+			s = String.format("VtRread:%d:(count of data)%d", tag, region != null? region.getLength(): dataLength);
 			break;
 		case VtMessage.VtTwrite:
-			s = String.format("VtTwrite:%d:(type)%d:(pad)%d:(count of data)%d", tag, type, pad, data.length);
+			s = String.format("VtTwrite:%d:(type)%d:(pad)%d:(count of data)%d", tag, type, pad, dataLength);
 			break;
 		case VtMessage.VtRwrite:
 			s = String.format("VtRwrite:%d:%s", tag, score);
@@ -2,16 +2,35 @@ package com.github.anastasop.koskino;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.concurrent.ConcurrentLinkedQueue;
 
+import com.github.anastasop.koskino.metrics.ServerMetrics;
+import com.github.anastasop.koskino.metrics.Stage;
+
+// Reads T-messages on the server and R-messages on a client, such as the
+// load generator.
 public class VtMessageReader {
 	private InputStream ist;
 	private int nBytesOfLength;
-	private byte[] buf;
+	private byte[] lengthBuf = new byte[4];
+	private VtMessageScanner scanner = new VtMessageScanner(null, 0, 0);
+	private ConcurrentLinkedQueue<VtMessage> free = new ConcurrentLinkedQueue<VtMessage>();
+
+	public static final int MAX_MESSAGE_LENGTH = 65536 * 2;
 
 	public VtMessageReader(InputStream ist) {
 		this.ist = ist;
 		this.nBytesOfLength = 2;
-		this.buf = new byte[65536 * 2];
+	}
+
+	// a reader without a stream, for callers that frame messages themselves and
+	// only need decode()
+	public VtMessageReader() {
+		this.nBytesOfLength = 2;
+	}
+
+	public int getLengthBytes() {
+		return nBytesOfLength;
 	}
 	
 	public void setProtocolVersion(String protocolVersion) throws ProtocolException {
@@ -39,8 +58,10 @@ public class VtMessageReader {
    return total;
 	}
 	
+	// Messages are recycled by the caller once the reply is written, so a
+	// reader only ever allocates as many as there are requests in flight.
 	public VtMessage read() throws ProtocolException, IOException {
-		int nBytesOfLengthRead = blockRead(ist, buf, 0, nBytesOfLength);
+		int nBytesOfLengthRead = blockRead(ist, lengthBuf, 0, nBytesOfLength);
 
 		if (nBytesOfLengthRead == 0) {
 		  // assume connection is closed
@@ -53,96 +74,128 @@ public class VtMessageReader {
 		int messageLength = 0;
 		for (int i = 0; i < nBytesOfLength; i++) {
 			messageLength <<= 8;
-			messageLength |= buf[i] & 0xff;
+			messageLength |= lengthBuf[i] & 0xff;
 		}
 
 		if (messageLength == 0) {
 			throw new ProtocolException("premature end of message (length 0)");
 		}
-		if (messageLength > buf.length) {
-			throw new ProtocolException("VtMessage too long. Accepts up to " + buf.length);
+		if (messageLength > MAX_MESSAGE_LENGTH) {
+			throw new ProtocolException("VtMessage too long. Accepts up to " + MAX_MESSAGE_LENGTH);
 		}
-		int nBytesOfMessageLengthRead = blockRead(ist, buf, 0, messageLength);
+		// read straight into a pooled buffer; a VtTwrite or VtRread keeps it as
+		// its payload
+		byte[] frame = messageLength <= BufferPool.MESSAGES.getBufferSize()?
+				BufferPool.MESSAGES.acquire(): new byte[messageLength];
+		int nBytesOfMessageLengthRead = blockRead(ist, frame, 0, messageLength);
 
 		if (nBytesOfMessageLengthRead != messageLength) {
+			BufferPool.MESSAGES.release(frame);
 			throw new ProtocolException("premature end of message");
 		}
-		
-		
-		
-		VtMessage msg = new VtMessage();
-		VtMessageScanner scanner = new VtMessageScanner(buf, 0, messageLength);
-		Integer messageType = scanner.readCount(1);
-		if (messageType == null) {
+		VtMessage msg = null;
+		try {
+			msg = decode(frame, 0, messageLength, true);
+		} finally {
+			if (msg == null || msg.data != frame) {
+				BufferPool.MESSAGES.release(frame);
+			}
+		}
+		return msg;
+	}
+
+	// decodes a complete message of messageLength bytes, without the length prefix,
+	// starting at buf[off]. buf is not referenced by the returned message.
+	public VtMessage decode(byte[] buf, int off, int messageLength) throws ProtocolException {
+		return decode(buf, off, messageLength, false);
+	}
+
+	// adoptBuffer: buf is a pooled buffer that a VtTwrite or VtRread may keep as
+	// its payload
+	private VtMessage decode(byte[] buf, int off, int messageLength, boolean adoptBuffer) throws ProtocolException {
+		long start = System.nanoTime();
+		VtMessage msg = obtain();
+		try {
+			decodeInto(msg, buf, off, messageLength, adoptBuffer);
+		} catch (ProtocolException e) {
+			recycle(msg);
+			throw e;
+		}
+		msg.receivedNanos = start;
+		// only the server decodes T-messages, which have even types, so a
+		// client records nothing
+		if (msg.msgType % 2 == 0) {
+			ServerMetrics.INSTANCE.record(msg.msgType, Stage.DECODE, System.nanoTime() - start);
+			ServerMetrics.INSTANCE.addBytesIn(nBytesOfLength + messageLength);
+		}
+		return msg;
+	}
+
+	private void decodeInto(VtMessage msg, byte[] buf, int off, int messageLength, boolean adoptBuffer) throws ProtocolException {
+		scanner.reset(buf, off, off + messageLength);
+		int messageType = scanner.readCount(1);
+		if (messageType < 0) {
 			throw new ProtocolException("Malformed message: no message type");
 		}
-		Integer tag = scanner.readCount(1);
-		if (tag == null) {
+		int tag = scanner.readCount(1);
+		if (tag < 0) {
 			throw new ProtocolException("Malformed message: no message tag");
 		}
-		Integer type = null, pad = null;
-		switch (messageType.byteValue()) {
+		int type, pad;
+		switch ((byte)messageType) {
 		case VtMessage.VtThello:
 			// VtThello tag[1] version[s] uid[s] strength[1] crypto[n] codec[n]
 			String version = scanner.readString();
 			String uid = scanner.readString();
-			Integer strength = scanner.readCount(1);
+			int strength = scanner.readCount(1);
 			String crypto = scanner.readDatum();
 			String codec = scanner.readDatum();
 			if (version == null || uid == null ||
-					strength == null || crypto == null || codec == null) {
+					strength < 0 || crypto == null || codec == null) {
 				throw new ProtocolException("Malformed VtHello message");
 			}
 			msg.msgType = VtMessage.VtThello;
-			msg.tag = tag.byteValue();
+			msg.tag = (byte)tag;
 			msg.version = version;
 			msg.uid = uid;
-			msg.strength = tag.byteValue();
+			msg.strength = (byte)strength;
 			msg.crypto = crypto;
 			msg.codec = codec;
 			break;
 		case VtMessage.VtTread:
 			// VtTread tag[1] score[20] type[1] pad[1] count[2]
-			byte[] score = scanner.readScore();
+			boolean haveScore = scanner.readScore(msg.scoreBytes);
 			type = scanner.readCount(1);
 			pad = scanner.readCount(1);
-			Integer count = scanner.readCount(nBytesOfLength);
-			if (score == null || type == null || pad == null || count == null) {
+			int count = scanner.readCount(nBytesOfLength);
+			if (!haveScore || type < 0 || pad < 0 || count < 0) {
 				throw new ProtocolException("Malformed VtTread message");
 			}
 			msg.msgType = VtMessage.VtTread;
-			msg.tag = tag.byteValue();
-			msg.score = Score.fromBytes(score);
+			msg.tag = (byte)tag;
+			msg.score = msg.reusableScore;
 			msg.count = count;
-			msg.type = type.byteValue();
+			msg.type = (byte)type;
 			msg.pad = pad;
 			break;
 		case VtMessage.VtTwrite:
 			// VtTwrite tag[1] type[1] pad[3] data[]
 			type = scanner.readCount(1);
 			pad = scanner.readCount(3);
-			byte[] data = null;
-			int dataLength = messageLength - 6;
-			if (dataLength > 0) {
-				data = new byte[dataLength];
-				System.arraycopy(buf, 6, data, 0, dataLength);
-			} else {
-				data = new byte[0];
-			}
-			if (type == null || pad == null || data == null) {
+			if (type < 0 || pad < 0) {
 				throw new ProtocolException("Malformed VtTwrite message");
 			}
+			setPayload(msg, buf, off + 6, messageLength - 6, adoptBuffer);
 			msg.msgType = VtMessage.VtTwrite;
-			msg.tag = tag.byteValue();
-			msg.data = data;
-			msg.type = type.byteValue();
+			msg.tag = (byte)tag;
+			msg.type = (byte)type;
 			msg.pad = pad;
 			break;
 		case VtMessage.VtTsync:
 		case VtMessage.VtTping:
 		case VtMessage.VtTgoodbye:
-			msg.msgType = messageType.byteValue();
-			msg.tag = tag.byteValue();
+			msg.msgType = (byte)messageType;
+			msg.tag = (byte)tag;
 			break;
 			
 		case VtMessage.VtTauth0:
@@ -150,18 +203,87 @@ public class VtMessageReader {
 			throw new ProtocolException("Cannot understand Tauth{0,1} messages");
 			
 		case VtMessage.VtRerror:
-		case VtMessage.VtRping:
+			// VtRerror tag[1] error[s]
+			String error = scanner.readString();
+			if (error == null) {
+				throw new ProtocolException("Malformed VtRerror message");
+			}
+			msg.msgType = VtMessage.VtRerror;
+			msg.tag = (byte)tag;
+			msg.error = error;
+			break;
 		case VtMessage.VtRhello:
-		case VtMessage.VtRgoodbye:
-		case VtMessage.VtRauth0:
-		case VtMessage.VtRauth1:
+			// VtRhello tag[1] sid[s] rcrypto[1] rcodec[1]
+			String sid = scanner.readString();
+			int rcrypto = scanner.readCount(1);
+			int rcodec = scanner.readCount(1);
+			if (sid == null || rcrypto < 0 || rcodec < 0) {
+				throw new ProtocolException("Malformed VtRhello message");
+			}
+			msg.msgType = VtMessage.VtRhello;
+			msg.tag = (byte)tag;
+			msg.sid = sid;
+			break;
 		case VtMessage.VtRread:
+			// VtRread tag[1] data[]
+			setPayload(msg, buf, off + 2, messageLength - 2, adoptBuffer);
+			msg.msgType = VtMessage.VtRread;
+			msg.tag = (byte)tag;
+			break;
 		case VtMessage.VtRwrite:
+			// VtRwrite tag[1] score[20]
+			if (!scanner.readScore(msg.scoreBytes)) {
+				throw new ProtocolException("Malformed VtRwrite message");
+			}
+			msg.msgType = VtMessage.VtRwrite;
+			msg.tag = (byte)tag;
+			msg.score = msg.reusableScore;
+			break;
+		case VtMessage.VtRping:
 		case VtMessage.VtRsync:
-			throw new ProtocolException("MessageReader can read only TMessages");
+		case VtMessage.VtRgoodbye:
+			msg.msgType = (byte)messageType;
+			msg.tag = (byte)tag;
+			break;
+
+		case VtMessage.VtRauth0:
+		case VtMessage.VtRauth1:
+			throw new ProtocolException("Cannot understand Rauth{0,1} messages");
 		default:
 			throw new ProtocolException("unknown message type " + messageType);
 		}
+	}
+
+	private void setPayload(VtMessage msg, byte[] buf, int off, int dataLength, boolean adoptBuffer) {
+		if (adoptBuffer) {
+			msg.data = buf;
+			msg.dataOffset = off;
+			msg.pooledData = true;
+		} else if (dataLength <= BufferPool.MESSAGES.getBufferSize()) {
+			msg.data = BufferPool.MESSAGES.acquire();
+			System.arraycopy(buf, off, msg.data, 0, dataLength);
+			msg.dataOffset = 0;
+			msg.pooledData = true;
+		} else {
+			msg.data = new byte[dataLength];
+			System.arraycopy(buf, off, msg.data, 0, dataLength);
+			msg.dataOffset = 0;
+		}
+		msg.dataLength = dataLength;
+	}
+
+	private VtMessage obtain() {
+		VtMessage msg = free.poll();
+		if (msg == null) {
+			msg = new VtMessage();
+		}
+		msg.owner = this;
 		return msg;
 	}
+
+	// called by VtMessage.recycle(), possibly from a worker thread
+	void recycle(VtMessage msg) {
+		msg.clear();
+		free.add(msg);
+	}
 }
@@ -2,17 +2,29 @@ package com.github.anastasop.koskino;
 
 import java.io.UnsupportedEncodingException;
 
+// Reads the fields of a message in place. The fixed size readers return
+// primitives and -1 (or false) when the message is too short, so decoding
+// does not allocate.
 class VtMessageScanner {
 	private byte[] buf;
 	private int len;
 	private int pos;
-	
+
 	public VtMessageScanner(byte[] buf, int off, int len) {
+		reset(buf, off, len);
+	}
+
+	// len is the end position in buf, not the number of bytes after off
+	public void reset(byte[] buf, int off, int len) {
 		this.buf = buf;
 		this.len = len;
 		this.pos = off;
 	}
-	
+
+	public int position() {
+		return pos;
+	}
+
 	public String readString() {
 		String s = null;
 		if (pos + 1 < len) {
@@ -30,12 +42,11 @@ class VtMessageScanner {
 		}
 		return s;
 	}
-	
+
 	public String readDatum() {
 		String s = null;
 		if (pos < len) {
-			int b0 = buf[pos] & 0xff;
-			int slen = (b0 << 8);
+			int slen = buf[pos] & 0xff;
 			if (pos + slen < len) {
 				try {
 					s = new String(buf, pos + 1, slen, "ISO-8859-1");
@@ -47,19 +58,19 @@ class VtMessageScanner {
 		}
 		return s;
 	}
-	
-	public byte[] readScore() {
-		byte[] b = null;
-		if (pos + 20 < len) {
-			b = new byte[20];
-			System.arraycopy(buf, pos, b, 0, 20);
+
+	// copies the score into dst, which must hold 20 bytes
+	public boolean readScore(byte[] dst) {
+		if (pos + 20 <= len) {
+			System.arraycopy(buf, pos, dst, 0, 20);
 			pos += 20;
+			return true;
 		}
-		return b;
+		return false;
 	}
-	
-	public Integer readCount(int nbytes) {
-		Integer i = null;
+
+	public int readCount(int nbytes) {
+		int i = -1;
 		int b0, b1, b2, b3;
 		if (pos + nbytes - 1 < len) {
 			if (nbytes > 4) {
@@ -77,7 +88,7 @@ class VtMessageScanner {
 			case 3: // to support pad
 				b0 = buf[pos] & 0xff;
 				b1 = buf[pos + 1] & 0xff;
-				b2 = buf[pos + 1] & 0xff;
+				b2 = buf[pos + 2] & 0xff;
 				i = (b0 << 16) + (b1 << 8) + b2;
 				break;
 			case 4:
@@ -85,7 +96,7 @@ class VtMessageScanner {
 				b1 = buf[pos + 1] & 0xff;
 				b2 = buf[pos + 2] & 0xff;
 				b3 = buf[pos + 3] & 0xff;
-				i = (b0 << 24) + (b1 << 16) + (b2 << 8) + b3;
+				i = ((b0 & 0x7f) << 24) + (b1 << 16) + (b2 << 8) + b3;
 				break;
 			}
 			pos += nbytes;
@@ -2,186 +2,193 @@ package com.github.anastasop.koskino;
 
 import java.io.IOException;
 import java.io.OutputStream;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
 
+// Encodes messages into ByteBuffers. The bulk payload of a VtRread or VtTwrite
+// is never copied: encodeHeader() writes everything before it, and payload()
+// wraps the data so both can go out in one gathering write.
 public class VtMessageSerializer {
 	private static final Charset UTF8Charset = Charset.forName("UTF-8");
 	private static final Charset Latin1Charset = Charset.forName("ISO-8859-1");
-	
+	private static final byte[] EMPTY = new byte[0];
+
 	private String protocolVersion;
-	
+	private int nBytesOfLength;
+
 	public void setProtocolVersion(String protocolVersion) throws ProtocolException {
 		this.protocolVersion = protocolVersion;
+		this.nBytesOfLength = "04".equals(protocolVersion)? 4: 2;
 	}
-	
+
 	public VtMessageSerializer() {
 		this.protocolVersion = "02";
+		this.nBytesOfLength = 2;
 	}
-	
-	private void writeMessageLength(int length, OutputStream ost) throws IOException {
-		switch (protocolVersion) {
-		case "04":
-			writeCount(4, length, ost);
-			break;
-		default:
-			writeCount(2, length, ost);
-			break;
-		}
-	}
-	
-	private void writeByte(int b, OutputStream ost) throws IOException {
-		ost.write(b);
-	}
-	
-	private void writeBytes(byte[] b, OutputStream ost) throws IOException {
-		ost.write(b);
-	}
-	
-	private void writeCount(int nbytes, int count, OutputStream ost) throws IOException {
-		int b0, b1, b2, b3;
+
+	private void writeCount(int nbytes, int count, ByteBuffer b) {
 		if (nbytes > 4) {
 			nbytes = 4;
 		}
 		switch (nbytes) {
 		case 1:
-			ost.write(count);
+			b.put((byte)count);
+			break;
 		case 2:
-			b0 = (count >> 8) & 0xFF;
-			b1 = (count) & 0xFF;
-			ost.write(b0);
-			ost.write(b1);
+			b.putShort((short)count);
 			break;
 		case 3:
-			b0 = (count >> 16) & 0xFF;
-			b1 = (count >> 8) & 0xFF;
-			b2 = (count) & 0xFF;
-			ost.write(b0);
-			ost.write(b1);
-			ost.write(b2);
+			b.put((byte)(count >> 16));
+			b.putShort((short)count);
 			break;
 		case 4:
-			b0 = (count >> 24) & 0xFF;
-			b1 = (count >> 16) & 0xFF;
-			b2 = (count >> 8) & 0xFF;
-			b3 = (count) & 0xFF;
-			ost.write(b0);
-			ost.write(b1);
-			ost.write(b2);
-			ost.write(b3);
+			b.putInt(count);
 			break;
 		}
 	}
-	
-	private void writeScore(Score score, OutputStream ost) throws IOException {
-		ost.write(score.getBytes());
+
+	private void writeString(byte[] s, ByteBuffer b) {
+		writeCount(2, s.length, b);
+		b.put(s);
+	}
+
+	private void writeDatum(byte[] s, ByteBuffer b) {
+		writeCount(1, s.length, b);
+		b.put(s);
+	}
+
+	private byte[] bytes(String s, Charset cs) {
+		return s == null? EMPTY: s.getBytes(cs);
+	}
+
+	// length of the payload that follows the header on the wire
+	private int payloadLength(VtMessage msg) {
+		if (msg.msgType == VtMessage.VtRread && msg.region != null) {
+			return msg.region.getLength();
+		}
+		if (msg.msgType == VtMessage.VtRread || msg.msgType == VtMessage.VtTwrite) {
+			return msg.dataLength;
+		}
+		return 0;
+	}
+
+	// the payload sent after the header, or null if there is none or it is a region
+	public static ByteBuffer payload(VtMessage msg) {
+		if ((msg.msgType == VtMessage.VtRread || msg.msgType == VtMessage.VtTwrite)
+				&& msg.region == null && msg.dataLength > 0) {
+			return ByteBuffer.wrap(msg.data, msg.dataOffset, msg.dataLength);
+		}
+		return null;
+	}
+
+	// Appends the length prefix and every field up to the payload to b. Returns
+	// false, leaving b as it was, if b has no room for them.
+	public boolean encodeHeader(VtMessage msg, ByteBuffer b) {
+		int start = b.position();
+		if (b.remaining() < nBytesOfLength) {
+			return false;
+		}
+		try {
+			b.position(start + nBytesOfLength);
+			encodeBody(msg, b);
+			int length = b.position() - start - nBytesOfLength + payloadLength(msg);
+			if (nBytesOfLength == 4) {
+				b.putInt(start, length);
+			} else {
+				b.putShort(start, (short)length);
+			}
+			return true;
+		} catch (BufferOverflowException e) {
+			b.position(start);
+			return false;
+		}
 	}
-	
-	private int len(byte[] b) {
-		return b == null? 0: b.length;
+
+	// the header alone in a buffer of its own, ready to be written
+	public ByteBuffer encodeHeader(VtMessage msg) {
+		ByteBuffer header = ByteBuffer.allocate(64);
+		while (!encodeHeader(msg, header)) {
+			header = ByteBuffer.allocate(header.capacity() * 4);
+		}
+		header.flip();
+		return header;
 	}
-	
+
+	// for a VtRread with a region only the header is written, the caller sends
+	// the region after it
 	public void writeMessage(VtMessage msg, OutputStream ost) throws IOException {
+		ByteBuffer header = encodeHeader(msg);
+		ost.write(header.array(), 0, header.limit());
+		if (msg.region == null && payloadLength(msg) > 0) {
+			ost.write(msg.data, msg.dataOffset, msg.dataLength);
+		}
+	}
+
+	private void encodeBody(VtMessage msg, ByteBuffer b) {
 		switch (msg.msgType) {
 		case VtMessage.VtRerror:
-			byte[] errorString = msg.error.getBytes(UTF8Charset);
-			writeMessageLength(1 + 1 + 2 + len(errorString), ost);
-			writeByte(VtMessage.VtRerror, ost);
-			writeByte(msg.tag, ost);
-			writeCount(2, errorString.length, ost);
-			writeBytes(errorString, ost);
+			b.put(VtMessage.VtRerror);
+			b.put(msg.tag);
+			writeString(bytes(msg.error, UTF8Charset), b);
 			break;
 		case VtMessage.VtTping:
-			writeMessageLength(2, ost);
-			writeByte(VtMessage.VtTping, ost);
-			writeByte(msg.tag, ost);
-			break;
 		case VtMessage.VtRping:
-			writeMessageLength(2, ost);
-			writeByte(VtMessage.VtRping, ost);
-			writeByte(msg.tag, ost);
+		case VtMessage.VtTgoodbye:
+		case VtMessage.VtTsync:
+		case VtMessage.VtRsync:
+			b.put(msg.msgType);
+			b.put(msg.tag);
 			break;
 		case VtMessage.VtThello:
-			byte[] versionString = msg.version.getBytes(UTF8Charset);
-			byte[] uidString = msg.uid.getBytes("UTF-8");
-			byte[] cryptoDatum = msg.uid.getBytes(Latin1Charset);
-			byte[] codecDatum = msg.uid.getBytes(Latin1Charset);
-			writeMessageLength(1 + 1 + 2 + len(versionString) + 2 + len(uidString) + 1 + len(cryptoDatum) + 1 + len(codecDatum), ost);
-			writeByte(VtMessage.VtThello, ost);
-			writeByte(msg.tag, ost);
-			writeCount(2, len(versionString), ost);
-			writeBytes(versionString, ost);
-			writeCount(2, len(uidString), ost);
-			writeBytes(uidString, ost);
-			writeByte(msg.strength, ost);
-			writeCount(1, len(cryptoDatum), ost);
-			writeBytes(cryptoDatum, ost);
-			writeCount(1, len(codecDatum), ost);
-			writeBytes(codecDatum, ost);
+			b.put(VtMessage.VtThello);
+			b.put(msg.tag);
+			writeString(bytes(msg.version, UTF8Charset), b);
+			writeString(bytes(msg.uid, UTF8Charset), b);
+			b.put(msg.strength);
+			writeDatum(bytes(msg.crypto, Latin1Charset), b);
+			writeDatum(bytes(msg.codec, Latin1Charset), b);
 			break;
 		case VtMessage.VtRhello:
-			byte[] sidString = msg.sid.getBytes(UTF8Charset);
-			writeMessageLength(1 + 1 + 2 + len(sidString) + 2, ost);
-			writeByte(VtMessage.VtRhello, ost);
-			writeByte(msg.tag, ost);
-			writeCount(2, len(sidString), ost);
-			writeBytes(sidString, ost);
-			writeByte(0, ost);
-			writeByte(0, ost);
-			break;
-		case VtMessage.VtTgoodbye:
-			writeMessageLength(2, ost);
-			writeByte(VtMessage.VtTgoodbye, ost);
-			writeByte(msg.tag, ost);
+			b.put(VtMessage.VtRhello);
+			b.put(msg.tag);
+			writeString(bytes(msg.sid, UTF8Charset), b);
+			b.put((byte)0);
+			b.put((byte)0);
 			break;
 		case VtMessage.VtTread:
-			writeMessageLength(1 + 1 + 20 + 1 + 1 + 2, ost);
-			writeByte(VtMessage.VtTread, ost);
-			writeByte(msg.tag, ost);
-			writeScore(msg.score, ost);
-			writeByte(0, ost);
-			writeByte(0, ost);
-			writeCount(2, msg.count, ost);
+			b.put(VtMessage.VtTread);
+			b.put(msg.tag);
+			b.put(msg.score.getBytes());
+			b.put(msg.type);
+			b.put((byte)0);
+			writeCount(nBytesOfLength, msg.count, b);
 			break;
 		case VtMessage.VtRread:
-			writeMessageLength(1 + 1 + len(msg.data), ost);
-			writeByte(VtMessage.VtRread, ost);
-			writeByte(msg.tag, ost);
-			ost.write(msg.data);
+			b.put(VtMessage.VtRread);
+			b.put(msg.tag);
 			break;
 		case VtMessage.VtTwrite:
-			writeMessageLength(1 + 1 + 1 + 3 + len(msg.data), ost);
-			writeByte(VtMessage.VtTwrite, ost);
-			writeByte(msg.tag, ost);
-			writeByte(0, ost);
-			writeCount(3, 0, ost);
-			ost.write(msg.data);
+			b.put(VtMessage.VtTwrite);
+			b.put(msg.tag);
+			b.put(msg.type);
+			writeCount(3, 0, b);
 			break;
 		case VtMessage.VtRwrite:
-			writeMessageLength(1 + 1 + 20, ost);
-			writeByte(VtMessage.VtRwrite, ost);
-			writeByte(msg.tag, ost);
-			writeScore(msg.score, ost);
+			b.put(VtMessage.VtRwrite);
+			b.put(msg.tag);
+			b.put(msg.score.getBytes());
 			break;
-		case VtMessage.VtTsync:
-			writeMessageLength(2, ost);
-			writeByte(VtMessage.VtTsync, ost);
-			writeByte(msg.tag, ost);
-			break;
-		case VtMessage.VtRsync:
-			writeMessageLength(2, ost);
-			writeByte(VtMessage.VtRsync, ost);
-			writeByte(msg.tag, ost);
-			break;
-			
+
 		case VtMessage.VtRgoodbye:
 		case VtMessage.VtTauth0:
 		case VtMessage.VtRauth0:
 		case VtMessage.VtTauth1:
 		case VtMessage.VtRauth1:
-			throw new IllegalArgumentException("cannot handle this message");
-			
+			throw new IllegalStateException("cannot handle this message");
+
 		default:
-			throw new IllegalArgumentException("cannot understand this message");
+			throw new IllegalStateException("cannot understand this message");
 		}
 	}
 }
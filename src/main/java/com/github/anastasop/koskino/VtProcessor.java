@@ -4,8 +4,15 @@ import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
 import java.io.IOException;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.Callable;
-import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Semaphore;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -13,22 +20,66 @@ import org.slf4j.LoggerFactory;
 import ascient.threading.FCFSQueue;
 import ascient.threading.RunnableTask;
 
-import com.github.anastasop.koskino.storage.Block;
+import com.github.anastasop.koskino.metrics.ServerMetrics;
+import com.github.anastasop.koskino.metrics.Stage;
 import com.github.anastasop.koskino.storage.StorageService;
 
 public class VtProcessor implements Runnable {
+  public static final int DEFAULT_MAX_IN_FLIGHT = 32;
+
   private Logger logger = LoggerFactory.getLogger(VtProcessor.class);
 
   private Socket socket;
   private BufferedInputStream ist;
   private BufferedOutputStream ost;
-  private StorageService storage;
+  private VtRequestHandler handler;
   private FCFSQueue<VtMessage> incomingQueue;
+  private VtMessageSerializer serializer;
+
+  // requests read but not yet answered, keyed by tag
+  private final int maxInFlight;
+  private final Semaphore inFlight;
+  private final boolean[] tagsInUse = new boolean[256];
+
+  // Responses are queued and written by whichever task finds no writer
+  // active, so responses that complete together go out in one gathering
+  // write. Headers are encoded into headerBuf, payloads are sent from the
+  // block data without copying.
+  private final ArrayDeque<PendingResponse> pendingResponses = new ArrayDeque<>();
+  private boolean writing;
+  private IOException writeFailure;
+  private final ByteBuffer headerBuf = ByteBuffer.allocate(16 * 1024);
+  private final List<ByteBuffer> gather = new ArrayList<>();
+  private WritableByteChannel out;
+
+  private static class PendingResponse {
+    final VtMessage resp;
+    // set for the response to a VtThello, switches the length prefix size
+    final String version;
+    // of the request, which is recycled before the response is written
+    final byte reqType;
+    final long receivedNanos;
+
+    PendingResponse(VtMessage resp, VtMessage req) {
+      this.resp = resp;
+      this.version = req.msgType == VtMessage.VtThello? req.version: null;
+      this.reqType = req.msgType;
+      this.receivedNanos = req.receivedNanos;
+    }
+  }
 
   public VtProcessor(Socket socket, StorageService storage) {
+    this(socket, storage, DEFAULT_MAX_IN_FLIGHT);
+  }
+
+  public VtProcessor(Socket socket, StorageService storage, int maxInFlight) {
     this.socket = socket;
-    this.storage = storage;
+    // sockets accepted from a ServerSocketChannel can send file regions directly
+    this.handler = new VtRequestHandler(storage, socket.getChannel() != null);
     this.incomingQueue = new FCFSQueue<>("incoming");
+    this.serializer = new VtMessageSerializer();
+    this.maxInFlight = Math.max(1, Math.min(maxInFlight, 256));
+    this.inFlight = new Semaphore(this.maxInFlight);
   }
 
   private void prepareConnection() throws IOException {
@@ -36,6 +87,9 @@ public class VtProcessor implements Runnable {
     this.ost = new BufferedOutputStream(socket.getOutputStream());
     ost.write("venti-02:04-koskino\n".getBytes());
     ost.flush();
+    // sockets accepted from a ServerSocketChannel are written through it
+    // directly, the others through the buffered stream
+    this.out = socket.getChannel() != null? socket.getChannel(): Channels.newChannel(ost);
     byte[] buf = new byte[64];
     int pos = 0;
     for (;;) {
@@ -62,6 +116,9 @@ public class VtProcessor implements Runnable {
       logger.info("IOException: Closing Connection", e);
     } finally {
       // release connection
+      inFlight.acquireUninterruptibly(maxInFlight);
+      awaitResponsesWritten();
+      incomingQueue.shutdown();
       try {
         if (ist != null) {
           ist.close();
@@ -82,9 +139,7 @@ public class VtProcessor implements Runnable {
   private void runLoop() throws IOException {
     VtMessageReader msgReader = new VtMessageReader(ist);
     for (;;) {
-      VtMessageSerializer serializer = new VtMessageSerializer();
       VtMessage req = null;
-      VtMessage resp = null;
 
       try {
         req = msgReader.read();
@@ -94,97 +149,238 @@ public class VtProcessor implements Runnable {
         //logger.info("Request: {}", req.toString());
         if (req.msgType == VtMessage.VtThello) {
           msgReader.setProtocolVersion(req.version);
-          serializer.setProtocolVersion(req.version);
         }
+        acquireTag(req.tag);
       } catch (ProtocolException e) {
         logger.error("protocol expression: {}", e.getMessage());
         return;
       }
 
+      if (req.msgType == VtMessage.VtTgoodbye) {
+        // let the outstanding requests write their replies before syncing and closing
+        inFlight.acquireUninterruptibly(maxInFlight - 1);
+        try {
+          handler.handle(req);
+          awaitResponsesWritten();
+        } finally {
+          freeTag(req.tag);
+          req.recycle();
+          inFlight.release(maxInFlight);
+        }
+        return;
+      }
+
       final VtMessage taskReq = req;
 
       Callable<VtMessage> callable = new Callable<VtMessage>() {
-     @Override
+        @Override
         public VtMessage call() throws IOException {
+          ServerMetrics.INSTANCE.record(taskReq.msgType, Stage.QUEUE_WAIT, System.nanoTime() - taskReq.receivedNanos);
           VtMessage resp = null;
-          switch (taskReq.msgType) {
-            case VtMessage.VtTping:
-              resp = new VtMessage(VtMessage.VtRping, taskReq.tag);
-              break;
-            case VtMessage.VtThello:
-              resp = new VtMessage(VtMessage.VtRhello, taskReq.tag);
-              resp.sid = "Spy";
-              resp.codec = "None";
-              resp.crypto = "None";
-              break;
-            case VtMessage.VtTgoodbye:
-              try {
-                storage.sync();
-              } catch (IOException e) {
-                // TODO Auto-generated catch block
-                e.printStackTrace();
-              }
-              // no response for VtTgoodbye, server closes connection
-              return null;
-            case VtMessage.VtTread:
-              Block rblock;
-              try {
-                rblock = storage.get(taskReq.score, taskReq.type);
-              } catch (IOException e) {
-                // TODO Auto-generated catch block
-                throw new InternalError(e);
-              }
-              if (rblock != null) {
-                resp = new VtMessage(VtMessage.VtRread, taskReq.tag);
-                resp.data = rblock.getData();
-              } else {
-                resp = new VtMessage(VtMessage.VtRerror, taskReq.tag);
-                resp.error = String.format("no block with score %s/%d exists", taskReq.score.toString(), taskReq.type);
-              }
-              break;
-            case VtMessage.VtTwrite:
-              Block b;
-              try {
-                b = storage.put(taskReq.data, taskReq.type);
-              } catch (IOException e) {
-                // TODO Auto-generated catch block
-                throw new InternalError(e);
-              }
-              resp = new VtMessage(VtMessage.VtRwrite, taskReq.tag);
-              resp.score = b.getScore();
-              break;
-            case VtMessage.VtTsync:
-              storage.sync();
-              resp = new VtMessage(VtMessage.VtRsync, taskReq.tag);
-              break;
-            default:
-              break;
+          try {
+            resp = handler.handle(taskReq);
+          } catch (IOException e) {
+            logger.error("failed to process {}: {}", taskReq, e.getMessage());
+            resp = new VtMessage(VtMessage.VtRerror, taskReq.tag);
+            resp.error = "internal error: " + e.getMessage();
+          } catch (RuntimeException e) {
+            logger.error("failed to process {}: {}", taskReq, e.getMessage());
+            resp = new VtMessage(VtMessage.VtRerror, taskReq.tag);
+            resp.error = "internal error: " + e.getMessage();
+          }
+          try {
+            writeResponse(taskReq, resp);
+          } finally {
+            taskReq.recycle();
+            inFlight.release();
           }
           return resp;
-
         }
       };
-      
-      
-      RunnableTask<VtMessage> task = new RunnableTask<VtMessage>(callable);
-      incomingQueue.put(task);
 
+      // the reply is written by the task itself, so keep reading requests
+      // while this one runs
+      incomingQueue.put(new RunnableTask<VtMessage>(callable));
+    }
+  }
+
+  // blocks while the connection has maxInFlight requests outstanding
+  private void acquireTag(byte tag) throws ProtocolException {
+    inFlight.acquireUninterruptibly();
+    synchronized (tagsInUse) {
+      if (tagsInUse[tag & 0xff]) {
+        inFlight.release();
+        throw new ProtocolException("tag " + (tag & 0xff) + " is already in use");
+      }
+      tagsInUse[tag & 0xff] = true;
+    }
+  }
+
+  // the tag is free once the client may see the reply; the in flight permit
+  // is released by the caller after the write
+  private void freeTag(byte tag) {
+    synchronized (tagsInUse) {
+      tagsInUse[tag & 0xff] = false;
+    }
+  }
+
+  private void writeResponse(VtMessage req, VtMessage resp) throws IOException {
+    PendingResponse pending = new PendingResponse(resp, req);
+    synchronized (pendingResponses) {
+      freeTag(req.tag);
+      if (writeFailure != null) {
+        closeRegion(resp);
+        throw writeFailure;
+      }
+      pendingResponses.add(pending);
+      if (writing) {
+        return;
+      }
+      writing = true;
+    }
+    List<PendingResponse> batch = new ArrayList<>();
+    for (;;) {
+      synchronized (pendingResponses) {
+        if (pendingResponses.isEmpty()) {
+          writing = false;
+          pendingResponses.notifyAll();
+          return;
+        }
+        batch.addAll(pendingResponses);
+        pendingResponses.clear();
+      }
       try {
-        resp = task.returnValue();
-      } catch (InterruptedException e) {
-        // TODO Auto-generated catch block
-        e.printStackTrace();
-      } catch (ExecutionException e) {
-        // TODO Auto-generated catch block
-        e.printStackTrace();
-      }
-
-      if (resp != null) {
-        //logger.info("Response: {}", resp.toString());
-        serializer.writeMessage(resp, ost);
-        ost.flush();
+        writeBatch(batch);
+      } catch (IOException e) {
+        synchronized (pendingResponses) {
+          writeFailure = e;
+          for (PendingResponse p: pendingResponses) {
+            closeRegion(p.resp);
+          }
+          pendingResponses.clear();
+          writing = false;
+          pendingResponses.notifyAll();
+        }
+        throw e;
+      } finally {
+        for (PendingResponse p: batch) {
+          closeRegion(p.resp);
+        }
+        batch.clear();
+      }
+    }
+  }
+
+  // only the thread that set writing calls this
+  private void writeBatch(List<PendingResponse> batch) throws IOException {
+    headerBuf.clear();
+    // batch[unsent:] are not yet on the wire
+    int unsent = 0;
+    for (int i = 0; i < batch.size(); i++) {
+      PendingResponse p = batch.get(i);
+      if (p.version != null) {
+        try {
+          serializer.setProtocolVersion(p.version);
+        } catch (ProtocolException e) {
+          throw new IOException(e);
+        }
+      }
+      long start = System.nanoTime();
+      int headerStart = headerBuf.position();
+      ByteBuffer header;
+      if (serializer.encodeHeader(p.resp, headerBuf)) {
+        header = headerBuf.duplicate();
+        header.position(headerStart).limit(headerBuf.position());
       } else {
-        logger.error("shit");
+        // a long error string, send what is gathered and encode it on its own
+        send(batch, unsent, i);
+        unsent = i;
+        start = System.nanoTime();
+        header = serializer.encodeHeader(p.resp);
+      }
+      ServerMetrics.INSTANCE.record(p.reqType, Stage.ENCODE, System.nanoTime() - start);
+      gather.add(header);
+      ByteBuffer payload = VtMessageSerializer.payload(p.resp);
+      if (payload != null) {
+        gather.add(payload);
+      }
+      if (p.resp.region != null) {
+        start = System.nanoTime();
+        flushGathered();
+        p.resp.region.transferFully(socket.getChannel());
+        ServerMetrics.INSTANCE.addBytesOut(p.resp.region.getLength());
+        sent(batch, unsent, i + 1, start);
+        unsent = i + 1;
+      }
+    }
+    send(batch, unsent, batch.size());
+  }
+
+  // writes the gathered buffers, which hold batch[from:to]
+  private void send(List<PendingResponse> batch, int from, int to) throws IOException {
+    long start = System.nanoTime();
+    flushGathered();
+    sent(batch, from, to, start);
+  }
+
+  private void sent(List<PendingResponse> batch, int from, int to, long writeStart) {
+    long now = System.nanoTime();
+    for (int i = from; i < to; i++) {
+      PendingResponse p = batch.get(i);
+      ServerMetrics.INSTANCE.record(p.reqType, Stage.SOCKET_WRITE, now - writeStart);
+      ServerMetrics.INSTANCE.record(p.reqType, Stage.TOTAL, now - p.receivedNanos);
+      ServerMetrics.INSTANCE.responseSent(p.resp);
+    }
+  }
+
+  private void flushGathered() throws IOException {
+    if (gather.isEmpty()) {
+      return;
+    }
+    ByteBuffer[] bufs = gather.toArray(new ByteBuffer[gather.size()]);
+    long n = 0;
+    for (ByteBuffer b: bufs) {
+      n += b.remaining();
+    }
+    if (out instanceof GatheringByteChannel) {
+      GatheringByteChannel ch = (GatheringByteChannel)out;
+      ByteBuffer last = bufs[bufs.length - 1];
+      while (last.hasRemaining()) {
+        ch.write(bufs);
+      }
+    } else {
+      for (ByteBuffer b: bufs) {
+        while (b.hasRemaining()) {
+          out.write(b);
+        }
+      }
+      ost.flush();
+    }
+    ServerMetrics.INSTANCE.addBytesOut(n);
+    gather.clear();
+    headerBuf.clear();
+  }
+
+  private void closeRegion(VtMessage resp) {
+    if (resp.region != null) {
+      try {
+        resp.region.close();
+      } catch (IOException e) {
+        logger.warn("failed to close block region: {}", e.getMessage());
+      }
+    }
+  }
+
+  // waits until every queued response is on the wire
+  private void awaitResponsesWritten() {
+    synchronized (pendingResponses) {
+      while (writing || !pendingResponses.isEmpty()) {
+        try {
+          pendingResponses.wait();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          return;
+        }
       }
     }
   }
@@ -0,0 +1,95 @@
+package com.github.anastasop.koskino;
+
+import java.io.IOException;
+
+import com.github.anastasop.koskino.metrics.ServerMetrics;
+import com.github.anastasop.koskino.metrics.Stage;
+import com.github.anastasop.koskino.storage.Block;
+import com.github.anastasop.koskino.storage.BlockRegion;
+import com.github.anastasop.koskino.storage.RegionStorageService;
+import com.github.anastasop.koskino.storage.StorageService;
+
+// Executes a single decoded T-message against the storage and builds the
+// R-message to send back. Shared by the thread per connection VtProcessor
+// and the selector based NioServer.
+public class VtRequestHandler {
+	private StorageService storage;
+	private boolean zeroCopy;
+
+	public VtRequestHandler(StorageService storage) {
+		this(storage, false);
+	}
+
+	// zeroCopy: the caller writes to a channel and can send VtRread payloads
+	// as file regions
+	public VtRequestHandler(StorageService storage, boolean zeroCopy) {
+		this.storage = storage;
+		this.zeroCopy = zeroCopy && storage instanceof RegionStorageService;
+	}
+
+	// returns null for VtTgoodbye, which has no response
+	public VtMessage handle(VtMessage req) throws IOException {
+		long start = System.nanoTime();
+		try {
+			return handleRequest(req);
+		} finally {
+			ServerMetrics.INSTANCE.record(req.msgType, Stage.STORAGE, System.nanoTime() - start);
+		}
+	}
+
+	private VtMessage handleRequest(VtMessage req) throws IOException {
+		VtMessage resp = null;
+		switch (req.msgType) {
+		case VtMessage.VtTping:
+			resp = new VtMessage(VtMessage.VtRping, req.tag);
+			break;
+		case VtMessage.VtThello:
+			resp = new VtMessage(VtMessage.VtRhello, req.tag);
+			resp.sid = "Spy";
+			resp.codec = "None";
+			resp.crypto = "None";
+			break;
+		case VtMessage.VtTgoodbye:
+			storage.sync();
+			// no response for VtTgoodbye, server closes connection
+			return null;
+		case VtMessage.VtTread:
+			// req.score is the pooled score of the message, overwritten once it
+			// is recycled; the storage copies it where it keeps it
+			if (zeroCopy) {
+				BlockRegion region = ((RegionStorageService)storage).getRegion(req.score, req.type);
+				if (region != null) {
+					resp = new VtMessage(VtMessage.VtRread, req.tag);
+					resp.region = region;
+					break;
+				}
+			}
+			Block rblock = storage.get(req.score, req.type);
+			if (rblock != null) {
+				resp = new VtMessage(VtMessage.VtRread, req.tag);
+				resp.setData(rblock.getData());
+			} else {
+				resp = new VtMessage(VtMessage.VtRerror, req.tag);
+				resp.error = String.format("no block with score %s/%d exists", req.score.toString(), req.type);
+			}
+			break;
+		case VtMessage.VtTwrite:
+			Score score = storage.put(req.data, req.dataOffset, req.dataLength, req.type);
+			if (score != null) {
+				resp = new VtMessage(VtMessage.VtRwrite, req.tag);
+				resp.score = score;
+			} else {
+				resp = new VtMessage(VtMessage.VtRerror, req.tag);
+				resp.error = "failed to store block";
+			}
+			break;
+		case VtMessage.VtTsync:
+			storage.sync();
+			resp = new VtMessage(VtMessage.VtRsync, req.tag);
+			break;
+		default:
+			break;
+		}
+		return resp;
+	}
+}
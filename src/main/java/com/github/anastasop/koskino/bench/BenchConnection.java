@@ -0,0 +1,322 @@
+package com.github.anastasop.koskino.bench;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import com.github.anastasop.koskino.ProtocolException;
+import com.github.anastasop.koskino.Score;
+import com.github.anastasop.koskino.VtMessage;
+import com.github.anastasop.koskino.VtMessageReader;
+import com.github.anastasop.koskino.VtMessageSerializer;
+
+// One client connection of the load generator. The calling thread sends
+// requests while it holds a free tag; a second thread reads the responses,
+// records their latency and gives the tags back, so up to depth requests
+// are in flight.
+class BenchConnection implements Runnable {
+	// blocks written on this connection that reads may ask for
+	private static final int MAX_KNOWN_BLOCKS = 1 << 16;
+
+	private final int id;
+	private final LoadGenerator gen;
+	private final Random random;
+	private final byte[] block;
+	private final byte[] check;
+
+	private Socket socket;
+	private BufferedOutputStream ost;
+	private InputStream ist;
+	private final VtMessageSerializer serializer = new VtMessageSerializer();
+	private VtMessageReader reader;
+
+	private final BlockingQueue<Integer> freeTags;
+	private final Pending[] pending = new Pending[256];
+	private long nextBlock = 0;
+
+	// ring of acknowledged blocks, shared by the sender and the receiver
+	private final long[] knownIds = new long[MAX_KNOWN_BLOCKS];
+	private final byte[][] knownScores = new byte[MAX_KNOWN_BLOCKS][];
+	private int nKnown = 0;
+
+	private volatile IOException failure;
+
+	// start is written last by the sender and read first by the receiver,
+	// which publishes the other fields
+	private static class Pending {
+		int op;
+		volatile long start;
+		long blockId;
+		int length;
+		byte[] expectedScore;
+	}
+
+	BenchConnection(int id, LoadGenerator gen) {
+		this.id = id;
+		this.gen = gen;
+		this.random = new Random(gen.options.seed + id);
+		this.block = new byte[gen.blocks.getMaxSize()];
+		this.check = new byte[gen.blocks.getMaxSize()];
+		this.freeTags = new ArrayBlockingQueue<Integer>(gen.options.depth);
+		for (int i = 0; i < gen.options.depth; i++) {
+			freeTags.add(i);
+			pending[i] = new Pending();
+		}
+	}
+
+	@Override
+	public void run() {
+		Thread receiver = null;
+		try {
+			connect();
+			receiver = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					receive();
+				}
+			}, "bench-receiver-" + id);
+			receiver.start();
+			send();
+		} catch (IOException e) {
+			fail(e);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} finally {
+			try {
+				if (receiver != null) {
+					receiver.join();
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			close();
+		}
+	}
+
+	IOException getFailure() {
+		return failure;
+	}
+
+	private void connect() throws IOException {
+		socket = new Socket(gen.options.host, gen.options.port);
+		socket.setTcpNoDelay(true);
+		ost = new BufferedOutputStream(socket.getOutputStream(), 128 * 1024);
+		ist = new BufferedInputStream(socket.getInputStream(), 128 * 1024);
+		reader = new VtMessageReader(ist);
+
+		ost.write("venti-02-koskino-bench\n".getBytes());
+		ost.flush();
+		for (int i = 0; ; i++) {
+			int c = ist.read();
+			if (c == -1) {
+				throw new IOException("EOF before the server version line");
+			}
+			if (c == '\n') {
+				break;
+			}
+			if (i > 64) {
+				throw new IOException("server version line too long");
+			}
+		}
+
+		VtMessage hello = new VtMessage(VtMessage.VtThello, (byte)0);
+		hello.version = gen.options.protocol;
+		hello.uid = "bench";
+		hello.crypto = "";
+		hello.codec = "";
+		serializer.writeMessage(hello, ost);
+		ost.flush();
+		try {
+			serializer.setProtocolVersion(gen.options.protocol);
+			reader.setProtocolVersion(gen.options.protocol);
+			VtMessage resp = reader.read();
+			if (resp == null || resp.msgType != VtMessage.VtRhello) {
+				throw new IOException("server refused VtThello: " + resp);
+			}
+			resp.recycle();
+		} catch (ProtocolException e) {
+			throw new IOException(e);
+		}
+	}
+
+	private void send() throws IOException, InterruptedException {
+		while (System.nanoTime() < gen.deadline && failure == null) {
+			Integer tag = freeTags.poll();
+			if (tag == null) {
+				// the window is full, let the server see what is buffered
+				ost.flush();
+				tag = freeTags.take();
+			}
+			if (tag < 0) {
+				return;
+			}
+			sendRequest(tag);
+		}
+		ost.flush();
+		// wait for the outstanding responses
+		for (int i = 0; i < gen.options.depth; i++) {
+			if (freeTags.take() < 0) {
+				return;
+			}
+		}
+		VtMessage bye = new VtMessage(VtMessage.VtTgoodbye, (byte)0);
+		serializer.writeMessage(bye, ost);
+		ost.flush();
+	}
+
+	private void sendRequest(int tag) throws IOException {
+		Pending p = pending[tag];
+		VtMessage req = new VtMessage((byte)0, (byte)tag);
+		p.op = gen.chooseOp(random);
+		if (p.op == OpStats.READ && !chooseKnownBlock(p)) {
+			p.op = OpStats.WRITE;
+		}
+		switch (p.op) {
+		case OpStats.WRITE:
+			p.blockId = chooseBlockToWrite();
+			p.length = gen.blocks.fill(p.blockId, block);
+			p.expectedScore = gen.options.verify? Score.forBlock(block, 0, p.length).getBytes(): null;
+			req.msgType = VtMessage.VtTwrite;
+			req.type = gen.options.type.byteValue();
+			req.data = block;
+			req.dataOffset = 0;
+			req.dataLength = p.length;
+			break;
+		case OpStats.READ:
+			req.msgType = VtMessage.VtTread;
+			req.score = Score.fromBytes(p.expectedScore);
+			req.type = gen.options.type.byteValue();
+			req.count = gen.blocks.getMaxSize();
+			break;
+		default:
+			req.msgType = VtMessage.VtTsync;
+			p.length = 0;
+			break;
+		}
+		p.start = System.nanoTime();
+		serializer.writeMessage(req, ost);
+	}
+
+	private long chooseBlockToWrite() {
+		if (gen.options.dedup > 0 && random.nextDouble() < gen.options.dedup) {
+			synchronized (knownIds) {
+				if (nKnown > 0) {
+					return knownIds[random.nextInt(Math.min(nKnown, MAX_KNOWN_BLOCKS))];
+				}
+			}
+		}
+		return ((long)id << 40) | nextBlock++;
+	}
+
+	private boolean chooseKnownBlock(Pending p) {
+		synchronized (knownIds) {
+			if (nKnown == 0) {
+				return false;
+			}
+			int i = random.nextInt(Math.min(nKnown, MAX_KNOWN_BLOCKS));
+			p.blockId = knownIds[i];
+			p.expectedScore = knownScores[i];
+			return true;
+		}
+	}
+
+	private void receive() {
+		try {
+			for (;;) {
+				VtMessage resp = reader.read();
+				if (resp == null) {
+					return;
+				}
+				int tag = resp.tag & 0xff;
+				Pending p = pending[tag];
+				if (p == null) {
+					throw new IOException("response with unknown tag " + tag);
+				}
+				long now = System.nanoTime();
+				long start = p.start;
+				OpStats stats = gen.stats[p.op];
+				boolean ok = check(p, resp);
+				if (start >= gen.measureStart && start < gen.deadline) {
+					stats.latency.record(now - start);
+					if (ok) {
+						stats.bytes.addAndGet(p.length);
+					} else {
+						stats.errors.incrementAndGet();
+					}
+				}
+				resp.recycle();
+				freeTags.add(tag);
+			}
+		} catch (ProtocolException e) {
+			fail(new IOException(e));
+		} catch (IOException e) {
+			fail(e);
+		}
+	}
+
+	private boolean check(Pending p, VtMessage resp) {
+		switch (p.op) {
+		case OpStats.WRITE:
+			if (resp.msgType != VtMessage.VtRwrite) {
+				return false;
+			}
+			byte[] score = resp.score.getBytes();
+			if (p.expectedScore != null && !Arrays.equals(p.expectedScore, score)) {
+				return false;
+			}
+			synchronized (knownIds) {
+				int i = nKnown++ % MAX_KNOWN_BLOCKS;
+				if (nKnown >= 2 * MAX_KNOWN_BLOCKS) {
+					nKnown -= MAX_KNOWN_BLOCKS;
+				}
+				knownIds[i] = p.blockId;
+				knownScores[i] = score.clone();
+			}
+			return true;
+		case OpStats.READ:
+			if (resp.msgType != VtMessage.VtRread) {
+				return false;
+			}
+			p.length = resp.dataLength;
+			if (gen.options.verify) {
+				int n = gen.blocks.fill(p.blockId, check);
+				if (n != resp.dataLength) {
+					return false;
+				}
+				for (int i = 0; i < n; i++) {
+					if (check[i] != resp.data[resp.dataOffset + i]) {
+						return false;
+					}
+				}
+			}
+			return true;
+		default:
+			return resp.msgType == VtMessage.VtRsync;
+		}
+	}
+
+	private void fail(IOException e) {
+		if (failure == null) {
+			failure = e;
+		}
+		// wake up a sender waiting for a tag and stop the receiver
+		freeTags.offer(-1);
+		close();
+	}
+
+	private void close() {
+		try {
+			if (socket != null) {
+				socket.close();
+			}
+		} catch (IOException e) {
+			//
+		}
+	}
+}
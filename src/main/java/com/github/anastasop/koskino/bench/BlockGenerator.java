@@ -0,0 +1,44 @@
+package com.github.anastasop.koskino.bench;
+
+import java.util.Random;
+
+// Produces block contents from a block id, so a block can be written again
+// to exercise deduplication, or checked after a read, without being kept
+// around. Blocks are slices of a random pool stamped with their id.
+class BlockGenerator {
+	private static final int POOL_SIZE = 1 << 20;
+
+	private final byte[] pool;
+	private final int minSize;
+	private final int maxSize;
+
+	BlockGenerator(long seed, int minSize, int maxSize) {
+		this.minSize = minSize;
+		this.maxSize = maxSize;
+		this.pool = new byte[POOL_SIZE + maxSize];
+		new Random(seed).nextBytes(pool);
+	}
+
+	int getMaxSize() {
+		return maxSize;
+	}
+
+	// writes the block with this id to dst, returns its length
+	int fill(long id, byte[] dst) {
+		long h = mix(id);
+		int size = minSize + (int)((h >>> 32) % (maxSize - minSize + 1));
+		int offset = (int)((h & 0xffffffffL) % POOL_SIZE);
+		System.arraycopy(pool, offset, dst, 0, size);
+		for (int i = 0; i < 8 && i < size; i++) {
+			dst[i] = (byte)(id >>> (56 - 8 * i));
+		}
+		return size;
+	}
+
+	// splitmix64 finalizer
+	private static long mix(long z) {
+		z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+		z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+		return z ^ (z >>> 31);
+	}
+}
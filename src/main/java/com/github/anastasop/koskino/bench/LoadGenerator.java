@@ -0,0 +1,159 @@
+package com.github.anastasop.koskino.bench;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.kohsuke.args4j.CmdLineException;
+import org.kohsuke.args4j.CmdLineParser;
+
+import com.github.anastasop.koskino.VtMessageReader;
+
+// Drives a venti server with a configurable mix of VtTwrite, VtTread and
+// VtTsync requests over several pipelined connections, and reports the
+// throughput and latency percentiles of each kind of request. Run with
+//   java -cp koskino.jar com.github.anastasop.koskino.bench.LoadGenerator --help
+public class LoadGenerator {
+	final LoadGeneratorOptions options;
+	final BlockGenerator blocks;
+	final OpStats[] stats = new OpStats[OpStats.NAMES.length];
+	private final int[] cumulativeWeights = new int[OpStats.NAMES.length];
+	volatile long measureStart;
+	volatile long deadline;
+
+	public static void main(String[] args) throws InterruptedException {
+		LoadGeneratorOptions options = new LoadGeneratorOptions();
+		CmdLineParser parser = new CmdLineParser(options);
+		LoadGenerator gen = null;
+		try {
+			parser.parseArgument(args);
+			gen = new LoadGenerator(options);
+		} catch (CmdLineException | IllegalArgumentException e) {
+			System.err.println(e.getMessage());
+			System.err.printf("Usage:%n");
+			parser.printUsage(System.err);
+			System.exit(2);
+		}
+		System.exit(gen.run()? 0: 1);
+	}
+
+	public LoadGenerator(LoadGeneratorOptions options) {
+		this.options = options;
+		if (options.connections < 1) {
+			throw new IllegalArgumentException("--connections must be at least 1");
+		}
+		if (options.depth < 1 || options.depth > 256) {
+			throw new IllegalArgumentException("--depth must be between 1 and 256");
+		}
+		if (options.dedup < 0 || options.dedup > 1) {
+			throw new IllegalArgumentException("--dedup must be between 0 and 1");
+		}
+		if (!"02".equals(options.protocol) && !"04".equals(options.protocol)) {
+			throw new IllegalArgumentException("--protocol must be 02 or 04");
+		}
+		parseMix(options.mix);
+		int[] sizes = parseBlockSize(options.blockSize);
+		// a VtTwrite frame is the payload plus 6 bytes and its length must fit the prefix
+		int maxBlock = "02".equals(options.protocol)? 0xffff - 6: VtMessageReader.MAX_MESSAGE_LENGTH - 6;
+		if (sizes[0] < 1 || sizes[1] < sizes[0] || sizes[1] > maxBlock) {
+			throw new IllegalArgumentException("--block-size must be between 1 and " + maxBlock);
+		}
+		this.blocks = new BlockGenerator(options.seed, sizes[0], sizes[1]);
+		for (int i = 0; i < stats.length; i++) {
+			stats[i] = new OpStats(OpStats.NAMES[i]);
+		}
+	}
+
+	private void parseMix(String mix) {
+		int[] weights = new int[OpStats.NAMES.length];
+		for (String part: mix.split(",")) {
+			String[] kv = part.trim().split(":");
+			int op = -1;
+			for (int i = 0; i < OpStats.NAMES.length; i++) {
+				if (OpStats.NAMES[i].equals(kv[0].trim())) {
+					op = i;
+				}
+			}
+			if (op < 0 || kv.length != 2) {
+				throw new IllegalArgumentException("bad --mix entry " + part + ", expected write:N, read:N or sync:N");
+			}
+			weights[op] = Integer.parseInt(kv[1].trim());
+		}
+		int total = 0;
+		for (int i = 0; i < weights.length; i++) {
+			total += weights[i];
+			cumulativeWeights[i] = total;
+		}
+		if (total <= 0) {
+			throw new IllegalArgumentException("--mix has no positive weight");
+		}
+	}
+
+	private static int[] parseBlockSize(String s) {
+		String[] range = s.split("-");
+		try {
+			if (range.length == 1) {
+				int n = Integer.parseInt(range[0].trim());
+				return new int[]{n, n};
+			}
+			if (range.length == 2) {
+				return new int[]{Integer.parseInt(range[0].trim()), Integer.parseInt(range[1].trim())};
+			}
+		} catch (NumberFormatException e) {
+			// fall through
+		}
+		throw new IllegalArgumentException("bad --block-size " + s + ", expected N or MIN-MAX");
+	}
+
+	int chooseOp(Random random) {
+		int r = random.nextInt(cumulativeWeights[cumulativeWeights.length - 1]);
+		for (int i = 0; i < cumulativeWeights.length; i++) {
+			if (r < cumulativeWeights[i]) {
+				return i;
+			}
+		}
+		return OpStats.WRITE;
+	}
+
+	// returns false if a connection failed
+	public boolean run() throws InterruptedException {
+		long now = System.nanoTime();
+		measureStart = now + TimeUnit.SECONDS.toNanos(options.warmup);
+		deadline = measureStart + TimeUnit.SECONDS.toNanos(options.duration);
+
+		BenchConnection[] conns = new BenchConnection[options.connections];
+		Thread[] threads = new Thread[options.connections];
+		for (int i = 0; i < conns.length; i++) {
+			conns[i] = new BenchConnection(i, this);
+			threads[i] = new Thread(conns[i], "bench-" + i);
+			threads[i].start();
+		}
+		boolean ok = true;
+		for (int i = 0; i < conns.length; i++) {
+			threads[i].join();
+			if (conns[i].getFailure() != null) {
+				System.err.printf("connection %d failed: %s%n", i, conns[i].getFailure());
+				ok = false;
+			}
+		}
+		report();
+		return ok;
+	}
+
+	private void report() {
+		double seconds = options.duration;
+		System.out.printf("%s:%d connections=%d depth=%d block-size=%s dedup=%.2f mix=%s%n",
+				options.host, options.port, options.connections, options.depth,
+				options.blockSize, options.dedup, options.mix);
+		long ops = 0;
+		long bytes = 0;
+		for (OpStats s: stats) {
+			if (s.latency.getCount() == 0) {
+				continue;
+			}
+			System.out.println(s.report(seconds));
+			ops += s.latency.getCount();
+			bytes += s.bytes.get();
+		}
+		System.out.printf("total  %10.0f ops/s %9.2f MB/s%n", ops / seconds, bytes / seconds / (1024 * 1024));
+	}
+}
@@ -0,0 +1,44 @@
+package com.github.anastasop.koskino.bench;
+
+import org.kohsuke.args4j.Option;
+
+public class LoadGeneratorOptions {
+	@Option(name = "-h", aliases = {"--host"}, usage = "server host. Default localhost", required = false)
+	public String host = "localhost";
+
+	@Option(name = "-p", aliases = {"--port"}, usage = "server port. Default 40000", required = false)
+	public Integer port = 40000;
+
+	@Option(name = "-c", aliases = {"--connections"}, usage = "concurrent connections. Default 4", required = false)
+	public Integer connections = 4;
+
+	@Option(name = "--depth", usage = "requests each connection keeps in flight, 1 to 256. Default 16", required = false)
+	public Integer depth = 16;
+
+	@Option(name = "--duration", usage = "seconds to measure for. Default 10", required = false)
+	public Integer duration = 10;
+
+	@Option(name = "--warmup", usage = "seconds to run before measuring. Default 2", required = false)
+	public Integer warmup = 2;
+
+	@Option(name = "--mix", usage = "weights of the requests sent. Default write:70,read:25,sync:5", required = false)
+	public String mix = "write:70,read:25,sync:5";
+
+	@Option(name = "--block-size", usage = "bytes per written block, a size or a min-max range. Default 8192", required = false)
+	public String blockSize = "8192";
+
+	@Option(name = "--dedup", usage = "fraction of writes that repeat an earlier block, 0 to 1. Default 0", required = false)
+	public Double dedup = 0.0;
+
+	@Option(name = "--type", usage = "venti block type of written blocks. Default 0 (data)", required = false)
+	public Integer type = 0;
+
+	@Option(name = "--protocol", usage = "protocol version sent in VtThello, 02 or 04. Default 02", required = false)
+	public String protocol = "02";
+
+	@Option(name = "--seed", usage = "seed of the block contents and request mix. Default 1", required = false)
+	public Long seed = 1L;
+
+	@Option(name = "--verify", usage = "check returned scores and read data", required = false)
+	public boolean verify = false;
+}
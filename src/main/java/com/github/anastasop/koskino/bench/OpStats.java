@@ -0,0 +1,29 @@
+package com.github.anastasop.koskino.bench;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.github.anastasop.koskino.metrics.LatencyHistogram;
+
+// What the load generator measured for one kind of request, summed over
+// all connections
+class OpStats {
+	static final int WRITE = 0;
+	static final int READ = 1;
+	static final int SYNC = 2;
+	static final String[] NAMES = {"write", "read", "sync"};
+
+	final String name;
+	final LatencyHistogram latency = new LatencyHistogram();
+	final AtomicLong bytes = new AtomicLong();
+	final AtomicLong errors = new AtomicLong();
+
+	OpStats(String name) {
+		this.name = name;
+	}
+
+	String report(double seconds) {
+		long n = latency.getCount();
+		return String.format("%-6s %10.0f ops/s %9.2f MB/s errors=%d %s", name,
+				n / seconds, bytes.get() / seconds / (1024 * 1024), errors.get(), latency.summary());
+	}
+}
@@ -9,6 +9,10 @@ import kanzi.io.CompressedOutputStream;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.github.anastasop.koskino.Score;
+import com.github.anastasop.koskino.metrics.Operation;
+import com.github.anastasop.koskino.metrics.ServerMetrics;
+import com.github.anastasop.koskino.metrics.Stage;
 import com.github.anastasop.koskino.storage.BackendBlock;
 import com.github.anastasop.koskino.storage.Block;
 
@@ -17,28 +21,40 @@ import com.github.anastasop.koskino.storage.Block;
 // 0: version (0)
 // 1-8: magic (deaddada)
 // 9-12: data size (32 bit)
-// 13-15: Compression (SNA)
+// 13-15: Compression (SNA, LZ4, or 0 0 0 for none), see CompressionPolicy
 
 public class BackendBlockWriter {
+	public static final int HEADER_LENGTH = 16;
+	public static final byte[] MAGIC = "deaddada".getBytes();
+	// the smallest block a kanzi stream takes
+	private static final int MIN_KANZI_BLOCK = 1024;
+
 	private Logger logger = LoggerFactory.getLogger(BackendBlockWriter.class);
 	
 	int streamPos;
 	byte type;
 	
 	
+	// true if the compression field of header, bytes 13-15, is the raw marker
+	public static boolean isRaw(byte[] header) {
+		return header[13] == 0 && header[14] == 0 && header[15] == 0;
+	}
+
 	public static BackendBlock fromBlock(Block block) throws IOException {
+	  return fromData(block.getType(), block.getScore(), block.getData(), 0, block.getData().length);
+	}
+
+	public static BackendBlock fromData(byte type, Score score, byte[] data, int off, int dataLength) throws IOException {
 	  Logger logger = LoggerFactory.getLogger(BackendBlockWriter.class);
-	  int dataLength = block.getData().length;
 	  if (dataLength > 65536) {
 	    logger.error("Block size limited to 65536");
 throw new InternalError("block size incorrect");
 }
 
-	  byte[] header = new byte[16];
+	  byte[] header = new byte[HEADER_LENGTH];
 	  header[0] = 0;
 	  
-	  byte[] myMagic = "deaddada".getBytes();
-	  System.arraycopy(myMagic, 0, header, 1, myMagic.length);
+	  System.arraycopy(MAGIC, 0, header, 1, MAGIC.length);
 
 	  byte[] sizeBytes = new byte[4];
 	  int foo = dataLength;
@@ -51,23 +67,40 @@ throw new InternalError("block size incorrect");
 	  sizeBytes[0] = (byte) (foo & 0xff);
 	  System.arraycopy(sizeBytes, 0, header, 9, sizeBytes.length);
 
-	  header[13] = 'S';
-	  header[14] = 'N';
-	  header[15] = 'A';
-
-ByteArrayOutputStream ost = new ByteArrayOutputStream();
-	  
-	  ost.write(header);
-
-	  OutputStream cost = new CompressedOutputStream("None", "Snappy", ost);
-	  cost.write(block.getData());
-
-	  cost.close();
-
-	  
-	  byte[] newData = ost.toByteArray();
+	  long start = System.nanoTime();
+	  int compression = CompressionPolicy.choose(type, data, off, dataLength);
+	  byte[] newData = null;
+	  if (compression != CompressionPolicy.NONE) {
+	    if (compression == CompressionPolicy.LZ4) {
+	      header[13] = 'L';
+	      header[14] = 'Z';
+	      header[15] = '4';
+	    } else {
+	      header[13] = 'S';
+	      header[14] = 'N';
+	      header[15] = 'A';
+	    }
+	    ByteArrayOutputStream ost = new ByteArrayOutputStream(HEADER_LENGTH + dataLength);
+	    ost.write(header);
+	    // a kanzi block of the size of the data, the reader allocates it too
+	    OutputStream cost = new CompressedOutputStream("None", compression == CompressionPolicy.LZ4 ? "LZ4" : "Snappy",
+	        ost, Math.max(MIN_KANZI_BLOCK, dataLength), false, null);
+	    cost.write(data, off, dataLength);
+	    cost.close();
+	    newData = ost.toByteArray();
+	  }
+	  // raw if chosen so or if compressing did not pay
+	  if (newData == null || newData.length >= HEADER_LENGTH + dataLength) {
+	    header[13] = 0;
+	    header[14] = 0;
+	    header[15] = 0;
+	    newData = new byte[HEADER_LENGTH + dataLength];
+	    System.arraycopy(header, 0, newData, 0, HEADER_LENGTH);
+	    System.arraycopy(data, off, newData, HEADER_LENGTH, dataLength);
+	  }
+	  ServerMetrics.INSTANCE.record(Operation.WRITE, Stage.COMPRESSION, System.nanoTime() - start);
 
-	  return new BackendBlock(block.getType(), block.getScore(), newData);
+	  return new BackendBlock(type, score, newData);
 	}
 
 }
@@ -19,12 +19,15 @@ public class RecordIOWriter implements AutoCloseable {
 		this.ost = ost;
 	}
 	
-	public synchronized void writeBlock(byte type, byte[] data) throws IOException {
+	public void writeBlock(byte type, byte[] data) throws IOException {
+		writeBlock(type, data, 0, data.length);
+	}
+	
+	public synchronized void writeBlock(byte type, byte[] data, int off, int l) throws IOException {
 		// [4]magic [4]data_size [1]hash_func [1]block_type [20]data_hash [4]header_hash
 		// little endian order
 		byte[] header = new byte[HEADER_LENGTH];
 		System.arraycopy(MAGIC, 0, header, 0, 4);
-		int l = data.length;
 		header[4] = (byte)(l &0xFF);
 		header[5] = (byte)((l >>  8) & 0xFF);
 		header[6] = (byte)((l >> 16) & 0xFF);
@@ -40,7 +43,7 @@ public class RecordIOWriter implements AutoCloseable {
       e.printStackTrace();
       throw new InternalError(e);
     }
-		md.update(data);
+		md.update(data, off, l);
 		byte[] dataHash = md.digest();
 		System.arraycopy(dataHash, 0, header, 10, 20);
 
@@ -52,7 +55,7 @@ public class RecordIOWriter implements AutoCloseable {
 
     System.arraycopy(hbytes, 0, header, 30, 4);
 		ost.write(header);
-		ost.write(data);
+		ost.write(data, off, l);
 	}
 
 	@Override
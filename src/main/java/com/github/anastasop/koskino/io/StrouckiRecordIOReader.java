@@ -9,6 +9,9 @@ import kanzi.io.CompressedInputStream;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.github.anastasop.koskino.metrics.Operation;
+import com.github.anastasop.koskino.metrics.ServerMetrics;
+import com.github.anastasop.koskino.metrics.Stage;
 import com.github.anastasop.koskino.storage.Block;
 
 // big endian
@@ -16,7 +19,7 @@ import com.github.anastasop.koskino.storage.Block;
 // 0: version (0)
 // 1-8: magic (deaddada)
 // 9-12: data size (32 bit)
-// 13-15: compression (SNA)
+// 13-15: compression (SNA, LZ4, or 0 0 0 for none)
 
 public class StrouckiRecordIOReader {
 	private Logger logger = LoggerFactory.getLogger(StrouckiRecordIOReader.class);
@@ -86,13 +89,18 @@ public class StrouckiRecordIOReader {
 	  }
 	  
     byte[] data = new byte[(int)size];
-	  if (compression[0]=='S' && compression[1]=='N' && compression[2]=='A') {
+	  // both are kanzi streams, which say their codec
+	  if (compression[0]=='S' && compression[1]=='N' && compression[2]=='A'
+	      || compression[0]=='L' && compression[1]=='Z' && compression[2]=='4') {
+	    long start = System.nanoTime();
 	    CompressedInputStream cist = new CompressedInputStream(ist);
 	    bytesRead = cist.read(data);
 	    cist.close();
+	    ServerMetrics.INSTANCE.record(Operation.READ, Stage.COMPRESSION, System.nanoTime() - start);
 	  }
-	  else if ((compression[0] & compression[1] & compression[2]) == 0) {
-	    bytesRead = ist.read(data);
+	  else if (compression[0] == 0 && compression[1] == 0 && compression[2] == 0) {
+	    // a stream at its end reads -1 even into nothing
+	    bytesRead = size == 0 ? 0 : ist.read(data);
 	  }
 	  else {
 	    logger.error("Unknown compression format");
@@ -0,0 +1,100 @@
+package com.github.anastasop.koskino.metrics;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+// Writes the server metrics as plain text to whoever connects to the admin
+// port, which listens on the loopback interface only. The first line the
+// client sends decides the answer: an HTTP GET, as curl sends, gets an HTTP
+// response, and anything else, an empty line included, the plain dump. The
+// dump is written as soon as that line ends or the client shuts its side, so
+// "echo | nc localhost port" or "nc -N localhost port < /dev/null" get it at
+// once. A client that sends nothing gets it after WAIT_MILLIS, the time an
+// HTTP client has to send its request line.
+public class AdminServer implements Runnable {
+	static final int WAIT_MILLIS = 200;
+	private static final int MAX_LINE = 1024;
+
+	private Logger logger = LoggerFactory.getLogger(AdminServer.class);
+
+	private final ServerSocket ear;
+	private final ServerMetrics metrics;
+
+	public AdminServer(int port, ServerMetrics metrics) throws IOException {
+		this.metrics = metrics;
+		this.ear = new ServerSocket();
+		ear.setReuseAddress(true);
+		ear.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+	}
+
+	public void start() {
+		Thread t = new Thread(this, "admin");
+		t.setDaemon(true);
+		t.start();
+	}
+
+	@Override
+	public void run() {
+		logger.info("admin port listens at {}", ear.getLocalSocketAddress());
+		for (;;) {
+			try (Socket peer = ear.accept()) {
+				peer.setSoTimeout(WAIT_MILLIS);
+				PrintWriter w = new PrintWriter(new OutputStreamWriter(peer.getOutputStream(), "UTF-8"));
+				if (readLine(peer.getInputStream()).startsWith("GET ")) {
+					skipHeaders(peer.getInputStream());
+					w.print("HTTP/1.0 200 OK\r\nContent-Type: text/plain; charset=utf-8\r\n\r\n");
+				}
+				metrics.dump(w);
+			} catch (IOException e) {
+				if (ear.isClosed()) {
+					return;
+				}
+				logger.warn("admin connection failed: {}", e.getMessage());
+			}
+		}
+	}
+
+	// the first line of the client, cut short by MAX_LINE characters, the end
+	// of the stream or the timeout. Read whole, so closing the socket does not
+	// reset the connection under the client.
+	private static String readLine(InputStream in) throws IOException {
+		StringBuilder line = new StringBuilder();
+		try {
+			for (int r = in.read(); r >= 0 && r != '\n' && line.length() < MAX_LINE; r = in.read()) {
+				line.append((char)r);
+			}
+		} catch (SocketTimeoutException e) {
+			// a client that sends nothing wants the plain dump
+		}
+		return line.toString();
+	}
+
+	// reads up to the empty line that ends the request headers, for the
+	// same reason, after the request line
+	private static void skipHeaders(InputStream in) throws IOException {
+		int prev = '\n';
+		try {
+			for (int r = in.read(); r >= 0; r = in.read()) {
+				if (r == '\r') {
+					continue;
+				}
+				if (r == '\n' && prev == '\n') {
+					return;
+				}
+				prev = r;
+			}
+		} catch (SocketTimeoutException e) {
+			// a truncated request, answer anyway
+		}
+	}
+}
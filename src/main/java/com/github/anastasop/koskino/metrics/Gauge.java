@@ -0,0 +1,6 @@
+package com.github.anastasop.koskino.metrics;
+
+// A value read when the metrics are dumped, such as the size of an index.
+public interface Gauge {
+	long getValue();
+}
@@ -0,0 +1,126 @@
+package com.github.anastasop.koskino.metrics;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// A lock-free histogram of latencies in nanoseconds. Buckets are log-linear:
+// every power of two is split in 32 sub-buckets, so a recorded value is
+// reported with at most ~3% error. Recording is a few atomic increments and
+// never allocates.
+public class LatencyHistogram {
+	private static final int SUB_BUCKET_BITS = 5;
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+	private static final int N_BUCKETS = (64 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+	private final AtomicLongArray counts = new AtomicLongArray(N_BUCKETS);
+	private final AtomicLong count = new AtomicLong();
+	private final AtomicLong sum = new AtomicLong();
+	private final AtomicLong max = new AtomicLong();
+
+	static int bucketOf(long value) {
+		if (value < 2 * SUB_BUCKETS) {
+			return (int)Math.max(value, 0);
+		}
+		int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+		return shift * SUB_BUCKETS + (int)(value >>> shift);
+	}
+
+	// the largest value that falls in bucket
+	static long highestValueOf(int bucket) {
+		if (bucket < 2 * SUB_BUCKETS) {
+			return bucket;
+		}
+		int shift = bucket / SUB_BUCKETS - 1;
+		long mantissa = bucket - shift * SUB_BUCKETS;
+		return ((mantissa + 1) << shift) - 1;
+	}
+
+	public void record(long nanos) {
+		counts.incrementAndGet(bucketOf(nanos));
+		count.incrementAndGet();
+		sum.addAndGet(nanos);
+		long m = max.get();
+		while (nanos > m && !max.compareAndSet(m, nanos)) {
+			m = max.get();
+		}
+	}
+
+	public void recordSince(long startNanos) {
+		record(System.nanoTime() - startNanos);
+	}
+
+	public long getCount() {
+		return count.get();
+	}
+
+	public long getMax() {
+		return max.get();
+	}
+
+	public double getMean() {
+		long n = count.get();
+		return n == 0? 0: (double)sum.get() / n;
+	}
+
+	// p in [0, 100]. The histogram may be recorded into meanwhile, in which
+	// case the answer is approximate.
+	public long getPercentile(double p) {
+		long total = 0;
+		long[] snapshot = new long[N_BUCKETS];
+		for (int i = 0; i < N_BUCKETS; i++) {
+			snapshot[i] = counts.get(i);
+			total += snapshot[i];
+		}
+		if (total == 0) {
+			return 0;
+		}
+		long rank = (long)Math.ceil(p / 100.0 * total);
+		rank = Math.max(1, Math.min(rank, total));
+		long seen = 0;
+		for (int i = 0; i < N_BUCKETS; i++) {
+			seen += snapshot[i];
+			if (seen >= rank) {
+				return Math.min(highestValueOf(i), max.get());
+			}
+		}
+		return max.get();
+	}
+
+	// adds the values recorded in other to this histogram
+	public void add(LatencyHistogram other) {
+		for (int i = 0; i < N_BUCKETS; i++) {
+			long n = other.counts.get(i);
+			if (n != 0) {
+				counts.addAndGet(i, n);
+			}
+		}
+		count.addAndGet(other.count.get());
+		sum.addAndGet(other.sum.get());
+		long m = max.get();
+		long om = other.max.get();
+		while (om > m && !max.compareAndSet(m, om)) {
+			m = max.get();
+		}
+	}
+
+	public void reset() {
+		for (int i = 0; i < N_BUCKETS; i++) {
+			counts.set(i, 0);
+		}
+		count.set(0);
+		sum.set(0);
+		max.set(0);
+	}
+
+	// count, mean, p50, p99, p999 and max in microseconds
+	public String summary() {
+		return String.format("count=%d mean=%.1fus p50=%dus p99=%dus p999=%dus max=%dus",
+				getCount(), getMean() / 1000.0, micros(getPercentile(50)), micros(getPercentile(99)),
+				micros(getPercentile(99.9)), micros(getMax()));
+	}
+
+	private static long micros(long nanos) {
+		return TimeUnit.NANOSECONDS.toMicros(nanos);
+	}
+}
@@ -0,0 +1,24 @@
+package com.github.anastasop.koskino.metrics;
+
+import com.github.anastasop.koskino.VtMessage;
+
+// The requests the server keeps latency histograms for
+public enum Operation {
+	READ, WRITE, SYNC, PING;
+
+	// null for requests that are not measured, such as VtThello
+	public static Operation of(byte msgType) {
+		switch (msgType) {
+		case VtMessage.VtTread:
+			return READ;
+		case VtMessage.VtTwrite:
+			return WRITE;
+		case VtMessage.VtTsync:
+			return SYNC;
+		case VtMessage.VtTping:
+			return PING;
+		default:
+			return null;
+		}
+	}
+}
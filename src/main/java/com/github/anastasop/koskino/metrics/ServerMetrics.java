@@ -0,0 +1,224 @@
+package com.github.anastasop.koskino.metrics;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+import ascient.threading.FCFSQueue;
+
+import com.github.anastasop.koskino.VtMessage;
+
+// Latency histograms per operation and stage, and counters, for the whole
+// server. Recording never locks or allocates, so it stays on in production.
+public class ServerMetrics implements ServerMetricsMXBean {
+	public static final ServerMetrics INSTANCE = new ServerMetrics();
+
+	public static final String OBJECT_NAME = "com.github.anastasop.koskino:type=ServerMetrics";
+
+	private final LatencyHistogram[][] latency;
+	private final AtomicLong bytesIn = new AtomicLong();
+	private final AtomicLong bytesOut = new AtomicLong();
+	private final AtomicLong dedupHits = new AtomicLong();
+	private final AtomicLong dedupMisses = new AtomicLong();
+	private final AtomicLong errors = new AtomicLong();
+	private final Map<String, Gauge> gauges = new ConcurrentSkipListMap<String, Gauge>();
+
+	public ServerMetrics() {
+		latency = new LatencyHistogram[Operation.values().length][Stage.values().length];
+		for (int i = 0; i < latency.length; i++) {
+			for (int j = 0; j < latency[i].length; j++) {
+				latency[i][j] = new LatencyHistogram();
+			}
+		}
+	}
+
+	public void registerMBean() throws JMException {
+		ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName(OBJECT_NAME));
+	}
+
+	public LatencyHistogram histogram(Operation op, Stage stage) {
+		return latency[op.ordinal()][stage.ordinal()];
+	}
+
+	public void record(Operation op, Stage stage, long nanos) {
+		latency[op.ordinal()][stage.ordinal()].record(nanos);
+	}
+
+	// requests that are not measured, such as VtThello, are ignored
+	public void record(byte msgType, Stage stage, long nanos) {
+		Operation op = Operation.of(msgType);
+		if (op != null) {
+			record(op, stage, nanos);
+		}
+	}
+
+	public void addBytesIn(long n) {
+		bytesIn.addAndGet(n);
+	}
+
+	public void addBytesOut(long n) {
+		bytesOut.addAndGet(n);
+	}
+
+	// replaces the gauge registered under the same name
+	public void gauge(String name, Gauge gauge) {
+		gauges.put(name, gauge);
+	}
+
+	public void dedupHit() {
+		dedupHits.incrementAndGet();
+	}
+
+	public void dedupMiss() {
+		dedupMisses.incrementAndGet();
+	}
+
+	// counts the VtRerror responses among those sent
+	public void responseSent(VtMessage resp) {
+		if (resp.msgType == VtMessage.VtRerror) {
+			errors.incrementAndGet();
+		}
+	}
+
+	@Override
+	public long getBytesIn() {
+		return bytesIn.get();
+	}
+
+	@Override
+	public long getBytesOut() {
+		return bytesOut.get();
+	}
+
+	@Override
+	public long getDedupHits() {
+		return dedupHits.get();
+	}
+
+	@Override
+	public long getDedupMisses() {
+		return dedupMisses.get();
+	}
+
+	@Override
+	public long getErrors() {
+		return errors.get();
+	}
+
+	@Override
+	public Map<String, Long> getRequests() {
+		Map<String, Long> m = new LinkedHashMap<String, Long>();
+		for (Operation op: Operation.values()) {
+			m.put(name(op), histogram(op, Stage.TOTAL).getCount());
+		}
+		return m;
+	}
+
+	@Override
+	public Map<String, Long> getLatencyP50Micros() {
+		return percentiles(50);
+	}
+
+	@Override
+	public Map<String, Long> getLatencyP99Micros() {
+		return percentiles(99);
+	}
+
+	@Override
+	public Map<String, Long> getLatencyP999Micros() {
+		return percentiles(99.9);
+	}
+
+	private Map<String, Long> percentiles(double p) {
+		Map<String, Long> m = new LinkedHashMap<String, Long>();
+		for (Operation op: Operation.values()) {
+			for (Stage stage: Stage.values()) {
+				LatencyHistogram h = histogram(op, stage);
+				if (h.getCount() > 0) {
+					m.put(name(op) + "." + name(stage), h.getPercentile(p) / 1000);
+				}
+			}
+		}
+		return m;
+	}
+
+	@Override
+	public Map<String, Long> getGauges() {
+		Map<String, Long> m = new LinkedHashMap<String, Long>();
+		for (Map.Entry<String, Gauge> e: gauges.entrySet()) {
+			m.put(e.getKey(), e.getValue().getValue());
+		}
+		return m;
+	}
+
+	@Override
+	public String dump() {
+		StringWriter s = new StringWriter();
+		dump(new PrintWriter(s));
+		return s.toString();
+	}
+
+	public void dump(PrintWriter w) {
+		w.printf("bytes_in %d%n", bytesIn.get());
+		w.printf("bytes_out %d%n", bytesOut.get());
+		w.printf("dedup_hits %d%n", dedupHits.get());
+		w.printf("dedup_misses %d%n", dedupMisses.get());
+		w.printf("errors %d%n", errors.get());
+		for (Map.Entry<String, Gauge> e: gauges.entrySet()) {
+			w.printf("%s %d%n", e.getKey(), e.getValue().getValue());
+		}
+		for (Operation op: Operation.values()) {
+			for (Stage stage: Stage.values()) {
+				LatencyHistogram h = histogram(op, stage);
+				if (h.getCount() > 0) {
+					w.printf("latency %s %s %s%n", name(op), name(stage), h.summary());
+				}
+			}
+		}
+		// a queue per connection, so they are summed by name
+		Map<String, double[]> queues = new TreeMap<String, double[]>();
+		for (FCFSQueue<?> q: FCFSQueue.liveQueues()) {
+			double[] sums = queues.get(q.getName());
+			if (sums == null) {
+				sums = new double[4];
+				queues.put(q.getName(), sums);
+			}
+			sums[0]++;
+			sums[1] += q.getLength();
+			sums[2] += q.getArrivalRate();
+			sums[3] += q.getServiceRate();
+		}
+		for (Map.Entry<String, double[]> e: queues.entrySet()) {
+			double[] sums = e.getValue();
+			w.printf("queue %s instances=%d length=%d arrival_rate=%.1f/s service_rate=%.1f/s%n",
+					e.getKey(), (long)sums[0], (long)sums[1], sums[2], sums[3]);
+		}
+		w.flush();
+	}
+
+	@Override
+	public void reset() {
+		for (LatencyHistogram[] row: latency) {
+			for (LatencyHistogram h: row) {
+				h.reset();
+			}
+		}
+		bytesIn.set(0);
+		bytesOut.set(0);
+		dedupHits.set(0);
+		dedupMisses.set(0);
+		errors.set(0);
+	}
+
+	private static String name(Enum<?> e) {
+		return e.name().toLowerCase();
+	}
+}
@@ -0,0 +1,32 @@
+package com.github.anastasop.koskino.metrics;
+
+import java.util.Map;
+
+// The server metrics as seen through JMX, under
+// com.github.anastasop.koskino:type=ServerMetrics. Latency maps are keyed by
+// operation.stage, for example write.storage.
+public interface ServerMetricsMXBean {
+	long getBytesIn();
+
+	long getBytesOut();
+
+	long getDedupHits();
+
+	long getDedupMisses();
+
+	long getErrors();
+
+	Map<String, Long> getRequests();
+
+	Map<String, Long> getGauges();
+
+	Map<String, Long> getLatencyP50Micros();
+
+	Map<String, Long> getLatencyP99Micros();
+
+	Map<String, Long> getLatencyP999Micros();
+
+	String dump();
+
+	void reset();
+}
@@ -0,0 +1,7 @@
+package com.github.anastasop.koskino.metrics;
+
+// The parts of serving a request that are timed. COMPRESSION is spent inside
+// STORAGE, TOTAL runs from the decoded request to the response on the wire.
+public enum Stage {
+	DECODE, QUEUE_WAIT, STORAGE, COMPRESSION, ENCODE, SOCKET_WRITE, TOTAL
+}
@@ -0,0 +1,367 @@
+package com.github.anastasop.koskino.storage;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.github.anastasop.koskino.Score;
+
+// One segment file of the arena store. The file is created at its full size,
+// so appends never change its length and a sync only has to force the data
+// (fdatasync) and not the inode. Records are appended by one writer at a time
+// under the arena lock; reads are positional and need no lock.
+//
+// The store that opened the arena holds a reference to it, and so does every
+// read, force or BlockRegion while it uses the channel. The channel is closed
+// with the last one, so an arena moved to another tier is closed once the
+// reads already started on it are done.
+//
+// arena header, little endian, padded to DATA_START
+// 0-7: magic (kosarena)
+// 8-11: version (1)
+// 12-15: arena id
+// 16-23: file size
+// 24-27: CRC32 of bytes 0-23
+public class Arena implements AutoCloseable {
+	public static final int DATA_START = 4096;
+	public static final long FULL = -1;
+	public static final long BUSY = -2;
+	private static final byte[] MAGIC = "kosarena".getBytes();
+	private static final int VERSION = 1;
+	private static final int SCAN_WINDOW = 1 << 20;
+
+	private static Logger logger = LoggerFactory.getLogger(Arena.class);
+
+	private final int id;
+	private final File file;
+	private final FileChannel channel;
+	private final long size;
+	private final ReentrantLock appendLock = new ReentrantLock();
+	// guarded by appendLock
+	private long writePos;
+	private boolean sealed;
+	private volatile boolean dirty = false;
+	private final AtomicInteger refs = new AtomicInteger(1);
+
+	private Arena(int id, File file, FileChannel channel, long size, long writePos) {
+		this.id = id;
+		this.file = file;
+		this.channel = channel;
+		this.size = size;
+		this.writePos = writePos;
+	}
+
+	public static Arena create(File file, int id, long size) throws IOException {
+		try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+			// the file system may still allocate the extents lazily, there is
+			// no portable fallocate
+			raf.setLength(size);
+		}
+		FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+		try {
+			byte[] header = new byte[28];
+			System.arraycopy(MAGIC, 0, header, 0, 8);
+			ArenaRecord.putInt(header, 8, VERSION);
+			ArenaRecord.putInt(header, 12, id);
+			ArenaRecord.putInt(header, 16, (int)size);
+			ArenaRecord.putInt(header, 20, (int)(size >>> 32));
+			CRC32 crc = new CRC32();
+			crc.update(header, 0, 24);
+			ArenaRecord.putInt(header, 24, (int)crc.getValue());
+			writeFully(channel, ByteBuffer.wrap(header), 0);
+			channel.force(true);
+			forceDirectory(file.getAbsoluteFile().getParentFile());
+		} catch (IOException e) {
+			channel.close();
+			throw e;
+		}
+		return new Arena(id, file, channel, size, DATA_START);
+	}
+
+	// Opens an existing arena and adds to the index the records it does not
+	// hold yet. The write position is put after the last valid record, so a
+	// record torn by a crash is overwritten by the next append.
+	public static Arena open(File file, BlockIndex index) throws IOException {
+		FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+		try {
+			ByteBuffer hb = ByteBuffer.allocate(28);
+			readFully(channel, hb, 0);
+			byte[] header = hb.array();
+			CRC32 crc = new CRC32();
+			crc.update(header, 0, 24);
+			if (!Arrays.equals(Arrays.copyOf(header, 8), MAGIC)
+					|| ArenaRecord.getInt(header, 24) != (int)crc.getValue()) {
+				throw new IOException("not an arena: " + file);
+			}
+			if (ArenaRecord.getInt(header, 8) != VERSION) {
+				throw new IOException("unknown arena version in " + file);
+			}
+			int id = ArenaRecord.getInt(header, 12);
+			long size = (ArenaRecord.getInt(header, 16) & 0xFFFFFFFFL) | ((long)ArenaRecord.getInt(header, 20) << 32);
+			long start = Math.max(DATA_START, index.getIndexedEnd(id));
+			long end = scan(id, file, channel, start, Math.min(size, channel.size()), index);
+			Arena arena = new Arena(id, file, channel, size, end);
+			// what was read may not have reached the disk before a crash of
+			// the process, the first sync forces it
+			arena.dirty = true;
+			return arena;
+		} catch (IOException e) {
+			channel.close();
+			throw e;
+		}
+	}
+
+	// returns the end of the last valid record
+	private static long scan(int id, File file, FileChannel channel, long start, long size, BlockIndex index)
+			throws IOException {
+		byte[] window = new byte[SCAN_WINDOW];
+		long windowStart = 0;
+		int windowLength = 0;
+		long pos = start;
+		long end = start;
+		long nRecords = 0;
+		boolean resyncing = false;
+		while (pos + ArenaRecord.HEADER_LENGTH <= size) {
+			if (pos < windowStart || pos + ArenaRecord.HEADER_LENGTH > windowStart + windowLength) {
+				windowStart = pos;
+				windowLength = read(channel, window, windowStart, size);
+			}
+			int off = (int)(pos - windowStart);
+			if (ArenaRecord.isEmpty(window, off)) {
+				break;
+			}
+			ArenaRecord r = ArenaRecord.decodeHeader(window, off);
+			if (r != null && pos + r.getRecordLength() <= size) {
+				int recordLength = r.getRecordLength();
+				if (off + recordLength > windowLength) {
+					if (recordLength > window.length) {
+						window = new byte[recordLength];
+					}
+					windowStart = pos;
+					windowLength = read(channel, window, windowStart, size);
+					off = 0;
+				}
+				if (r.checkData(window, off + ArenaRecord.HEADER_LENGTH)) {
+					index.putIfAbsent(Score.fromBytes(r.getScore()),
+							new BlockAddress(id, pos, r.getStoredLength(), r.getType(), r.getCompression()));
+					nRecords++;
+					pos += recordLength;
+					end = pos;
+					resyncing = false;
+					continue;
+				}
+			}
+			if (!resyncing) {
+				logger.error("damaged record in arena {} at offset {}, looking for the next one", file, pos);
+				resyncing = true;
+			}
+			pos += ArenaRecord.ALIGNMENT;
+		}
+		logger.info("arena {}: {} records indexed from offset {}, {} bytes used", file, nRecords, start, end);
+		return end;
+	}
+
+	// fills buf from the file at pos, returns the number of bytes read
+	private static int read(FileChannel channel, byte[] buf, long pos, long limit) throws IOException {
+		int n = (int)Math.min(buf.length, limit - pos);
+		ByteBuffer bb = ByteBuffer.wrap(buf, 0, n);
+		readFully(channel, bb, pos);
+		return n;
+	}
+
+	public int getId() {
+		return id;
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	public FileChannel getChannel() {
+		return channel;
+	}
+
+	public long getSize() {
+		return size;
+	}
+
+	public long getWritePos() {
+		appendLock.lock();
+		try {
+			return writePos;
+		} finally {
+			appendLock.unlock();
+		}
+	}
+
+	public long getRemaining() {
+		appendLock.lock();
+		try {
+			return size - writePos;
+		} finally {
+			appendLock.unlock();
+		}
+	}
+
+	// Appends the record encoded in buf and returns its offset, or FULL if it
+	// does not fit. If wait is false and another writer holds the arena,
+	// returns BUSY instead of waiting. The block is indexed before the write
+	// position moves past it, so the end of an arena passed to
+	// BlockIndex.checkpoint never covers a record missing from the index.
+	public long append(byte[] buf, ArenaRecord r, Score score, BlockIndex index, boolean wait) throws IOException {
+		if (wait) {
+			appendLock.lock();
+		} else if (!appendLock.tryLock()) {
+			return BUSY;
+		}
+		try {
+			int len = r.getRecordLength();
+			if (sealed || writePos + len > size) {
+				return FULL;
+			}
+			long pos = writePos;
+			writeFully(channel, ByteBuffer.wrap(buf, 0, len), pos);
+			// a concurrent put of the same block may have been indexed first, its
+			// record is then the one used and this one is left unreferenced
+			index.putIfAbsent(score, new BlockAddress(id, pos, r.getStoredLength(), r.getType(), r.getCompression()));
+			writePos += len;
+			dirty = true;
+			return pos;
+		} finally {
+			appendLock.unlock();
+		}
+	}
+
+	// Takes no more appends, they return FULL. A writer that picked the arena
+	// before it was sealed then rolls over to another.
+	void seal() {
+		appendLock.lock();
+		try {
+			sealed = true;
+		} finally {
+			appendLock.unlock();
+		}
+	}
+
+	// Copies a sealed arena to target, which must not exist, and returns the
+	// copy opened, sealed as well. The records are copied in one sequential
+	// pass through a temporary file that is renamed once it is durable, so
+	// target is either missing or whole after a crash.
+	Arena copyTo(File target) throws IOException {
+		long end = getWritePos();
+		File tmp = new File(target.getPath() + ".tmp");
+		try (RandomAccessFile raf = new RandomAccessFile(tmp, "rw")) {
+			raf.setLength(0);
+			FileChannel out = raf.getChannel();
+			for (long pos = 0; pos < end; ) {
+				long n = channel.transferTo(pos, end - pos, out.position(pos));
+				if (n <= 0) {
+					throw new IOException("unexpected end of arena " + file);
+				}
+				pos += n;
+			}
+			// the copy keeps the size of the arena, the tail stays sparse
+			raf.setLength(size);
+			out.force(true);
+		} catch (IOException e) {
+			tmp.delete();
+			throw e;
+		}
+		Files.move(tmp.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE);
+		forceDirectory(target.getAbsoluteFile().getParentFile());
+		Arena copy = new Arena(id, target, FileChannel.open(target.toPath(), StandardOpenOption.READ,
+				StandardOpenOption.WRITE), size, end);
+		copy.sealed = true;
+		return copy;
+	}
+
+	// reads the record at offset with its header
+	public byte[] read(long offset, int storedLength) throws IOException {
+		byte[] buf = new byte[ArenaRecord.HEADER_LENGTH + storedLength];
+		if (offset + buf.length > size) {
+			throw new IOException("record past the end of arena " + file);
+		}
+		readFully(channel, ByteBuffer.wrap(buf), offset);
+		return buf;
+	}
+
+	// forces the records appended since the last call
+	public void force() throws IOException {
+		if (!dirty) {
+			return;
+		}
+		dirty = false;
+		try {
+			channel.force(false);
+		} catch (IOException e) {
+			dirty = true;
+			throw e;
+		}
+	}
+
+	// Takes a reference for a use of the channel, to be given back with
+	// release(). False if the arena is closed already.
+	boolean acquire() {
+		for (;;) {
+			int n = refs.get();
+			if (n == 0) {
+				return false;
+			}
+			if (refs.compareAndSet(n, n + 1)) {
+				return true;
+			}
+		}
+	}
+
+	void release() throws IOException {
+		if (refs.decrementAndGet() == 0) {
+			channel.close();
+		}
+	}
+
+	// gives back the reference of the store that opened the arena
+	@Override
+	public void close() throws IOException {
+		release();
+	}
+
+	private static void writeFully(FileChannel channel, ByteBuffer b, long pos) throws IOException {
+		while (b.hasRemaining()) {
+			pos += channel.write(b, pos);
+		}
+	}
+
+	private static void readFully(FileChannel channel, ByteBuffer b, long pos) throws IOException {
+		while (b.hasRemaining()) {
+			int n = channel.read(b, pos);
+			if (n < 0) {
+				throw new IOException("unexpected end of file");
+			}
+			pos += n;
+		}
+	}
+
+	// makes a new file in dir durable. Some platforms cannot open a directory
+	// for fsync, the entry is then as durable as the file system makes it.
+	static void forceDirectory(File dir) throws IOException {
+		try (FileChannel channel = FileChannel.open(dir.toPath(), StandardOpenOption.READ)) {
+			channel.force(true);
+		} catch (IOException e) {
+			if (!Files.isDirectory(dir.toPath())) {
+				throw e;
+			}
+		}
+	}
+}
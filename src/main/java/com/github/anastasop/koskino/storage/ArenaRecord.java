@@ -0,0 +1,201 @@
+package com.github.anastasop.koskino.storage;
+
+import java.util.zip.CRC32;
+
+import kanzi.IndexedByteArray;
+import kanzi.function.SnappyCodec;
+
+import com.github.anastasop.koskino.io.CompressionPolicy;
+
+// The header of a block record in an arena. Little endian, records start on
+// 8 byte boundaries so a scan can find its way back after a damaged record.
+// 0-3: magic (kosk)
+// 4: version (1)
+// 5: compression (NONE or SNAPPY)
+// 6: block type
+// 7: reserved (0)
+// 8-11: stored length, the bytes that follow the header
+// 12-15: block length, after decompression
+// 16-35: score
+// 36-39: CRC32 of the stored bytes
+// 40-43: CRC32 of bytes 0-39
+public class ArenaRecord {
+	public static final int HEADER_LENGTH = 44;
+	public static final int ALIGNMENT = 8;
+	public static final byte VERSION = 1;
+	public static final byte NONE = 0;
+	public static final byte SNAPPY = 1;
+	private static final byte[] MAGIC = new byte[]{'k', 'o', 's', 'k'};
+
+	// SnappyCodec keeps its hash table in the instance
+	private static final ThreadLocal<SnappyCodec> codecs = new ThreadLocal<SnappyCodec>() {
+		@Override
+		protected SnappyCodec initialValue() {
+			return new SnappyCodec();
+		}
+	};
+	// kanzi's SnappyCodec.forward only encodes correctly to the start of the
+	// destination, so blocks are compressed here and copied after the header
+	private static final ThreadLocal<byte[]> scratch = new ThreadLocal<>();
+
+	byte compression;
+	byte type;
+	int storedLength;
+	int blockLength;
+	final byte[] score = new byte[20];
+	int dataCrc;
+
+	public byte getCompression() {
+		return compression;
+	}
+
+	public byte getType() {
+		return type;
+	}
+
+	public int getStoredLength() {
+		return storedLength;
+	}
+
+	public int getBlockLength() {
+		return blockLength;
+	}
+
+	public byte[] getScore() {
+		return score;
+	}
+
+	// header and stored bytes, padded to the alignment
+	public int getRecordLength() {
+		return recordLength(storedLength);
+	}
+
+	public static int recordLength(int storedLength) {
+		return (HEADER_LENGTH + storedLength + ALIGNMENT - 1) & -ALIGNMENT;
+	}
+
+	// Writes the record of the block to buf, compressed if CompressionPolicy
+	// expects it to shrink and it does, and returns its header. buf must hold recordLength(len).
+	public static ArenaRecord encode(byte[] buf, byte type, byte[] score, byte[] data, int off, int len) {
+		ArenaRecord r = new ArenaRecord();
+		r.type = type;
+		r.blockLength = len;
+		System.arraycopy(score, 0, r.score, 0, 20);
+
+		SnappyCodec codec = codecs.get();
+		codec.setSize(len);
+		byte[] compressed = scratch.get();
+		if (compressed == null || compressed.length < codec.getMaxEncodedLength(len)) {
+			compressed = new byte[codec.getMaxEncodedLength(Math.max(len, 64 * 1024))];
+			scratch.set(compressed);
+		}
+		IndexedByteArray dst = new IndexedByteArray(compressed, 0);
+		// the records have no LZ4, blocks that would take it take Snappy
+		if (CompressionPolicy.choose(type, data, off, len) != CompressionPolicy.NONE
+				&& codec.forward(new IndexedByteArray(data, off), dst) && dst.index < len) {
+			r.compression = SNAPPY;
+			r.storedLength = dst.index;
+			System.arraycopy(compressed, 0, buf, HEADER_LENGTH, dst.index);
+		} else {
+			r.compression = NONE;
+			r.storedLength = len;
+			System.arraycopy(data, off, buf, HEADER_LENGTH, len);
+		}
+		CRC32 crc = new CRC32();
+		crc.update(buf, HEADER_LENGTH, r.storedLength);
+		r.dataCrc = (int)crc.getValue();
+		r.writeHeader(buf, 0);
+		int end = r.getRecordLength();
+		for (int i = HEADER_LENGTH + r.storedLength; i < end; i++) {
+			buf[i] = 0;
+		}
+		return r;
+	}
+
+	void writeHeader(byte[] b, int off) {
+		System.arraycopy(MAGIC, 0, b, off, 4);
+		b[off + 4] = VERSION;
+		b[off + 5] = compression;
+		b[off + 6] = type;
+		b[off + 7] = 0;
+		putInt(b, off + 8, storedLength);
+		putInt(b, off + 12, blockLength);
+		System.arraycopy(score, 0, b, off + 16, 20);
+		putInt(b, off + 36, dataCrc);
+		CRC32 crc = new CRC32();
+		crc.update(b, off, 40);
+		putInt(b, off + 40, (int)crc.getValue());
+	}
+
+	// returns null if b[off, off + HEADER_LENGTH) is not a valid header
+	public static ArenaRecord decodeHeader(byte[] b, int off) {
+		if (b[off] != MAGIC[0] || b[off + 1] != MAGIC[1] || b[off + 2] != MAGIC[2] || b[off + 3] != MAGIC[3]) {
+			return null;
+		}
+		CRC32 crc = new CRC32();
+		crc.update(b, off, 40);
+		if (getInt(b, off + 40) != (int)crc.getValue() || b[off + 4] != VERSION) {
+			return null;
+		}
+		ArenaRecord r = new ArenaRecord();
+		r.compression = b[off + 5];
+		r.type = b[off + 6];
+		r.storedLength = getInt(b, off + 8);
+		r.blockLength = getInt(b, off + 12);
+		System.arraycopy(b, off + 16, r.score, 0, 20);
+		r.dataCrc = getInt(b, off + 36);
+		if (r.storedLength < 0 || r.blockLength < 0 || (r.compression != NONE && r.compression != SNAPPY)
+				|| (r.compression == NONE && r.storedLength != r.blockLength)) {
+			return null;
+		}
+		return r;
+	}
+
+	// true if b[off, off + HEADER_LENGTH) was never written
+	public static boolean isEmpty(byte[] b, int off) {
+		for (int i = off; i < off + HEADER_LENGTH; i++) {
+			if (b[i] != 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	// checks the stored bytes, which follow the header at b[off]
+	public boolean checkData(byte[] b, int off) {
+		CRC32 crc = new CRC32();
+		crc.update(b, off, storedLength);
+		return (int)crc.getValue() == dataCrc;
+	}
+
+	// returns the block from the stored bytes at b[off], or null if they do
+	// not decompress to blockLength bytes
+	public byte[] decode(byte[] b, int off) {
+		byte[] data = new byte[blockLength];
+		if (compression == NONE) {
+			System.arraycopy(b, off, data, 0, blockLength);
+			return data;
+		}
+		if (blockLength == 0) {
+			return data;
+		}
+		SnappyCodec codec = codecs.get();
+		codec.setSize(storedLength);
+		IndexedByteArray dst = new IndexedByteArray(data, 0);
+		if (!codec.inverse(new IndexedByteArray(b, off), dst) || dst.index != blockLength) {
+			return null;
+		}
+		return data;
+	}
+
+	static void putInt(byte[] b, int off, int v) {
+		b[off] = (byte)v;
+		b[off + 1] = (byte)(v >> 8);
+		b[off + 2] = (byte)(v >> 16);
+		b[off + 3] = (byte)(v >> 24);
+	}
+
+	static int getInt(byte[] b, int off) {
+		return (b[off] & 0xFF) | (b[off + 1] & 0xFF) << 8 | (b[off + 2] & 0xFF) << 16 | (b[off + 3] & 0xFF) << 24;
+	}
+}
@@ -0,0 +1,568 @@
+package com.github.anastasop.koskino.storage;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import ascient.threading.Threads;
+
+import com.github.anastasop.koskino.Score;
+import com.github.anastasop.koskino.metrics.Operation;
+import com.github.anastasop.koskino.metrics.ServerMetrics;
+import com.github.anastasop.koskino.metrics.Stage;
+
+// Blocks appended to a few large arena files instead of a file per block.
+// Several arenas are open for writing at once, each with its own writer, so
+// puts from different connections do not queue behind a single log. The
+// index maps scores to (arena, offset); at startup the arenas are scanned
+// from where the index stops, all of them for an in-memory index. Records
+// carry CRCs so a torn tail is detected and reused. A ScoreFilter in front
+// of the index answers for most blocks that are not stored. The arenas may
+// be striped over directories on different devices: each writer creates its
+// arenas in one of them and a sync forces each directory on its own thread.
+// A TieredStorageService moves full arenas to and from a capacity directory.
+public class ArenaStorageService implements RegionStorageService {
+	public static final long DEFAULT_ARENA_SIZE = 1L << 30;
+	public static final long MIN_ARENA_SIZE = 16L << 20;
+	public static final int DEFAULT_WRITERS = 4;
+	public static final int MAX_BLOCK_SIZE = 1 << 20;
+	// arena ids must fit in the 16 bits the compact indexes give them
+	public static final int MAX_ARENAS = 1 << 16;
+
+	private Logger logger = LoggerFactory.getLogger(ArenaStorageService.class);
+	// the filter is kept in the first
+	private final File[] arenaDirs;
+	private final File arenaDir;
+	// where a TieredStorageService moves the cold arenas, or null. No arena
+	// is created there.
+	private final File capacityDir;
+	// gets by arena since the last takeReads, when tiered
+	private final AtomicLongArray reads;
+	private final String arenaName;
+	private final long arenaSize;
+	private final BlockIndex index;
+	private ScoreFilter filter;
+	// by id, replaced as a whole when an arena is added
+	private volatile Arena[] arenas;
+	// the arenas that take new blocks, one per writer; writer slot takes its
+	// arenas from directory slot % arenaDirs.length
+	private final AtomicReferenceArray<Arena> writing;
+	private final AtomicInteger nextWriter = new AtomicInteger();
+	private final ThreadLocal<byte[]> recordBuffers = new ThreadLocal<>();
+	private boolean closed = false;
+	private final GroupCommit groupCommit = new GroupCommit(new GroupCommit.Flusher() {
+		@Override
+		public void flush() throws IOException {
+			forceArenas(false);
+		}
+	});
+	private final AtomicBoolean checkpointing = new AtomicBoolean();
+
+	private ArenaStorageService(File[] arenaDirs, File capacityDir, String arenaName, long arenaSize, int writers,
+			BlockIndex index) {
+		this.arenaDirs = arenaDirs;
+		this.arenaDir = arenaDirs[0];
+		this.capacityDir = capacityDir;
+		this.reads = capacityDir != null ? new AtomicLongArray(MAX_ARENAS) : null;
+		this.arenaName = arenaName;
+		this.arenaSize = arenaSize;
+		this.index = index;
+		this.writing = new AtomicReferenceArray<>(writers);
+	}
+
+	// Opens the arenas named arenaName in arenaDir, creating the directory and
+	// the first arenas if needed, and indexes their blocks in index. The score
+	// filter takes filterBits bits a block, none if 0.
+	public static ArenaStorageService forName(File arenaDir, String arenaName, long arenaSize, int writers,
+			BlockIndex index, int filterBits) throws IOException {
+		return forName(new File[] {arenaDir}, arenaName, arenaSize, writers, index, filterBits);
+	}
+
+	// Stripes the arenas over arenaDirs, which should be on different devices.
+	// Every directory gets a writer at least, the writers are raised to their
+	// number if fewer.
+	public static ArenaStorageService forName(File[] arenaDirs, String arenaName, long arenaSize, int writers,
+			BlockIndex index, int filterBits) throws IOException {
+		return forName(arenaDirs, null, arenaName, arenaSize, writers, index, filterBits);
+	}
+
+	// also loads the arenas a TieredStorageService moved to capacityDir
+	static ArenaStorageService forName(File[] arenaDirs, File capacityDir, String arenaName, long arenaSize,
+			int writers, BlockIndex index, int filterBits) throws IOException {
+		if (arenaSize < MIN_ARENA_SIZE) {
+			throw new IllegalArgumentException("arenas must be at least " + MIN_ARENA_SIZE + " bytes");
+		}
+		if (writers < 1) {
+			throw new IllegalArgumentException("at least one writer is needed");
+		}
+		if (arenaDirs.length == 0) {
+			throw new IllegalArgumentException("at least one arena directory is needed");
+		}
+		for (File arenaDir : arenaDirs) {
+			if (!arenaDir.isDirectory() && !arenaDir.mkdirs()) {
+				throw new IOException("cannot create arena directory " + arenaDir);
+			}
+		}
+		if (capacityDir != null && !capacityDir.isDirectory() && !capacityDir.mkdirs()) {
+			throw new IOException("cannot create arena directory " + capacityDir);
+		}
+		final ArenaStorageService storage = new ArenaStorageService(arenaDirs, capacityDir, arenaName, arenaSize,
+				Math.max(writers, arenaDirs.length), index);
+		storage.load();
+		storage.filter = ScoreFilter.open(storage.filterFile(), index, filterBits);
+		BlockIndexMetrics.export(index);
+		storage.filter.exportMetrics();
+		Runtime.getRuntime().addShutdownHook(new Thread() {
+			@Override
+			public void run() {
+				try {
+					storage.close();
+				} catch (Exception e) {
+					e.printStackTrace();
+				}
+			}
+		});
+		return storage;
+	}
+
+	private void load() throws IOException {
+		final Pattern namePattern = Pattern.compile(Pattern.quote(arenaName) + "\\.(\\d{5})\\.arena");
+		FilenameFilter arenaFiles = new FilenameFilter() {
+			@Override
+			public boolean accept(File dir, String name) {
+				return namePattern.matcher(name).matches();
+			}
+		};
+		List<File> found = new ArrayList<>();
+		List<File> dirs = new ArrayList<>(Arrays.asList(arenaDirs));
+		if (capacityDir != null) {
+			dirs.add(capacityDir);
+		}
+		for (File arenaDir : dirs) {
+			File[] files = arenaDir.listFiles(arenaFiles);
+			if (files == null) {
+				throw new IOException("cannot list arena directory " + arenaDir);
+			}
+			found.addAll(Arrays.asList(files));
+		}
+		File[] files = found.toArray(new File[found.size()]);
+		// by id, whatever the directory
+		Arrays.sort(files, new Comparator<File>() {
+			@Override
+			public int compare(File a, File b) {
+				return a.getName().compareTo(b.getName());
+			}
+		});
+		Arena[] loaded = new Arena[0];
+		arenas = loaded;
+		for (File file : files) {
+			Matcher m = namePattern.matcher(file.getName());
+			m.matches();
+			Arena arena = Arena.open(file, index);
+			if (arena.getId() != Integer.parseInt(m.group(1))) {
+				arena.close();
+				throw new IOException("arena " + file + " has id " + arena.getId());
+			}
+			if (arena.getId() >= loaded.length) {
+				loaded = Arrays.copyOf(loaded, arena.getId() + 1);
+			} else if (loaded[arena.getId()] != null && capacityDir != null) {
+				// a move between the tiers stopped after the copy was made whole and
+				// before the original was deleted, they hold the same records
+				arena.close();
+				logger.warn("arena {} is also {}, deleting it", file, loaded[arena.getId()].getFile());
+				Files.delete(file.toPath());
+				Arena.forceDirectory(file.getAbsoluteFile().getParentFile());
+				continue;
+			} else if (loaded[arena.getId()] != null) {
+				arena.close();
+				throw new IOException("arena " + arena.getId() + " is both " + loaded[arena.getId()].getFile() + " and " + file);
+			}
+			loaded[arena.getId()] = arena;
+			arenas = loaded.clone();
+			// an index that scans everything again must not hold it all in memory
+			if (index.needsCheckpoint()) {
+				forceArenas(true);
+			}
+		}
+
+		// keep writing to the newest arenas that have room, each in the
+		// directory of its writer
+		boolean[] taken = new boolean[loaded.length];
+		for (int slot = 0; slot < writing.length(); slot++) {
+			int stripe = slot % arenaDirs.length;
+			for (int i = loaded.length - 1; i >= 0 && writing.get(slot) == null; i--) {
+				if (loaded[i] != null && !taken[i] && stripeOf(loaded[i]) == stripe
+						&& loaded[i].getRemaining() >= loaded[i].getSize() / 16) {
+					writing.set(slot, loaded[i]);
+					taken[i] = true;
+				}
+			}
+			if (writing.get(slot) == null) {
+				writing.set(slot, newArena(stripe));
+			}
+		}
+		logger.info("{} arenas in {} directories, index contains {} blocks", arenas.length, arenaDirs.length, index.size());
+	}
+
+	private File filterFile() {
+		return new File(arenaDir, arenaName + ".filter");
+	}
+
+	// the directory of an arena, by index in arenaDirs
+	private int stripeOf(Arena arena) {
+		File dir = arena.getFile().getParentFile();
+		for (int i = 0; i < arenaDirs.length; i++) {
+			if (arenaDirs[i].equals(dir)) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	private synchronized Arena newArena(int stripe) throws IOException {
+		Arena[] current = arenas;
+		int id = current.length;
+		if (id >= MAX_ARENAS) {
+			throw new IOException("no more arenas can be created in " + arenaDir);
+		}
+		File file = new File(arenaDirs[stripe], String.format("%s.%05d.arena", arenaName, id));
+		Arena arena = Arena.create(file, id, arenaSize);
+		Arena[] next = Arrays.copyOf(current, id + 1);
+		next[id] = arena;
+		arenas = next;
+		logger.info("created arena {}", file);
+		return arena;
+	}
+
+	// replaces the arena of a writer once it is full
+	private synchronized void rollOver(int slot, Arena full) throws IOException {
+		if (writing.get(slot) == full) {
+			writing.set(slot, newArena(slot % arenaDirs.length));
+		}
+	}
+
+	private Arena arena(int id) {
+		Arena[] current = arenas;
+		Arena arena = id < current.length ? current[id] : null;
+		if (arena != null && reads != null) {
+			reads.incrementAndGet(id);
+		}
+		return arena;
+	}
+
+	// The arena with id, acquired for the caller to release, or null. An arena
+	// moved to another tier is closed once its copy has taken its place, so
+	// the copy is taken then.
+	private Arena acquireArena(int id) throws IOException {
+		Arena arena = arena(id);
+		while (arena != null && !arena.acquire()) {
+			Arena next = arenas[id];
+			if (next == arena) {
+				throw new IOException("arena " + arena.getFile() + " is closed");
+			}
+			arena = next;
+		}
+		return arena;
+	}
+
+	// the arenas by id, some may be null
+	Arena[] arenas() {
+		return arenas;
+	}
+
+	// the fast directories, where new arenas are created
+	File[] arenaDirs() {
+		return arenaDirs;
+	}
+
+	boolean isWriting(Arena arena) {
+		for (int slot = 0; slot < writing.length(); slot++) {
+			if (writing.get(slot) == arena) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	// the gets of each arena since the last call, when tiered
+	long[] takeReads(int n) {
+		long[] taken = new long[n];
+		for (int i = 0; i < n; i++) {
+			taken[i] = reads.getAndSet(i, 0);
+		}
+		return taken;
+	}
+
+	// Puts copy, an arena moved to another directory, in the place of old.
+	// The caller then closes old, whose channel stays open for the reads
+	// already started on it.
+	synchronized void replace(Arena old, Arena copy) throws IOException {
+		if (closed) {
+			throw new IOException("arenas closed");
+		}
+		Arena[] next = arenas.clone();
+		if (next[old.getId()] != old) {
+			throw new IOException("arena " + old.getFile() + " was replaced already");
+		}
+		next[old.getId()] = copy;
+		arenas = next;
+	}
+
+	@Override
+	public Block get(Score score, byte type) throws IOException {
+		if (!filter.mightContain(score)) {
+			return null;
+		}
+		BlockAddress address = index.get(score);
+		if (address == null) {
+			filter.falsePositive();
+			return null;
+		}
+		if (address.getType() != type) {
+			return null;
+		}
+		Arena arena = acquireArena(address.getArena());
+		if (arena == null) {
+			logger.error("GET: block {} is in missing arena {}", score, address.getArena());
+			return null;
+		}
+		byte[] buf;
+		try {
+			buf = arena.read(address.getOffset(), address.getLength());
+		} finally {
+			arena.release();
+		}
+		ArenaRecord r = ArenaRecord.decodeHeader(buf, 0);
+		if (r == null || !Arrays.equals(r.getScore(), score.getBytes()) || r.getStoredLength() != address.getLength()) {
+			logger.error("GET: bad record header for block {} at arena {}/{}", score, arena.getFile(), address.getOffset());
+			return null;
+		}
+		if (!r.checkData(buf, ArenaRecord.HEADER_LENGTH)) {
+			logger.error("GET: corrupted block {} at arena {}/{}", score, arena.getFile(), address.getOffset());
+			return null;
+		}
+		long start = System.nanoTime();
+		byte[] data = r.decode(buf, ArenaRecord.HEADER_LENGTH);
+		if (r.getCompression() != ArenaRecord.NONE) {
+			ServerMetrics.INSTANCE.record(Operation.READ, Stage.COMPRESSION, System.nanoTime() - start);
+		}
+		if (data == null) {
+			logger.error("GET: block {} at arena {}/{} does not decompress", score, arena.getFile(), address.getOffset());
+			return null;
+		}
+		// the CRC has checked the data, the score comes from the header as the
+		// one passed in may be recycled by the caller
+		return new Block(type, Score.fromBytes(r.getScore()), data);
+	}
+
+	// the data is sent as stored, without the CRC check that get() does
+	@Override
+	public BlockRegion getRegion(Score score, byte type) throws IOException {
+		if (!filter.mightContainUncounted(score)) {
+			return null;
+		}
+		BlockAddress address = index.get(score);
+		if (address == null || address.getType() != type || address.getCompression() != ArenaRecord.NONE) {
+			return null;
+		}
+		Arena arena = acquireArena(address.getArena());
+		if (arena == null) {
+			return null;
+		}
+		return new BlockRegion(arena, address.getOffset() + ArenaRecord.HEADER_LENGTH, address.getLength());
+	}
+
+	@Override
+	public Score put(byte[] data, int off, int len, byte type) throws IOException {
+		if (len > MAX_BLOCK_SIZE) {
+			logger.error("Block size limited to {}", MAX_BLOCK_SIZE);
+			return null;
+		}
+		Score score = Score.forBlock(data, off, len);
+		boolean maybeStored = filter.mightContain(score);
+		BlockAddress address = maybeStored ? index.get(score) : null;
+		if (address != null) {
+			ServerMetrics.INSTANCE.dedupHit();
+			if (address.getType() != type) {
+				logger.error("block {} exists with type {}, not {}", score, address.getType(), type);
+			}
+			return score;
+		}
+		if (maybeStored) {
+			filter.falsePositive();
+		}
+		ServerMetrics.INSTANCE.dedupMiss();
+
+		byte[] buf = recordBuffer(len);
+		long start = System.nanoTime();
+		ArenaRecord r = ArenaRecord.encode(buf, type, score.getBytes(), data, off, len);
+		ServerMetrics.INSTANCE.record(Operation.WRITE, Stage.COMPRESSION, System.nanoTime() - start);
+		filter.add(score);
+		append(buf, r, score);
+		if (index.needsCheckpoint()) {
+			startCheckpoint();
+		}
+		return score;
+	}
+
+	// Tries the writers in turn starting from the next one, so concurrent puts
+	// spread over the arenas. Waits only once every arena has been found busy.
+	private void append(byte[] buf, ArenaRecord r, Score score) throws IOException {
+		int n = writing.length();
+		int first = nextWriter.getAndIncrement() & Integer.MAX_VALUE;
+		for (int i = 0; ; i++) {
+			int slot = (first + i) % n;
+			Arena arena = writing.get(slot);
+			long offset = arena.append(buf, r, score, index, i >= n);
+			if (offset >= 0) {
+				return;
+			}
+			if (offset == Arena.FULL) {
+				rollOver(slot, arena);
+			}
+		}
+	}
+
+	private byte[] recordBuffer(int len) {
+		int needed = ArenaRecord.recordLength(len);
+		byte[] buf = recordBuffers.get();
+		if (buf == null || buf.length < needed) {
+			buf = new byte[Math.max(needed, ArenaRecord.recordLength(64 * 1024))];
+			recordBuffers.set(buf);
+		}
+		return buf;
+	}
+
+	// concurrent syncs share one force of the arenas written since the last
+	@Override
+	public void sync() throws IOException {
+		groupCommit.sync();
+	}
+
+	// The ends are taken before the arenas are forced, so the index is never
+	// told an arena is durable beyond what was forced.
+	private void forceArenas(boolean forceCheckpoint) throws IOException {
+		Arena[] current = arenas;
+		long[] ends = new long[current.length];
+		for (int i = 0; i < current.length; i++) {
+			ends[i] = current[i] != null ? current[i].getWritePos() : -1;
+		}
+		forceStripes(current);
+		index.checkpoint(ends, forceCheckpoint);
+	}
+
+	// The arenas of each directory but the first are forced by a thread of
+	// their own, so the devices flush at the same time.
+	private void forceStripes(final Arena[] current) throws IOException {
+		final AtomicReference<IOException> failure = new AtomicReference<>();
+		List<Thread> forcers = new ArrayList<>();
+		for (int i = 1; i < arenaDirs.length; i++) {
+			final int stripe = i;
+			Thread t = Threads.newThread(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						forceStripe(current, stripe);
+					} catch (IOException e) {
+						failure.compareAndSet(null, e);
+					}
+				}
+			}, "arenaforce");
+			t.start();
+			forcers.add(t);
+		}
+		try {
+			forceStripe(current, 0);
+		} catch (IOException e) {
+			failure.compareAndSet(null, e);
+		}
+		for (Thread t : forcers) {
+			try {
+				t.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				failure.compareAndSet(null, new IOException("interrupted while forcing the arenas"));
+			}
+		}
+		if (failure.get() != null) {
+			throw failure.get();
+		}
+	}
+
+	// An arena moved since current was taken is closed and skipped, its copy
+	// was forced when it was made.
+	private void forceStripe(Arena[] current, int stripe) throws IOException {
+		for (Arena arena : current) {
+			// the first thread also forces the arenas in the capacity directory
+			int s = arena != null ? stripeOf(arena) : -1;
+			if (arena != null && (arenaDirs.length == 1 || s == stripe || s < 0 && stripe == 0) && arena.acquire()) {
+				try {
+					arena.force();
+				} finally {
+					arena.release();
+				}
+			}
+		}
+	}
+
+	// syncs in the background for an index that holds too much in memory,
+	// when the clients do not sync often enough
+	private void startCheckpoint() {
+		if (!checkpointing.compareAndSet(false, true)) {
+			return;
+		}
+		Threads.newThread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					sync();
+				} catch (IOException e) {
+					logger.error("background index checkpoint failed: {}", e.getMessage());
+				} finally {
+					checkpointing.set(false);
+				}
+			}
+		}, "checkpoint").start();
+	}
+
+	@Override
+	public synchronized void close() throws Exception {
+		// both the shutdown hook and the server may close it
+		if (closed) {
+			return;
+		}
+		closed = true;
+		forceArenas(true);
+		filter.save(filterFile(), index.size());
+		List<IOException> errors = new ArrayList<>();
+		for (Arena arena : arenas) {
+			if (arena == null) {
+				continue;
+			}
+			try {
+				arena.close();
+			} catch (IOException e) {
+				errors.add(e);
+			}
+		}
+		index.close();
+		if (!errors.isEmpty()) {
+			throw errors.get(0);
+		}
+	}
+}
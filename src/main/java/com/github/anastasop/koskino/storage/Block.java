@@ -13,6 +13,13 @@ public class Block {
 		this.score = Score.forBlock(data);
 	}
 
+	// for data whose score is already known, saves recomputing the SHA-1
+	public Block(byte type, Score score, byte[] data) {
+		this.type = type;
+		this.data = data;
+		this.score = score;
+	}
+
 	public Score getScore() {
 		return score;
 	}
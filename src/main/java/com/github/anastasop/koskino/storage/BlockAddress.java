@@ -0,0 +1,72 @@
+package com.github.anastasop.koskino.storage;
+
+// Where a block is stored: the arena, the offset of its record in the arena
+// file and what is needed to read it without first reading the header.
+public class BlockAddress {
+	private final int arena;
+	private final long offset;
+	private final int length;
+	private final byte type;
+	private final byte compression;
+
+	// length is the number of bytes stored, after compression
+	public BlockAddress(int arena, long offset, int length, byte type, byte compression) {
+		this.arena = arena;
+		this.offset = offset;
+		this.length = length;
+		this.type = type;
+		this.compression = compression;
+	}
+
+	public int getArena() {
+		return arena;
+	}
+
+	public long getOffset() {
+		return offset;
+	}
+
+	public int getLength() {
+		return length;
+	}
+
+	public byte getType() {
+		return type;
+	}
+
+	public byte getCompression() {
+		return compression;
+	}
+
+	// The packed form the compact and disk indexes store: the arena in the
+	// top 16 bits of a long and the offset in the rest, then an int with a
+	// used bit, the compression (2 bits), the type (8 bits) and the length
+	// (21 bits).
+	static final long MAX_OFFSET = (1L << 48) - 1;
+	static final int MAX_LENGTH = (1 << 21) - 1;
+	static final int USED = 1 << 31;
+
+	boolean isPackable() {
+		return arena >= 0 && arena < ArenaStorageService.MAX_ARENAS && offset >= 0 && offset <= MAX_OFFSET
+				&& length >= 0 && length <= MAX_LENGTH && compression >= 0 && compression <= 3;
+	}
+
+	long packLocation() {
+		return (long)arena << 48 | offset;
+	}
+
+	int packInfo() {
+		return USED | (compression & 0x3) << 29 | (type & 0xFF) << 21 | length;
+	}
+
+	static BlockAddress unpack(long location, int info) {
+		return new BlockAddress((int)(location >>> 48), location & MAX_OFFSET, info & MAX_LENGTH,
+				(byte)(info >>> 21), (byte)((info >>> 29) & 0x3));
+	}
+
+	@Override
+	public String toString() {
+		return "BlockAddress [arena=" + arena + ", offset=" + offset + ", length=" + length
+				+ ", type=" + type + ", compression=" + compression + "]";
+	}
+}
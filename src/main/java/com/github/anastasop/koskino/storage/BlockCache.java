@@ -0,0 +1,328 @@
+package com.github.anastasop.koskino.storage;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import com.github.anastasop.koskino.Score;
+import com.github.anastasop.koskino.metrics.Gauge;
+import com.github.anastasop.koskino.metrics.ServerMetrics;
+
+// Decompressed and verified blocks, bounded in bytes, kept by the W-TinyLFU
+// policy. A new block enters a small LRU window; pushed out of it, it joins
+// the main area only if the frequency sketch has seen it asked for more
+// often than the block it would evict there. So a restore that reads every
+// block once passes through the window and leaves the blocks that are read
+// again and again, such as the pointer blocks near the roots. The main area
+// is a segmented LRU: a block hit while on probation becomes protected.
+//
+// The cache is split in segments by score, each with its own lock, policy
+// and sketch. Payloads are kept on the heap, or off it in OffHeapPages, when
+// a hit copies them out.
+public class BlockCache {
+	private static final int SEGMENTS = 16;
+	// the Entry, its Score and the map node, counted against the capacity
+	// of the heap cache
+	private static final int ENTRY_OVERHEAD = 160;
+	private static final int WINDOW = 0;
+	private static final int PROBATION = 1;
+	private static final int PROTECTED = 2;
+	private static final int REMOVED = 3;
+
+	private static final class Entry {
+		final Score score;
+		final byte type;
+		final int length;
+		final int weight;
+		byte[] data;
+		int[] pages;
+		int queue;
+		Entry prev;
+		Entry next;
+
+		Entry(Score score, byte type, int length, int weight) {
+			this.score = score;
+			this.type = type;
+			this.length = length;
+			this.weight = weight;
+		}
+
+		// a list head, prev is the least recently used end
+		static Entry list() {
+			Entry head = new Entry(null, (byte)0, 0, 0);
+			head.prev = head;
+			head.next = head;
+			return head;
+		}
+	}
+
+	private final class Segment {
+		final Map<Score, Entry> map = new HashMap<>();
+		final Entry window = Entry.list();
+		final Entry probation = Entry.list();
+		final Entry protectedList = Entry.list();
+		final FrequencySketch sketch;
+		final long maxBytes;
+		final long maxWindow;
+		final long maxMain;
+		final long maxProtected;
+		long windowBytes;
+		long probationBytes;
+		long protectedBytes;
+		long hits;
+		long misses;
+		long evictions;
+		long rejections;
+
+		Segment(long maxBytes) {
+			this.maxBytes = maxBytes;
+			this.maxWindow = maxBytes / 100;
+			this.maxMain = maxBytes - maxWindow;
+			this.maxProtected = maxMain * 4 / 5;
+			this.sketch = new FrequencySketch((int)Math.min(maxBytes / 4096, 1 << 26));
+		}
+
+		synchronized Block get(Score score, byte type) {
+			sketch.increment(hash(score));
+			Entry e = map.get(score);
+			if (e == null || e.type != type) {
+				misses++;
+				return null;
+			}
+			hits++;
+			touch(e);
+			byte[] data = e.data != null ? e.data : offHeap.read(e.pages, e.length);
+			return new Block(type, e.score, data);
+		}
+
+		synchronized boolean contains(Score score, byte type) {
+			Entry e = map.get(score);
+			return e != null && e.type == type;
+		}
+
+		private void touch(Entry e) {
+			switch (e.queue) {
+			case WINDOW:
+				unlink(e);
+				link(window, e);
+				break;
+			case PROBATION:
+				unlink(e);
+				probationBytes -= e.weight;
+				e.queue = PROTECTED;
+				link(protectedList, e);
+				protectedBytes += e.weight;
+				while (protectedBytes > maxProtected) {
+					Entry demoted = protectedList.prev;
+					unlink(demoted);
+					protectedBytes -= demoted.weight;
+					demoted.queue = PROBATION;
+					link(probation, demoted);
+					probationBytes += demoted.weight;
+				}
+				break;
+			case PROTECTED:
+				unlink(e);
+				link(protectedList, e);
+				break;
+			}
+		}
+
+		synchronized void put(Block block) {
+			Score score = block.getScore();
+			if (map.containsKey(score)) {
+				return;
+			}
+			byte[] data = block.getData();
+			int weight = weigh(data.length);
+			if (weight > maxMain) {
+				return;
+			}
+			// the key outlives the caller's Score, which may be recycled
+			Entry e = new Entry(Score.fromBytes(score.getBytes().clone()), block.getType(), data.length, weight);
+			map.put(e.score, e);
+			e.queue = WINDOW;
+			link(window, e);
+			windowBytes += weight;
+			while (windowBytes > maxWindow) {
+				Entry candidate = window.prev;
+				unlink(candidate);
+				windowBytes -= candidate.weight;
+				admit(candidate);
+			}
+			if (e.queue == REMOVED) {
+				return;
+			}
+			// stored once the room is made, so the pages were released first
+			if (offHeap == null) {
+				e.data = data;
+			} else {
+				e.pages = offHeap.allocate(data.length);
+				if (e.pages == null) {
+					unlinkFromQueue(e);
+					drop(e);
+					return;
+				}
+				offHeap.write(e.pages, data);
+			}
+		}
+
+		// into probation, if the main area has room or the candidate is asked
+		// for more often than the blocks that would make room for it
+		private void admit(Entry candidate) {
+			while (probationBytes + protectedBytes + candidate.weight > maxMain) {
+				Entry victim = probation.prev != probation ? probation.prev : protectedList.prev;
+				if (victim.score == null) {
+					break;
+				}
+				if (sketch.frequency(hash(candidate.score)) <= sketch.frequency(hash(victim.score))) {
+					rejections++;
+					drop(candidate);
+					return;
+				}
+				unlinkFromQueue(victim);
+				drop(victim);
+				evictions++;
+			}
+			candidate.queue = PROBATION;
+			link(probation, candidate);
+			probationBytes += candidate.weight;
+		}
+
+		private void unlinkFromQueue(Entry e) {
+			unlink(e);
+			if (e.queue == WINDOW) {
+				windowBytes -= e.weight;
+			} else if (e.queue == PROBATION) {
+				probationBytes -= e.weight;
+			} else if (e.queue == PROTECTED) {
+				protectedBytes -= e.weight;
+			}
+		}
+
+		private void drop(Entry e) {
+			map.remove(e.score);
+			e.queue = REMOVED;
+			if (e.pages != null) {
+				offHeap.release(e.pages);
+				e.pages = null;
+			}
+			e.data = null;
+		}
+
+		synchronized long[] stats() {
+			return new long[] {hits, misses, evictions, rejections, windowBytes + probationBytes + protectedBytes, map.size()};
+		}
+	}
+
+	private final Segment[] segments = new Segment[SEGMENTS];
+	// null when the payloads are on the heap
+	private final OffHeapPages offHeap;
+
+	// capacity in bytes, of payloads and bookkeeping on the heap, of pages
+	// off it
+	public BlockCache(long capacity, boolean offHeap) {
+		this.offHeap = offHeap ? new OffHeapPages(capacity) : null;
+		long perSegment = (offHeap ? this.offHeap.getCapacity() : capacity) / SEGMENTS;
+		for (int i = 0; i < SEGMENTS; i++) {
+			segments[i] = new Segment(perSegment);
+		}
+	}
+
+	private int weigh(int length) {
+		if (offHeap != null) {
+			return OffHeapPages.pagesFor(length) * OffHeapPages.PAGE_SIZE;
+		}
+		return length + ENTRY_OVERHEAD;
+	}
+
+	// bytes 0-3 are the hash code of the map, 4 picks the segment and 8-15
+	// feed the sketch
+	private static long hash(Score score) {
+		byte[] b = score.getBytes();
+		long h = 0;
+		for (int i = 8; i < 16; i++) {
+			h = h << 8 | (b[i] & 0xFF);
+		}
+		return h;
+	}
+
+	private Segment segment(Score score) {
+		return segments[score.getBytes()[4] & (SEGMENTS - 1)];
+	}
+
+	private static void link(Entry head, Entry e) {
+		e.prev = head;
+		e.next = head.next;
+		head.next.prev = e;
+		head.next = e;
+	}
+
+	private static void unlink(Entry e) {
+		e.prev.next = e.next;
+		e.next.prev = e.prev;
+		e.prev = null;
+		e.next = null;
+	}
+
+	// returns null on a miss; the Block may be shared with other callers
+	// and its data must not be modified
+	public Block get(Score score, byte type) {
+		return segment(score).get(score, type);
+	}
+
+	public boolean contains(Score score, byte type) {
+		return segment(score).contains(score, type);
+	}
+
+	// offers a block that was just read; it may not be admitted
+	public void put(Block block) {
+		segment(block.getScore()).put(block);
+	}
+
+	private long stat(int i) {
+		long n = 0;
+		for (Segment s : segments) {
+			n += s.stats()[i];
+		}
+		return n;
+	}
+
+	public long getHits() {
+		return stat(0);
+	}
+
+	public long getMisses() {
+		return stat(1);
+	}
+
+	// blocks evicted from the main area to admit others
+	public long getEvictions() {
+		return stat(2);
+	}
+
+	// blocks out of the window that were not admitted
+	public long getRejections() {
+		return stat(3);
+	}
+
+	public long getSize() {
+		return stat(4);
+	}
+
+	public long getBlocks() {
+		return stat(5);
+	}
+
+	public void exportMetrics() {
+		final String[] names = {"hits", "misses", "evictions", "rejections", "bytes", "blocks"};
+		for (int i = 0; i < names.length; i++) {
+			final int stat = i;
+			ServerMetrics.INSTANCE.gauge("cache_" + names[i], new Gauge() {
+				@Override
+				public long getValue() {
+					return stat(stat);
+				}
+			});
+		}
+	}
+}
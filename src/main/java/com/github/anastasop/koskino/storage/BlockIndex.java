@@ -0,0 +1,47 @@
+package com.github.anastasop.koskino.storage;
+
+import java.io.IOException;
+
+import com.github.anastasop.koskino.Score;
+
+// Maps scores to the arena records of their blocks. Implementations are safe
+// for concurrent use, and keep copies of the scores they index, as the caller
+// may reuse a Score once a call returns.
+public interface BlockIndex extends AutoCloseable {
+	interface Visitor {
+		void visit(Score score, BlockAddress address) throws IOException;
+	}
+
+	// returns null if the score is not indexed
+	BlockAddress get(Score score) throws IOException;
+
+	// indexes the block unless the score is already there. Returns the
+	// address indexed before the call, or null if this one was added.
+	BlockAddress putIfAbsent(Score score, BlockAddress address) throws IOException;
+
+	long size();
+
+	// calls the visitor for every indexed block, in no particular order and
+	// possibly more than once. Blocks indexed meanwhile may be missed.
+	void forEach(Visitor visitor) throws IOException;
+
+	// an estimate of the bytes the index takes, on or off the heap
+	long getMemoryUsage();
+
+	// Where the scan of an arena starts when the storage opens: the end of
+	// the records of the arena this index already holds. Indexes that do not
+	// outlive the process return 0, to have every arena scanned.
+	long getIndexedEnd(int arena);
+
+	// Called once the arenas are forced, with where each arena ends, or -1
+	// for missing ids. The index may make its entries durable and remember
+	// the ends, or put it off unless force is set.
+	void checkpoint(long[] arenaEnds, boolean force) throws IOException;
+
+	// true when the index wants a checkpoint soon, for example to bound the
+	// entries it holds in memory
+	boolean needsCheckpoint();
+
+	@Override
+	void close() throws IOException;
+}
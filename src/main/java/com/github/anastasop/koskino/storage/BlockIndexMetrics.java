@@ -0,0 +1,25 @@
+package com.github.anastasop.koskino.storage;
+
+import com.github.anastasop.koskino.metrics.Gauge;
+import com.github.anastasop.koskino.metrics.ServerMetrics;
+
+// Publishes the size of the index of the storage in use.
+final class BlockIndexMetrics {
+	private BlockIndexMetrics() {
+	}
+
+	static void export(final BlockIndex index) {
+		ServerMetrics.INSTANCE.gauge("index_blocks", new Gauge() {
+			@Override
+			public long getValue() {
+				return index.size();
+			}
+		});
+		ServerMetrics.INSTANCE.gauge("index_memory_bytes", new Gauge() {
+			@Override
+			public long getValue() {
+				return index.getMemoryUsage();
+			}
+		});
+	}
+}
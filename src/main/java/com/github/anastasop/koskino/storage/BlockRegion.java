@@ -0,0 +1,79 @@
+package com.github.anastasop.koskino.storage;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+// The stored bytes of an uncompressed block, still in its file. Sent to the
+// client with FileChannel.transferTo so the data never enters the heap.
+public class BlockRegion implements AutoCloseable {
+	private final FileChannel channel;
+	private final long position;
+	private final int length;
+	private final boolean ownsChannel;
+	// released with the region, for a region of an arena
+	private final Arena arena;
+	private int transferred;
+	private boolean closed;
+
+	// ownsChannel: close the channel with the region, for channels opened just
+	// for this block
+	public BlockRegion(FileChannel channel, long position, int length, boolean ownsChannel) {
+		this(channel, position, length, ownsChannel, null);
+	}
+
+	// a region of an arena the caller acquired, released when it is closed
+	BlockRegion(Arena arena, long position, int length) {
+		this(arena.getChannel(), position, length, false, arena);
+	}
+
+	private BlockRegion(FileChannel channel, long position, int length, boolean ownsChannel, Arena arena) {
+		this.channel = channel;
+		this.position = position;
+		this.length = length;
+		this.ownsChannel = ownsChannel;
+		this.arena = arena;
+		this.transferred = 0;
+	}
+
+	public int getLength() {
+		return length;
+	}
+
+	public boolean isDone() {
+		return transferred == length;
+	}
+
+	// sends what the target accepts without blocking, returns the bytes sent
+	public long transferTo(WritableByteChannel target) throws IOException {
+		if (isDone()) {
+			return 0;
+		}
+		long n = channel.transferTo(position + transferred, length - transferred, target);
+		if (n == 0 && position + transferred >= channel.size()) {
+			throw new IOException("block region past end of file");
+		}
+		transferred += n;
+		return n;
+	}
+
+	// blocks until the whole region has been sent
+	public void transferFully(WritableByteChannel target) throws IOException {
+		while (!isDone()) {
+			transferTo(target);
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (closed) {
+			return;
+		}
+		closed = true;
+		if (ownsChannel) {
+			channel.close();
+		} else if (arena != null) {
+			arena.release();
+		}
+	}
+}
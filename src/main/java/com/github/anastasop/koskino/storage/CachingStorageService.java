@@ -0,0 +1,81 @@
+package com.github.anastasop.koskino.storage;
+
+import java.io.IOException;
+
+import com.github.anastasop.koskino.Score;
+
+// Reads through a BlockCache in front of another storage. A hit costs no
+// disk access, no decompression and no SHA-1, as the cache keeps blocks that
+// were checked when read. Blocks never change, so writes go straight to the
+// storage and nothing is ever invalidated.
+//
+// Zero-copy reads are left to the storage for blocks that are not cached:
+// they are stored raw and cost neither decompression nor a SHA-1, so the
+// cache keeps the blocks that do.
+//
+// With a Prefetcher the children of the blocks served are read ahead into
+// the cache. Blocks that have children are then always served by get(), as
+// the prefetcher needs their data.
+public class CachingStorageService implements RegionStorageService {
+	private final StorageService storage;
+	private final BlockCache cache;
+	// null if there is no read ahead
+	private final Prefetcher prefetcher;
+
+	public CachingStorageService(StorageService storage, BlockCache cache) {
+		this(storage, cache, 0);
+	}
+
+	// up to prefetchWindow children of the blocks served are read ahead, none
+	// if 0
+	public CachingStorageService(StorageService storage, BlockCache cache, int prefetchWindow) {
+		this.storage = storage;
+		this.cache = cache;
+		if (prefetchWindow > 0) {
+			prefetcher = new Prefetcher(storage, cache, prefetchWindow);
+			prefetcher.exportMetrics();
+		} else {
+			prefetcher = null;
+		}
+	}
+
+	@Override
+	public Block get(Score score, byte type) throws IOException {
+		Block block = cache.get(score, type);
+		if (block == null) {
+			block = storage.get(score, type);
+			if (block != null) {
+				cache.put(block);
+			}
+		}
+		if (block != null && prefetcher != null) {
+			prefetcher.served(block);
+		}
+		return block;
+	}
+
+	// null for cached blocks, so the caller falls back to get()
+	@Override
+	public BlockRegion getRegion(Score score, byte type) throws IOException {
+		if (!(storage instanceof RegionStorageService) || cache.contains(score, type)
+				|| prefetcher != null && Prefetcher.hasChildren(type)) {
+			return null;
+		}
+		return ((RegionStorageService)storage).getRegion(score, type);
+	}
+
+	@Override
+	public Score put(byte[] data, int off, int len, byte type) throws IOException {
+		return storage.put(data, off, len, type);
+	}
+
+	@Override
+	public void sync() throws IOException {
+		storage.sync();
+	}
+
+	@Override
+	public void close() throws Exception {
+		storage.close();
+	}
+}
@@ -0,0 +1,236 @@
+package com.github.anastasop.koskino.storage;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import com.github.anastasop.koskino.Score;
+
+// An open addressing hash table of 32 byte entries in direct buffers, so a
+// hundred million blocks cost about 4GB outside the heap instead of tens of
+// GB of objects on it. The first score byte picks one of 256 segments, each
+// a linearly probed table with its own read-write lock: lookups run in
+// parallel, and an insert or a resize only stops the lookups of its segment.
+//
+// entry, big endian
+// 0-19: score
+// 20-27: arena (16 bits), offset (48 bits)
+// 28-31: used (1 bit), compression (2 bits), type (8 bits), length (21 bits)
+// as packed by BlockAddress
+public class CompactBlockIndex implements BlockIndex {
+	public static final int ENTRY_SIZE = 32;
+	private static final int SEGMENTS = 256;
+	private static final int MIN_SEGMENT_CAPACITY = 256;
+	// a segment is one buffer, which holds at most 1GB
+	private static final int MAX_SEGMENT_CAPACITY = 1 << 25;
+	private static final int USED = BlockAddress.USED;
+
+	private static class Segment {
+		final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+		ByteBuffer table;
+		int capacity;
+		int size;
+
+		Segment(int capacity) {
+			this.capacity = capacity;
+			this.table = ByteBuffer.allocateDirect(capacity * ENTRY_SIZE);
+		}
+
+		// returns the slot of the score, or the empty slot where it would go
+		int find(long k0, long k1, int k2, int hash) {
+			int mask = capacity - 1;
+			for (int slot = hash & mask; ; slot = (slot + 1) & mask) {
+				int base = slot * ENTRY_SIZE;
+				if ((table.getInt(base + 28) & USED) == 0) {
+					return slot;
+				}
+				if (table.getLong(base) == k0 && table.getLong(base + 8) == k1 && table.getInt(base + 16) == k2) {
+					return slot;
+				}
+			}
+		}
+
+		boolean isUsed(int slot) {
+			return (table.getInt(slot * ENTRY_SIZE + 28) & USED) != 0;
+		}
+
+		void grow() throws IOException {
+			if (capacity >= MAX_SEGMENT_CAPACITY) {
+				throw new IOException("block index segment is full at " + capacity + " entries");
+			}
+			ByteBuffer old = table;
+			int oldCapacity = capacity;
+			capacity = oldCapacity * 2;
+			table = ByteBuffer.allocateDirect(capacity * ENTRY_SIZE);
+			for (int slot = 0; slot < oldCapacity; slot++) {
+				int base = slot * ENTRY_SIZE;
+				if ((old.getInt(base + 28) & USED) == 0) {
+					continue;
+				}
+				long k0 = old.getLong(base);
+				int to = find(k0, old.getLong(base + 8), old.getInt(base + 16), hash(k0)) * ENTRY_SIZE;
+				for (int i = 0; i < ENTRY_SIZE; i += 8) {
+					table.putLong(to + i, old.getLong(base + i));
+				}
+			}
+		}
+	}
+
+	private final Segment[] segments = new Segment[SEGMENTS];
+
+	public CompactBlockIndex() {
+		this(1 << 20);
+	}
+
+	// sized for expectedBlocks without resizing
+	public CompactBlockIndex(long expectedBlocks) {
+		long perSegment = expectedBlocks / SEGMENTS * 4 / 3 + 1;
+		int capacity = MIN_SEGMENT_CAPACITY;
+		while (capacity < perSegment && capacity < MAX_SEGMENT_CAPACITY) {
+			capacity *= 2;
+		}
+		for (int i = 0; i < SEGMENTS; i++) {
+			segments[i] = new Segment(capacity);
+		}
+	}
+
+	// byte 0 picks the segment, the next bytes the slot
+	private static int hash(long k0) {
+		return (int)(k0 >>> 24);
+	}
+
+	private static long getLong(byte[] b, int off) {
+		long v = 0;
+		for (int i = 0; i < 8; i++) {
+			v = v << 8 | (b[off + i] & 0xFF);
+		}
+		return v;
+	}
+
+	private static int getInt(byte[] b, int off) {
+		return (b[off] & 0xFF) << 24 | (b[off + 1] & 0xFF) << 16 | (b[off + 2] & 0xFF) << 8 | (b[off + 3] & 0xFF);
+	}
+
+	@Override
+	public BlockAddress get(Score score) {
+		byte[] b = score.getBytes();
+		long k0 = getLong(b, 0);
+		Segment s = segments[b[0] & 0xFF];
+		s.lock.readLock().lock();
+		try {
+			int slot = s.find(k0, getLong(b, 8), getInt(b, 16), hash(k0));
+			if (!s.isUsed(slot)) {
+				return null;
+			}
+			int base = slot * ENTRY_SIZE;
+			return BlockAddress.unpack(s.table.getLong(base + 20), s.table.getInt(base + 28));
+		} finally {
+			s.lock.readLock().unlock();
+		}
+	}
+
+	@Override
+	public BlockAddress putIfAbsent(Score score, BlockAddress address) throws IOException {
+		if (!address.isPackable()) {
+			throw new IllegalArgumentException("cannot index " + address);
+		}
+		byte[] b = score.getBytes();
+		long k0 = getLong(b, 0);
+		long k1 = getLong(b, 8);
+		int k2 = getInt(b, 16);
+		Segment s = segments[b[0] & 0xFF];
+		s.lock.writeLock().lock();
+		try {
+			int slot = s.find(k0, k1, k2, hash(k0));
+			int base = slot * ENTRY_SIZE;
+			if (s.isUsed(slot)) {
+				return BlockAddress.unpack(s.table.getLong(base + 20), s.table.getInt(base + 28));
+			}
+			if ((s.size + 1) * 4L > s.capacity * 3L) {
+				s.grow();
+				base = s.find(k0, k1, k2, hash(k0)) * ENTRY_SIZE;
+			}
+			s.table.putLong(base, k0);
+			s.table.putLong(base + 8, k1);
+			s.table.putInt(base + 16, k2);
+			s.table.putLong(base + 20, address.packLocation());
+			s.table.putInt(base + 28, address.packInfo());
+			s.size++;
+			return null;
+		} finally {
+			s.lock.writeLock().unlock();
+		}
+	}
+
+	@Override
+	public long size() {
+		long n = 0;
+		for (Segment s : segments) {
+			s.lock.readLock().lock();
+			try {
+				n += s.size;
+			} finally {
+				s.lock.readLock().unlock();
+			}
+		}
+		return n;
+	}
+
+	// a segment at a time, under its read lock
+	@Override
+	public void forEach(Visitor visitor) throws IOException {
+		for (Segment s : segments) {
+			s.lock.readLock().lock();
+			try {
+				for (int slot = 0; slot < s.capacity; slot++) {
+					if (!s.isUsed(slot)) {
+						continue;
+					}
+					int base = slot * ENTRY_SIZE;
+					byte[] score = new byte[20];
+					for (int i = 0; i < 20; i++) {
+						score[i] = s.table.get(base + i);
+					}
+					visitor.visit(Score.fromBytes(score),
+							BlockAddress.unpack(s.table.getLong(base + 20), s.table.getInt(base + 28)));
+				}
+			} finally {
+				s.lock.readLock().unlock();
+			}
+		}
+	}
+
+	// the bytes of direct memory the tables take
+	@Override
+	public long getMemoryUsage() {
+		long n = 0;
+		for (Segment s : segments) {
+			s.lock.readLock().lock();
+			try {
+				n += (long)s.capacity * ENTRY_SIZE;
+			} finally {
+				s.lock.readLock().unlock();
+			}
+		}
+		return n;
+	}
+
+	@Override
+	public long getIndexedEnd(int arena) {
+		return 0;
+	}
+
+	@Override
+	public void checkpoint(long[] arenaEnds, boolean force) {
+	}
+
+	@Override
+	public boolean needsCheckpoint() {
+		return false;
+	}
+
+	// the direct buffers are freed when collected
+	@Override
+	public void close() {
+	}
+}
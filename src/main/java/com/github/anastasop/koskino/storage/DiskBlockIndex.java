@@ -0,0 +1,528 @@
+package com.github.anastasop.koskino.storage;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.github.anastasop.koskino.Score;
+
+// The index on disk, for stores whose index does not fit in memory, after
+// venti's: the top bits of the score pick a bucket, a fixed size page of the
+// index file, so a lookup costs at most one random page read. New entries
+// wait in memory and are written bucket by bucket, in file order, when the
+// storage checkpoints, which it does only after forcing the arenas, so a
+// durable entry never points to a record that is not. What stays in memory
+// is the pending entries and an LRU cache of pages.
+//
+// index file, big endian, pages of PAGE_SIZE
+// page 0: magic (kosindex), version, bucket bits, state, entries (64 bit),
+//         CRC32 of the previous bytes
+// page 1 + b: bucket b; entry count, CRC32 of the count and the entries,
+//         then the entries as CompactBlockIndex lays them out. A page of
+//         zeros is an empty bucket.
+// The .marks file next to it holds for every arena the end of the records
+// the buckets hold; it is replaced after the buckets are forced.
+public class DiskBlockIndex implements BlockIndex {
+	public static final int PAGE_SIZE = 8192;
+	private static final int ENTRY_SIZE = 32;
+	private static final int PAGE_HEADER = 8;
+	public static final int ENTRIES_PER_PAGE = (PAGE_SIZE - PAGE_HEADER) / ENTRY_SIZE;
+	private static final int MIN_BUCKET_BITS = 10;
+	private static final int MAX_BUCKET_BITS = 28;
+	private static final byte[] MAGIC = "kosindex".getBytes();
+	private static final byte[] MARKS_MAGIC = "kosmarks".getBytes();
+	private static final int VERSION = 1;
+	private static final int CLEAN = 0;
+	private static final int WRITING = 1;
+	// pending entries that ask for a checkpoint, about 40MB of heap
+	private static final int CHECKPOINT_ENTRIES = 256 * 1024;
+	private static final long CHECKPOINT_INTERVAL = TimeUnit.SECONDS.toNanos(30);
+
+	private static Logger logger = LoggerFactory.getLogger(DiskBlockIndex.class);
+
+	private final File file;
+	private final File marksFile;
+	private final FileChannel channel;
+	private final int bucketBits;
+	private final ConcurrentMap<Score, BlockAddress> pending = new ConcurrentHashMap<>();
+	private final int cachePages;
+	// guarded by itself, in access order
+	private final Map<Integer, byte[]> cache;
+	// odd while a checkpoint writes buckets, so a page read meanwhile is not
+	// cached when it may be older than the one written
+	private volatile long bucketWrites = 0;
+
+	// guarded by checkpointLock
+	private final Object checkpointLock = new Object();
+	private long entries;
+	private long[] marks;
+	private boolean rescanAll;
+	private boolean clean;
+	private long lastCheckpoint = System.nanoTime();
+
+	private DiskBlockIndex(File file, FileChannel channel, int bucketBits, int cachePages) {
+		this.file = file;
+		this.marksFile = new File(file.getPath() + ".marks");
+		this.channel = channel;
+		this.bucketBits = bucketBits;
+		this.cachePages = cachePages;
+		this.cache = new LinkedHashMap<Integer, byte[]>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Integer, byte[]> eldest) {
+				return size() > DiskBlockIndex.this.cachePages;
+			}
+		};
+	}
+
+	// Opens the index in file, creating it with room for expectedBlocks at
+	// half full buckets if it does not exist. An existing index keeps the
+	// size it was created with.
+	public static DiskBlockIndex open(File file, long expectedBlocks, int cachePages) throws IOException {
+		boolean create = !file.exists();
+		FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ,
+				StandardOpenOption.WRITE);
+		try {
+			DiskBlockIndex index;
+			if (create) {
+				int bits = MIN_BUCKET_BITS;
+				while (bits < MAX_BUCKET_BITS && (1L << bits) * ENTRIES_PER_PAGE / 2 < expectedBlocks) {
+					bits++;
+				}
+				index = new DiskBlockIndex(file, channel, bits, cachePages);
+				index.marks = new long[0];
+				index.writeHeader(CLEAN);
+				// writing the last bucket sizes the file, the others stay holes
+				writeFully(channel, ByteBuffer.allocate(PAGE_SIZE), (long)(1 << bits) * PAGE_SIZE);
+				channel.force(true);
+				Arena.forceDirectory(file.getAbsoluteFile().getParentFile());
+				index.clean = true;
+				logger.info("created index {} of {} buckets", file, 1 << bits);
+			} else {
+				index = load(file, channel, cachePages);
+			}
+			return index;
+		} catch (IOException e) {
+			channel.close();
+			throw e;
+		}
+	}
+
+	private static DiskBlockIndex load(File file, FileChannel channel, int cachePages) throws IOException {
+		ByteBuffer h = ByteBuffer.allocate(32);
+		readFully(channel, h, 0);
+		byte[] b = h.array();
+		CRC32 crc = new CRC32();
+		crc.update(b, 0, 28);
+		if (!Arrays.equals(Arrays.copyOf(b, 8), MAGIC) || h.getInt(28) != (int)crc.getValue()) {
+			throw new IOException("not an index: " + file);
+		}
+		if (h.getInt(8) != VERSION) {
+			throw new IOException("unknown index version in " + file);
+		}
+		int bits = h.getInt(12);
+		if (bits < MIN_BUCKET_BITS || bits > MAX_BUCKET_BITS || channel.size() < (1L + (1 << bits)) * PAGE_SIZE) {
+			throw new IOException("index " + file + " is truncated");
+		}
+		DiskBlockIndex index = new DiskBlockIndex(file, channel, bits, cachePages);
+		index.entries = h.getLong(20);
+		index.marks = index.readMarks();
+		index.clean = h.getInt(16) == CLEAN;
+		if (!index.clean) {
+			// stopped in the middle of a checkpoint
+			index.verify();
+		}
+		logger.info("index {}: {} buckets, {} entries", file, 1 << bits, index.entries);
+		return index;
+	}
+
+	// Reads every bucket after a crash during a checkpoint. A torn bucket is
+	// emptied, and since its entries may be from before the marks, every
+	// arena is then scanned again.
+	private void verify() throws IOException {
+		logger.warn("index {} was not closed cleanly, checking its buckets", file);
+		int nBuckets = 1 << bucketBits;
+		int pagesPerRead = 128;
+		ByteBuffer buf = ByteBuffer.allocate(pagesPerRead * PAGE_SIZE);
+		long count = 0;
+		int damaged = 0;
+		for (int first = 0; first < nBuckets; first += pagesPerRead) {
+			int n = Math.min(pagesPerRead, nBuckets - first);
+			buf.clear();
+			buf.limit(n * PAGE_SIZE);
+			readFully(channel, buf, pageOffset(first));
+			for (int i = 0; i < n; i++) {
+				byte[] page = Arrays.copyOfRange(buf.array(), i * PAGE_SIZE, (i + 1) * PAGE_SIZE);
+				if (checkPage(page)) {
+					count += getInt(page, 0);
+				} else {
+					logger.error("index bucket {} is damaged, emptied", first + i);
+					writeFully(channel, ByteBuffer.allocate(PAGE_SIZE), pageOffset(first + i));
+					damaged++;
+				}
+			}
+		}
+		entries = count;
+		if (damaged > 0) {
+			rescanAll = true;
+		}
+	}
+
+	private static long pageOffset(int bucket) {
+		return (1L + bucket) * PAGE_SIZE;
+	}
+
+	private int bucket(byte[] score) {
+		return getInt(score, 0) >>> (32 - bucketBits);
+	}
+
+	@Override
+	public BlockAddress get(Score score) throws IOException {
+		BlockAddress address = pending.get(score);
+		if (address != null) {
+			return address;
+		}
+		byte[] b = score.getBytes();
+		return find(readPage(bucket(b)), b);
+	}
+
+	// the page of the bucket, from the cache or the disk
+	private byte[] readPage(int bucket) throws IOException {
+		synchronized (cache) {
+			byte[] page = cache.get(bucket);
+			if (page != null) {
+				return page;
+			}
+		}
+		long writes = bucketWrites;
+		ByteBuffer buf = ByteBuffer.allocate(PAGE_SIZE);
+		readFully(channel, buf, pageOffset(bucket));
+		byte[] page = buf.array();
+		if (!checkPage(page)) {
+			throw new IOException("index bucket " + bucket + " is damaged");
+		}
+		if ((writes & 1) == 0 && writes == bucketWrites) {
+			synchronized (cache) {
+				if (!cache.containsKey(bucket)) {
+					cache.put(bucket, page);
+				}
+			}
+		}
+		return page;
+	}
+
+	private static BlockAddress find(byte[] page, byte[] score) {
+		int n = getInt(page, 0);
+		search: for (int i = 0; i < n; i++) {
+			int base = PAGE_HEADER + i * ENTRY_SIZE;
+			for (int j = 0; j < 20; j++) {
+				if (page[base + j] != score[j]) {
+					continue search;
+				}
+			}
+			return BlockAddress.unpack(getLong(page, base + 20), getInt(page, base + 28));
+		}
+		return null;
+	}
+
+	@Override
+	public BlockAddress putIfAbsent(Score score, BlockAddress address) throws IOException {
+		if (!address.isPackable()) {
+			throw new IllegalArgumentException("cannot index " + address);
+		}
+		BlockAddress existing = get(score);
+		if (existing != null) {
+			return existing;
+		}
+		// a checkpoint drops the entries a bucket already has, should another
+		// put have added the same score between the two calls
+		return pending.putIfAbsent(Score.fromBytes(score.getBytes().clone()), address);
+	}
+
+	@Override
+	public long size() {
+		synchronized (checkpointLock) {
+			return entries + pending.size();
+		}
+	}
+
+	// The pending entries are taken before the buckets are read, in file
+	// order and around the cache, so an entry a checkpoint moves meanwhile
+	// is visited once or twice but not missed.
+	@Override
+	public void forEach(Visitor visitor) throws IOException {
+		List<Map.Entry<Score, BlockAddress>> waiting = new ArrayList<>(pending.entrySet());
+		int nBuckets = 1 << bucketBits;
+		int pagesPerRead = 128;
+		ByteBuffer buf = ByteBuffer.allocate(pagesPerRead * PAGE_SIZE);
+		byte[] b = buf.array();
+		for (int first = 0; first < nBuckets; first += pagesPerRead) {
+			int n = Math.min(pagesPerRead, nBuckets - first);
+			buf.clear();
+			buf.limit(n * PAGE_SIZE);
+			readFully(channel, buf, pageOffset(first));
+			for (int i = 0; i < n; i++) {
+				int page = i * PAGE_SIZE;
+				int count = getInt(b, page);
+				if (count < 0 || count > ENTRIES_PER_PAGE) {
+					throw new IOException("index bucket " + (first + i) + " is damaged");
+				}
+				for (int j = 0; j < count; j++) {
+					int base = page + PAGE_HEADER + j * ENTRY_SIZE;
+					visitor.visit(Score.fromBytes(Arrays.copyOfRange(b, base, base + 20)),
+							BlockAddress.unpack(getLong(b, base + 20), getInt(b, base + 28)));
+				}
+			}
+		}
+		for (Map.Entry<Score, BlockAddress> e : waiting) {
+			visitor.visit(e.getKey(), e.getValue());
+		}
+	}
+
+	// the page cache and the pending entries, as MemoryBlockIndex counts them
+	@Override
+	public long getMemoryUsage() {
+		int pages;
+		synchronized (cache) {
+			pages = cache.size();
+		}
+		return (long)pages * PAGE_SIZE + pending.size() * 160L;
+	}
+
+	@Override
+	public long getIndexedEnd(int arena) {
+		synchronized (checkpointLock) {
+			if (rescanAll || arena >= marks.length) {
+				return 0;
+			}
+			return marks[arena];
+		}
+	}
+
+	@Override
+	public boolean needsCheckpoint() {
+		return pending.size() >= CHECKPOINT_ENTRIES;
+	}
+
+	@Override
+	public void checkpoint(long[] arenaEnds, boolean force) throws IOException {
+		synchronized (checkpointLock) {
+			long now = System.nanoTime();
+			if (!force && !needsCheckpoint() && now - lastCheckpoint < CHECKPOINT_INTERVAL) {
+				return;
+			}
+			if (pending.isEmpty() && !rescanAll && Arrays.equals(arenaEnds, marks)) {
+				lastCheckpoint = now;
+				return;
+			}
+			List<Map.Entry<Score, BlockAddress>> batch = new ArrayList<>(pending.entrySet());
+			final int shift = 32 - bucketBits;
+			Collections.sort(batch, new Comparator<Map.Entry<Score, BlockAddress>>() {
+				@Override
+				public int compare(Map.Entry<Score, BlockAddress> a, Map.Entry<Score, BlockAddress> b) {
+					int x = getInt(a.getKey().getBytes(), 0) >>> shift;
+					int y = getInt(b.getKey().getBytes(), 0) >>> shift;
+					return x < y ? -1 : (x == y ? 0 : 1);
+				}
+			});
+
+			if (clean) {
+				writeHeader(WRITING);
+				channel.force(false);
+				clean = false;
+			}
+			long added = writeBuckets(batch);
+			channel.force(false);
+			entries += added;
+			for (Map.Entry<Score, BlockAddress> e : batch) {
+				pending.remove(e.getKey(), e.getValue());
+			}
+			writeMarks(arenaEnds);
+			marks = arenaEnds.clone();
+			rescanAll = false;
+			writeHeader(CLEAN);
+			channel.force(false);
+			clean = true;
+			lastCheckpoint = now;
+			logger.debug("index checkpoint wrote {} entries", added);
+		}
+	}
+
+	// merges the batch, sorted by bucket, into the buckets in file order and
+	// returns the number of entries added
+	private long writeBuckets(List<Map.Entry<Score, BlockAddress>> batch) throws IOException {
+		long added = 0;
+		bucketWrites++;
+		try {
+			int i = 0;
+			while (i < batch.size()) {
+				int bucket = bucket(batch.get(i).getKey().getBytes());
+				byte[] page = readPage(bucket).clone();
+				int n = getInt(page, 0);
+				for (; i < batch.size() && bucket(batch.get(i).getKey().getBytes()) == bucket; i++) {
+					byte[] score = batch.get(i).getKey().getBytes();
+					if (find(page, score) != null) {
+						continue;
+					}
+					if (n == ENTRIES_PER_PAGE) {
+						throw new IOException("index bucket " + bucket + " is full, the index in " + file
+								+ " needs more buckets");
+					}
+					BlockAddress address = batch.get(i).getValue();
+					int base = PAGE_HEADER + n * ENTRY_SIZE;
+					System.arraycopy(score, 0, page, base, 20);
+					putLong(page, base + 20, address.packLocation());
+					putInt(page, base + 28, address.packInfo());
+					n++;
+					added++;
+				}
+				putInt(page, 0, n);
+				putInt(page, 4, pageCrc(page));
+				writeFully(channel, ByteBuffer.wrap(page), pageOffset(bucket));
+				synchronized (cache) {
+					cache.put(bucket, page);
+				}
+			}
+		} finally {
+			bucketWrites++;
+		}
+		return added;
+	}
+
+	private static int pageCrc(byte[] page) {
+		CRC32 crc = new CRC32();
+		crc.update(page, 0, 4);
+		crc.update(page, PAGE_HEADER, getInt(page, 0) * ENTRY_SIZE);
+		return (int)crc.getValue();
+	}
+
+	private static boolean checkPage(byte[] page) {
+		int n = getInt(page, 0);
+		if (n == 0 && getInt(page, 4) == 0) {
+			return true;
+		}
+		return n > 0 && n <= ENTRIES_PER_PAGE && getInt(page, 4) == pageCrc(page);
+	}
+
+	private void writeHeader(int state) throws IOException {
+		ByteBuffer h = ByteBuffer.allocate(32);
+		h.put(MAGIC);
+		h.putInt(VERSION);
+		h.putInt(bucketBits);
+		h.putInt(state);
+		h.putLong(entries);
+		CRC32 crc = new CRC32();
+		crc.update(h.array(), 0, 28);
+		h.putInt((int)crc.getValue());
+		h.flip();
+		writeFully(channel, h, 0);
+	}
+
+	private long[] readMarks() throws IOException {
+		if (!marksFile.exists()) {
+			return new long[0];
+		}
+		byte[] b = Files.readAllBytes(marksFile.toPath());
+		ByteBuffer buf = ByteBuffer.wrap(b);
+		if (b.length < 16 || !Arrays.equals(Arrays.copyOf(b, 8), MARKS_MAGIC)) {
+			throw new IOException("bad index marks in " + marksFile);
+		}
+		int n = buf.getInt(8);
+		CRC32 crc = new CRC32();
+		crc.update(b, 0, b.length - 4);
+		if (n < 0 || b.length != 16 + 8 * n || buf.getInt(b.length - 4) != (int)crc.getValue()) {
+			throw new IOException("bad index marks in " + marksFile);
+		}
+		long[] m = new long[n];
+		for (int i = 0; i < n; i++) {
+			m[i] = buf.getLong(12 + 8 * i);
+		}
+		return m;
+	}
+
+	// written aside and renamed, so a crash leaves the old marks or the new
+	private void writeMarks(long[] m) throws IOException {
+		ByteBuffer buf = ByteBuffer.allocate(16 + 8 * m.length);
+		buf.put(MARKS_MAGIC);
+		buf.putInt(m.length);
+		for (long end : m) {
+			buf.putLong(end);
+		}
+		CRC32 crc = new CRC32();
+		crc.update(buf.array(), 0, buf.position());
+		buf.putInt((int)crc.getValue());
+		buf.flip();
+		File tmp = new File(marksFile.getPath() + ".tmp");
+		try (FileChannel out = FileChannel.open(tmp.toPath(), StandardOpenOption.CREATE,
+				StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+			writeFully(out, buf, 0);
+			out.force(true);
+		}
+		Files.move(tmp.toPath(), marksFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		Arena.forceDirectory(marksFile.getAbsoluteFile().getParentFile());
+	}
+
+	// the storage checkpoints with force before closing
+	@Override
+	public void close() throws IOException {
+		if (!pending.isEmpty()) {
+			logger.warn("index closed with {} entries not written, the arenas will be scanned for them", pending.size());
+		}
+		channel.close();
+	}
+
+	private static void writeFully(FileChannel channel, ByteBuffer b, long pos) throws IOException {
+		while (b.hasRemaining()) {
+			pos += channel.write(b, pos);
+		}
+	}
+
+	private static void readFully(FileChannel channel, ByteBuffer b, long pos) throws IOException {
+		while (b.hasRemaining()) {
+			int n = channel.read(b, pos);
+			if (n < 0) {
+				throw new IOException("unexpected end of file");
+			}
+			pos += n;
+		}
+	}
+
+	private static int getInt(byte[] b, int off) {
+		return (b[off] & 0xFF) << 24 | (b[off + 1] & 0xFF) << 16 | (b[off + 2] & 0xFF) << 8 | (b[off + 3] & 0xFF);
+	}
+
+	private static long getLong(byte[] b, int off) {
+		return (long)getInt(b, off) << 32 | (getInt(b, off + 4) & 0xFFFFFFFFL);
+	}
+
+	private static void putInt(byte[] b, int off, int v) {
+		b[off] = (byte)(v >>> 24);
+		b[off + 1] = (byte)(v >>> 16);
+		b[off + 2] = (byte)(v >>> 8);
+		b[off + 3] = (byte)v;
+	}
+
+	private static void putLong(byte[] b, int off, long v) {
+		putInt(b, off, (int)(v >>> 32));
+		putInt(b, off + 4, (int)v);
+	}
+}
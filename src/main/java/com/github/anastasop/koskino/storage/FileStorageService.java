@@ -1,27 +1,44 @@
 package com.github.anastasop.koskino.storage;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
-import java.io.OutputStream;
-import java.io.RandomAccessFile;
-import java.util.HashMap;
-import java.util.Map;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import ascient.threading.Threads;
+
 import com.github.anastasop.koskino.Score;
 import com.github.anastasop.koskino.io.RecordIOReader;
 import com.github.anastasop.koskino.io.RecordIOWriter;
+import com.github.anastasop.koskino.metrics.ServerMetrics;
 
-public class FileStorageService implements StorageService {
+public class FileStorageService implements RegionStorageService {
+	// an entry of the .idx file, offset is a position: the segment of the log
+	// in the top 16 bits and the offset in it below
 	private static class BlockDescr {
-		long offset;
-		int length;
-		byte type;
-		Score score;
+		final long offset;
+		final int length;
+		final byte type;
+		final Score score;
 		
 		private BlockDescr(long offset, int length, byte type, Score score) {
 			this.offset = offset;
@@ -38,6 +55,10 @@ public class FileStorageService implements StorageService {
 
 
 
+    BlockAddress toAddress() {
+			return new BlockAddress((int)(offset >>> 48), offset & BlockAddress.MAX_OFFSET, length, type, ArenaRecord.NONE);
+		}
+
     byte[] toByteArray() {
 			byte[] data = new byte[33];
 			data[0] = (byte)((offset >>  0) & 0xFF);
@@ -58,8 +79,8 @@ public class FileStorageService implements StorageService {
 		}
 		
 		static BlockDescr fromByteArray(byte[] data) {
-			long offset = (data[0] & 0xFF) | (data[1] & 0xFF) << 8 | (data[2] & 0xFF) << 16 | (data[3] & 0xFF) << 24 |
-					 (data[4] & 0xFF) << 32 | (data[5] & 0xFF) << 40 | (data[6] & 0xFF) << 48 | (data[7] & 0xFF) << 56;
+			long offset = (data[0] & 0xFFL) | (data[1] & 0xFFL) << 8 | (data[2] & 0xFFL) << 16 | (data[3] & 0xFFL) << 24 |
+					 (data[4] & 0xFFL) << 32 | (data[5] & 0xFFL) << 40 | (data[6] & 0xFFL) << 48 | (data[7] & 0xFFL) << 56;
 			
 			int length = (data[8] & 0xFF) | (data[9] & 0xFF) << 8 | (data[10] & 0xFF) << 16 | (data[11] & 0xFF) << 24;
 			
@@ -69,47 +90,175 @@ public class FileStorageService implements StorageService {
 			return new BlockDescr(offset, length, data[12], Score.fromBytes(score));
 		}
 	}
-	
+
+	// counts the bytes read through it
+	private static class CountingInputStream extends FilterInputStream {
+		long count;
+
+		CountingInputStream(InputStream in) {
+			super(in);
+		}
+
+		@Override
+		public int read() throws IOException {
+			int b = super.read();
+			if (b >= 0) {
+				count++;
+			}
+			return b;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			int n = super.read(b, off, len);
+			if (n > 0) {
+				count += n;
+			}
+			return n;
+		}
+	}
+
+	// an .idx record is a 34 byte header and 33 bytes
+	private static final int INDEX_RECORD_LENGTH = RecordIOWriter.HEADER_LENGTH + 33;
+	// .idx records written since the last checkpoint that start the next one
+	private static final long CHECKPOINT_RECORDS = 1 << 21;
+
 	private Logger logger = LoggerFactory.getLogger(FileStorageService.class);
-	private OutputStream logStream;
-	private OutputStream indexStream;
+	private FileOutputStream logStream;
+	private FileOutputStream indexStream;
 	private RecordIOWriter indexWriter;
 	private RecordIOWriter logWriter;
-	private Map<String, BlockDescr> blockIndex;
-	private RandomAccessFile logFile;
+	// written by put under the lock, read without it
+	private BlockIndex blockIndex;
+	private ScoreFilter filter;
+	private File filterFile;
+	// by id, replaced under the lock when the log rolls over
+	private volatile LogSegment[] segments;
+	// the segment put appends to, guarded by this
+	private LogSegment current;
+	// sealing full segments in the background, guarded by this
+	private final List<Thread> sealers = new ArrayList<>();
+	// a segment rolls over before it grows past this, never if 0
+	private long maxLogSize;
+	private File arenaDir;
 	private String arenaName;
+	// in the current segment
 	private long nBytesWrittenToArenaLog;
+	private long nBytesWrittenToIndex;
+	// what the last force made durable, guarded by this; the log end is a
+	// position, as in the .idx
+	private long forcedIndexEnd;
+	private long forcedLogEnd;
+	private File arenaIndex;
+	private File checkpointFile;
+	// replaced under checkpointLock
+	private volatile IndexCheckpoint checkpoint;
+	private final Object checkpointLock = new Object();
+	private final AtomicBoolean checkpointing = new AtomicBoolean();
+	// guarded by this
+	private boolean closed;
+	private final GroupCommit groupCommit = new GroupCommit(new GroupCommit.Flusher() {
+		@Override
+		public void flush() throws IOException {
+			force();
+			startCheckpoint();
+		}
+	});
 	
 	public static FileStorageService forName(File arenaDir, String arenaName) throws IOException {
+		return forName(arenaDir, arenaName, ScoreFilter.DEFAULT_BITS_PER_SCORE);
+	}
+
+	// filterBits are the bits a block of the score filter, none if 0
+	public static FileStorageService forName(File arenaDir, String arenaName, int filterBits) throws IOException {
+		return forName(arenaDir, arenaName, filterBits, 0);
+	}
+
+	// the log rolls over to a new segment before one grows past maxLogSize
+	// bytes, never if 0
+	public static FileStorageService forName(File arenaDir, String arenaName, int filterBits, long maxLogSize)
+			throws IOException {
 		Logger logger = LoggerFactory.getLogger(FileStorageService.class);
-		File arenaLog = new File(arenaDir, arenaName + ".log");
-		arenaLog.createNewFile();
+		LogSegment[] segments = openSegments(arenaDir, arenaName);
 		File arenaIndex = new File(arenaDir, arenaName + ".idx");
 		arenaIndex.createNewFile();
-		
-		Map<String, BlockDescr> blockIndex = new HashMap<String, BlockDescr>();
-		RecordIOReader r = new RecordIOReader(new FileInputStream(arenaIndex));
-		try  {
-			Block b = null;
-			while ((b = r.readBlock()) != null) {
-				BlockDescr descr = BlockDescr.fromByteArray(b.getData());
-				String key = descr.score.toString();
-				blockIndex.put(key, descr);
-				logger.info("index entry for {}", descr);
+
+		// the checkpoint is loaded and only the .idx records past it are
+		// replayed; a checkpoint that cannot be trusted is ignored
+		long start = System.nanoTime();
+		File checkpointFile = new File(arenaDir, arenaName + ".ckpt");
+		IndexCheckpoint checkpoint = openCheckpoint(checkpointFile, arenaIndex, segments);
+		BlockIndex blockIndex = null;
+		if (checkpoint != null) {
+			blockIndex = new CompactBlockIndex(checkpoint.entries + (arenaIndex.length() - checkpoint.idxEnd) / INDEX_RECORD_LENGTH);
+			try {
+				checkpoint.load(checkpointFile, blockIndex, Runtime.getRuntime().availableProcessors());
+			} catch (IOException e) {
+				logger.warn("cannot load index checkpoint {}, replaying all of {}: {}", checkpointFile, arenaIndex, e.getMessage());
+				blockIndex.close();
+				blockIndex = null;
+				checkpoint = null;
 			}
-		} finally {
-			r.close();
 		}
-		
+		if (blockIndex == null) {
+			// a guess from the size of the .idx
+			blockIndex = new CompactBlockIndex(arenaIndex.length() / INDEX_RECORD_LENGTH);
+		}
+		final BlockIndex index = blockIndex;
+		// how much of the log is indexed, the position of the end of the last
+		// indexed block
+		final long[] indexedLogEnd = {checkpoint != null ? checkpoint.logEnd : 0};
+		long from = checkpoint != null ? checkpoint.idxEnd : 0;
+		long end = readIndex(arenaIndex, from, Long.MAX_VALUE, segmentEnds(segments), new BlockIndex.Visitor() {
+			@Override
+			public void visit(Score score, BlockAddress address) throws IOException {
+				index.putIfAbsent(score, address);
+				indexedLogEnd[0] = Math.max(indexedLogEnd[0], address.packLocation() + address.getLength());
+			}
+		});
+		if (end < arenaIndex.length()) {
+			// a record torn by a crash, or garbage, past the last good one
+			logger.warn("truncating {} from {} to {} bytes", arenaIndex, arenaIndex.length(), end);
+			try (FileChannel channel = FileChannel.open(arenaIndex.toPath(), StandardOpenOption.WRITE)) {
+				channel.truncate(end);
+				channel.force(true);
+			}
+		}
+		logger.info("index of {} loaded in {} ms, {} bytes of .idx replayed", arenaName,
+				(System.nanoTime() - start) / 1000000, end - from);
+
 		final FileStorageService storage = new FileStorageService();
-		storage.logStream = new FileOutputStream(arenaLog, true);
-		storage.logWriter = new RecordIOWriter(storage.logStream);
 		storage.indexStream = new FileOutputStream(arenaIndex, true);
 		storage.indexWriter = new RecordIOWriter(storage.indexStream);
-		storage.logFile = new RandomAccessFile(arenaLog, "r");
+		storage.segments = segments;
+		storage.current = segments[segments.length - 1];
+		storage.maxLogSize = maxLogSize;
+		storage.arenaDir = arenaDir;
 		storage.arenaName = arenaName;
-		storage.nBytesWrittenToArenaLog = storage.logFile.length();
+		storage.nBytesWrittenToIndex = end;
+		storage.forcedIndexEnd = end;
+		storage.arenaIndex = arenaIndex;
+		storage.checkpointFile = checkpointFile;
+		storage.checkpoint = checkpoint;
 		storage.blockIndex = blockIndex;
+		if (storage.current.isSealed()) {
+			storage.current = LogSegment.open(arenaDir, arenaName, storage.current.id + 1);
+			storage.segments = Arrays.copyOf(segments, segments.length + 1);
+			storage.segments[storage.current.id] = storage.current;
+		}
+		// appends, so the log may still be truncated by the recovery
+		storage.logStream = new FileOutputStream(storage.current.file, true);
+		storage.logWriter = new RecordIOWriter(storage.logStream);
+		boolean recovered = storage.recover(indexedLogEnd[0]);
+		storage.nBytesWrittenToArenaLog = storage.current.end();
+		storage.forcedLogEnd = position(storage.current.id, storage.nBytesWrittenToArenaLog);
+		if (recovered) {
+			storage.force();
+		}
+		storage.filterFile = new File(arenaDir, arenaName + ".filter");
+		storage.filter = ScoreFilter.open(storage.filterFile, blockIndex, filterBits);
+		BlockIndexMetrics.export(blockIndex);
+		storage.filter.exportMetrics();
 		Runtime.getRuntime().addShutdownHook(new Thread() {
 			@Override
 			public void run() {
@@ -121,64 +270,485 @@ public class FileStorageService implements StorageService {
 				}
 			}
 		});
-		logger.info("index contains {} blocks", blockIndex.size());
+		logger.info("index contains {} blocks in {} log segments", blockIndex.size(), storage.segments.length);
 		return storage;
 	}
-	
+
+	// the position of offset in the segment id, as the .idx keeps it
+	private static long position(int id, long offset) {
+		return (long)id << 48 | offset;
+	}
+
+	// the segments of the log, the first is created if there is none
+	private static LogSegment[] openSegments(File arenaDir, String arenaName) throws IOException {
+		List<LogSegment> segments = new ArrayList<>();
+		segments.add(LogSegment.open(arenaDir, arenaName, 0));
+		while (segments.size() < ArenaStorageService.MAX_ARENAS
+				&& LogSegment.fileFor(arenaDir, arenaName, segments.size()).exists()) {
+			segments.add(LogSegment.open(arenaDir, arenaName, segments.size()));
+		}
+		return segments.toArray(new LogSegment[segments.size()]);
+	}
+
+	// where the records of each segment end, by id
+	private static long[] segmentEnds(LogSegment[] segments) throws IOException {
+		long[] ends = new long[segments.length];
+		for (int i = 0; i < segments.length; i++) {
+			ends[i] = segments[i].end();
+		}
+		return ends;
+	}
+
+	// Indexes the blocks of the log past indexed, the position of the end of
+	// the last indexed one: from the footer of a sealed segment, by a parallel
+	// scan of one that is not. A segment but the last that is not sealed is
+	// one a crash cut the sealing of short, it is scanned whole and sealed now.
+	// Returns true if any block was found, the caller forces the .idx then.
+	private boolean recover(long indexed) throws IOException {
+		int threads = Runtime.getRuntime().availableProcessors();
+		int indexedSegment = (int)(indexed >>> 48);
+		boolean found = false;
+		for (LogSegment segment : segments) {
+			boolean unsealed = !segment.isSealed() && segment != current;
+			if (segment.id < indexedSegment && !unsealed) {
+				continue;
+			}
+			long from = segment.id == indexedSegment && !unsealed ? indexed & BlockAddress.MAX_OFFSET : 0;
+			long end = segment.end();
+			if (from >= end) {
+				continue;
+			}
+			found = true;
+			logger.warn("{} bytes at the end of {} are not indexed, rescanning them", end - from, segment.file);
+			if (segment.isSealed()) {
+				segment.readFooter(from, indexer(segment.id));
+				continue;
+			}
+			LogScanner.Report report = new LogScanner(segment.file, threads).scan(from, end, indexer(segment.id));
+			logger.info("{}", report);
+			if (report.end < end) {
+				// a record torn by a crash, or garbage, past the last good one
+				logger.warn("truncating {} from {} to {} bytes", segment.file, end, report.end);
+				try (FileChannel channel = FileChannel.open(segment.file.toPath(), StandardOpenOption.WRITE)) {
+					channel.truncate(report.end);
+					channel.force(true);
+				}
+			}
+			if (unsealed) {
+				seal(segment, report.end);
+			}
+		}
+		return found;
+	}
+
+	// adds to the .idx and the index the blocks of the segment id it is handed
+	// that the index does not have
+	private LogScanner.Sink indexer(final int id) {
+		return new LogScanner.Sink() {
+			@Override
+			public void record(long offset, int length, byte type, Score score) throws IOException {
+				if (blockIndex.get(score) != null) {
+					return;
+				}
+				BlockDescr descr = new BlockDescr(position(id, offset), length, type, score);
+				indexWriter.writeBlock(type, descr.toByteArray());
+				nBytesWrittenToIndex += INDEX_RECORD_LENGTH;
+				blockIndex.putIfAbsent(score, descr.toAddress());
+			}
+		};
+	}
+
+	private void seal(LogSegment segment, long end) {
+		try {
+			LogScanner.Report report = segment.seal(end, 1);
+			if (report.corruptRegions > 0) {
+				logger.error("sealed {} with corrupt regions: {}", segment.file, report);
+			} else {
+				logger.info("sealed {} with {} blocks", segment.file, report.records);
+			}
+		} catch (IOException e) {
+			logger.error("failed to seal {}", segment.file, e);
+		}
+	}
+
+	// Rebuilds the .idx of a FileStorageService that is not running, from the
+	// footers of the sealed segments of its log and a scan of the others by
+	// the given number of threads, and writes a checkpoint of it. Returns the
+	// reports of the scans: throughput and corrupt regions.
+	public static String rebuildIndex(File arenaDir, String arenaName, int threads) throws IOException {
+		File arenaLog = LogSegment.fileFor(arenaDir, arenaName, 0);
+		if (!arenaLog.exists()) {
+			throw new FileNotFoundException(arenaLog.getPath());
+		}
+		LogSegment[] segments = openSegments(arenaDir, arenaName);
+		File arenaIndex = new File(arenaDir, arenaName + ".idx");
+		File checkpointFile = new File(arenaDir, arenaName + ".ckpt");
+		File rebuilt = new File(arenaDir, arenaName + ".idx.rebuild");
+		// the old checkpoint must never be taken for one of the new .idx
+		Files.deleteIfExists(checkpointFile.toPath());
+		Files.deleteIfExists(new File(arenaDir, arenaName + ".filter").toPath());
+		final IndexCheckpoint.Writer checkpoint = new IndexCheckpoint.Writer(checkpointFile, null);
+		try (FileOutputStream out = new FileOutputStream(rebuilt)) {
+			BufferedOutputStream buffered = new BufferedOutputStream(out, 1 << 16);
+			final RecordIOWriter writer = new RecordIOWriter(buffered);
+			final long[] records = {0};
+			StringBuilder reports = new StringBuilder();
+			for (LogSegment segment : segments) {
+				final int id = segment.id;
+				LogScanner.Sink sink = new LogScanner.Sink() {
+					@Override
+					public void record(long offset, int length, byte type, Score score) throws IOException {
+						BlockDescr descr = new BlockDescr(position(id, offset), length, type, score);
+						writer.writeBlock(type, descr.toByteArray());
+						checkpoint.add(score, descr.toAddress());
+						records[0]++;
+					}
+				};
+				if (reports.length() > 0) {
+					reports.append(String.format("%n"));
+				}
+				reports.append(segment.file.getName()).append(": ");
+				if (segment.isSealed()) {
+					long before = records[0];
+					segment.readFooter(0, sink);
+					reports.append(String.format("sealed, %d records from the footer", records[0] - before));
+				} else {
+					reports.append(new LogScanner(segment.file, threads).scan(0, segment.end(), sink));
+				}
+			}
+			buffered.flush();
+			out.getChannel().force(true);
+			Files.move(rebuilt.toPath(), arenaIndex.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			Arena.forceDirectory(arenaDir);
+			LogSegment last = segments[segments.length - 1];
+			checkpoint.finish(records[0] * INDEX_RECORD_LENGTH, position(last.id, last.end()));
+			return reports.toString();
+		} finally {
+			checkpoint.discard();
+			Files.deleteIfExists(rebuilt.toPath());
+			for (LogSegment segment : segments) {
+				segment.close();
+			}
+		}
+	}
+
+	// Checks the records of each sealed segment against the CRC in its
+	// trailer. Returns a line per segment.
+	public static String verifyLog(File arenaDir, String arenaName) throws IOException {
+		File arenaLog = LogSegment.fileFor(arenaDir, arenaName, 0);
+		if (!arenaLog.exists()) {
+			throw new FileNotFoundException(arenaLog.getPath());
+		}
+		LogSegment[] segments = openSegments(arenaDir, arenaName);
+		StringBuilder b = new StringBuilder();
+		try {
+			for (LogSegment segment : segments) {
+				if (b.length() > 0) {
+					b.append(String.format("%n"));
+				}
+				b.append(segment.file.getName()).append(": ");
+				if (!segment.isSealed()) {
+					b.append("not sealed");
+				} else {
+					b.append(segment.verify() ? "ok" : "CRC mismatch");
+				}
+			}
+		} finally {
+			for (LogSegment segment : segments) {
+				segment.close();
+			}
+		}
+		return b.toString();
+	}
+
+	// returns null if there is no checkpoint or it does not match the files
+	private static IndexCheckpoint openCheckpoint(File checkpointFile, File arenaIndex, LogSegment[] segments)
+			throws IOException {
+		Logger logger = LoggerFactory.getLogger(FileStorageService.class);
+		IndexCheckpoint checkpoint;
+		try {
+			checkpoint = IndexCheckpoint.readHeader(checkpointFile);
+		} catch (IOException e) {
+			logger.warn("ignoring index checkpoint {}: {}", checkpointFile, e.getMessage());
+			return null;
+		}
+		LogSegment last = segments[segments.length - 1];
+		if (checkpoint != null && (checkpoint.idxEnd > arenaIndex.length() || checkpoint.logEnd > position(last.id, last.end()))) {
+			logger.warn("ignoring index checkpoint {}, it covers more than the .idx and the .log hold", checkpointFile);
+			return null;
+		}
+		return checkpoint;
+	}
+
+	// Hands to visitor the entries of at most count .idx records from position
+	// from, but those past the ends of the segments, and returns the end of the
+	// last good record.
+	private static long readIndex(File arenaIndex, long from, long count, long[] segmentEnds, BlockIndex.Visitor visitor)
+			throws IOException {
+		Logger logger = LoggerFactory.getLogger(FileStorageService.class);
+		FileInputStream in = new FileInputStream(arenaIndex);
+		in.getChannel().position(from);
+		CountingInputStream counter = new CountingInputStream(new BufferedInputStream(in, 1 << 16));
+		RecordIOReader r = new RecordIOReader(counter);
+		long end = from;
+		try  {
+			Block b = null;
+			while (count-- > 0 && (b = r.readBlock()) != null) {
+				end = from + counter.count;
+				BlockDescr descr = BlockDescr.fromByteArray(b.getData());
+				int id = (int)(descr.offset >>> 48);
+				if (id >= segmentEnds.length || (descr.offset & BlockAddress.MAX_OFFSET) + descr.length > segmentEnds[id]) {
+					// the index reached the disk before the log did
+					logger.warn("index entry past the end of the log, dropped: {}", descr);
+					continue;
+				}
+				visitor.visit(descr.score, descr.toAddress());
+			}
+		} finally {
+			r.close();
+		}
+		return end;
+	}
+
+	// Positional reads on the shared channel of the segment, so gets run
+	// concurrently with each other and with put. put indexes a block only
+	// after appending it, so an indexed block is always readable.
 	@Override
-	public synchronized Block get(Score score, byte type) throws IOException {
-		String key = score.toString();
-		BlockDescr descr = blockIndex.get(key);
-		if (descr == null || descr.type != type) {
+	public Block get(Score score, byte type) throws IOException {
+		if (!filter.mightContain(score)) {
 			return null;
 		}
-		logFile.seek(descr.offset);
-		byte[] data = new byte[descr.length];
-		logFile.readFully(data);
+		BlockAddress address = blockIndex.get(score);
+		if (address == null) {
+			filter.falsePositive();
+			return null;
+		}
+		if (address.getType() != type) {
+			return null;
+		}
+		FileChannel channel = segments[address.getArena()].channel;
+		byte[] data = new byte[address.getLength()];
+		ByteBuffer buf = ByteBuffer.wrap(data);
+		long pos = address.getOffset();
+		while (buf.hasRemaining()) {
+			int n = channel.read(buf, pos);
+			if (n < 0) {
+				logger.error("GET: block {} past the end of arena {}", score, arenaName);
+				return null;
+			}
+			pos += n;
+		}
 		
 		Block b = new Block(type, data);
-		String reComputedKey = b.getScore().toString();
-		if (!reComputedKey.equals(key)) {
-			logger.error("GET: corrupted block, key mismatch, with key {}/{} at arena {}/{}", key, reComputedKey, arenaName, descr.offset);
+		if (!b.getScore().equals(score)) {
+			logger.error("GET: corrupted block, key mismatch, with key {}/{} at arena {}/{}", score, b.getScore(), arenaName, address.getOffset());
 			return null;
 		}
 		return b;
 	}
 	
+	// the data is sent as stored, without the SHA-1 check that get() does
 	@Override
-	public synchronized Block put(byte[] data, byte type) throws IOException {
-		Block scratch = new Block(type, data);
-		String key = scratch.getScore().toString();
-		BlockDescr descr = blockIndex.get(key);
-		if (descr != null) {
-			if (descr.type == type) {
-				logger.info("block {} coalesced as already exists", key);
-			} else {
-				logger.error("corrupted block, type mismatch, with key {} at arena {}/{}", key, arenaName, descr.offset);
+	public BlockRegion getRegion(Score score, byte type) throws IOException {
+		if (!filter.mightContainUncounted(score)) {
+			return null;
+		}
+		BlockAddress address = blockIndex.get(score);
+		if (address == null || address.getType() != type) {
+			return null;
+		}
+		return new BlockRegion(segments[address.getArena()].channel, address.getOffset(), address.getLength(), false);
+	}
+	
+	// The SHA-1 and the dedup check run outside the lock, only the append is
+	// serialized. A score the filter does not know is not looked up.
+	@Override
+	public Score put(byte[] data, int off, int len, byte type) throws IOException {
+		Score score = Score.forBlock(data, off, len);
+		boolean maybeStored = filter.mightContain(score);
+		BlockAddress address = maybeStored ? blockIndex.get(score) : null;
+		if (address == null) {
+			synchronized (this) {
+				address = blockIndex.get(score);
+				if (address == null) {
+					if (maybeStored) {
+						filter.falsePositive();
+					}
+					ServerMetrics.INSTANCE.dedupMiss();
+					filter.add(score);
+					if (maxLogSize > 0 && nBytesWrittenToArenaLog > 0
+							&& nBytesWrittenToArenaLog + RecordIOWriter.HEADER_LENGTH + len > maxLogSize) {
+						rollover();
+					}
+					long pos = nBytesWrittenToArenaLog;
+					logWriter.writeBlock(type, data, off, len);
+					nBytesWrittenToArenaLog += RecordIOWriter.HEADER_LENGTH + len;
+					BlockDescr descr = new BlockDescr(position(current.id, pos + RecordIOWriter.HEADER_LENGTH), len, type, score);
+					indexWriter.writeBlock(type, descr.toByteArray());
+					nBytesWrittenToIndex += INDEX_RECORD_LENGTH;
+					blockIndex.putIfAbsent(score, descr.toAddress());
+					return score;
+				}
 			}
-			return scratch;
 		}
 		
-		long pos = nBytesWrittenToArenaLog;
-		logWriter.writeBlock(type, data);
-		nBytesWrittenToArenaLog += RecordIOWriter.HEADER_LENGTH + data.length;
-		descr = new BlockDescr(pos + RecordIOWriter.HEADER_LENGTH, data.length, type, scratch.getScore());
-		indexWriter.writeBlock(type, descr.toByteArray());
-		blockIndex.put(key, descr);
-		return scratch;
+		ServerMetrics.INSTANCE.dedupHit();
+		if (address.getType() == type) {
+			logger.info("block {} coalesced as already exists", score);
+		} else {
+			logger.error("corrupted block, type mismatch, with key {} at arena {}/{}", score, arenaName, address.getOffset());
+		}
+		return score;
+	}
+	
+	// Under the lock. The full segment is forced before any .idx entry of the
+	// next one can be, then sealed in the background.
+	private void rollover() throws IOException {
+		final LogSegment full = current;
+		final long end = nBytesWrittenToArenaLog;
+		logStream.flush();
+		logStream.getChannel().force(false);
+		logStream.close();
+		LogSegment next = LogSegment.open(arenaDir, arenaName, full.id + 1);
+		Arena.forceDirectory(arenaDir);
+		LogSegment[] grown = Arrays.copyOf(segments, next.id + 1);
+		grown[next.id] = next;
+		segments = grown;
+		current = next;
+		logStream = new FileOutputStream(next.file, true);
+		logWriter = new RecordIOWriter(logStream);
+		nBytesWrittenToArenaLog = 0;
+		logger.info("log of {} rolled over to {}", arenaName, next.file);
+		Thread sealer = Threads.newThread(new Runnable() {
+			@Override
+			public void run() {
+				seal(full, end);
+			}
+		}, "sealer");
+		for (Iterator<Thread> it = sealers.iterator(); it.hasNext(); ) {
+			if (!it.next().isAlive()) {
+				it.remove();
+			}
+		}
+		sealers.add(sealer);
+		sealer.start();
 	}
 	
+	// concurrent syncs share one force of the log and the index
 	@Override
 	public void sync() throws IOException {
-		indexStream.flush();
-		logStream.flush();
+		groupCommit.sync();
+	}
+
+	// The log goes first so that a durable index entry never points past the
+	// durable log. Runs outside the lock, puts continue meanwhile.
+	private void force() throws IOException {
+		long indexEnd;
+		long logEnd;
+		FileOutputStream log;
+		synchronized (this) {
+			logStream.flush();
+			indexStream.flush();
+			indexEnd = nBytesWrittenToIndex;
+			logEnd = position(current.id, nBytesWrittenToArenaLog);
+			log = logStream;
+		}
+		try {
+			log.getChannel().force(false);
+		} catch (ClosedChannelException e) {
+			// the log rolled over meanwhile, and the rollover forced it
+		}
+		indexStream.getChannel().force(false);
+		synchronized (this) {
+			if (indexEnd > forcedIndexEnd) {
+				forcedIndexEnd = indexEnd;
+				forcedLogEnd = logEnd;
+			}
+		}
+	}
+
+	// in the background, once enough of the .idx is past the checkpoint
+	private void startCheckpoint() {
+		IndexCheckpoint c = checkpoint;
+		final long indexEnd;
+		final long logEnd;
+		synchronized (this) {
+			indexEnd = forcedIndexEnd;
+			logEnd = forcedLogEnd;
+		}
+		if (indexEnd - (c != null ? c.idxEnd : 0) < CHECKPOINT_RECORDS * INDEX_RECORD_LENGTH
+				|| !checkpointing.compareAndSet(false, true)) {
+			return;
+		}
+		Threads.newThread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					checkpoint(indexEnd, logEnd);
+				} catch (IOException e) {
+					logger.error("index checkpoint of {} failed", arenaName, e);
+				} finally {
+					checkpointing.set(false);
+				}
+			}
+		}, "checkpoint").start();
+	}
+
+	// Merges the durable .idx records past the checkpoint, up to indexEnd,
+	// into a new one. They are read back from the file, so puts go on.
+	private void checkpoint(long indexEnd, long logEnd) throws IOException {
+		synchronized (checkpointLock) {
+			IndexCheckpoint previous = checkpoint;
+			long from = previous != null ? previous.idxEnd : 0;
+			if (indexEnd <= from) {
+				return;
+			}
+			long start = System.nanoTime();
+			final IndexCheckpoint.Writer writer = new IndexCheckpoint.Writer(checkpointFile, previous);
+			try {
+				readIndex(arenaIndex, from, (indexEnd - from) / INDEX_RECORD_LENGTH, segmentEnds(segments), new BlockIndex.Visitor() {
+					@Override
+					public void visit(Score score, BlockAddress address) throws IOException {
+						writer.add(score, address);
+					}
+				});
+				checkpoint = writer.finish(indexEnd, logEnd);
+			} finally {
+				writer.discard();
+			}
+			logger.info("index checkpoint of {} with {} entries written in {} ms", arenaName, checkpoint.entries,
+					(System.nanoTime() - start) / 1000000);
+		}
 	}
 
 	@Override
-	public void close() throws Exception {
+	public synchronized void close() throws Exception {
+		// both the shutdown hook and the server may close it
+		if (closed) {
+			return;
+		}
+		closed = true;
+		// a seal cut short leaves the segment to be scanned and sealed again
+		// by the next start, which would race a sealer still running
+		for (Thread sealer : sealers) {
+			sealer.join();
+		}
+		force();
+		long indexEnd;
+		long logEnd;
+		synchronized (this) {
+			indexEnd = forcedIndexEnd;
+			logEnd = forcedLogEnd;
+		}
+		checkpoint(indexEnd, logEnd);
+		filter.save(filterFile, blockIndex.size());
 		indexStream.flush();
 		indexStream.close();
 		logStream.flush();
 		logStream.close();
+		for (LogSegment segment : segments) {
+			segment.close();
+		}
+		blockIndex.close();
 	}
 }
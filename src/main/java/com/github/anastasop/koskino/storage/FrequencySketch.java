@@ -0,0 +1,64 @@
+package com.github.anastasop.koskino.storage;
+
+// How often keys were seen lately, as TinyLFU keeps it: a count-min sketch of
+// 4 bit counters, 16 to a long, four per key. Once the additions reach ten
+// times the width every counter is halved, so old popularity fades. Not
+// thread safe, the cache calls it under a segment lock.
+final class FrequencySketch {
+	private static final long[] SEEDS = {
+		0x9E3779B97F4A7C15L, 0xC2B2AE3D27D4EB4FL, 0x165667B19E3779F9L, 0x85EBCA77C2B2AE63L,
+	};
+	private static final long HALF_MASK = 0x7777777777777777L;
+
+	private final long[] table;
+	private final int mask;
+	private final int sampleSize;
+	private int additions;
+
+	// for about expectedKeys distinct keys
+	FrequencySketch(int expectedKeys) {
+		int width = 64;
+		while (width < expectedKeys && width < (1 << 26)) {
+			width *= 2;
+		}
+		table = new long[width];
+		mask = width - 1;
+		sampleSize = 10 * width;
+	}
+
+	private static long spread(long hash, int i) {
+		long h = (hash + SEEDS[i]) * SEEDS[i];
+		return h ^ (h >>> 29);
+	}
+
+	// the key is hashed already; the counter of row i is a nibble picked by
+	// the top bits of its long picked by the low bits
+	int frequency(long hash) {
+		int min = 15;
+		for (int i = 0; i < 4; i++) {
+			long h = spread(hash, i);
+			int shift = (int)(h >>> 60) << 2;
+			min = Math.min(min, (int)(table[(int)h & mask] >>> shift) & 0xF);
+		}
+		return min;
+	}
+
+	void increment(long hash) {
+		boolean added = false;
+		for (int i = 0; i < 4; i++) {
+			long h = spread(hash, i);
+			int index = (int)h & mask;
+			int shift = (int)(h >>> 60) << 2;
+			if (((table[index] >>> shift) & 0xF) != 0xF) {
+				table[index] += 1L << shift;
+				added = true;
+			}
+		}
+		if (added && ++additions >= sampleSize) {
+			for (int i = 0; i < table.length; i++) {
+				table[i] = (table[i] >>> 1) & HALF_MASK;
+			}
+			additions /= 2;
+		}
+	}
+}
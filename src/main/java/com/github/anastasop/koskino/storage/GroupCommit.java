@@ -0,0 +1,69 @@
+package com.github.anastasop.koskino.storage;
+
+import java.io.IOException;
+
+// Lets concurrent syncs share one flush. The first caller to find no flush
+// running becomes the leader and flushes for every caller that arrived
+// before it started; callers arriving during a flush wait and are covered
+// by the next one. So however many connections send VtTsync at once, the
+// disk sees at most one flush in progress and one queued.
+public class GroupCommit {
+	public interface Flusher {
+		void flush() throws IOException;
+	}
+
+	private static class Batch {
+		boolean done;
+		IOException error;
+	}
+
+	private final Flusher flusher;
+	// callers join the open batch until its flush starts
+	private Batch open = new Batch();
+	private boolean flushing = false;
+
+	public GroupCommit(Flusher flusher) {
+		this.flusher = flusher;
+	}
+
+	// returns once a flush that started after this call has completed
+	public void sync() throws IOException {
+		Batch batch;
+		synchronized (this) {
+			batch = open;
+			while (flushing && !batch.done) {
+				try {
+					wait();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new IOException("interrupted while waiting for sync");
+				}
+			}
+			if (batch.done) {
+				if (batch.error != null) {
+					throw new IOException("sync failed", batch.error);
+				}
+				return;
+			}
+			flushing = true;
+			open = new Batch();
+		}
+		IOException error = null;
+		try {
+			flusher.flush();
+		} catch (IOException e) {
+			error = e;
+			throw e;
+		} catch (RuntimeException e) {
+			error = new IOException(e);
+			throw e;
+		} finally {
+			synchronized (this) {
+				batch.error = error;
+				batch.done = true;
+				flushing = false;
+				notifyAll();
+			}
+		}
+	}
+}
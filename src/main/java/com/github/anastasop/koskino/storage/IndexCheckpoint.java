@@ -0,0 +1,471 @@
+package com.github.anastasop.koskino.storage;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.zip.CRC32;
+
+import ascient.threading.Threads;
+
+import com.github.anastasop.koskino.Score;
+
+// A snapshot of the index of a FileStorageService, so that a restart loads
+// it and replays only the .idx records written since, instead of them all.
+// The entries are sorted by score and laid out as CompactBlockIndex does.
+// A new checkpoint merges the previous one with the sorted records of the
+// .idx tail, in one sequential pass, so its cost does not depend on the
+// index in memory. Loading maps the file and hands its chunks to parallel
+// threads; as the entries are sorted each thread mostly fills segments of
+// the index the others do not touch.
+//
+// file, big endian
+// 0: magic (kosckpnt), version, entries (64 bit), the lengths of the .idx
+//    and the .log it covers (64 bit each), entries per chunk, CRC32 of the
+//    previous bytes
+// HEADER_LENGTH: the entries, then a CRC32 per chunk of entries
+final class IndexCheckpoint {
+	static final int HEADER_LENGTH = 44;
+	static final int ENTRY_SIZE = 32;
+	private static final int CHUNK_ENTRIES = 1 << 18;
+	// entries sorted in memory at a time, at most 1 << 24
+	private static final int RUN_ENTRIES = 1 << 21;
+	private static final byte[] MAGIC = "kosckpnt".getBytes();
+	private static final int VERSION = 1;
+
+	final long entries;
+	final long idxEnd;
+	final long logEnd;
+
+	private IndexCheckpoint(long entries, long idxEnd, long logEnd) {
+		this.entries = entries;
+		this.idxEnd = idxEnd;
+		this.logEnd = logEnd;
+	}
+
+	static int compareScores(byte[] a, int aOff, byte[] b, int bOff) {
+		for (int i = 0; i < 20; i++) {
+			int x = a[aOff + i] & 0xFF;
+			int y = b[bOff + i] & 0xFF;
+			if (x != y) {
+				return x - y;
+			}
+		}
+		return 0;
+	}
+
+	private static long chunks(long entries) {
+		return (entries + CHUNK_ENTRIES - 1) / CHUNK_ENTRIES;
+	}
+
+	// returns null if there is no checkpoint
+	static IndexCheckpoint readHeader(File file) throws IOException {
+		if (!file.exists()) {
+			return null;
+		}
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			ByteBuffer h = ByteBuffer.allocate(HEADER_LENGTH);
+			readFully(channel, h, 0);
+			byte[] b = h.array();
+			CRC32 crc = new CRC32();
+			crc.update(b, 0, 40);
+			if (!Arrays.equals(Arrays.copyOf(b, 8), MAGIC) || h.getInt(40) != (int)crc.getValue()) {
+				throw new IOException("not an index checkpoint: " + file);
+			}
+			if (h.getInt(8) != VERSION || h.getInt(36) != CHUNK_ENTRIES) {
+				throw new IOException("unknown index checkpoint version in " + file);
+			}
+			IndexCheckpoint c = new IndexCheckpoint(h.getLong(12), h.getLong(20), h.getLong(28));
+			if (c.entries < 0 || channel.size() != HEADER_LENGTH + c.entries * ENTRY_SIZE + chunks(c.entries) * 4) {
+				throw new IOException("index checkpoint " + file + " is truncated");
+			}
+			return c;
+		}
+	}
+
+	private static int[] readChunkCrcs(FileChannel channel, long entries) throws IOException {
+		int n = (int)chunks(entries);
+		ByteBuffer b = ByteBuffer.allocate(n * 4);
+		readFully(channel, b, HEADER_LENGTH + entries * ENTRY_SIZE);
+		int[] crcs = new int[n];
+		for (int i = 0; i < n; i++) {
+			crcs[i] = b.getInt(i * 4);
+		}
+		return crcs;
+	}
+
+	// Adds the entries to index with the given number of threads. Throws if
+	// a chunk is damaged, leaving index partly filled.
+	void load(File file, final BlockIndex index, int threads) throws IOException {
+		try (final FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			final int[] crcs = readChunkCrcs(channel, entries);
+			final AtomicInteger next = new AtomicInteger();
+			final AtomicReference<IOException> failure = new AtomicReference<>();
+			Runnable loader = new Runnable() {
+				@Override
+				public void run() {
+					byte[] buf = new byte[CHUNK_ENTRIES * ENTRY_SIZE];
+					int chunk;
+					while (failure.get() == null && (chunk = next.getAndIncrement()) < crcs.length) {
+						try {
+							loadChunk(channel, chunk, crcs[chunk], buf, index);
+						} catch (IOException e) {
+							failure.compareAndSet(null, e);
+						} catch (RuntimeException e) {
+							failure.compareAndSet(null, new IOException(e));
+						}
+					}
+				}
+			};
+			List<Thread> workers = new ArrayList<>();
+			for (int i = 0; i < Math.max(1, Math.min(threads, crcs.length)); i++) {
+				Thread t = Threads.newThread(loader, "checkpointloader");
+				t.start();
+				workers.add(t);
+			}
+			for (Thread t : workers) {
+				try {
+					t.join();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new IOException("interrupted while loading " + file);
+				}
+			}
+			if (failure.get() != null) {
+				throw failure.get();
+			}
+		}
+	}
+
+	private void loadChunk(FileChannel channel, int chunk, int crc, byte[] buf, BlockIndex index) throws IOException {
+		long first = (long)chunk * CHUNK_ENTRIES;
+		int n = (int)Math.min(CHUNK_ENTRIES, entries - first);
+		MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_ONLY, HEADER_LENGTH + first * ENTRY_SIZE,
+				(long)n * ENTRY_SIZE);
+		map.get(buf, 0, n * ENTRY_SIZE);
+		CRC32 c = new CRC32();
+		c.update(buf, 0, n * ENTRY_SIZE);
+		if ((int)c.getValue() != crc) {
+			throw new IOException("index checkpoint chunk " + chunk + " is damaged");
+		}
+		ByteBuffer b = ByteBuffer.wrap(buf);
+		for (int i = 0; i < n; i++) {
+			int base = i * ENTRY_SIZE;
+			index.putIfAbsent(Score.fromBytes(Arrays.copyOfRange(buf, base, base + 20)),
+					BlockAddress.unpack(b.getLong(base + 20), b.getInt(base + 28)));
+		}
+	}
+
+	// the indexes of the first n entries of buf in score order, equal scores
+	// in the order they were added. Sorts the first 40 bits of the scores
+	// and the index together as longs, then the few entries that share
+	// those bits by the whole score.
+	private static int[] sort(byte[] buf, int n) {
+		long[] keys = new long[n];
+		for (int i = 0; i < n; i++) {
+			long prefix = 0;
+			for (int j = 0; j < 5; j++) {
+				prefix = prefix << 8 | (buf[i * ENTRY_SIZE + j] & 0xFF);
+			}
+			keys[i] = (prefix << 24 | i) ^ Long.MIN_VALUE;
+		}
+		Arrays.sort(keys);
+		int[] order = new int[n];
+		for (int i = 0; i < n; i++) {
+			order[i] = (int)keys[i] & 0xFFFFFF;
+		}
+		for (int i = 1; i < n; i++) {
+			int e = order[i];
+			int j = i;
+			while (j > 0 && keys[j - 1] >>> 24 == keys[i] >>> 24
+					&& compareScores(buf, order[j - 1] * ENTRY_SIZE, buf, e * ENTRY_SIZE) > 0) {
+				order[j] = order[j - 1];
+				j--;
+			}
+			order[j] = e;
+		}
+		return order;
+	}
+
+	// Collects the entries of the .idx tail, in file order, and writes the
+	// checkpoint that follows previous. They are sorted in runs of
+	// RUN_ENTRIES, all but the last spilled to run files next to the
+	// checkpoint, and merged with previous in one pass, so the memory it
+	// takes does not depend on the length of the tail. Of equal scores the
+	// first one is kept, as replaying the .idx does.
+	static final class Writer {
+		private final File file;
+		private final IndexCheckpoint previous;
+		private final byte[] run = new byte[RUN_ENTRIES * ENTRY_SIZE];
+		private int n;
+		private final List<File> runFiles = new ArrayList<>();
+		private final List<Long> runEntries = new ArrayList<>();
+
+		Writer(File file, IndexCheckpoint previous) {
+			this.file = file;
+			this.previous = previous;
+		}
+
+		void add(Score score, BlockAddress address) throws IOException {
+			ByteBuffer b = ByteBuffer.wrap(run, n * ENTRY_SIZE, ENTRY_SIZE);
+			b.put(score.getBytes());
+			b.putLong(address.packLocation());
+			b.putInt(address.packInfo());
+			if (++n == RUN_ENTRIES) {
+				spill();
+			}
+		}
+
+		private void spill() throws IOException {
+			File f = new File(file.getPath() + ".run" + runFiles.size());
+			runFiles.add(f);
+			try (FileChannel channel = FileChannel.open(f.toPath(), StandardOpenOption.CREATE,
+					StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+				Output out = new Output(channel);
+				Source s = new Sorted(run, n, 0);
+				while (s.advance()) {
+					out.add(s.buf, s.off);
+				}
+				out.finish(0, 0, false);
+				runEntries.add(out.count);
+			}
+			n = 0;
+		}
+
+		// a checkpoint that covers the .idx up to idxEnd and the .log up to
+		// logEnd, written aside and renamed
+		IndexCheckpoint finish(long idxEnd, long logEnd) throws IOException {
+			File tmp = new File(file.getPath() + ".tmp");
+			List<FileChannel> inputs = new ArrayList<>();
+			long count;
+			try (FileChannel channel = FileChannel.open(tmp.toPath(), StandardOpenOption.CREATE,
+					StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+				final PriorityQueue<Source> queue = new PriorityQueue<>(runFiles.size() + 2, new Comparator<Source>() {
+					@Override
+					public int compare(Source a, Source b) {
+						int order = compareScores(a.buf, a.off, b.buf, b.off);
+						return order != 0 ? order : a.rank - b.rank;
+					}
+				});
+				List<Source> sources = new ArrayList<>();
+				if (previous != null) {
+					FileChannel in = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+					inputs.add(in);
+					sources.add(new Input(in, previous.entries, readChunkCrcs(in, previous.entries), sources.size()));
+				}
+				for (int i = 0; i < runFiles.size(); i++) {
+					FileChannel in = FileChannel.open(runFiles.get(i).toPath(), StandardOpenOption.READ);
+					inputs.add(in);
+					long entries = runEntries.get(i);
+					sources.add(new Input(in, entries, readChunkCrcs(in, entries), sources.size()));
+				}
+				sources.add(new Sorted(run, n, sources.size()));
+				for (Source s : sources) {
+					if (s.advance()) {
+						queue.add(s);
+					}
+				}
+				Output out = new Output(channel);
+				while (!queue.isEmpty()) {
+					Source s = queue.poll();
+					out.add(s.buf, s.off);
+					if (s.advance()) {
+						queue.add(s);
+					}
+				}
+				out.finish(idxEnd, logEnd, true);
+				count = out.count;
+			} finally {
+				for (FileChannel in : inputs) {
+					in.close();
+				}
+			}
+			Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			Arena.forceDirectory(file.getAbsoluteFile().getParentFile());
+			return new IndexCheckpoint(count, idxEnd, logEnd);
+		}
+
+		// removes the run files and what is left of an unfinished checkpoint
+		void discard() {
+			for (File f : runFiles) {
+				f.delete();
+			}
+			new File(file.getPath() + ".tmp").delete();
+		}
+	}
+
+	// a sorted sequence of entries; the current one is at off in buf, and
+	// rank breaks ties between sources, the older first
+	private abstract static class Source {
+		final int rank;
+		byte[] buf;
+		int off;
+
+		Source(int rank) {
+			this.rank = rank;
+		}
+
+		// moves to the next entry, the first on the first call
+		abstract boolean advance() throws IOException;
+	}
+
+	// the entries of a run in memory
+	private static class Sorted extends Source {
+		final int[] order;
+		int i;
+
+		Sorted(byte[] run, int n, int rank) {
+			super(rank);
+			this.buf = run;
+			this.order = sort(run, n);
+		}
+
+		@Override
+		boolean advance() {
+			if (i == order.length) {
+				return false;
+			}
+			off = order[i++] * ENTRY_SIZE;
+			return true;
+		}
+	}
+
+	// reads the entries of a checkpoint or a run file, a chunk at a time
+	private static class Input extends Source {
+		final FileChannel channel;
+		final long entries;
+		final int[] crcs;
+		int chunk = -1;
+		int n;
+		int pos = -1;
+		long read;
+
+		Input(FileChannel channel, long entries, int[] crcs, int rank) {
+			super(rank);
+			this.channel = channel;
+			this.entries = entries;
+			this.crcs = crcs;
+			this.buf = new byte[CHUNK_ENTRIES * ENTRY_SIZE];
+		}
+
+		@Override
+		boolean advance() throws IOException {
+			if (++pos < n) {
+				off = pos * ENTRY_SIZE;
+				return true;
+			}
+			read += n;
+			if (read == entries) {
+				return false;
+			}
+			chunk++;
+			n = (int)Math.min(CHUNK_ENTRIES, entries - read);
+			readFully(channel, ByteBuffer.wrap(buf, 0, n * ENTRY_SIZE), HEADER_LENGTH + read * ENTRY_SIZE);
+			CRC32 c = new CRC32();
+			c.update(buf, 0, n * ENTRY_SIZE);
+			if ((int)c.getValue() != crcs[chunk]) {
+				throw new IOException("index checkpoint chunk " + chunk + " is damaged");
+			}
+			pos = 0;
+			off = 0;
+			return true;
+		}
+	}
+
+	// writes entries a chunk at a time, with their CRCs
+	private static class Output {
+		final FileChannel channel;
+		final byte[] buf = new byte[CHUNK_ENTRIES * ENTRY_SIZE];
+		final List<Integer> crcs = new ArrayList<>();
+		final byte[] last = new byte[20];
+		int n;
+		long count;
+
+		Output(FileChannel channel) {
+			this.channel = channel;
+		}
+
+		// entries with the score of the previous one are dropped
+		void add(byte[] entry, int off) throws IOException {
+			if (count + n > 0) {
+				int order = compareScores(last, 0, entry, off);
+				if (order == 0) {
+					return;
+				}
+				if (order > 0) {
+					throw new IOException("index checkpoint entries out of order");
+				}
+			}
+			System.arraycopy(entry, off, buf, n * ENTRY_SIZE, ENTRY_SIZE);
+			System.arraycopy(entry, off, last, 0, 20);
+			n++;
+			if (n == CHUNK_ENTRIES) {
+				flush();
+			}
+		}
+
+		private void flush() throws IOException {
+			if (n == 0) {
+				return;
+			}
+			CRC32 c = new CRC32();
+			c.update(buf, 0, n * ENTRY_SIZE);
+			crcs.add((int)c.getValue());
+			writeFully(channel, ByteBuffer.wrap(buf, 0, n * ENTRY_SIZE), HEADER_LENGTH + count * ENTRY_SIZE);
+			count += n;
+			n = 0;
+		}
+
+		void finish(long idxEnd, long logEnd, boolean force) throws IOException {
+			flush();
+			ByteBuffer table = ByteBuffer.allocate(crcs.size() * 4);
+			for (int crc : crcs) {
+				table.putInt(crc);
+			}
+			table.flip();
+			writeFully(channel, table, HEADER_LENGTH + count * ENTRY_SIZE);
+			ByteBuffer h = ByteBuffer.allocate(HEADER_LENGTH);
+			h.put(MAGIC);
+			h.putInt(VERSION);
+			h.putLong(count);
+			h.putLong(idxEnd);
+			h.putLong(logEnd);
+			h.putInt(CHUNK_ENTRIES);
+			CRC32 crc = new CRC32();
+			crc.update(h.array(), 0, 40);
+			h.putInt((int)crc.getValue());
+			h.flip();
+			writeFully(channel, h, 0);
+			if (force) {
+				channel.force(true);
+			}
+		}
+	}
+
+	private static void writeFully(FileChannel channel, ByteBuffer b, long pos) throws IOException {
+		while (b.hasRemaining()) {
+			pos += channel.write(b, pos);
+		}
+	}
+
+	private static void readFully(FileChannel channel, ByteBuffer b, long pos) throws IOException {
+		while (b.hasRemaining()) {
+			int n = channel.read(b, pos);
+			if (n < 0) {
+				throw new IOException("unexpected end of file");
+			}
+			pos += n;
+		}
+	}
+}
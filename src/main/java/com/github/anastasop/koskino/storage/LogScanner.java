@@ -0,0 +1,343 @@
+package com.github.anastasop.koskino.storage;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.zip.CRC32;
+
+import ascient.threading.Threads;
+
+import com.github.anastasop.koskino.Score;
+import com.github.anastasop.koskino.io.RecordIOWriter;
+
+// Finds the records of a RecordIO .log, for when its .idx is lost or falls
+// short. The log is cut in ranges that threads scan at once: a record is
+// one whose header has the MAGIC and a good CRC and whose data has the SHA-1
+// the header says, so a thread that starts in the middle of a record skips
+// ahead a byte at a time until it finds the next. The records are handed
+// on in log order. Where a thread started inside a block that holds a
+// RecordIO record itself, the walk from the end of the previous range is
+// redone on the calling thread until it meets the records the thread found.
+// The bytes between records are reported as corrupt.
+final class LogScanner {
+	static final int RANGE_SIZE = 64 << 20;
+	private static final int MAX_DATA = 65536;
+	private static final int HEADER = RecordIOWriter.HEADER_LENGTH;
+	// corrupt regions kept for the report, more are only counted
+	private static final int MAX_REGIONS = 100;
+
+	interface Sink {
+		// offset is the position of the data in the log
+		void record(long offset, int length, byte type, Score score) throws IOException;
+	}
+
+	static final class Report {
+		long from;
+		long to;
+		long records;
+		long corruptBytes;
+		long corruptRegions;
+		// offset and length of the first MAX_REGIONS corrupt regions
+		final List<long[]> regions = new ArrayList<>();
+		// the end of the last good record
+		long end;
+		long nanos;
+
+		@Override
+		public String toString() {
+			double seconds = nanos / 1e9;
+			StringBuilder b = new StringBuilder();
+			b.append(String.format("scanned %d bytes in %.1f s, %.1f MB/s, %d records, %d corrupt regions of %d bytes",
+					to - from, seconds, (to - from) / 1e6 / Math.max(seconds, 1e-9), records, corruptRegions, corruptBytes));
+			for (long[] r : regions) {
+				b.append(String.format("%n  corrupt at %d, %d bytes", r[0], r[1]));
+			}
+			if (corruptRegions > regions.size()) {
+				b.append(String.format("%n  ..."));
+			}
+			return b.toString();
+		}
+	}
+
+	// the records a thread found in a range, by start
+	private static final class Range {
+		int n;
+		long[] starts = new long[1024];
+		int[] lengths = new int[1024];
+		byte[] types = new byte[1024];
+		byte[] scores = new byte[1024 * 20];
+
+		void add(long start, int length, byte type, byte[] header) {
+			if (n == starts.length) {
+				starts = Arrays.copyOf(starts, n * 2);
+				lengths = Arrays.copyOf(lengths, n * 2);
+				types = Arrays.copyOf(types, n * 2);
+				scores = Arrays.copyOf(scores, n * 2 * 20);
+			}
+			starts[n] = start;
+			lengths[n] = length;
+			types[n] = type;
+			System.arraycopy(header, 10, scores, n * 20, 20);
+			n++;
+		}
+	}
+
+	// reads the log through a buffer, refilled at the position asked for
+	private static final class Reader {
+		final FileChannel channel;
+		final long limit;
+		final byte[] buf = new byte[1 << 20];
+		final byte[] header = new byte[HEADER];
+		final MessageDigest md;
+		final CRC32 crc = new CRC32();
+		long bufStart;
+		int bufLen;
+
+		Reader(FileChannel channel, long limit) {
+			this.channel = channel;
+			this.limit = limit;
+			try {
+				md = MessageDigest.getInstance("SHA-1");
+			} catch (NoSuchAlgorithmException e) {
+				throw new InternalError(e);
+			}
+		}
+
+		// false if the log ends before pos + n
+		boolean ensure(long pos, int n) throws IOException {
+			if (pos + n > limit) {
+				return false;
+			}
+			if (pos >= bufStart && pos + n <= bufStart + bufLen) {
+				return true;
+			}
+			bufStart = pos;
+			bufLen = 0;
+			int want = (int)Math.min(buf.length, limit - pos);
+			ByteBuffer b = ByteBuffer.wrap(buf, 0, want);
+			while (b.hasRemaining()) {
+				int r = channel.read(b, pos + b.position());
+				if (r < 0) {
+					break;
+				}
+			}
+			bufLen = b.position();
+			return n <= bufLen;
+		}
+
+		// the data length of the record at pos, or -1 if there is none
+		int recordAt(long pos) throws IOException {
+			if (!ensure(pos, HEADER)) {
+				return -1;
+			}
+			int h = (int)(pos - bufStart);
+			for (int i = 0; i < 4; i++) {
+				if (buf[h + i] != RecordIOWriter.MAGIC[i]) {
+					return -1;
+				}
+			}
+			crc.reset();
+			crc.update(buf, h, 30);
+			int c = (int)crc.getValue();
+			if ((buf[h + 30] & 0xFF | (buf[h + 31] & 0xFF) << 8 | (buf[h + 32] & 0xFF) << 16 | (buf[h + 33] & 0xFF) << 24) != c
+					|| buf[h + 8] != RecordIOWriter.SHA1_HASH) {
+				return -1;
+			}
+			long len = buf[h + 4] & 0xFFL | (buf[h + 5] & 0xFFL) << 8 | (buf[h + 6] & 0xFFL) << 16 | (buf[h + 7] & 0xFFL) << 24;
+			if (len > MAX_DATA) {
+				return -1;
+			}
+			System.arraycopy(buf, h, header, 0, HEADER);
+			if (!ensure(pos, HEADER + (int)len)) {
+				return -1;
+			}
+			md.update(buf, (int)(pos - bufStart) + HEADER, (int)len);
+			byte[] sha = md.digest();
+			for (int i = 0; i < 20; i++) {
+				if (sha[i] != header[10 + i]) {
+					return -1;
+				}
+			}
+			return (int)len;
+		}
+
+		// the start of the first record at or after pos and before end, or -1
+		long seek(long pos, long end) throws IOException {
+			for (; pos < end; pos++) {
+				if (!ensure(pos, 4)) {
+					return -1;
+				}
+				int h = (int)(pos - bufStart);
+				if (buf[h] == 0 && buf[h + 1] == 0 && buf[h + 2] == 0 && buf[h + 3] == 0 && recordAt(pos) >= 0) {
+					return pos;
+				}
+			}
+			return -1;
+		}
+	}
+
+	private final File log;
+	private final int threads;
+
+	LogScanner(File log, int threads) {
+		this.log = log;
+		this.threads = Math.max(1, threads);
+	}
+
+	// Hands to sink, in log order and from the calling thread, the records
+	// that start at or after from and end by to.
+	Report scan(final long from, final long to, Sink sink) throws IOException {
+		final Report report = new Report();
+		report.from = from;
+		report.to = to;
+		report.end = from;
+		long start = System.nanoTime();
+		try (final FileChannel channel = FileChannel.open(log.toPath(), StandardOpenOption.READ)) {
+			final int nRanges = (int)Math.max(1, (to - from + RANGE_SIZE - 1) / RANGE_SIZE);
+			final Range[] ranges = new Range[nRanges];
+			final AtomicInteger next = new AtomicInteger();
+			final AtomicReference<IOException> failure = new AtomicReference<>();
+			// bounds the ranges scanned ahead of the one handed on
+			final Semaphore ahead = new Semaphore(threads * 4);
+			Runnable scanner = new Runnable() {
+				@Override
+				public void run() {
+					Reader reader = new Reader(channel, to);
+					while (failure.get() == null) {
+						try {
+							// taken before the range, so the ranges that hold one are the
+							// first ones not handed on yet
+							ahead.acquire();
+							int i = next.getAndIncrement();
+							if (i >= nRanges) {
+								break;
+							}
+							Range r = scanRange(reader, from + (long)i * RANGE_SIZE, Math.min(to, from + (long)(i + 1) * RANGE_SIZE));
+							synchronized (ranges) {
+								ranges[i] = r;
+								ranges.notifyAll();
+							}
+						} catch (IOException e) {
+							failure.compareAndSet(null, e);
+						} catch (InterruptedException e) {
+							failure.compareAndSet(null, new IOException("interrupted"));
+						}
+					}
+					synchronized (ranges) {
+						ranges.notifyAll();
+					}
+				}
+			};
+			List<Thread> workers = new ArrayList<>();
+			for (int i = 0; i < Math.min(threads, nRanges); i++) {
+				Thread t = Threads.newThread(scanner, "logscanner");
+				t.start();
+				workers.add(t);
+			}
+			try {
+				Reader reader = new Reader(channel, to);
+				long expected = from;
+				for (int i = 0; i < nRanges; i++) {
+					Range r;
+					synchronized (ranges) {
+						while ((r = ranges[i]) == null && failure.get() == null) {
+							ranges.wait();
+						}
+					}
+					if (r == null) {
+						throw failure.get();
+					}
+					ranges[i] = null;
+					ahead.release();
+					long rangeEnd = Math.min(to, from + (long)(i + 1) * RANGE_SIZE);
+					int k = 0;
+					if (r.n == 0 || r.starts[0] != expected) {
+						// the walk from the previous range decides where the records are
+						while (expected < rangeEnd && (k = Arrays.binarySearch(r.starts, 0, r.n, expected)) < 0) {
+							int len = reader.recordAt(expected);
+							if (len >= 0) {
+								sink.record(expected + HEADER, len, reader.header[9], Score.fromBytes(Arrays.copyOfRange(reader.header, 10, 30)));
+								report.records++;
+								expected += HEADER + len;
+								report.end = expected;
+								continue;
+							}
+							long found = reader.seek(expected + 1, rangeEnd);
+							long gapEnd = found < 0 ? rangeEnd : found;
+							corrupt(report, expected, gapEnd - expected);
+							expected = gapEnd;
+						}
+						if (k < 0) {
+							k = r.n;
+						}
+					}
+					for (; k < r.n; k++) {
+						if (r.starts[k] < expected) {
+							continue;
+						}
+						if (r.starts[k] > expected) {
+							corrupt(report, expected, r.starts[k] - expected);
+						}
+						sink.record(r.starts[k] + HEADER, r.lengths[k], r.types[k],
+								Score.fromBytes(Arrays.copyOfRange(r.scores, k * 20, k * 20 + 20)));
+						report.records++;
+						expected = r.starts[k] + HEADER + r.lengths[k];
+						report.end = expected;
+					}
+				}
+				if (expected < to) {
+					corrupt(report, expected, to - expected);
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException("interrupted while scanning " + log);
+			} finally {
+				failure.compareAndSet(null, new IOException("scan stopped"));
+				ahead.release(nRanges);
+				for (Thread t : workers) {
+					try {
+						t.join();
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+					}
+				}
+			}
+		}
+		report.nanos = System.nanoTime() - start;
+		return report;
+	}
+
+	// the records that start in [start, end), walked from the first one found
+	private static Range scanRange(Reader reader, long start, long end) throws IOException {
+		Range r = new Range();
+		long pos = reader.seek(start, end);
+		while (pos >= 0 && pos < end) {
+			int len = reader.recordAt(pos);
+			if (len < 0) {
+				pos = reader.seek(pos + 1, end);
+				continue;
+			}
+			r.add(pos, len, reader.header[9], reader.header);
+			pos += HEADER + len;
+		}
+		return r;
+	}
+
+	private static void corrupt(Report report, long offset, long length) {
+		report.corruptRegions++;
+		report.corruptBytes += length;
+		if (report.regions.size() < MAX_REGIONS) {
+			report.regions.add(new long[] {offset, length});
+		}
+	}
+}
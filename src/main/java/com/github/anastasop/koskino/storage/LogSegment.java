@@ -0,0 +1,209 @@
+package com.github.anastasop.koskino.storage;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+import com.github.anastasop.koskino.Score;
+
+// A .log of a FileStorageService. The first one is <name>.log and those that
+// follow <name>.NNNNN.log. All but the last are sealed: the records are
+// followed by a footer that lists them, so the index of a sealed segment is
+// rebuilt without a scan, and by a trailer with the CRC32 of the records, so
+// verifying it is one sequential read. A sealed segment is read-only and
+// never changes again, it can be archived or deleted as a whole.
+//
+// footer, big endian
+// the entries: offset of the data (64 bit), length, type, score
+// the trailer: magic (kosseald), end of the records (64 bit), entries
+//   (64 bit), CRC32 of the records, CRC32 of the entries and the trailer
+final class LogSegment {
+	static final int TRAILER_LENGTH = 32;
+	static final int ENTRY_LENGTH = 33;
+	private static final byte[] MAGIC = "kosseald".getBytes();
+
+	final int id;
+	final File file;
+	// for reads, shared by all of them
+	final FileChannel channel;
+	private volatile boolean sealed;
+	// the end of the records, known once sealed
+	private volatile long dataEnd;
+	private long entries;
+
+	private LogSegment(int id, File file, FileChannel channel) {
+		this.id = id;
+		this.file = file;
+		this.channel = channel;
+	}
+
+	static File fileFor(File dir, String name, int id) {
+		return id == 0 ? new File(dir, name + ".log") : new File(dir, String.format("%s.%05d.log", name, id));
+	}
+
+	// opens the segment, creating it if it does not exist
+	static LogSegment open(File dir, String name, int id) throws IOException {
+		File file = fileFor(dir, name, id);
+		file.createNewFile();
+		LogSegment segment = new LogSegment(id, file, FileChannel.open(file.toPath(), StandardOpenOption.READ));
+		segment.readTrailer();
+		return segment;
+	}
+
+	boolean isSealed() {
+		return sealed;
+	}
+
+	// where the next record of an open segment goes, or the end of the
+	// records of a sealed one
+	long end() throws IOException {
+		return sealed ? dataEnd : channel.size();
+	}
+
+	private void readTrailer() throws IOException {
+		long size = channel.size();
+		if (size < TRAILER_LENGTH) {
+			return;
+		}
+		ByteBuffer t = ByteBuffer.allocate(TRAILER_LENGTH);
+		readFully(t, size - TRAILER_LENGTH);
+		if (!Arrays.equals(Arrays.copyOf(t.array(), 8), MAGIC)) {
+			return;
+		}
+		long end = t.getLong(8);
+		long n = t.getLong(16);
+		if (end < 0 || n < 0 || end + n * ENTRY_LENGTH + TRAILER_LENGTH != size) {
+			return;
+		}
+		CRC32 crc = new CRC32();
+		ByteBuffer footer = ByteBuffer.allocate((int)Math.min(1 << 20, n * ENTRY_LENGTH));
+		for (long pos = end; pos < size - TRAILER_LENGTH; ) {
+			footer.clear();
+			footer.limit((int)Math.min(footer.capacity(), size - TRAILER_LENGTH - pos));
+			readFully(footer, pos);
+			crc.update(footer.array(), 0, footer.limit());
+			pos += footer.limit();
+		}
+		crc.update(t.array(), 0, 28);
+		if ((int)crc.getValue() != t.getInt(28)) {
+			return;
+		}
+		dataEnd = end;
+		entries = n;
+		sealed = true;
+	}
+
+	// Writes the footer after the records, which end at end, and makes the
+	// segment read-only. Nothing may be appended to it any more. The records
+	// are scanned by threads for the footer, so each is checked once more;
+	// the report says if any is damaged.
+	LogScanner.Report seal(long end, int threads) throws IOException {
+		LogScanner.Report report;
+		try (final FileChannel out = FileChannel.open(file.toPath(), StandardOpenOption.WRITE)) {
+			out.truncate(end);
+			final CRC32 crc = new CRC32();
+			final ByteBuffer buf = ByteBuffer.allocate(ENTRY_LENGTH * 8192);
+			final long[] pos = {end};
+			report = new LogScanner(file, threads).scan(0, end, new LogScanner.Sink() {
+				@Override
+				public void record(long offset, int length, byte type, Score score) throws IOException {
+					if (!buf.hasRemaining()) {
+						pos[0] = append(out, buf, pos[0], crc);
+					}
+					buf.putLong(offset);
+					buf.putInt(length);
+					buf.put(type);
+					buf.put(score.getBytes());
+				}
+			});
+			pos[0] = append(out, buf, pos[0], crc);
+			ByteBuffer t = ByteBuffer.allocate(TRAILER_LENGTH);
+			t.put(MAGIC);
+			t.putLong(end);
+			t.putLong(report.records);
+			t.putInt(dataCrc(end));
+			pos[0] = append(out, t, pos[0], crc);
+			t.putInt((int)crc.getValue());
+			append(out, t, pos[0], crc);
+			out.force(true);
+		}
+		file.setReadOnly();
+		dataEnd = end;
+		entries = report.records;
+		sealed = true;
+		return report;
+	}
+
+	// writes what buf holds at pos, adds it to crc and returns the new end
+	private static long append(FileChannel out, ByteBuffer buf, long pos, CRC32 crc) throws IOException {
+		buf.flip();
+		crc.update(buf.array(), buf.position(), buf.remaining());
+		while (buf.hasRemaining()) {
+			pos += out.write(buf, pos);
+		}
+		buf.clear();
+		return pos;
+	}
+
+	private int dataCrc(long end) throws IOException {
+		CRC32 crc = new CRC32();
+		ByteBuffer b = ByteBuffer.allocate(1 << 20);
+		for (long pos = 0; pos < end; ) {
+			b.clear();
+			b.limit((int)Math.min(b.capacity(), end - pos));
+			readFully(b, pos);
+			crc.update(b.array(), 0, b.limit());
+			pos += b.limit();
+		}
+		return (int)crc.getValue();
+	}
+
+	// true if the records of a sealed segment still have their CRC
+	boolean verify() throws IOException {
+		ByteBuffer t = ByteBuffer.allocate(4);
+		readFully(t, channel.size() - TRAILER_LENGTH + 24);
+		return dataCrc(dataEnd) == t.getInt(0);
+	}
+
+	// hands the entries of the footer of a sealed segment, from offset from
+	// on, to sink
+	void readFooter(long from, LogScanner.Sink sink) throws IOException {
+		ByteBuffer b = ByteBuffer.allocate(ENTRY_LENGTH * 8192);
+		byte[] score = new byte[20];
+		for (long i = 0; i < entries; ) {
+			int n = (int)Math.min(8192, entries - i);
+			b.clear();
+			b.limit(n * ENTRY_LENGTH);
+			readFully(b, dataEnd + i * ENTRY_LENGTH);
+			b.flip();
+			for (int k = 0; k < n; k++) {
+				long offset = b.getLong();
+				int length = b.getInt();
+				byte type = b.get();
+				b.get(score);
+				if (offset >= from) {
+					sink.record(offset, length, type, Score.fromBytes(score.clone()));
+				}
+			}
+			i += n;
+		}
+	}
+
+	private void readFully(ByteBuffer b, long pos) throws IOException {
+		while (b.hasRemaining()) {
+			int n = channel.read(b, pos);
+			if (n < 0) {
+				throw new IOException("unexpected end of " + file);
+			}
+			pos += n;
+		}
+	}
+
+	void close() throws IOException {
+		channel.close();
+	}
+}
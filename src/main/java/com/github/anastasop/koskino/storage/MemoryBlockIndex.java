@@ -0,0 +1,64 @@
+package com.github.anastasop.koskino.storage;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import com.github.anastasop.koskino.Score;
+
+// The whole index on the heap, rebuilt from the arenas at startup. Simple and
+// fast but costs a few hundred bytes per block.
+public class MemoryBlockIndex implements BlockIndex {
+	private final ConcurrentMap<Score, BlockAddress> entries = new ConcurrentHashMap<>();
+
+	@Override
+	public BlockAddress get(Score score) {
+		return entries.get(score);
+	}
+
+	@Override
+	public BlockAddress putIfAbsent(Score score, BlockAddress address) {
+		BlockAddress existing = entries.get(score);
+		if (existing != null) {
+			return existing;
+		}
+		return entries.putIfAbsent(Score.fromBytes(score.getBytes().clone()), address);
+	}
+
+	@Override
+	public long size() {
+		return entries.size();
+	}
+
+	@Override
+	public void forEach(Visitor visitor) throws IOException {
+		for (Map.Entry<Score, BlockAddress> e : entries.entrySet()) {
+			visitor.visit(e.getKey(), e.getValue());
+		}
+	}
+
+	// a map node, the Score and its array and the BlockAddress
+	@Override
+	public long getMemoryUsage() {
+		return entries.size() * 160L;
+	}
+
+	@Override
+	public long getIndexedEnd(int arena) {
+		return 0;
+	}
+
+	@Override
+	public void checkpoint(long[] arenaEnds, boolean force) {
+	}
+
+	@Override
+	public boolean needsCheckpoint() {
+		return false;
+	}
+
+	@Override
+	public void close() {
+	}
+}
@@ -0,0 +1,85 @@
+package com.github.anastasop.koskino.storage;
+
+import java.nio.ByteBuffer;
+
+// Memory for cached payloads outside the heap, so a large cache gives the GC
+// nothing to trace or copy. Direct slabs are allocated once and cut in pages
+// of PAGE_SIZE; a payload takes whole pages, not necessarily adjacent, and
+// the free pages are a stack. Reading and writing a page while another
+// thread frees it is up to the caller to prevent.
+final class OffHeapPages {
+	static final int PAGE_SIZE = 4096;
+	private static final int SLAB_PAGES = 16384;
+
+	private final ByteBuffer[] slabs;
+	// guarded by this
+	private final int[] free;
+	private int nFree;
+
+	OffHeapPages(long capacity) {
+		long pages = Math.max(1, capacity / PAGE_SIZE);
+		if (pages > Integer.MAX_VALUE / 2) {
+			throw new IllegalArgumentException("off-heap cache too large: " + capacity);
+		}
+		int n = (int)pages;
+		slabs = new ByteBuffer[(n + SLAB_PAGES - 1) / SLAB_PAGES];
+		for (int i = 0; i < slabs.length; i++) {
+			slabs[i] = ByteBuffer.allocateDirect(Math.min(SLAB_PAGES, n - i * SLAB_PAGES) * PAGE_SIZE);
+		}
+		free = new int[n];
+		for (int i = 0; i < n; i++) {
+			free[i] = n - 1 - i;
+		}
+		nFree = n;
+	}
+
+	static int pagesFor(int length) {
+		return Math.max(1, (length + PAGE_SIZE - 1) / PAGE_SIZE);
+	}
+
+	long getCapacity() {
+		return (long)free.length * PAGE_SIZE;
+	}
+
+	// returns null if there are not enough free pages
+	synchronized int[] allocate(int length) {
+		int n = pagesFor(length);
+		if (n > nFree) {
+			return null;
+		}
+		int[] pages = new int[n];
+		for (int i = 0; i < n; i++) {
+			pages[i] = free[--nFree];
+		}
+		return pages;
+	}
+
+	synchronized void release(int[] pages) {
+		for (int page : pages) {
+			free[nFree++] = page;
+		}
+	}
+
+	// a view of the page, whose position and limit the caller may move
+	private ByteBuffer page(int page) {
+		ByteBuffer b = slabs[page / SLAB_PAGES].duplicate();
+		int start = (page % SLAB_PAGES) * PAGE_SIZE;
+		b.limit(start + PAGE_SIZE);
+		b.position(start);
+		return b;
+	}
+
+	void write(int[] pages, byte[] data) {
+		for (int i = 0, off = 0; off < data.length; i++, off += PAGE_SIZE) {
+			page(pages[i]).put(data, off, Math.min(PAGE_SIZE, data.length - off));
+		}
+	}
+
+	byte[] read(int[] pages, int length) {
+		byte[] data = new byte[length];
+		for (int i = 0, off = 0; off < length; i++, off += PAGE_SIZE) {
+			page(pages[i]).get(data, off, Math.min(PAGE_SIZE, length - off));
+		}
+		return data;
+	}
+}
@@ -0,0 +1,220 @@
+package com.github.anastasop.koskino.storage;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import ascient.threading.Threads;
+
+import com.github.anastasop.koskino.Score;
+import com.github.anastasop.koskino.metrics.Gauge;
+import com.github.anastasop.koskino.metrics.ServerMetrics;
+
+// Reads ahead into a BlockCache the children of the venti blocks that are
+// served, which a client walking a tree asks for next, one by one. The low
+// 3 bits of a venti type are the depth of a pointer block over the base type,
+// data, dir or root: a pointer block is an array of scores of the type one
+// less, a dir block an array of entries that hold the score and type of the
+// tree they point to, and a root block holds the score of a dir block.
+//
+// The children of the last block served go to the front of the queue, so the
+// reads ahead follow the walk of the client depth first. At most window of
+// them are fetched and not yet asked for; a block that is asked for frees its
+// place, and a new run of children takes the places of the oldest ones.
+final class Prefetcher {
+	static final int DATA_TYPE = 0 << 3;
+	static final int DIR_TYPE = 1 << 3;
+	static final int ROOT_TYPE = 2 << 3;
+	static final int DEPTH_MASK = 7;
+	private static final int ENTRY_SIZE = 40;
+	private static final int ENTRY_ACTIVE = 1 << 0;
+	private static final int ENTRY_DIR = 1 << 1;
+	private static final int ENTRY_DEPTH_SHIFT = 2;
+	private static final int ROOT_SIZE = 300;
+	private static final int ROOT_SCORE = 258;
+	// the zero length block, that every client has
+	private static final Score ZERO_SCORE = Score.forBlock(new byte[0]);
+	// children queued that are dropped, the oldest first, past this
+	private static final int MAX_QUEUED = 1 << 14;
+	// fetched blocks remembered to count the hits, window times this
+	private static final int HISTORY = 16;
+	private static final int MAX_THREADS = 32;
+
+	static final class Child {
+		final Score score;
+		final byte type;
+
+		Child(Score score, byte type) {
+			this.score = score;
+			this.type = type;
+		}
+	}
+
+	private Logger logger = LoggerFactory.getLogger(Prefetcher.class);
+	private final StorageService storage;
+	private final BlockCache cache;
+	private final int window;
+	// all guarded by this
+	private final Deque<Child> queue = new ArrayDeque<>();
+	// fetched or being fetched and not asked for yet, the oldest first
+	private final LinkedHashMap<Score, Boolean> ahead = new LinkedHashMap<>();
+	// fetched and not asked for yet, for the hit count
+	private final LinkedHashMap<Score, Boolean> unread = new LinkedHashMap<Score, Boolean>() {
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<Score, Boolean> eldest) {
+			if (size() > window * HISTORY) {
+				wasted.incrementAndGet();
+				return true;
+			}
+			return false;
+		}
+	};
+	private final AtomicLong issued = new AtomicLong();
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong wasted = new AtomicLong();
+	private final AtomicLong dropped = new AtomicLong();
+
+	Prefetcher(StorageService storage, BlockCache cache, int window) {
+		this.storage = storage;
+		this.cache = cache;
+		this.window = window;
+		Runnable fetcher = new Runnable() {
+			@Override
+			public void run() {
+				for (;;) {
+					try {
+						fetch(take());
+					} catch (InterruptedException e) {
+						return;
+					}
+				}
+			}
+		};
+		for (int i = 0; i < Math.min(window, MAX_THREADS); i++) {
+			Thread t = Threads.newThread(fetcher, "prefetcher");
+			t.setDaemon(true);
+			t.start();
+		}
+	}
+
+	// true for the types of blocks that may have children
+	static boolean hasChildren(byte type) {
+		int t = type & 0xFF;
+		return (t & DEPTH_MASK) != 0 && (t & ~DEPTH_MASK) <= DIR_TYPE || t == DIR_TYPE || t == ROOT_TYPE;
+	}
+
+	// the children of a block that has one or more, in the order they are read
+	static List<Child> children(Block block) {
+		byte[] data = block.getData();
+		int type = block.getType() & 0xFF;
+		List<Child> children = new ArrayList<>();
+		if ((type & DEPTH_MASK) != 0 && (type & ~DEPTH_MASK) <= DIR_TYPE) {
+			for (int off = 0; off + 20 <= data.length; off += 20) {
+				add(children, data, off, (byte)(type - 1));
+			}
+		} else if (type == DIR_TYPE) {
+			for (int off = 0; off + ENTRY_SIZE <= data.length; off += ENTRY_SIZE) {
+				int flags = data[off + 8] & 0xFF;
+				if ((flags & ENTRY_ACTIVE) != 0) {
+					int childType = ((flags & ENTRY_DIR) != 0 ? DIR_TYPE : DATA_TYPE) | (flags >> ENTRY_DEPTH_SHIFT) & DEPTH_MASK;
+					add(children, data, off + 20, (byte)childType);
+				}
+			}
+		} else if (type == ROOT_TYPE && data.length >= ROOT_SIZE) {
+			add(children, data, ROOT_SCORE, (byte)DIR_TYPE);
+		}
+		return children;
+	}
+
+	private static void add(List<Child> children, byte[] data, int off, byte type) {
+		Score score = Score.fromBytes(Arrays.copyOfRange(data, off, off + 20));
+		if (!score.equals(ZERO_SCORE)) {
+			children.add(new Child(score, type));
+		}
+	}
+
+	// tells that a block was asked for
+	synchronized void served(Block block) {
+		if (unread.remove(block.getScore()) != null) {
+			hits.incrementAndGet();
+		}
+		if (ahead.remove(block.getScore()) != null) {
+			notifyAll();
+		}
+		List<Child> children = children(block);
+		if (children.isEmpty()) {
+			return;
+		}
+		// the new run goes first and takes the places of the oldest reads ahead
+		int keep = Math.max(0, window - children.size());
+		for (Iterator<Score> it = ahead.keySet().iterator(); ahead.size() > keep && it.hasNext(); ) {
+			it.next();
+			it.remove();
+		}
+		for (int i = children.size() - 1; i >= 0; i--) {
+			queue.addFirst(children.get(i));
+		}
+		while (queue.size() > MAX_QUEUED) {
+			queue.removeLast();
+			dropped.incrementAndGet();
+		}
+		notifyAll();
+	}
+
+	private synchronized Child take() throws InterruptedException {
+		for (;;) {
+			while (queue.isEmpty() || ahead.size() >= window) {
+				wait();
+			}
+			Child c = queue.removeFirst();
+			if (!ahead.containsKey(c.score) && !unread.containsKey(c.score) && !cache.contains(c.score, c.type)) {
+				ahead.put(c.score, Boolean.TRUE);
+				return c;
+			}
+		}
+	}
+
+	private void fetch(Child c) {
+		Block block = null;
+		try {
+			block = storage.get(c.score, c.type);
+		} catch (IOException e) {
+			logger.error("prefetch of block {} failed: {}", c.score, e.getMessage());
+		}
+		synchronized (this) {
+			if (block == null) {
+				if (ahead.remove(c.score) != null) {
+					notifyAll();
+				}
+				return;
+			}
+			issued.incrementAndGet();
+			unread.put(c.score, Boolean.TRUE);
+		}
+		cache.put(block);
+	}
+
+	void exportMetrics() {
+		final String[] names = {"issued", "hits", "wasted", "dropped"};
+		final AtomicLong[] counters = {issued, hits, wasted, dropped};
+		for (int i = 0; i < names.length; i++) {
+			final AtomicLong counter = counters[i];
+			ServerMetrics.INSTANCE.gauge("prefetch_" + names[i], new Gauge() {
+				@Override
+				public long getValue() {
+					return counter.get();
+				}
+			});
+		}
+	}
+}
@@ -0,0 +1,13 @@
+package com.github.anastasop.koskino.storage;
+
+import java.io.IOException;
+
+import com.github.anastasop.koskino.Score;
+
+// Implemented by storage services that can hand out stored blocks as file
+// regions for zero-copy reads.
+public interface RegionStorageService extends StorageService {
+	// returns null if the block does not exist or is not stored raw, in which
+	// case the caller falls back to get()
+	BlockRegion getRegion(Score score, byte type) throws IOException;
+}
@@ -0,0 +1,374 @@
+package com.github.anastasop.koskino.storage;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.github.anastasop.koskino.Score;
+import com.github.anastasop.koskino.metrics.Gauge;
+import com.github.anastasop.koskino.metrics.ServerMetrics;
+
+// A Bloom filter of the stored scores, asked before the index or the file
+// system so that looking up a block that is not stored costs no disk access.
+// The bits of a score are all in one line of 64 bytes, a cache line, and as
+// scores are SHA-1 hashes their bytes serve as the hash functions. When a
+// layer holds the scores it was sized for a layer twice as large is added,
+// so the filter grows with the store. Lookups and adds do not lock.
+//
+// Until it has seen every stored score the filter is not ready and answers
+// that any score may be stored. The storage saves it on a clean shutdown
+// and the file is good for the next start only; after a crash the filter is
+// built again from the index.
+//
+// file, big endian: magic (kosbloom), version, bits per score, blocks in the
+// store when saved (64 bit), layer count, then per layer its capacity and
+// count (64 bit), its length in longs and the longs, and a CRC32 of it all
+public class ScoreFilter {
+	public static final int DEFAULT_BITS_PER_SCORE = 16;
+	private static final long MIN_CAPACITY = 1 << 20;
+	private static final int LINE_LONGS = 8;
+	private static final int LINE_BITS = LINE_LONGS * 64;
+	private static final int MAX_LINES = 1 << 27;
+	private static final byte[] MAGIC = "kosbloom".getBytes();
+	private static final int VERSION = 1;
+
+	private static Logger logger = LoggerFactory.getLogger(ScoreFilter.class);
+
+	private static class Layer {
+		final long capacity;
+		final AtomicLong count = new AtomicLong();
+		final AtomicLongArray words;
+		final int lineMask;
+
+		Layer(long capacity, AtomicLongArray words) {
+			this.capacity = capacity;
+			this.words = words;
+			this.lineMask = words.length() / LINE_LONGS - 1;
+		}
+
+		// a power of two of lines, at least bitsPerScore bits a score
+		static Layer forCapacity(long capacity, int bitsPerScore) {
+			int lines = 1;
+			while ((long)lines * LINE_BITS < capacity * bitsPerScore && lines < MAX_LINES) {
+				lines *= 2;
+			}
+			return new Layer(capacity, new AtomicLongArray(lines * LINE_LONGS));
+		}
+
+		boolean contains(long h1, long h2, int k) {
+			int line = ((int)h1 & lineMask) * LINE_LONGS;
+			int a = (int)h2;
+			int b = (int)(h2 >>> 32) | 1;
+			for (int i = 0; i < k; i++) {
+				int bit = (a + i * b) & (LINE_BITS - 1);
+				if ((words.get(line + (bit >>> 6)) & (1L << bit)) == 0) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		void add(long h1, long h2, int k) {
+			int line = ((int)h1 & lineMask) * LINE_LONGS;
+			int a = (int)h2;
+			int b = (int)(h2 >>> 32) | 1;
+			for (int i = 0; i < k; i++) {
+				int bit = (a + i * b) & (LINE_BITS - 1);
+				int w = line + (bit >>> 6);
+				long mask = 1L << bit;
+				for (;;) {
+					long v = words.get(w);
+					if ((v & mask) != 0 || words.compareAndSet(w, v, v | mask)) {
+						break;
+					}
+				}
+			}
+		}
+	}
+
+	private final int bitsPerScore;
+	// bits set per score, fewer than a plain Bloom filter would as they share
+	// a line
+	private final int k;
+	// replaced as a whole when a layer is added
+	private volatile Layer[] layers;
+	private volatile boolean ready;
+	private final AtomicLong negatives = new AtomicLong();
+	private final AtomicLong falsePositives = new AtomicLong();
+
+	// An empty filter for about expectedScores, not ready. With bitsPerScore
+	// 0 the filter is disabled: it keeps nothing and is never ready.
+	public ScoreFilter(long expectedScores, int bitsPerScore) {
+		this(bitsPerScore, bitsPerScore > 0
+				? new Layer[] {Layer.forCapacity(Math.max(expectedScores, MIN_CAPACITY), bitsPerScore)}
+				: new Layer[0]);
+	}
+
+	private ScoreFilter(int bitsPerScore, Layer[] layers) {
+		this.bitsPerScore = bitsPerScore;
+		this.k = Math.max(1, Math.min(12, Math.round(bitsPerScore * 0.6f)));
+		this.layers = layers;
+	}
+
+	// The filter of a store indexed by index: the one saved in file by the
+	// last clean shutdown, if the index holds as many blocks as it did then,
+	// or else one built from the index.
+	public static ScoreFilter open(File file, BlockIndex index, int bitsPerScore) throws IOException {
+		if (bitsPerScore <= 0) {
+			return new ScoreFilter(0, 0);
+		}
+		ScoreFilter filter = load(file, index.size(), bitsPerScore);
+		if (filter != null) {
+			return filter;
+		}
+		long start = System.nanoTime();
+		final ScoreFilter built = new ScoreFilter(index.size() * 2, bitsPerScore);
+		index.forEach(new BlockIndex.Visitor() {
+			@Override
+			public void visit(Score score, BlockAddress address) {
+				built.add(score);
+			}
+		});
+		built.setReady();
+		logger.info("score filter built from {} indexed blocks in {} ms", index.size(),
+				(System.nanoTime() - start) / 1000000);
+		return built;
+	}
+
+	// Loads and deletes the filter saved in file, so that it is not trusted
+	// again after a crash. Returns null if there is none, if it is damaged
+	// or if it was saved with other settings or, unless blocks is negative,
+	// for a store of another number of blocks.
+	public static ScoreFilter load(File file, long blocks, int bitsPerScore) throws IOException {
+		if (!file.exists()) {
+			return null;
+		}
+		ScoreFilter filter = null;
+		CRC32 crc = new CRC32();
+		try (DataInputStream in = new DataInputStream(new CheckedInputStream(
+				new BufferedInputStream(new FileInputStream(file), 1 << 16), crc))) {
+			byte[] magic = new byte[MAGIC.length];
+			in.readFully(magic);
+			if (!Arrays.equals(magic, MAGIC) || in.readInt() != VERSION) {
+				logger.warn("{} is not a score filter, ignored", file);
+			} else if (in.readInt() != bitsPerScore) {
+				logger.info("score filter {} has other settings, built again", file);
+			} else {
+				long saved = in.readLong();
+				int nLayers = in.readInt();
+				if (nLayers < 1 || nLayers > 64) {
+					throw new IOException("bad layer count " + nLayers);
+				}
+				Layer[] layers = new Layer[nLayers];
+				for (int i = 0; i < layers.length; i++) {
+					long capacity = in.readLong();
+					long count = in.readLong();
+					int n = in.readInt();
+					if (n <= 0 || n % LINE_LONGS != 0 || Integer.bitCount(n) != 1 || n > MAX_LINES * LINE_LONGS) {
+						throw new IOException("bad layer length " + n);
+					}
+					AtomicLongArray words = new AtomicLongArray(n);
+					for (int j = 0; j < n; j++) {
+						words.set(j, in.readLong());
+					}
+					layers[i] = new Layer(capacity, words);
+					layers[i].count.set(count);
+				}
+				int expected = (int)crc.getValue();
+				if (in.readInt() != expected) {
+					logger.warn("score filter {} is damaged, ignored", file);
+				} else if (blocks >= 0 && saved != blocks) {
+					logger.warn("score filter {} was saved with {} blocks, the store has {}, ignored", file, saved, blocks);
+				} else {
+					filter = new ScoreFilter(bitsPerScore, layers);
+					filter.setReady();
+					logger.info("score filter loaded from {}, {} layers", file, layers.length);
+				}
+			}
+		} catch (IOException e) {
+			// damaged, truncated or unreadable, the filter is built again
+			logger.warn("score filter {} cannot be loaded, ignored: {}", file, e.toString());
+		}
+		if (!file.delete()) {
+			throw new IOException("cannot delete " + file);
+		}
+		Arena.forceDirectory(file.getAbsoluteFile().getParentFile());
+		return filter;
+	}
+
+	// Saves a ready filter for the next start, with the number of blocks in
+	// the store. Written aside and renamed, so a crash leaves no file or a
+	// whole one.
+	public void save(File file, long blocks) throws IOException {
+		if (!ready) {
+			return;
+		}
+		Layer[] current = layers;
+		File tmp = new File(file.getPath() + ".tmp");
+		CRC32 crc = new CRC32();
+		FileOutputStream fos = new FileOutputStream(tmp);
+		try (DataOutputStream out = new DataOutputStream(new CheckedOutputStream(new BufferedOutputStream(fos, 1 << 16), crc))) {
+			out.write(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(bitsPerScore);
+			out.writeLong(blocks);
+			out.writeInt(current.length);
+			for (Layer layer : current) {
+				out.writeLong(layer.capacity);
+				out.writeLong(layer.count.get());
+				out.writeInt(layer.words.length());
+				for (int i = 0; i < layer.words.length(); i++) {
+					out.writeLong(layer.words.get(i));
+				}
+			}
+			out.writeInt((int)crc.getValue());
+			out.flush();
+			fos.getFD().sync();
+		}
+		Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		Arena.forceDirectory(file.getAbsoluteFile().getParentFile());
+	}
+
+	private static long getLong(byte[] b, int off) {
+		long v = 0;
+		for (int i = 0; i < 8; i++) {
+			v = v << 8 | (b[off + i] & 0xFF);
+		}
+		return v;
+	}
+
+	// false only if the score is certainly not stored
+	public boolean mightContain(Score score) {
+		if (mightContainUncounted(score)) {
+			return true;
+		}
+		negatives.incrementAndGet();
+		return false;
+	}
+
+	// for a lookup that is followed by another when the block is not found,
+	// as the zero-copy read is by get(), so that a miss is counted once
+	public boolean mightContainUncounted(Score score) {
+		if (!ready) {
+			return true;
+		}
+		byte[] b = score.getBytes();
+		long h1 = getLong(b, 0);
+		long h2 = getLong(b, 8);
+		for (Layer layer : layers) {
+			if (layer.contains(h1, h2, k)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	// called before the block is stored, so a lookup never misses it
+	public void add(Score score) {
+		Layer[] current = layers;
+		if (current.length == 0) {
+			return;
+		}
+		byte[] b = score.getBytes();
+		long h1 = getLong(b, 0);
+		long h2 = getLong(b, 8);
+		for (Layer layer : current) {
+			if (layer.contains(h1, h2, k)) {
+				return;
+			}
+		}
+		Layer last = current[current.length - 1];
+		if (last.count.get() >= last.capacity) {
+			last = grow(last);
+		}
+		last.add(h1, h2, k);
+		last.count.incrementAndGet();
+	}
+
+	private synchronized Layer grow(Layer full) {
+		Layer[] current = layers;
+		Layer last = current[current.length - 1];
+		if (last != full) {
+			return last;
+		}
+		Layer next = Layer.forCapacity(full.capacity * 2, bitsPerScore);
+		Layer[] grown = Arrays.copyOf(current, current.length + 1);
+		grown[current.length] = next;
+		layers = grown;
+		logger.info("score filter grew to {} layers, {} bytes", grown.length, getMemoryUsage());
+		return next;
+	}
+
+	// the filter has seen every stored score and may answer lookups
+	public void setReady() {
+		if (layers.length > 0) {
+			ready = true;
+		}
+	}
+
+	public boolean isReady() {
+		return ready;
+	}
+
+	// the storage found nothing for a score the filter let through
+	public void falsePositive() {
+		if (ready) {
+			falsePositives.incrementAndGet();
+		}
+	}
+
+	public long getMemoryUsage() {
+		long n = 0;
+		for (Layer layer : layers) {
+			n += layer.words.length() * 8L;
+		}
+		return n;
+	}
+
+	// The counters and the false positive rate, in parts per million of the
+	// lookups for scores that are not stored.
+	public void exportMetrics() {
+		ServerMetrics.INSTANCE.gauge("filter_memory_bytes", new Gauge() {
+			@Override
+			public long getValue() {
+				return getMemoryUsage();
+			}
+		});
+		ServerMetrics.INSTANCE.gauge("filter_negatives", new Gauge() {
+			@Override
+			public long getValue() {
+				return negatives.get();
+			}
+		});
+		ServerMetrics.INSTANCE.gauge("filter_false_positives", new Gauge() {
+			@Override
+			public long getValue() {
+				return falsePositives.get();
+			}
+		});
+		ServerMetrics.INSTANCE.gauge("filter_false_positive_ppm", new Gauge() {
+			@Override
+			public long getValue() {
+				long fp = falsePositives.get();
+				long all = fp + negatives.get();
+				return all == 0 ? 0 : fp * 1000000 / all;
+			}
+		});
+	}
+}
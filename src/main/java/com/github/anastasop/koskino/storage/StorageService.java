@@ -5,9 +5,13 @@ import java.io.IOException;
 import com.github.anastasop.koskino.Score;
 
 public interface StorageService extends AutoCloseable {
+	// The caller may reuse score once this returns; a cache or an index that
+	// keeps it keeps a copy.
 	Block get(Score score, byte type) throws IOException;
 	
-	Block put(byte[] data, byte type) throws IOException;
+	// stores data[off, off + len). The caller may reuse data once this returns.
+	// Returns the score of the block, or null if it could not be stored.
+	Score put(byte[] data, int off, int len, byte type) throws IOException;
 	
 	void sync() throws IOException;
 }
@@ -1,131 +1,324 @@
 package com.github.anastasop.koskino.storage;
 
+import java.io.ByteArrayInputStream;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicIntegerArray;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import ascient.threading.FCFSQueue;
 import ascient.threading.RunnableTask;
+import ascient.threading.Threads;
 
 import com.github.anastasop.koskino.Score;
 import com.github.anastasop.koskino.io.BackendBlockWriter;
 import com.github.anastasop.koskino.io.StrouckiRecordIOReader;
+import com.github.anastasop.koskino.metrics.ServerMetrics;
 
-public class StrouckiStorageService implements StorageService {
+public class StrouckiStorageService implements RegionStorageService {
 
   Object writeLock = new Object();
   private Logger logger = LoggerFactory.getLogger(StrouckiStorageService.class);
   private FCFSQueue<Block> blockQueue = new FCFSQueue<>("blockqueue");
+  // bounded, put waits while it is full
   private FCFSQueue<Void> saveQueue = new FCFSQueue<>("savequeue");
-  private FCFSQueue<Void> testQueue = new FCFSQueue<>("testqueue");
+
+  // a block handed to saveQueue whose file is not written yet
+  private static final class PendingWrite {
+    final BackendBlock block;
+    final RunnableTask<Void> task;
+
+    PendingWrite(BackendBlock block, RunnableTask<Void> task) {
+      this.block = block;
+      this.task = task;
+    }
+  }
+
+  // by file name, removed by the write once the file is complete, so a get
+  // that finds no file after put returned finds the block here
+  private final ConcurrentHashMap<String, PendingWrite> pendingWrites = new ConcurrentHashMap<>();
+  // writes that failed, kept until a sync has thrown for them
+  private final ConcurrentLinkedQueue<IOException> failedWrites = new ConcurrentLinkedQueue<>();
+  // written but not yet forced to stable storage
+  private final Set<String> dirtyFiles = newConcurrentSet();
+  private final Set<String> dirtyDirs = newConcurrentSet();
+  private final GroupCommit groupCommit = new GroupCommit(new GroupCommit.Flusher() {
+    @Override
+    public void flush() throws IOException {
+      forceDirty();
+    }
+  });
+
+  // saved at a clean shutdown; without it the filter is built by walking the
+  // block tree in the background and answers nothing until that is done
+  private static final File FILTER_FILE = new File("scores.filter");
+  // there once the top two levels of the tree are made
+  private static final File FANOUT_MARK = new File("fanout.mark");
+  // a bit for each directory of the third level, aa/bb/cc, known to exist
+  private final AtomicIntegerArray knownDirs = new AtomicIntegerArray(1 << 19);
+  private ScoreFilter filter = new ScoreFilter(0, 0);
+
+  private static <T> Set<T> newConcurrentSet() {
+    return Collections.newSetFromMap(new ConcurrentHashMap<T, Boolean>());
+  }
   
   public StrouckiStorageService() {
-    Runnable loader = new Runnable() {
+  }
 
-      @Override
-      public void run() {
-       while (true) {
-         logger.error("1");
-         Callable<Void> callable = new Callable<Void>() {
-
-          @Override
-          public Void call() throws Exception {
-           Thread.sleep(1000);
-           return null;
-          }
-        };
-        logger.error("2");
-  
-        RunnableTask<Void> task = new RunnableTask<Void>(callable);
-        testQueue.put(task);
-        logger.error("3");
-
-        
-        new BackgroundTask(task).start();
-        logger.error("4");
-     
-       }
-        
-      }
-      
-    };
-    
-    //new Thread(loader).start();
+
+  private static final char[] HEX = "0123456789abcdef".toCharArray();
+  // "-<type>" for each type, as (long)type prints it
+  private static final String[] TYPE_SUFFIXES = new String[256];
+  static {
+    for (int i = 0; i < 256; i++) {
+      TYPE_SUFFIXES[i] = "-" + (long)(byte)i;
+    }
   }
+  // the length of "aa/bb/cc/dd/", of "aa/bb/cc" and of "aa/bb/cc/dd"
+  private static final int DIR_LENGTH = 12;
+  private static final int LEVEL3_LENGTH = 8;
+  private static final int LEAF_LENGTH = 11;
 
+  // "aa/bb/cc/dd/<score>-<type>", the first four bytes of the score name
+  // the directories; built in one pass from the score bytes
+  private static String blockPath(Score score, byte type) {
+    byte[] b = score.getBytes();
+    String suffix = TYPE_SUFFIXES[type & 0xFF];
+    char[] c = new char[DIR_LENGTH + 40 + suffix.length()];
+    for (int i = 0; i < 4; i++) {
+      c[3 * i] = HEX[(b[i] >> 4) & 0xF];
+      c[3 * i + 1] = HEX[b[i] & 0xF];
+      c[3 * i + 2] = '/';
+    }
+    for (int i = 0; i < 20; i++) {
+      c[DIR_LENGTH + 2 * i] = HEX[(b[i] >> 4) & 0xF];
+      c[DIR_LENGTH + 2 * i + 1] = HEX[b[i] & 0xF];
+    }
+    suffix.getChars(0, suffix.length(), c, DIR_LENGTH + 40);
+    return new String(c);
+  }
 
-  private static String getDirName(String fullName) {
-    char[] chars = fullName.toCharArray();
-    StringBuilder sb = new StringBuilder();
-    char[][] segments = new char[4][2];
-    System.arraycopy(chars, 0, segments[0], 0, 2);
-    System.arraycopy(chars, 2, segments[1], 0, 2);
-    System.arraycopy(chars, 4, segments[2], 0, 2);
-    System.arraycopy(chars, 6, segments[3], 0, 2);
+  // Creates the 65536 directories of the first two levels of the tree, once
+  // for the tree, so that puts never create or look for them.
+  private void createFanout() throws IOException {
+    if (FANOUT_MARK.exists()) {
+      return;
+    }
+    long start = System.nanoTime();
+    char[] c = new char[5];
+    c[2] = '/';
+    for (int i = 0; i < 256; i++) {
+      c[0] = HEX[i >> 4];
+      c[1] = HEX[i & 0xF];
+      for (int j = 0; j < 256; j++) {
+        c[3] = HEX[j >> 4];
+        c[4] = HEX[j & 0xF];
+        File dir = new File(new String(c));
+        if (!dir.mkdirs() && !dir.isDirectory()) {
+          throw new IOException("cannot create block directory " + dir);
+        }
+      }
+      forceDirectory(new String(c, 0, 2));
+    }
+    forceDirectory(".");
+    FANOUT_MARK.createNewFile();
+    forceDirectory(".");
+    logger.info("created the 65536 top block directories in {} ms", (System.nanoTime() - start) / 1000000);
+  }
 
-    sb.append(segments[0]).append('/');
-    sb.append(segments[1]).append('/');
-    sb.append(segments[2]).append('/');
-    sb.append(segments[3]).append('/');
+  private boolean isKnownDir(int level3) {
+    return (knownDirs.get(level3 >>> 5) & 1 << (level3 & 31)) != 0;
+  }
 
-    return sb.toString();
+  private void addKnownDir(int level3) {
+    int i = level3 >>> 5;
+    int bit = 1 << (level3 & 31);
+    for (;;) {
+      int bits = knownDirs.get(i);
+      if ((bits & bit) != 0 || knownDirs.compareAndSet(i, bits, bits | bit)) {
+        return;
+      }
+    }
   }
-  
-  private class BackgroundTask extends Thread {
-    RunnableTask<?> task;
-    
-    private BackgroundTask(RunnableTask<?> x) {
-      task = x;
+
+  // Makes the directory of the block at path, whose first three bytes are
+  // level3: the leaf and, unless known, its parent. A directory made is
+  // dirty in its parent.
+  private void createBlockDir(String path, int level3) throws IOException {
+    if (!isKnownDir(level3)) {
+      createDir(path.substring(0, LEVEL3_LENGTH), path.substring(0, 5));
+      addKnownDir(level3);
+    }
+    createDir(path.substring(0, LEAF_LENGTH), path.substring(0, LEVEL3_LENGTH));
+  }
+
+  private void createDir(String dir, String parent) throws IOException {
+    try {
+      Files.createDirectory(Paths.get(dir));
+      dirtyDirs.add(parent);
+    } catch (FileAlreadyExistsException e) {
+      // made by a put of another block
+    } catch (NoSuchFileException e) {
+      // the top levels are gone, make them again
+      if (new File(dir).mkdirs()) {
+        for (File d = new File(dir).getParentFile(); d != null; d = d.getParentFile()) {
+          dirtyDirs.add(d.getPath());
+        }
+        dirtyDirs.add(".");
+      }
+    }
+  }
+
+  // writes the block file unless there is one, with one create that fails
+  // if it exists
+  private void writeBlock(String path, Score score, BackendBlock backendBlock) {
+    try {
+      createBlockDir(path, (score.getBytes()[0] & 0xFF) << 16 | (score.getBytes()[1] & 0xFF) << 8 | (score.getBytes()[2] & 0xFF));
+    } catch (IOException e) {
+      logger.error("Failed to create the directory of block {}: {}", score, e);
+      throw new InternalError("failed to write block");
+    }
+    FileChannel channel;
+    try {
+      channel = FileChannel.open(Paths.get(path), StandardOpenOption.WRITE, StandardOpenOption.CREATE_NEW);
+    } catch (FileAlreadyExistsException e) {
+      logger.debug("Block {} already exists", score);
+      return;
+    } catch (IOException e) {
+      logger.error("Failed to write block: {}", e);
+      throw new InternalError("failed to write block");
     }
-    public void run() {
+    try {
+      ByteBuffer b = ByteBuffer.wrap(backendBlock.getData());
+      while (b.hasRemaining()) {
+        channel.write(b);
+      }
+      channel.close();
+      dirtyFiles.add(path);
+      dirtyDirs.add(path.substring(0, LEAF_LENGTH));
+    } catch (IOException e) {
+      logger.error("Failed to write block: {}", e);
       try {
-        //logger.error("waiting");
-        task.returnValue();
-        //logger.error("done");
-      } catch (InterruptedException e) {
-        // TODO Auto-generated catch block
-        e.printStackTrace();
-      } catch (ExecutionException e) {
-        // TODO Auto-generated catch block
-        e.printStackTrace();
+        channel.close();
+      } catch (IOException ignored) {
       }
+      new File(path).delete();
+      throw new InternalError("failed to write block");
     }
   }
 
+  // only a clean shutdown saves the filter, and loading it deletes it, so a
+  // saved filter has seen every block in the tree
+  private void openFilter(int filterBits) throws IOException {
+    if (filterBits <= 0) {
+      return;
+    }
+    ScoreFilter saved = ScoreFilter.load(FILTER_FILE, -1, filterBits);
+    if (saved != null) {
+      filter = saved;
+      return;
+    }
+    final ScoreFilter building = new ScoreFilter(0, filterBits);
+    filter = building;
+    Threads.newThread(new Runnable() {
+      @Override
+      public void run() {
+        long start = System.nanoTime();
+        long n = addScores(new File("."), 0, building);
+        building.setReady();
+        logger.info("score filter built from {} block files in {} ms", n, (System.nanoTime() - start) / 1000000);
+      }
+    }, "filterloader").start();
+  }
+
+  // blocks are at depth 4, in directories named by pairs of hex digits
+  private long addScores(File dir, int depth, ScoreFilter building) {
+    String[] names = dir.list();
+    if (names == null) {
+      return 0;
+    }
+    long n = 0;
+    for (String name : names) {
+      if (depth < 4) {
+        if (name.length() == 2 && parseHex(name, 0, 2) != null) {
+          n += addScores(new File(dir, name), depth + 1, building);
+        }
+        continue;
+      }
+      byte[] score = name.length() > 41 && name.charAt(40) == '-' ? parseHex(name, 0, 40) : null;
+      if (score != null) {
+        building.add(Score.fromBytes(score));
+        n++;
+      }
+    }
+    return n;
+  }
+
+  private static byte[] parseHex(String s, int from, int to) {
+    byte[] b = new byte[(to - from) / 2];
+    for (int i = 0; i < b.length; i++) {
+      int hi = Character.digit(s.charAt(from + 2 * i), 16);
+      int lo = Character.digit(s.charAt(from + 2 * i + 1), 16);
+      if (hi < 0 || lo < 0) {
+        return null;
+      }
+      b[i] = (byte)(hi << 4 | lo);
+    }
+    return b;
+  }
+
   @Override
   public void close() throws Exception {
-    // TODO Auto-generated method stub
-
+    sync();
+    filter.save(FILTER_FILE, -1);
   }
 
   @Override
   public Block get(final Score score, final byte type) throws IOException {
-    String scoreString = score.toString();
-    String dirName = getDirName(scoreString);
-    final File dataFile = new File(dirName+scoreString+"-"+(long)type);
-    Block block = null;
-    if (dataFile.exists()) {
-      long length = dataFile.length();
-      if (length > 70000) {
-        logger.error("Block size limited to 70000");;
-        return null;
-      }
+    if (!filter.mightContain(score)) {
+      return null;
+    }
+    final String fileName = blockPath(score, type);
+    PendingWrite pending = pendingWrites.get(fileName);
+    if (pending != null) {
+      return new StrouckiRecordIOReader(new ByteArrayInputStream(pending.block.getData()), type).readBlock();
+    }
 
+    // one open, and the size from it, instead of a stat for the existence
+    // and another for the length
     Callable<Block> callable = new Callable<Block>() {
 
       @Override
       public Block call() throws Exception {
-        FileInputStream is = new FileInputStream(dataFile);
-        StrouckiRecordIOReader reader = new StrouckiRecordIOReader(is, type);
-        Block out = reader.readBlock();
-        is.close();
-        return out;
+        try (FileChannel channel = FileChannel.open(Paths.get(fileName), StandardOpenOption.READ)) {
+          long length = channel.size();
+          if (length > 70000) {
+            logger.error("Block size limited to 70000");
+            return null;
+          }
+          ByteBuffer buf = ByteBuffer.allocate((int)length);
+          while (buf.hasRemaining() && channel.read(buf) >= 0) {
+          }
+          return new StrouckiRecordIOReader(new ByteArrayInputStream(buf.array(), 0, buf.position()), type).readBlock();
+        }
       }
 
     };
@@ -133,95 +326,213 @@ public class StrouckiStorageService implements StorageService {
     RunnableTask<Block> task = new RunnableTask<Block>(callable);
     blockQueue.put(task);
 
+    Block block = null;
     try {
       block = task.returnValue();
     } catch (InterruptedException e) {
       // TODO Auto-generated catch block
       e.printStackTrace();
     } catch (ExecutionException e) {
-      // TODO Auto-generated catch block
-      e.printStackTrace();
-    }
+      if (e.getCause() instanceof NoSuchFileException) {
+        filter.falsePositive();
+      } else {
+        logger.error("Could not read block {}: {}", score, e.getCause());
+      }
     }
 
     if (block == null) {
-      logger.debug("Block {} not found", scoreString);
+      logger.debug("Block {} not found", score);
       return null;
     }
 
     return block;
   }
 
+  // only blocks stored with the NONE compression marker can be sent as they
+  // are on disk
   @Override
-  public Block put(final byte[] data, final byte type) throws IOException {
-    if (data.length > 65536) {
+  public BlockRegion getRegion(Score score, byte type) throws IOException {
+    if (!filter.mightContainUncounted(score)) {
+      return null;
+    }
+    String fileName = blockPath(score, type);
+    // the file may be partly written, get() serves it from memory
+    if (pendingWrites.containsKey(fileName)) {
+      return null;
+    }
+    FileChannel channel;
+    try {
+      channel = FileChannel.open(Paths.get(fileName), StandardOpenOption.READ);
+    } catch (NoSuchFileException e) {
+      return null;
+    }
+    boolean keep = false;
+    try {
+      ByteBuffer header = ByteBuffer.allocate(BackendBlockWriter.HEADER_LENGTH);
+      while (header.hasRemaining()) {
+        if (channel.read(header, header.position()) < 0) {
+          return null;
+        }
+      }
+      byte[] h = header.array();
+      if (h[0] != 0 || !Arrays.equals(Arrays.copyOfRange(h, 1, 9), BackendBlockWriter.MAGIC)) {
+        return null;
+      }
+      int size = ((h[9] & 0xff) << 24) | ((h[10] & 0xff) << 16) | ((h[11] & 0xff) << 8) | (h[12] & 0xff);
+      if (!BackendBlockWriter.isRaw(h) || size > 65536
+          || channel.size() < BackendBlockWriter.HEADER_LENGTH + size) {
+        return null;
+      }
+      keep = true;
+      return new BlockRegion(channel, BackendBlockWriter.HEADER_LENGTH, size, true);
+    } finally {
+      if (!keep) {
+        channel.close();
+      }
+    }
+  }
+
+  @Override
+  public Score put(byte[] data, int off, int len, final byte type) throws IOException {
+    if (len > 65536) {
       logger.error("Block size limited to 65536");
       return null;
     }
-    final Block block = new Block(type, data);
-    final String scoreString = block.getScore().toString();
-    final String dirName = getDirName(scoreString);
-    final String fileName = dirName+scoreString+"-"+(long)type;
-    final File dataFile = new File(fileName);
+    final Score score = Score.forBlock(data, off, len);
+    final String fileName = blockPath(score, type);
+    boolean maybeStored = filter.mightContain(score);
+    if (maybeStored && (pendingWrites.containsKey(fileName) || new File(fileName).exists())) {
+      logger.debug("Block {} already exists", score);
+      ServerMetrics.INSTANCE.dedupHit();
+      return score;
+    }
+    if (maybeStored) {
+      filter.falsePositive();
+    }
+
+    // compress before returning, the caller reuses data afterwards
+    final BackendBlock backendBlock = BackendBlockWriter.fromData(type, score, data, off, len);
     
     Callable<Void> callable = new Callable<Void>() {
 
       @Override
       public Void call() {
-        if (dataFile.exists()) {
-          logger.debug("Block {} already exists", scoreString);
-          return null;
-        }
-        
-        BackendBlock backendBlock;
         try {
-          backendBlock = BackendBlockWriter.fromBlock(block);
-        } catch (IOException e1) {
-          e1.printStackTrace();
-          throw new InternalError("failed to create backend block");
+          writeBlock(fileName, score, backendBlock);
+        } catch (RuntimeException | Error e) {
+          failedWrites.add(new IOException("failed to write block " + score, e));
+          throw e;
+        } finally {
+          pendingWrites.remove(fileName);
         }
-        
-        synchronized (fileName) {
-          if (!dataFile.exists()) {
-            File dataDir = new File(dirName);
-            dataDir.mkdirs();
-
-            FileOutputStream os;
-            try {
-              os = new FileOutputStream(dataFile);
-            os.write(backendBlock.getData());
-           os.close();
-            } catch (IOException e) {
-              logger.error("Failed to write block: {}", e);
-              dataFile.delete();
-throw new InternalError("failed to write block");
-}
-  
-          } else {
-            // already exists
-            logger.debug("Block {} already exists", scoreString);
-          }
-        }
- return null;
+        return null;
       }
     };
     
+    // added first, a put coalesced with this one may return before it does
+    filter.add(score);
+    // a concurrent put of the same block is coalesced with this one
     RunnableTask<Void> task = new RunnableTask<Void>(callable);
+    if (pendingWrites.putIfAbsent(fileName, new PendingWrite(backendBlock, task)) != null) {
+      logger.debug("Block {} is being written", score);
+      ServerMetrics.INSTANCE.dedupHit();
+      return score;
+    }
+    ServerMetrics.INSTANCE.dedupMiss();
     saveQueue.put(task);
-    
-    new BackgroundTask(task).start();
-    return block;
+    return score;
 
   }
 
+  /**
+   * Returns once every block whose put() returned before the call is on
+   * stable storage. The writes still in saveQueue are waited for, then the
+   * files and directories they touched are forced in a group commit shared
+   * with concurrent callers. Throws if a write failed since the last sync
+   * that threw.
+   */
   @Override
   public void sync() throws IOException {
-    // TODO Auto-generated method stub
+    for (PendingWrite pending : new ArrayList<>(pendingWrites.values())) {
+      try {
+        pending.task.returnValue();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new IOException("interrupted while waiting for block writes");
+      } catch (ExecutionException e) {
+        // in failedWrites
+      }
+    }
+    groupCommit.sync();
+    IOException failed = failedWrites.poll();
+    if (failed != null) {
+      for (IOException more; (more = failedWrites.poll()) != null; ) {
+        failed.addSuppressed(more);
+      }
+      throw failed;
+    }
+  }
 
+  // Forces the files before the directories, so a directory entry never
+  // outlives its data. What fails to be forced stays dirty for the next sync.
+  private void forceDirty() throws IOException {
+    List<String> files = new ArrayList<>(dirtyFiles);
+    dirtyFiles.removeAll(files);
+    List<String> dirs = new ArrayList<>(dirtyDirs);
+    dirtyDirs.removeAll(dirs);
+    try {
+      for (int i = 0; i < files.size(); i++) {
+        try (FileChannel channel = FileChannel.open(Paths.get(files.get(i)), StandardOpenOption.READ)) {
+          channel.force(true);
+        } catch (IOException e) {
+          dirtyFiles.addAll(files.subList(i, files.size()));
+          throw e;
+        }
+      }
+      for (String dir : dirs) {
+        forceDirectory(dir);
+      }
+    } catch (IOException e) {
+      dirtyDirs.addAll(dirs);
+      throw e;
+    }
   }
 
-  public static StorageService forName(File arenaDir, String arenaName) {
-    return new StrouckiStorageService();
+  private void forceDirectory(String dir) throws IOException {
+    try (FileChannel channel = FileChannel.open(Paths.get(dir), StandardOpenOption.READ)) {
+      channel.force(true);
+    } catch (IOException e) {
+      // some platforms cannot open a directory for fsync; the entries are
+      // then as durable as the file system makes them
+      if (Files.isDirectory(Paths.get(dir))) {
+        logger.debug("cannot force directory {}: {}", dir, e.getMessage());
+        return;
+      }
+      throw e;
+    }
+  }
+
+  public static StorageService forName(File arenaDir, String arenaName) throws IOException {
+    return forName(arenaDir, arenaName, ScoreFilter.DEFAULT_BITS_PER_SCORE);
+  }
+
+  // filterBits are the bits a block of the score filter, none if 0
+  public static StorageService forName(File arenaDir, String arenaName, int filterBits) throws IOException {
+    final StrouckiStorageService storage = new StrouckiStorageService();
+    storage.createFanout();
+    storage.openFilter(filterBits);
+    storage.filter.exportMetrics();
+    Runtime.getRuntime().addShutdownHook(new Thread() {
+      @Override
+      public void run() {
+        try {
+          storage.close();
+        } catch (Exception e) {
+          e.printStackTrace();
+        }
+      }
+    });
+    return storage;
   }
 
 }
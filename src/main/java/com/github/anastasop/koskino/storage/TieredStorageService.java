@@ -0,0 +1,273 @@
+package com.github.anastasop.koskino.storage;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import ascient.threading.Threads;
+
+import com.github.anastasop.koskino.Score;
+import com.github.anastasop.koskino.metrics.Gauge;
+import com.github.anastasop.koskino.metrics.ServerMetrics;
+
+// Keeps the arenas of an ArenaStorageService on two tiers: the fast
+// directories, where new arenas are created and so every write lands, and a
+// capacity directory on larger and slower devices. A background thread counts
+// the gets of each arena, halved every round so old reads fade, and once the
+// fast tier holds more than fastBytes moves the coldest full arenas to the
+// capacity tier, and the hottest ones back while there is room. An arena
+// moves whole, in one sequential copy, and keeps its id and offsets, so the
+// one index finds the blocks on either tier.
+public class TieredStorageService implements RegionStorageService {
+	public static final long DEFAULT_INTERVAL_MS = 60 * 1000;
+	// the halved gets a round that bring an arena back to the fast tier
+	public static final long PROMOTE_READS = 1024;
+
+	private Logger logger = LoggerFactory.getLogger(TieredStorageService.class);
+	private final ArenaStorageService storage;
+	private final File capacityDir;
+	private final long fastBytes;
+	private final long intervalMs;
+	// only used by the tiering thread
+	private long[] heat = new long[0];
+	private int nextFastDir;
+	private final AtomicLong fastUsed = new AtomicLong();
+	private final AtomicLong capacityUsed = new AtomicLong();
+	private final AtomicLong demoted = new AtomicLong();
+	private final AtomicLong promoted = new AtomicLong();
+	private final Object lock = new Object();
+	// guarded by lock
+	private boolean stopped;
+	private final Thread tierer;
+
+	TieredStorageService(ArenaStorageService storage, File capacityDir, long fastBytes, long intervalMs) {
+		this.storage = storage;
+		this.capacityDir = capacityDir;
+		this.fastBytes = fastBytes;
+		this.intervalMs = intervalMs;
+		this.tierer = Threads.newThread(new Runnable() {
+			@Override
+			public void run() {
+				tier();
+			}
+		}, "tierer");
+		tierer.setDaemon(true);
+	}
+
+	// Opens the arenas in fastDirs and capacityDir as
+	// ArenaStorageService.forName does, and keeps at most fastBytes of full
+	// arenas in fastDirs.
+	public static TieredStorageService forName(File[] fastDirs, File capacityDir, long fastBytes, String arenaName,
+			long arenaSize, int writers, BlockIndex index, int filterBits) throws IOException {
+		if (fastBytes < 0) {
+			throw new IllegalArgumentException("the fast tier cannot hold less than nothing");
+		}
+		ArenaStorageService storage = ArenaStorageService.forName(fastDirs, capacityDir, arenaName, arenaSize,
+				writers, index, filterBits);
+		// copies a crash left unfinished
+		for (File dir : storage.arenaDirs()) {
+			deleteCopies(dir, arenaName);
+		}
+		deleteCopies(capacityDir, arenaName);
+		final TieredStorageService tiered = new TieredStorageService(storage, capacityDir, fastBytes,
+				DEFAULT_INTERVAL_MS);
+		tiered.exportMetrics();
+		tiered.tierer.start();
+		Runtime.getRuntime().addShutdownHook(new Thread() {
+			@Override
+			public void run() {
+				try {
+					tiered.close();
+				} catch (Exception e) {
+					e.printStackTrace();
+				}
+			}
+		});
+		return tiered;
+	}
+
+	private static void deleteCopies(File dir, final String arenaName) throws IOException {
+		File[] copies = dir.listFiles(new FilenameFilter() {
+			@Override
+			public boolean accept(File dir, String name) {
+				return name.startsWith(arenaName + ".") && name.endsWith(".arena.tmp");
+			}
+		});
+		if (copies == null) {
+			throw new IOException("cannot list arena directory " + dir);
+		}
+		for (File copy : copies) {
+			Files.delete(copy.toPath());
+		}
+	}
+
+	private void tier() {
+		for (;;) {
+			synchronized (lock) {
+				long until = System.currentTimeMillis() + intervalMs;
+				for (long left = intervalMs; !stopped && left > 0; left = until - System.currentTimeMillis()) {
+					try {
+						lock.wait(left);
+					} catch (InterruptedException e) {
+						return;
+					}
+				}
+				if (stopped) {
+					return;
+				}
+			}
+			try {
+				retier();
+			} catch (IOException e) {
+				logger.error("moving arenas between the tiers failed: {}", e.getMessage());
+			}
+		}
+	}
+
+	// one round of the tiering thread
+	void retier() throws IOException {
+		Arena[] arenas = storage.arenas();
+		long[] reads = storage.takeReads(arenas.length);
+		if (heat.length < arenas.length) {
+			heat = Arrays.copyOf(heat, arenas.length);
+		}
+		long fast = 0;
+		long capacity = 0;
+		List<Arena> cold = new ArrayList<>();
+		List<Arena> hot = new ArrayList<>();
+		for (int i = 0; i < arenas.length; i++) {
+			heat[i] = heat[i] / 2 + reads[i];
+			Arena arena = arenas[i];
+			if (arena == null) {
+				continue;
+			}
+			if (inCapacityTier(arena)) {
+				capacity += arena.getSize();
+				if (heat[i] >= PROMOTE_READS) {
+					hot.add(arena);
+				}
+			} else {
+				fast += arena.getSize();
+				if (!storage.isWriting(arena)) {
+					cold.add(arena);
+				}
+			}
+		}
+		// the coldest first, the oldest of those
+		Collections.sort(cold, new Comparator<Arena>() {
+			@Override
+			public int compare(Arena a, Arena b) {
+				int c = Long.compare(heat[a.getId()], heat[b.getId()]);
+				return c != 0 ? c : Integer.compare(a.getId(), b.getId());
+			}
+		});
+		Collections.sort(hot, new Comparator<Arena>() {
+			@Override
+			public int compare(Arena a, Arena b) {
+				return Long.compare(heat[b.getId()], heat[a.getId()]);
+			}
+		});
+		for (Arena arena : cold) {
+			if (fast <= fastBytes) {
+				break;
+			}
+			move(arena, capacityDir);
+			fast -= arena.getSize();
+			capacity += arena.getSize();
+			demoted.incrementAndGet();
+		}
+		for (Arena arena : hot) {
+			if (fast + arena.getSize() > fastBytes) {
+				break;
+			}
+			File[] fastDirs = storage.arenaDirs();
+			move(arena, fastDirs[nextFastDir++ % fastDirs.length]);
+			fast += arena.getSize();
+			capacity -= arena.getSize();
+			promoted.incrementAndGet();
+		}
+		fastUsed.set(fast);
+		capacityUsed.set(capacity);
+	}
+
+	private boolean inCapacityTier(Arena arena) {
+		return capacityDir.equals(arena.getFile().getParentFile());
+	}
+
+	// Nothing is appended to the arena once sealed, so the copy holds all its
+	// records. The original is closed and deleted once the copy has taken its
+	// place; its channel stays open for the reads and regions still using it.
+	private void move(Arena arena, File dir) throws IOException {
+		long start = System.nanoTime();
+		arena.seal();
+		Arena copy = arena.copyTo(new File(dir, arena.getFile().getName()));
+		try {
+			storage.replace(arena, copy);
+		} catch (IOException e) {
+			// the next start finds both and keeps one
+			copy.close();
+			throw e;
+		}
+		arena.close();
+		Files.delete(arena.getFile().toPath());
+		Arena.forceDirectory(arena.getFile().getAbsoluteFile().getParentFile());
+		logger.info("moved arena {} to {} in {} ms", arena.getFile(), dir, (System.nanoTime() - start) / 1000000);
+	}
+
+	@Override
+	public Block get(Score score, byte type) throws IOException {
+		return storage.get(score, type);
+	}
+
+	@Override
+	public BlockRegion getRegion(Score score, byte type) throws IOException {
+		return storage.getRegion(score, type);
+	}
+
+	@Override
+	public Score put(byte[] data, int off, int len, byte type) throws IOException {
+		return storage.put(data, off, len, type);
+	}
+
+	@Override
+	public void sync() throws IOException {
+		storage.sync();
+	}
+
+	void exportMetrics() {
+		final String[] names = {"fast_bytes", "capacity_bytes", "demoted", "promoted"};
+		final AtomicLong[] counters = {fastUsed, capacityUsed, demoted, promoted};
+		for (int i = 0; i < names.length; i++) {
+			final AtomicLong counter = counters[i];
+			ServerMetrics.INSTANCE.gauge("tier_" + names[i], new Gauge() {
+				@Override
+				public long getValue() {
+					return counter.get();
+				}
+			});
+		}
+	}
+
+	// waits for a move in progress, so the arenas are closed as they are
+	@Override
+	public void close() throws Exception {
+		synchronized (lock) {
+			stopped = true;
+			lock.notifyAll();
+		}
+		if (Thread.currentThread() != tierer) {
+			tierer.join();
+		}
+		storage.close();
+	}
+}
@@ -0,0 +1,41 @@
+package com.github.anastasop.koskino.tools;
+
+import java.io.IOException;
+
+import org.kohsuke.args4j.CmdLineException;
+import org.kohsuke.args4j.CmdLineParser;
+
+import com.github.anastasop.koskino.storage.FileStorageService;
+
+// Rebuilds the .idx and the index checkpoint of a file engine arena from the
+// footers of its sealed log segments and a scan of the others by all cores,
+// and reports the throughput and any corrupt regions. With --verify it only
+// checks the sealed segments against their CRC. The server must not be
+// running on the arena. Run with
+//   java -cp koskino.jar com.github.anastasop.koskino.tools.RebuildIndex -d DIR
+// At startup the server rescans by itself the part of the log its .idx misses.
+public class RebuildIndex {
+	public static void main(String[] args) {
+		RebuildIndexOptions options = new RebuildIndexOptions();
+		CmdLineParser parser = new CmdLineParser(options);
+		try {
+			parser.parseArgument(args);
+		} catch (CmdLineException e) {
+			System.err.println(e.getMessage());
+			System.err.printf("Usage:%n");
+			parser.printUsage(System.err);
+			System.exit(2);
+		}
+		try {
+			if (options.verify) {
+				System.out.println(FileStorageService.verifyLog(options.arenaDir, options.arenaName));
+				return;
+			}
+			System.out.println(FileStorageService.rebuildIndex(options.arenaDir, options.arenaName, options.threads));
+		} catch (IOException e) {
+			System.err.printf("%s of %s/%s failed: %s%n", options.verify ? "verify" : "rebuild", options.arenaDir,
+					options.arenaName, e.getMessage());
+			System.exit(1);
+		}
+	}
+}
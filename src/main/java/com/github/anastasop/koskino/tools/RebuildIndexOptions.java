@@ -0,0 +1,19 @@
+package com.github.anastasop.koskino.tools;
+
+import java.io.File;
+
+import org.kohsuke.args4j.Option;
+
+public class RebuildIndexOptions {
+	@Option(name = "-d", aliases = {"--arenas"}, usage = "directory of the arena", required = true)
+	public File arenaDir;
+
+	@Option(name = "-u", aliases = {"--use"}, usage = "arena name. Default arena", required = false)
+	public String arenaName = "arena";
+
+	@Option(name = "-t", aliases = {"--threads"}, usage = "threads that scan the log. Default the number of cores", required = false)
+	public Integer threads = Runtime.getRuntime().availableProcessors();
+
+	@Option(name = "--verify", usage = "only check the sealed log segments against their CRC", required = false)
+	public boolean verify = false;
+}
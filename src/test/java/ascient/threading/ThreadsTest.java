@@ -0,0 +1,82 @@
+package ascient.threading;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Test;
+
+public class ThreadsTest {
+	@After
+	public void platform() {
+		Threads.useVirtualThreads(false);
+	}
+
+	// all of them run at once
+	private void runsConcurrently(ExecutorService pool, int n) throws Exception {
+		final CountDownLatch started = new CountDownLatch(n);
+		final CountDownLatch done = new CountDownLatch(1);
+		for (int i = 0; i < n; i++) {
+			pool.execute(new Runnable() {
+				@Override
+				public void run() {
+					started.countDown();
+					try {
+						done.await();
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+					}
+				}
+			});
+		}
+		assertTrue(started.await(10, TimeUnit.SECONDS));
+		done.countDown();
+		pool.shutdown();
+		assertTrue(pool.awaitTermination(10, TimeUnit.SECONDS));
+	}
+
+	@Test
+	public void platformThreads() throws Exception {
+		assertTrue(Threads.useVirtualThreads(false));
+		assertFalse(Threads.isVirtual());
+		assertEquals(4, Threads.poolSize(4));
+		Thread t = Threads.newThread(new Runnable() {
+			@Override
+			public void run() {
+			}
+		}, "worker");
+		assertEquals("worker", t.getName());
+		assertEquals(Thread.State.NEW, t.getState());
+		runsConcurrently(Threads.newPool(4), 4);
+	}
+
+	// Java 17 has no virtual threads and falls back, Java 21 has them
+	@Test
+	public void virtualThreadsOrFallback() throws Exception {
+		boolean available = Threads.useVirtualThreads(true);
+		assertEquals(available, Threads.isVirtual());
+		if (available) {
+			assertEquals(256, Threads.poolSize(4));
+			// a thread per task, many more than the platform pool
+			runsConcurrently(Threads.newPool(4), 1000);
+		} else {
+			assertEquals(4, Threads.poolSize(4));
+			runsConcurrently(Threads.newPool(4), 4);
+		}
+		final CountDownLatch ran = new CountDownLatch(1);
+		Thread t = Threads.newThread(new Runnable() {
+			@Override
+			public void run() {
+				ran.countDown();
+			}
+		}, "worker");
+		assertEquals("worker", t.getName());
+		t.start();
+		assertTrue(ran.await(10, TimeUnit.SECONDS));
+	}
+}
@@ -0,0 +1,43 @@
+package com.github.anastasop.koskino;
+
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// holds the puts of blocks of type GATED until open() is called, so a test
+// can keep requests outstanding
+class GatedStorage extends MemoryStorage {
+	static final byte GATED = 9;
+
+	private final CountDownLatch gate = new CountDownLatch(1);
+	// puts that reached the gate
+	final AtomicInteger waiting = new AtomicInteger();
+
+	void open() {
+		gate.countDown();
+	}
+
+	// waits until n puts reached the gate
+	void awaitWaiting(int n) throws InterruptedException {
+		for (int i = 0; waiting.get() < n; i++) {
+			if (i == 200) {
+				throw new AssertionError(waiting.get() + " puts at the gate, expected " + n);
+			}
+			Thread.sleep(50);
+		}
+	}
+
+	@Override
+	public Score put(byte[] data, int off, int len, byte type) throws IOException {
+		if (type == GATED) {
+			waiting.incrementAndGet();
+			try {
+				gate.await(10, TimeUnit.SECONDS);
+			} catch (InterruptedException e) {
+				throw new IOException(e);
+			}
+		}
+		return super.put(data, off, len, type);
+	}
+}
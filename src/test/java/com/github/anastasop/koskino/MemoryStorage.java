@@ -0,0 +1,34 @@
+package com.github.anastasop.koskino;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.github.anastasop.koskino.storage.Block;
+import com.github.anastasop.koskino.storage.StorageService;
+
+// blocks in a map, for the tests of the servers
+class MemoryStorage implements StorageService {
+	final ConcurrentHashMap<String, Block> blocks = new ConcurrentHashMap<>();
+
+	@Override
+	public Block get(Score score, byte type) throws IOException {
+		Block b = blocks.get(score.toString());
+		return b != null && b.getType() == type? b: null;
+	}
+
+	@Override
+	public Score put(byte[] data, int off, int len, byte type) throws IOException {
+		Block b = new Block(type, Arrays.copyOfRange(data, off, off + len));
+		blocks.put(b.getScore().toString(), b);
+		return b.getScore();
+	}
+
+	@Override
+	public void sync() throws IOException {
+	}
+
+	@Override
+	public void close() {
+	}
+}
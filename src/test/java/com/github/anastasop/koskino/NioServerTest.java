@@ -0,0 +1,251 @@
+package com.github.anastasop.koskino;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.github.anastasop.koskino.storage.FileStorageService;
+import com.github.anastasop.koskino.storage.StorageService;
+
+public class NioServerTest {
+	@Rule
+	public TemporaryFolder tmp = new TemporaryFolder();
+
+	private static final MemoryStorage storage = new MemoryStorage();
+	private static int port;
+	private final Random random = new Random(1);
+
+	static int freePort() throws IOException {
+		try (ServerSocket s = new ServerSocket(0)) {
+			return s.getLocalPort();
+		}
+	}
+
+	// the server never stops, its threads are daemons
+	@BeforeClass
+	public static void start() throws Exception {
+		port = serve(storage, 32);
+	}
+
+	static int serve(StorageService storage, int maxInFlight) throws Exception {
+		int port = freePort();
+		Thread t = new Thread(new NioServer(port, storage, 2, 4, maxInFlight));
+		t.setDaemon(true);
+		t.start();
+		awaitListening(port);
+		return port;
+	}
+
+	static void awaitListening(int port) throws InterruptedException {
+		for (int i = 0; ; i++) {
+			try {
+				new VentiClient(port).close();
+				return;
+			} catch (IOException e) {
+				if (i == 100) {
+					throw new AssertionError("server not listening on " + port);
+				}
+				Thread.sleep(50);
+			}
+		}
+	}
+
+	private byte[] block(int len) {
+		byte[] data = new byte[len];
+		random.nextBytes(data);
+		return data;
+	}
+
+	@Test
+	public void writeReadSync() throws Exception {
+		try (VentiClient c = new VentiClient(port).handshake()) {
+			byte[] data = block(1000);
+			c.write(1, (byte)3, data);
+			VentiClient.Reply r = c.reply();
+			assertEquals(VtMessage.VtRwrite, r.type);
+			assertEquals(1, r.tag);
+			assertEquals(Score.forBlock(data).toString(), r.score().toString());
+
+			c.read(2, Score.forBlock(data), (byte)3, data.length);
+			r = c.reply();
+			assertEquals(VtMessage.VtRread, r.type);
+			assertEquals(2, r.tag);
+			assertArrayEquals(data, r.data());
+
+			// another type
+			c.read(3, Score.forBlock(data), (byte)4, data.length);
+			r = c.reply();
+			assertEquals(VtMessage.VtRerror, r.type);
+			assertEquals(3, r.tag);
+
+			c.sync(4);
+			r = c.reply();
+			assertEquals(VtMessage.VtRsync, r.type);
+			assertEquals(4, r.tag);
+		}
+	}
+
+	@Test
+	public void framesLargerThanTheReadBuffer() throws Exception {
+		try (VentiClient c = new VentiClient(port).handshake()) {
+			byte[][] blocks = new byte[8][];
+			for (int i = 0; i < blocks.length; i++) {
+				blocks[i] = block(56 * 1024 + i);
+				c.write(i, (byte)0, blocks[i]);
+			}
+			for (int i = 0; i < blocks.length; i++) {
+				VentiClient.Reply r = c.reply();
+				assertEquals(VtMessage.VtRwrite, r.type);
+				assertEquals(Score.forBlock(blocks[r.tag]).toString(), r.score().toString());
+			}
+			for (int i = 0; i < blocks.length; i++) {
+				c.read(i, Score.forBlock(blocks[i]), (byte)0, blocks[i].length);
+				VentiClient.Reply r = c.reply();
+				assertEquals(VtMessage.VtRread, r.type);
+				assertArrayEquals(blocks[i], r.data());
+			}
+		}
+	}
+
+	// the read buffer grows for the large frames, is kept while they come and
+	// shrinks back after a run of small ones
+	@Test
+	public void largeAndSmallFramesInterleaved() throws Exception {
+		try (VentiClient c = new VentiClient(port).handshake()) {
+			for (int round = 0; round < 3; round++) {
+				for (int i = 0; i < 80; i++) {
+					byte[] data = block(i % 4 == 0 || round == 1? 40 * 1024 + i: 10 + i);
+					c.write(1, (byte)0, data);
+					VentiClient.Reply r = c.reply();
+					assertEquals(VtMessage.VtRwrite, r.type);
+					c.read(2, Score.forBlock(data), (byte)0, data.length);
+					r = c.reply();
+					assertEquals(VtMessage.VtRread, r.type);
+					assertArrayEquals(data, r.data());
+				}
+				for (int i = 0; i < 70; i++) {
+					c.sync(3);
+					assertEquals(VtMessage.VtRsync, c.reply().type);
+				}
+			}
+		}
+	}
+
+	@Test
+	public void inFlightIsCapped() throws Exception {
+		GatedStorage gated = new GatedStorage();
+		try (VentiClient c = new VentiClient(serve(gated, 2)).handshake()) {
+			for (int i = 0; i < 4; i++) {
+				c.write(i, GatedStorage.GATED, block(100 + i));
+			}
+			gated.awaitWaiting(2);
+			Thread.sleep(200);
+			assertEquals(2, gated.waiting.get());
+			gated.open();
+			Set<Integer> tags = new HashSet<>();
+			for (int i = 0; i < 4; i++) {
+				tags.add(c.reply().tag);
+			}
+			assertEquals(4, tags.size());
+		}
+	}
+
+	@Test
+	public void goodbyeWaitsForTheReplies() throws Exception {
+		GatedStorage gated = new GatedStorage();
+		try (VentiClient c = new VentiClient(serve(gated, 32)).handshake()) {
+			c.write(1, GatedStorage.GATED, block(100));
+			gated.awaitWaiting(1);
+			c.goodbye();
+			gated.open();
+			VentiClient.Reply r = c.reply();
+			assertEquals(VtMessage.VtRwrite, r.type);
+			assertEquals(1, r.tag);
+			assertTrue(c.closedByServer());
+		}
+	}
+
+	@Test
+	public void aTagInUseIsRejected() throws Exception {
+		GatedStorage gated = new GatedStorage();
+		try (VentiClient c = new VentiClient(serve(gated, 32)).handshake()) {
+			c.write(1, GatedStorage.GATED, block(100));
+			gated.awaitWaiting(1);
+			c.sync(1);
+			VentiClient.Reply r = c.reply();
+			assertEquals(VtMessage.VtRerror, r.type);
+			assertEquals(1, r.tag);
+			assertTrue(r.error(), r.error().contains("already in use"));
+			gated.open();
+			r = c.reply();
+			assertEquals(VtMessage.VtRwrite, r.type);
+			assertEquals(1, r.tag);
+			// free again once answered
+			c.sync(1);
+			r = c.reply();
+			assertEquals(VtMessage.VtRsync, r.type);
+			assertEquals(1, r.tag);
+		}
+	}
+
+	@Test
+	public void anUnencodableReplyBecomesAnError() throws Exception {
+		MemoryStorage broken = new MemoryStorage() {
+			@Override
+			public Score put(byte[] data, int off, int len, byte type) {
+				// a score the serializer cannot write
+				return Score.fromBytes(null);
+			}
+		};
+		try (VentiClient c = new VentiClient(serve(broken, 32)).handshake()) {
+			c.write(1, (byte)0, block(100));
+			VentiClient.Reply r = c.reply();
+			assertEquals(VtMessage.VtRerror, r.type);
+			assertEquals(1, r.tag);
+			assertTrue(r.error(), r.error().startsWith("internal error"));
+			c.sync(2);
+			assertEquals(VtMessage.VtRsync, c.reply().type);
+		}
+	}
+
+	// random blocks do not compress, so the file engine stores them raw and
+	// the reads are sent as file regions
+	static void writeAndReadBack(VentiClient c, Random random) throws Exception {
+		byte[][] blocks = new byte[16][];
+		for (int i = 0; i < blocks.length; i++) {
+			blocks[i] = new byte[1 + random.nextInt(32 * 1024)];
+			random.nextBytes(blocks[i]);
+			c.write(i, (byte)0, blocks[i]);
+			assertEquals(VtMessage.VtRwrite, c.reply().type);
+		}
+		for (int i = 0; i < blocks.length; i++) {
+			c.read(i, Score.forBlock(blocks[i]), (byte)0, blocks[i].length);
+		}
+		for (int i = 0; i < blocks.length; i++) {
+			VentiClient.Reply r = c.reply();
+			assertEquals(VtMessage.VtRread, r.type);
+			assertArrayEquals(blocks[r.tag], r.data());
+		}
+	}
+
+	@Test
+	public void readsFileRegions() throws Exception {
+		FileStorageService files = FileStorageService.forName(tmp.getRoot(), "x");
+		try (VentiClient c = new VentiClient(serve(files, 32)).handshake()) {
+			writeAndReadBack(c, random);
+		} finally {
+			files.close();
+		}
+	}
+}
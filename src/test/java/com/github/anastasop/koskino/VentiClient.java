@@ -0,0 +1,121 @@
+package com.github.anastasop.koskino;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.Socket;
+import java.util.Arrays;
+
+// A venti client for the tests. It encodes the T-messages and parses the
+// R-messages itself, so the server's codec is checked against the protocol
+// and not against its own copy.
+class VentiClient implements Closeable {
+	final Socket socket;
+	private final DataInputStream in;
+	private final DataOutputStream out;
+
+	static class Reply {
+		final byte type;
+		final int tag;
+		final byte[] body;
+
+		Reply(byte[] body) {
+			this.type = body[0];
+			this.tag = body[1] & 0xFF;
+			this.body = body;
+		}
+
+		byte[] data() {
+			return Arrays.copyOfRange(body, 2, body.length);
+		}
+
+		Score score() {
+			return Score.fromBytes(Arrays.copyOfRange(body, 2, 22));
+		}
+
+		String error() {
+			int n = (body[2] & 0xFF) << 8 | body[3] & 0xFF;
+			return new String(body, 4, n);
+		}
+	}
+
+	VentiClient(int port) throws IOException {
+		socket = new Socket("localhost", port);
+		socket.setSoTimeout(10000);
+		in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+		// a frame in one write, not its length then its body
+		out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), 4 + VtMessageReader.MAX_MESSAGE_LENGTH));
+	}
+
+	// exchanges the version lines and the hello
+	VentiClient handshake() throws IOException {
+		out.write("venti-02-test\n".getBytes());
+		while (in.readByte() != '\n') {
+			// the server's version line
+		}
+		send(new byte[] {VtMessage.VtThello, 0, 0, 2, '0', '2', 0, 4, 't', 'e', 's', 't', 0, 0, 0});
+		Reply r = reply();
+		if (r.type != VtMessage.VtRhello) {
+			throw new IOException("no VtRhello: " + r.type);
+		}
+		return this;
+	}
+
+	void send(byte[] body) throws IOException {
+		out.writeShort(body.length);
+		out.write(body);
+		out.flush();
+	}
+
+	void write(int tag, byte type, byte[] data) throws IOException {
+		byte[] body = new byte[6 + data.length];
+		body[0] = VtMessage.VtTwrite;
+		body[1] = (byte)tag;
+		body[2] = type;
+		System.arraycopy(data, 0, body, 6, data.length);
+		send(body);
+	}
+
+	void read(int tag, Score score, byte type, int count) throws IOException {
+		byte[] body = new byte[26];
+		body[0] = VtMessage.VtTread;
+		body[1] = (byte)tag;
+		System.arraycopy(score.getBytes(), 0, body, 2, 20);
+		body[22] = type;
+		body[24] = (byte)(count >> 8);
+		body[25] = (byte)count;
+		send(body);
+	}
+
+	void sync(int tag) throws IOException {
+		send(new byte[] {VtMessage.VtTsync, (byte)tag});
+	}
+
+	void goodbye() throws IOException {
+		send(new byte[] {VtMessage.VtTgoodbye, 0});
+	}
+
+	Reply reply() throws IOException {
+		byte[] body = new byte[in.readUnsignedShort()];
+		in.readFully(body);
+		return new Reply(body);
+	}
+
+	// true if the server closed the connection
+	boolean closedByServer() throws IOException {
+		try {
+			return in.read() < 0;
+		} catch (IOException e) {
+			// reset
+			return true;
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		socket.close();
+	}
+}
@@ -0,0 +1,116 @@
+package com.github.anastasop.koskino;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class VtMessageReaderTest {
+	private final Random random = new Random(1);
+
+	// frames with a 4 byte length, VtThello switches the reader to them
+	private static byte[] frames(byte[]... bodies) throws Exception {
+		ByteArrayOutputStream b = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(b);
+		for (byte[] body : bodies) {
+			out.writeInt(body.length);
+			out.write(body);
+		}
+		return b.toByteArray();
+	}
+
+	private static byte[] twrite(int tag, byte[] data) {
+		byte[] body = new byte[6 + data.length];
+		body[0] = VtMessage.VtTwrite;
+		body[1] = (byte)tag;
+		System.arraycopy(data, 0, body, 6, data.length);
+		return body;
+	}
+
+	private static byte[] tread(int tag, byte[] score) {
+		byte[] body = new byte[28];
+		body[0] = VtMessage.VtTread;
+		body[1] = (byte)tag;
+		System.arraycopy(score, 0, body, 2, 20);
+		return body;
+	}
+
+	private VtMessageReader reader(byte[] frames) throws Exception {
+		VtMessageReader r = new VtMessageReader(new ByteArrayInputStream(frames));
+		r.setProtocolVersion("04");
+		return r;
+	}
+
+	@Test
+	public void writesAreReadIntoPooledBuffers() throws Exception {
+		byte[] a = new byte[1000];
+		byte[] b = new byte[2000];
+		random.nextBytes(a);
+		random.nextBytes(b);
+		VtMessageReader r = reader(frames(twrite(1, a), twrite(2, b)));
+		VtMessage m = r.read();
+		assertEquals(VtMessage.VtTwrite, m.msgType);
+		assertEquals(BufferPool.BUFFER_SIZE, m.data.length);
+		assertArrayEquals(a, Arrays.copyOfRange(m.data, m.dataOffset, m.dataOffset + m.dataLength));
+		m.recycle();
+		assertNull(m.data);
+		// the message comes back for the next request
+		VtMessage n = r.read();
+		assertSame(m, n);
+		assertEquals(2, n.tag);
+		assertArrayEquals(b, Arrays.copyOfRange(n.data, n.dataOffset, n.dataOffset + n.dataLength));
+	}
+
+	@Test
+	public void readsReuseTheScoreOfTheMessage() throws Exception {
+		byte[] s1 = new byte[20];
+		byte[] s2 = new byte[20];
+		random.nextBytes(s1);
+		random.nextBytes(s2);
+		VtMessageReader r = reader(frames(tread(1, s1), tread(2, s2)));
+		VtMessage m = r.read();
+		assertArrayEquals(s1, m.score.getBytes());
+		Score score = m.score;
+		m.recycle();
+		VtMessage n = r.read();
+		assertSame(score, n.score);
+		assertArrayEquals(s2, n.score.getBytes());
+	}
+
+	@Test
+	public void oversizedPayloadsAreNotPooled() throws Exception {
+		byte[] big = new byte[BufferPool.BUFFER_SIZE + 100];
+		random.nextBytes(big);
+		VtMessageReader r = reader(frames(twrite(1, big)));
+		VtMessage m = r.read();
+		assertEquals(6 + big.length, m.data.length);
+		assertArrayEquals(big, Arrays.copyOfRange(m.data, m.dataOffset, m.dataOffset + m.dataLength));
+		m.recycle();
+		assertNull(r.read());
+	}
+
+	@Test
+	public void poolRetainsAtMostItsLimit() {
+		BufferPool pool = new BufferPool(16, 2);
+		byte[] a = pool.acquire();
+		byte[] b = pool.acquire();
+		byte[] c = pool.acquire();
+		pool.release(a);
+		pool.release(b);
+		pool.release(c);
+		// a buffer of another size
+		pool.release(new byte[8]);
+		assertSame(a, pool.acquire());
+		assertSame(b, pool.acquire());
+		assertNotSame(c, pool.acquire());
+	}
+}
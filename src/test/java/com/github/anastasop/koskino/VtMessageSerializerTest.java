@@ -0,0 +1,117 @@
+package com.github.anastasop.koskino;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class VtMessageSerializerTest {
+	private final Random random = new Random(1);
+
+	private static byte[] bytes(ByteBuffer b) {
+		byte[] a = new byte[b.remaining()];
+		b.duplicate().get(a);
+		return a;
+	}
+
+	@Test
+	public void headerCountsThePayload() throws Exception {
+		VtMessage m = new VtMessage(VtMessage.VtRread, (byte)7);
+		byte[] data = new byte[1000];
+		random.nextBytes(data);
+		m.data = data;
+		m.dataOffset = 10;
+		m.dataLength = 900;
+		VtMessageSerializer s = new VtMessageSerializer();
+		ByteBuffer header = s.encodeHeader(m);
+		assertArrayEquals(new byte[] {(byte)(902 >> 8), (byte)902, VtMessage.VtRread, 7}, bytes(header));
+		// the payload is the block data itself, not a copy
+		ByteBuffer payload = VtMessageSerializer.payload(m);
+		assertSame(data, payload.array());
+		assertEquals(10, payload.position());
+		assertEquals(900, payload.remaining());
+	}
+
+	@Test
+	public void protocol04HasFourByteLengths() throws Exception {
+		VtMessageSerializer s = new VtMessageSerializer();
+		s.setProtocolVersion("04");
+		VtMessage m = new VtMessage(VtMessage.VtRsync, (byte)3);
+		assertArrayEquals(new byte[] {0, 0, 0, 2, VtMessage.VtRsync, 3}, bytes(s.encodeHeader(m)));
+	}
+
+	@Test
+	public void headersShareABufferUntilItIsFull() throws Exception {
+		VtMessageSerializer s = new VtMessageSerializer();
+		ByteBuffer b = ByteBuffer.allocate(10);
+		VtMessage sync = new VtMessage(VtMessage.VtRsync, (byte)1);
+		assertTrue(s.encodeHeader(sync, b));
+		assertTrue(s.encodeHeader(sync, b));
+		assertEquals(8, b.position());
+		VtMessage error = new VtMessage(VtMessage.VtRerror, (byte)2);
+		error.error = "no room for this";
+		assertFalse(s.encodeHeader(error, b));
+		// left as it was
+		assertEquals(8, b.position());
+		b.flip();
+		assertArrayEquals(new byte[] {0, 2, VtMessage.VtRsync, 1, 0, 2, VtMessage.VtRsync, 1}, bytes(b));
+		// on its own it fits
+		ByteBuffer alone = s.encodeHeader(error);
+		assertEquals(2 + 2 + 2 + error.error.length(), alone.remaining());
+	}
+
+	@Test
+	public void longErrorsGrowTheHeader() throws Exception {
+		char[] text = new char[20000];
+		Arrays.fill(text, 'e');
+		VtMessage m = new VtMessage(VtMessage.VtRerror, (byte)1);
+		m.error = new String(text);
+		ByteBuffer header = new VtMessageSerializer().encodeHeader(m);
+		// length, type, tag, then the string with its length
+		assertEquals(2 + 2 + 2 + text.length, header.remaining());
+		assertEquals(2 + 2 + text.length, header.getShort(0) & 0xFFFF);
+		assertEquals(text.length, header.getShort(4) & 0xFFFF);
+		assertEquals(m.error, new String(header.array(), 6, text.length));
+	}
+
+	// the client side messages decode to what was encoded
+	@Test
+	public void requestsRoundTrip() throws Exception {
+		VtMessageSerializer s = new VtMessageSerializer();
+		VtMessageReader r = new VtMessageReader();
+		VtMessage hello = new VtMessage(VtMessage.VtThello, (byte)0);
+		hello.version = "04";
+		hello.uid = "anonymous";
+		hello.crypto = "c";
+		hello.codec = "z";
+		ByteBuffer b = s.encodeHeader(hello);
+		VtMessage h = r.decode(b.array(), 2, b.remaining() - 2);
+		assertEquals("04", h.version);
+		assertEquals("anonymous", h.uid);
+		assertEquals("c", h.crypto);
+		assertEquals("z", h.codec);
+
+		s.setProtocolVersion("04");
+		r.setProtocolVersion("04");
+		VtMessage read = new VtMessage(VtMessage.VtTread, (byte)5);
+		byte[] score = new byte[20];
+		random.nextBytes(score);
+		read.score = Score.fromBytes(score);
+		read.type = 3;
+		read.count = 70000;
+		b = s.encodeHeader(read);
+		assertNull(VtMessageSerializer.payload(read));
+		VtMessage t = r.decode(b.array(), 4, b.remaining() - 4);
+		assertArrayEquals(score, t.score.getBytes());
+		assertEquals(3, t.type);
+		assertEquals(70000, t.count);
+	}
+}
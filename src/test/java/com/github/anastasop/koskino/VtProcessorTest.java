@@ -0,0 +1,207 @@
+package com.github.anastasop.koskino;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.github.anastasop.koskino.storage.Block;
+import com.github.anastasop.koskino.storage.FileStorageService;
+import com.github.anastasop.koskino.storage.StorageService;
+
+public class VtProcessorTest {
+	private final Random random = new Random(1);
+	private ServerSocketChannel ear;
+
+	@Rule
+	public TemporaryFolder tmp = new TemporaryFolder();
+
+	// a VtProcessor serving the first connection to the returned port. The
+	// socket comes from a channel, as in Main, so reads may send file regions.
+	private int serve(final StorageService storage, final int maxInFlight) throws Exception {
+		ear = ServerSocketChannel.open();
+		ear.socket().bind(new InetSocketAddress("localhost", 0));
+		Thread t = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					Socket peer = ear.accept().socket();
+					new VtProcessor(peer, storage, maxInFlight).run();
+				} catch (Exception e) {
+					e.printStackTrace();
+				}
+			}
+		});
+		t.setDaemon(true);
+		t.start();
+		return ear.socket().getLocalPort();
+	}
+
+	@After
+	public void closeEar() throws Exception {
+		ear.close();
+	}
+
+	private byte[] block(int len) {
+		byte[] data = new byte[len];
+		random.nextBytes(data);
+		return data;
+	}
+
+	@Test
+	public void pipelinedRepliesMatchTheirTags() throws Exception {
+		MemoryStorage storage = new MemoryStorage();
+		try (VentiClient c = new VentiClient(serve(storage, 32)).handshake()) {
+			byte[][] blocks = new byte[32][];
+			for (int i = 0; i < blocks.length; i++) {
+				blocks[i] = block(1 + random.nextInt(8192));
+				c.write(i, (byte)0, blocks[i]);
+			}
+			Set<Integer> tags = new HashSet<>();
+			for (int i = 0; i < blocks.length; i++) {
+				VentiClient.Reply r = c.reply();
+				assertEquals(VtMessage.VtRwrite, r.type);
+				assertTrue("tag answered twice", tags.add(r.tag));
+				assertEquals(Score.forBlock(blocks[r.tag]).toString(), r.score().toString());
+			}
+			// the tags are free again
+			for (int i = 0; i < blocks.length; i++) {
+				c.read(i, Score.forBlock(blocks[i]), (byte)0, blocks[i].length);
+			}
+			for (int i = 0; i < blocks.length; i++) {
+				VentiClient.Reply r = c.reply();
+				assertEquals(VtMessage.VtRread, r.type);
+				assertArrayEquals(blocks[r.tag], r.data());
+			}
+		}
+	}
+
+	@Test
+	public void laterRequestsOvertakeASlowOne() throws Exception {
+		GatedStorage storage = new GatedStorage();
+		try (VentiClient c = new VentiClient(serve(storage, 32)).handshake()) {
+			c.write(1, GatedStorage.GATED, block(100));
+			storage.awaitWaiting(1);
+			c.write(2, (byte)0, block(100));
+			c.sync(3);
+			Set<Integer> tags = new HashSet<>();
+			tags.add(c.reply().tag);
+			tags.add(c.reply().tag);
+			assertEquals(new HashSet<>(Arrays.asList(2, 3)), tags);
+			// tag 2 is reused while tag 1 is outstanding
+			c.sync(2);
+			assertEquals(2, c.reply().tag);
+			storage.open();
+			VentiClient.Reply r = c.reply();
+			assertEquals(VtMessage.VtRwrite, r.type);
+			assertEquals(1, r.tag);
+		}
+	}
+
+	@Test
+	public void outstandingTagReusedIsAProtocolError() throws Exception {
+		GatedStorage storage = new GatedStorage();
+		try (VentiClient c = new VentiClient(serve(storage, 32)).handshake()) {
+			c.write(1, GatedStorage.GATED, block(100));
+			storage.awaitWaiting(1);
+			c.sync(1);
+			// let the server read the sync while tag 1 is still outstanding
+			Thread.sleep(200);
+			storage.open();
+			// the reply of the first is written before the connection closes
+			VentiClient.Reply r = c.reply();
+			assertEquals(VtMessage.VtRwrite, r.type);
+			assertTrue(c.closedByServer());
+		}
+	}
+
+	@Test
+	public void inFlightIsCapped() throws Exception {
+		GatedStorage storage = new GatedStorage();
+		try (VentiClient c = new VentiClient(serve(storage, 2)).handshake()) {
+			for (int i = 0; i < 4; i++) {
+				c.write(i, GatedStorage.GATED, block(100 + i));
+			}
+			storage.awaitWaiting(2);
+			Thread.sleep(200);
+			assertEquals(2, storage.waiting.get());
+			storage.open();
+			Set<Integer> tags = new HashSet<>();
+			for (int i = 0; i < 4; i++) {
+				tags.add(c.reply().tag);
+			}
+			assertEquals(4, tags.size());
+		}
+	}
+
+	@Test
+	public void goodbyeWaitsForTheReplies() throws Exception {
+		GatedStorage storage = new GatedStorage();
+		try (VentiClient c = new VentiClient(serve(storage, 32)).handshake()) {
+			c.write(1, GatedStorage.GATED, block(100));
+			storage.awaitWaiting(1);
+			c.goodbye();
+			storage.open();
+			VentiClient.Reply r = c.reply();
+			assertEquals(VtMessage.VtRwrite, r.type);
+			assertEquals(1, r.tag);
+			assertTrue(c.closedByServer());
+		}
+	}
+
+	@Test
+	public void readsFileRegions() throws Exception {
+		FileStorageService storage = FileStorageService.forName(tmp.getRoot(), "x");
+		try (VentiClient c = new VentiClient(serve(storage, 32)).handshake()) {
+			NioServerTest.writeAndReadBack(c, random);
+		} finally {
+			storage.close();
+		}
+	}
+
+	// the error does not fit the header buffer the replies share, it goes
+	// out on its own between the others
+	@Test
+	public void longErrorsAreWrittenWhole() throws Exception {
+		char[] text = new char[20000];
+		Arrays.fill(text, 'e');
+		final String error = new String(text);
+		MemoryStorage storage = new MemoryStorage() {
+			@Override
+			public Block get(Score score, byte type) throws IOException {
+				throw new IOException(error);
+			}
+		};
+		try (VentiClient c = new VentiClient(serve(storage, 32)).handshake()) {
+			for (int i = 0; i < 8; i++) {
+				if (i % 2 == 0) {
+					c.read(i, Score.forBlock(new byte[0]), (byte)0, 0);
+				} else {
+					c.sync(i);
+				}
+			}
+			for (int i = 0; i < 8; i++) {
+				VentiClient.Reply r = c.reply();
+				if (r.tag % 2 == 0) {
+					assertEquals(VtMessage.VtRerror, r.type);
+					assertTrue(r.error().endsWith(error));
+				} else {
+					assertEquals(VtMessage.VtRsync, r.type);
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,99 @@
+package com.github.anastasop.koskino;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.github.anastasop.koskino.storage.ArenaStorageService;
+import com.github.anastasop.koskino.storage.Block;
+import com.github.anastasop.koskino.storage.BlockCache;
+import com.github.anastasop.koskino.storage.CachingStorageService;
+import com.github.anastasop.koskino.storage.CompactBlockIndex;
+import com.github.anastasop.koskino.storage.StorageService;
+
+public class VtRequestHandlerTest {
+	@Rule
+	public TemporaryFolder tmp = new TemporaryFolder();
+
+	// a VtTread decoded into the pooled score of the message
+	private static VtMessage read(byte[] scoreBytes) {
+		VtMessage req = new VtMessage(VtMessage.VtTread, (byte)1);
+		System.arraycopy(scoreBytes, 0, req.scoreBytes, 0, 20);
+		req.score = req.reusableScore;
+		req.type = 0;
+		req.count = 65536;
+		return req;
+	}
+
+	// keeps the score of the last get
+	private static class KeepingStorage implements StorageService {
+		Score kept;
+
+		@Override
+		public Block get(Score score, byte type) {
+			kept = score;
+			return null;
+		}
+
+		@Override
+		public Score put(byte[] data, int off, int len, byte type) {
+			return null;
+		}
+
+		@Override
+		public void sync() {
+		}
+
+		@Override
+		public void close() {
+		}
+	}
+
+	// a read costs no copy of the score, those that keep it copy it
+	@Test
+	public void readsPassThePooledScore() throws Exception {
+		KeepingStorage storage = new KeepingStorage();
+		byte[] scoreBytes = new byte[20];
+		new Random(2).nextBytes(scoreBytes);
+		VtMessage req = read(scoreBytes);
+		new VtRequestHandler(storage).handle(req);
+		assertSame(req.reusableScore, storage.kept);
+	}
+
+	@Test
+	public void recycledScoreDoesNotReachTheStorage() throws Exception {
+		CompactBlockIndex index = new CompactBlockIndex();
+		ArenaStorageService arenas = ArenaStorageService.forName(tmp.getRoot(), "x", ArenaStorageService.MIN_ARENA_SIZE,
+				1, index, 16);
+		BlockCache cache = new BlockCache(1 << 20, false);
+		StorageService storage = new CachingStorageService(arenas, cache);
+		Random random = new Random(1);
+		byte[] a = new byte[4096];
+		byte[] b = new byte[4096];
+		random.nextBytes(a);
+		random.nextBytes(b);
+		Score scoreA = storage.put(a, 0, a.length, (byte)0);
+		Score scoreB = storage.put(b, 0, b.length, (byte)0);
+
+		VtRequestHandler handler = new VtRequestHandler(storage);
+		VtMessage req = read(scoreA.getBytes());
+		VtMessage resp = handler.handle(req);
+		assertEquals(VtMessage.VtRread, resp.msgType);
+		// the message is recycled for a read of another block
+		System.arraycopy(scoreB.getBytes(), 0, req.scoreBytes, 0, 20);
+
+		assertTrue(cache.contains(scoreA, (byte)0));
+		assertNotNull(index.get(scoreA));
+		assertArrayEquals(a, storage.get(scoreA, (byte)0).getData());
+		assertArrayEquals(b, handler.handle(req).data);
+		arenas.close();
+	}
+}
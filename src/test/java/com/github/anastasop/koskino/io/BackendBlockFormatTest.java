@@ -0,0 +1,95 @@
+package com.github.anastasop.koskino.io;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+import com.github.anastasop.koskino.Score;
+import com.github.anastasop.koskino.storage.Block;
+
+public class BackendBlockFormatTest {
+	private final Random random = new Random(1);
+
+	static byte[] text(int len) {
+		byte[] words = "the block of a score is stored in its file ".getBytes();
+		byte[] b = new byte[len];
+		for (int i = 0; i < len; i++) {
+			b[i] = words[i % words.length];
+		}
+		return b;
+	}
+
+	// a run of random bytes and a run of zeros, every 64 bytes
+	static byte[] halfRandom(Random random, int len) {
+		byte[] b = new byte[len];
+		for (int i = 0; i < len; i++) {
+			b[i] = (i / 64) % 2 == 0 ? (byte)random.nextInt() : 0;
+		}
+		return b;
+	}
+
+	private byte[] random(int len) {
+		byte[] b = new byte[len];
+		random.nextBytes(b);
+		return b;
+	}
+
+	private static byte[] store(byte type, byte[] data) throws Exception {
+		return BackendBlockWriter.fromData(type, Score.forBlock(data), data, 0, data.length).getData();
+	}
+
+	private static void roundTrip(byte type, byte[] data) throws Exception {
+		Block block = new StrouckiRecordIOReader(new ByteArrayInputStream(store(type, data)), type).readBlock();
+		assertNotNull(block);
+		assertArrayEquals(data, block.getData());
+	}
+
+	private static String marker(byte[] stored) {
+		return BackendBlockWriter.isRaw(stored) ? "raw" : new String(stored, 13, 3);
+	}
+
+	@Test
+	public void roundTrip() throws Exception {
+		for (int len : new int[] {0, 1, 100, 8192, 65536}) {
+			for (byte type : new byte[] {0, 1, 8, 16}) {
+				roundTrip(type, random(len));
+				roundTrip(type, text(len));
+				roundTrip(type, halfRandom(random, len));
+			}
+		}
+	}
+
+	@Test
+	public void markers() throws Exception {
+		assertEquals("raw", marker(store((byte)0, random(8192))));
+		assertEquals("raw", marker(store((byte)0, text(100))));
+		// a pointer block
+		assertEquals("raw", marker(store((byte)1, text(8192))));
+		assertEquals("SNA", marker(store((byte)0, text(8192))));
+		assertEquals("LZ4", marker(store((byte)0, halfRandom(random, 8192))));
+	}
+
+	@Test
+	public void rawStoresTheData() throws Exception {
+		byte[] data = random(8192);
+		byte[] stored = store((byte)0, data);
+		assertEquals(BackendBlockWriter.HEADER_LENGTH + data.length, stored.length);
+		assertArrayEquals(data, Arrays.copyOfRange(stored, BackendBlockWriter.HEADER_LENGTH, stored.length));
+	}
+
+	@Test
+	public void lz4IsNotRaw() throws Exception {
+		// 'L' & 'Z' & '4' is 0
+		byte[] stored = store((byte)0, halfRandom(random, 8192));
+		assertTrue(stored[13] == 'L');
+		assertFalse(BackendBlockWriter.isRaw(stored));
+	}
+}
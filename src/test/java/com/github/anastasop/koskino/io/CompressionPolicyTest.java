@@ -0,0 +1,126 @@
+package com.github.anastasop.koskino.io;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+import com.github.anastasop.koskino.Score;
+import com.github.anastasop.koskino.storage.Block;
+
+public class CompressionPolicyTest {
+	private static final int LEN = CompressionPolicy.SAMPLE;
+
+	private final Random random = new Random(1);
+
+	// the symbols 0 to n - 1 in turn, an entropy of about log2(n)
+	private static byte[] cycle(int n, int len) {
+		byte[] b = new byte[len];
+		for (int i = 0; i < len; i++) {
+			b[i] = (byte)(i % n);
+		}
+		return b;
+	}
+
+	// random bytes of 128 values, 7 bits a byte, where the last copied bytes
+	// of every 100 repeat those 16 bytes before
+	private byte[] repeating(int copied, int len) {
+		byte[] b = new byte[len];
+		for (int i = 0; i < len; i++) {
+			b[i] = i % 100 >= 100 - copied && i >= 16 ? b[i - 16] : (byte)random.nextInt(128);
+		}
+		return b;
+	}
+
+	private static int choose(byte type, byte[] data) {
+		return CompressionPolicy.choose(type, data, 0, data.length);
+	}
+
+	private static double matches(byte[] data) {
+		return CompressionPolicy.matches(data, 0, data.length);
+	}
+
+	@Test
+	public void pointerBlocksAreRaw() {
+		byte[] text = cycle(10, LEN);
+		// data and dir pointers of depth 1
+		assertEquals(CompressionPolicy.NONE, choose((byte)1, text));
+		assertEquals(CompressionPolicy.NONE, choose((byte)9, text));
+		// the dir entries themselves
+		assertEquals(CompressionPolicy.SNAPPY, choose((byte)8, text));
+	}
+
+	@Test
+	public void shortBlocksAreRaw() {
+		byte[] text = cycle(10, CompressionPolicy.MIN_LENGTH);
+		assertEquals(CompressionPolicy.NONE, CompressionPolicy.choose((byte)0, text, 0, text.length - 1));
+		assertEquals(CompressionPolicy.SNAPPY, choose((byte)0, text));
+	}
+
+	@Test
+	public void randomBlocksAreRaw() {
+		byte[] data = new byte[8192];
+		random.nextBytes(data);
+		assertTrue(CompressionPolicy.entropy(data, 0, data.length) > CompressionPolicy.RAW_ENTROPY);
+		assertEquals(CompressionPolicy.NONE, choose((byte)0, data));
+	}
+
+	@Test
+	public void theEntropyBound() {
+		// log2(181) is 7.4998, log2(182) 7.5078, and both repeat every 4 bytes
+		byte[] under = cycle(181, LEN);
+		byte[] over = cycle(182, LEN);
+		assertTrue(CompressionPolicy.entropy(under, 0, LEN) <= CompressionPolicy.RAW_ENTROPY);
+		assertTrue(CompressionPolicy.entropy(over, 0, LEN) > CompressionPolicy.RAW_ENTROPY);
+		assertEquals(CompressionPolicy.SNAPPY, choose((byte)0, under));
+		assertEquals(CompressionPolicy.NONE, choose((byte)0, over));
+	}
+
+	@Test
+	public void theMatchesBounds() {
+		byte[] few = repeating(5, LEN);
+		byte[] some = repeating(11, LEN);
+		byte[] many = repeating(55, LEN);
+		byte[] most = repeating(75, LEN);
+		// the bytes have an entropy of 7, under the bound, so only the
+		// matches decide
+		assertTrue(CompressionPolicy.entropy(few, 0, LEN) <= CompressionPolicy.RAW_ENTROPY);
+		assertTrue(matches(few) < CompressionPolicy.MIN_MATCHES);
+		assertTrue(matches(some) >= CompressionPolicy.MIN_MATCHES);
+		assertTrue(matches(many) < CompressionPolicy.SNAPPY_MATCHES);
+		assertTrue(matches(most) >= CompressionPolicy.SNAPPY_MATCHES);
+		assertEquals(CompressionPolicy.NONE, choose((byte)0, few));
+		assertEquals(CompressionPolicy.LZ4, choose((byte)0, some));
+		assertEquals(CompressionPolicy.LZ4, choose((byte)0, many));
+		assertEquals(CompressionPolicy.SNAPPY, choose((byte)0, most));
+	}
+
+	@Test
+	public void blocksThatDoNotShrinkAreStoredRaw() throws Exception {
+		// the sample repeats enough, but a block this short cannot pay for
+		// the header of the compressed stream
+		byte[] data = repeating(20, CompressionPolicy.MIN_LENGTH);
+		assertEquals(CompressionPolicy.LZ4, choose((byte)0, data));
+		byte[] stored = BackendBlockWriter.fromData((byte)0, Score.forBlock(data), data, 0, data.length).getData();
+		assertEquals(BackendBlockWriter.HEADER_LENGTH + data.length, stored.length);
+		assertArrayEquals(new byte[3], Arrays.copyOfRange(stored, 13, 16));
+		assertArrayEquals(data, Arrays.copyOfRange(stored, BackendBlockWriter.HEADER_LENGTH, stored.length));
+		Block block = new StrouckiRecordIOReader(new ByteArrayInputStream(stored), (byte)0).readBlock();
+		assertArrayEquals(data, block.getData());
+	}
+
+	@Test
+	public void compressedBlocksReadBack() throws Exception {
+		for (byte[] data : new byte[][] {repeating(11, 8192), repeating(75, 8192)}) {
+			byte[] stored = BackendBlockWriter.fromData((byte)0, Score.forBlock(data), data, 0, data.length).getData();
+			assertTrue(stored.length < BackendBlockWriter.HEADER_LENGTH + data.length);
+			Block block = new StrouckiRecordIOReader(new ByteArrayInputStream(stored), (byte)0).readBlock();
+			assertArrayEquals(data, block.getData());
+		}
+	}
+}
@@ -0,0 +1,82 @@
+package com.github.anastasop.koskino.metrics;
+
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+public class AdminServerTest {
+	private static int port;
+
+	// the server never stops, its thread is a daemon
+	@BeforeClass
+	public static void start() throws IOException {
+		try (ServerSocket s = new ServerSocket(0)) {
+			port = s.getLocalPort();
+		}
+		new AdminServer(port, new ServerMetrics()).start();
+	}
+
+	private static String readAll(InputStream in) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] b = new byte[4096];
+		for (int n = in.read(b); n >= 0; n = in.read(b)) {
+			out.write(b, 0, n);
+		}
+		return out.toString("UTF-8");
+	}
+
+	// sends request, or shuts the output if it is null, and returns the answer
+	private static String ask(String request, boolean fast) throws IOException {
+		try (Socket s = new Socket(InetAddress.getLoopbackAddress(), port)) {
+			s.setSoTimeout(10000);
+			long start = System.nanoTime();
+			if (request == null) {
+				s.shutdownOutput();
+			} else if (!request.isEmpty()) {
+				s.getOutputStream().write(request.getBytes("US-ASCII"));
+				s.getOutputStream().flush();
+			}
+			String answer = readAll(s.getInputStream());
+			long millis = (System.nanoTime() - start) / 1000000;
+			if (fast) {
+				assertTrue(millis + " ms", millis < AdminServer.WAIT_MILLIS);
+			}
+			return answer;
+		}
+	}
+
+	@Test
+	public void aLineGetsThePlainDumpAtOnce() throws IOException {
+		String answer = ask("\n", true);
+		assertTrue(answer, answer.startsWith("bytes_in "));
+		answer = ask("metrics\r\n", true);
+		assertTrue(answer, answer.startsWith("bytes_in "));
+	}
+
+	@Test
+	public void aClosedInputGetsThePlainDumpAtOnce() throws IOException {
+		String answer = ask(null, true);
+		assertTrue(answer, answer.startsWith("bytes_in "));
+	}
+
+	@Test
+	public void aSilentClientGetsThePlainDump() throws IOException {
+		String answer = ask("", false);
+		assertTrue(answer, answer.startsWith("bytes_in "));
+	}
+
+	@Test
+	public void anHttpGetGetsAnHttpResponse() throws IOException {
+		String answer = ask("GET / HTTP/1.1\r\nHost: localhost\r\nAccept: */*\r\n\r\n", true);
+		assertTrue(answer, answer.startsWith("HTTP/1.0 200 OK\r\n"));
+		assertTrue(answer, answer.contains("\r\n\r\nbytes_in "));
+	}
+}
@@ -0,0 +1,231 @@
+package com.github.anastasop.koskino.storage;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.CRC32;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.github.anastasop.koskino.Score;
+
+public class ArenaStorageServiceTest {
+	private static final long ARENA_SIZE = ArenaStorageService.MIN_ARENA_SIZE;
+
+	@Rule
+	public TemporaryFolder tmp = new TemporaryFolder();
+
+	private final Random random = new Random(1);
+	private final List<byte[]> blocks = new ArrayList<>();
+
+	private void putBlocks(StorageService storage, int n) throws Exception {
+		for (int i = 0; i < n; i++) {
+			byte[] data = new byte[1 + random.nextInt(16384)];
+			if (i % 2 == 0) {
+				random.nextBytes(data);
+			} else {
+				// compresses
+				for (int k = 0; k < data.length; k++) {
+					data[k] = (byte)(k % 64 == 0 ? random.nextInt() : k / 64);
+				}
+			}
+			storage.put(data, 0, data.length, (byte)0);
+			blocks.add(data);
+		}
+	}
+
+	private void checkBlocks(StorageService storage) throws Exception {
+		for (byte[] data : blocks) {
+			Block block = storage.get(Score.forBlock(data), (byte)0);
+			assertNotNull(block);
+			assertArrayEquals(data, block.getData());
+		}
+	}
+
+	private BlockIndex newIndex(String kind) throws Exception {
+		switch (kind) {
+		case "compact":
+			return new CompactBlockIndex();
+		case "memory":
+			return new MemoryBlockIndex();
+		default:
+			return DiskBlockIndex.open(new File(tmp.getRoot(), "x.index"), 1 << 16, 16);
+		}
+	}
+
+	private ArenaStorageService open(String kind) throws Exception {
+		return ArenaStorageService.forName(tmp.getRoot(), "x", ARENA_SIZE, 2, newIndex(kind), 16);
+	}
+
+	private File arena(int id) {
+		return new File(tmp.getRoot(), String.format("x.%05d.arena", id));
+	}
+
+	private void roundTrip(String kind) throws Exception {
+		ArenaStorageService storage = open(kind);
+		// past the first arenas of both writers
+		putBlocks(storage, 3000);
+		checkBlocks(storage);
+		storage.close();
+		storage = open(kind);
+		checkBlocks(storage);
+		putBlocks(storage, 100);
+		storage.close();
+		storage = open(kind);
+		checkBlocks(storage);
+		storage.close();
+	}
+
+	@Test
+	public void roundTripCompactIndex() throws Exception {
+		roundTrip("compact");
+	}
+
+	@Test
+	public void roundTripMemoryIndex() throws Exception {
+		roundTrip("memory");
+	}
+
+	@Test
+	public void roundTripDiskIndex() throws Exception {
+		roundTrip("disk");
+	}
+
+	// the caller may reuse the Score it indexed a block with
+	@Test
+	public void indexesKeepTheirOwnScores() throws Exception {
+		for (String kind : new String[] {"compact", "memory", "disk"}) {
+			BlockIndex index = newIndex(kind);
+			byte[] data = new byte[100];
+			random.nextBytes(data);
+			Score score = Score.forBlock(data);
+			byte[] original = score.getBytes().clone();
+			BlockAddress address = new BlockAddress(0, 4096, data.length, (byte)0, (byte)0);
+			assertNull(index.putIfAbsent(score, address));
+			score.getBytes()[0] ^= 0xFF;
+			assertNull(kind, index.get(score));
+			assertEquals(kind, address.getOffset(), index.get(Score.fromBytes(original)).getOffset());
+			index.close();
+		}
+	}
+
+	@Test
+	public void reopenAfterTornTail() throws Exception {
+		ArenaStorageService storage = open("compact");
+		putBlocks(storage, 100);
+		storage.close();
+		long end;
+		try (Arena a = Arena.open(arena(0), new MemoryBlockIndex())) {
+			end = a.getWritePos();
+		}
+		// a record cut short by a crash: a header and some of its data
+		byte[] torn = new byte[ArenaRecord.recordLength(1000)];
+		ArenaRecord.encode(torn, (byte)0, new byte[20], new byte[1000], 0, 1000);
+		try (RandomAccessFile f = new RandomAccessFile(arena(0), "rw")) {
+			f.seek(end);
+			f.write(torn, 0, ArenaRecord.HEADER_LENGTH + 10);
+		}
+		storage = open("compact");
+		checkBlocks(storage);
+		putBlocks(storage, 100);
+		storage.close();
+		storage = open("compact");
+		checkBlocks(storage);
+		storage.close();
+	}
+
+	@Test
+	public void reopenAfterDamagedRecord() throws Exception {
+		ArenaStorageService storage = open("compact");
+		putBlocks(storage, 100);
+		storage.close();
+		// the first record of arena 0 is the first block of its writer
+		try (RandomAccessFile f = new RandomAccessFile(arena(0), "rw")) {
+			long pos = Arena.DATA_START + ArenaRecord.HEADER_LENGTH;
+			f.seek(pos);
+			int b = f.read();
+			f.seek(pos);
+			f.write(b ^ 0xFF);
+		}
+		storage = open("compact");
+		int missing = 0;
+		for (byte[] data : blocks) {
+			if (storage.get(Score.forBlock(data), (byte)0) == null) {
+				missing++;
+			}
+		}
+		// the scan finds its way past the damaged record to the next ones
+		assertEquals(1, missing);
+		storage.close();
+	}
+
+	@Test
+	public void reopenAfterCrashInIndexCheckpoint() throws Exception {
+		ArenaStorageService storage = open("disk");
+		putBlocks(storage, 300);
+		storage.close();
+		try (RandomAccessFile f = new RandomAccessFile(new File(tmp.getRoot(), "x.index"), "rw")) {
+			// the header says WRITING, as a checkpoint left it
+			byte[] header = new byte[32];
+			f.readFully(header);
+			ByteBuffer h = ByteBuffer.wrap(header);
+			h.putInt(16, 1);
+			CRC32 crc = new CRC32();
+			crc.update(header, 0, 28);
+			h.putInt(28, (int)crc.getValue());
+			f.seek(0);
+			f.write(header);
+			// and the bucket of the first block was torn; 1 << 16 blocks
+			// need the smallest table, of 1 << 10 buckets
+			byte[] score = Score.forBlock(blocks.get(0)).getBytes();
+			int bucket = ByteBuffer.wrap(score).getInt() >>> (32 - 10);
+			long pos = (1L + bucket) * DiskBlockIndex.PAGE_SIZE + 20;
+			f.seek(pos);
+			int b = f.read();
+			f.seek(pos);
+			f.write(b ^ 0xFF);
+		}
+		// the bucket is emptied and the arenas are scanned again
+		storage = open("disk");
+		checkBlocks(storage);
+		storage.close();
+	}
+
+	@Test
+	public void regionsOfRawBlocks() throws Exception {
+		ArenaStorageService storage = open("compact");
+		byte[] data = new byte[4096];
+		random.nextBytes(data);
+		Score score = storage.put(data, 0, data.length, (byte)0);
+		BlockRegion region = storage.getRegion(score, (byte)0);
+		assertNotNull(region);
+		assertEquals(data.length, region.getLength());
+		assertNull(storage.getRegion(score, (byte)1));
+		storage.close();
+	}
+
+	@Test
+	public void stripedRoundTrip() throws Exception {
+		File[] dirs = {tmp.newFolder("a"), tmp.newFolder("b"), tmp.newFolder("c")};
+		ArenaStorageService storage = ArenaStorageService.forName(dirs, "x", ARENA_SIZE, 3, new CompactBlockIndex(), 16);
+		putBlocks(storage, 3000);
+		storage.close();
+		for (File dir : dirs) {
+			assertNotNull(dir.list());
+			assertEquals(true, dir.list().length > 0);
+		}
+		storage = ArenaStorageService.forName(dirs, "x", ARENA_SIZE, 3, new CompactBlockIndex(), 16);
+		checkBlocks(storage);
+		storage.close();
+	}
+}
@@ -0,0 +1,110 @@
+package com.github.anastasop.koskino.storage;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+import com.github.anastasop.koskino.Score;
+
+public class BlockCacheTest {
+	private static final int BLOCK = 4000;
+
+	private final Random random = new Random(1);
+
+	private Block newBlock() {
+		byte[] data = new byte[BLOCK];
+		random.nextBytes(data);
+		return new Block((byte)0, Score.forBlock(data), data);
+	}
+
+	// reads through the cache as CachingStorageService does, true on a hit
+	private static boolean read(BlockCache cache, Block block) {
+		Block cached = cache.get(block.getScore(), block.getType());
+		if (cached != null) {
+			assertArrayEquals(block.getData(), cached.getData());
+			return true;
+		}
+		cache.put(block);
+		return false;
+	}
+
+	@Test
+	public void hitsAfterTheFirstRead() {
+		BlockCache cache = new BlockCache(1 << 20, false);
+		Block block = newBlock();
+		assertFalse(read(cache, block));
+		assertTrue(read(cache, block));
+		assertTrue(cache.contains(block.getScore(), (byte)0));
+		assertNull(cache.get(block.getScore(), (byte)1));
+		assertEquals(1, cache.getHits());
+		assertEquals(2, cache.getMisses());
+	}
+
+	@Test
+	public void theKeyIsNotTheCallersScore() {
+		BlockCache cache = new BlockCache(1 << 20, false);
+		Block block = newBlock();
+		byte[] score = block.getScore().getBytes().clone();
+		cache.put(block);
+		// as a recycled request would reuse it
+		block.getScore().getBytes()[0] ^= 0xFF;
+		assertNotNull(cache.get(Score.fromBytes(score), (byte)0));
+	}
+
+	@Test
+	public void staysWithinItsCapacity() {
+		for (boolean offHeap : new boolean[] {false, true}) {
+			long capacity = 4 << 20;
+			BlockCache cache = new BlockCache(capacity, offHeap);
+			for (int i = 0; i < 5000; i++) {
+				Block block = newBlock();
+				// read twice so that the blocks compete for the main area
+				read(cache, block);
+				read(cache, block);
+			}
+			assertTrue(cache.getSize() <= capacity);
+			assertTrue(cache.getEvictions() > 0);
+			assertTrue(cache.getBlocks() > 0);
+		}
+	}
+
+	@Test
+	public void aScanDoesNotFlushTheHotBlocks() {
+		for (boolean offHeap : new boolean[] {false, true}) {
+			BlockCache cache = new BlockCache(8 << 20, offHeap);
+			List<Block> hot = new ArrayList<>();
+			for (int i = 0; i < 500; i++) {
+				hot.add(newBlock());
+			}
+			for (int round = 0; round < 5; round++) {
+				for (Block block : hot) {
+					read(cache, block);
+				}
+			}
+			// blocks read once, many times the size of the cache, with the
+			// hot set read in between
+			int hits = 0;
+			int reads = 0;
+			for (int i = 0; i < 20000; i++) {
+				read(cache, newBlock());
+				if (i % 10 == 0) {
+					if (read(cache, hot.get(random.nextInt(hot.size())))) {
+						hits++;
+					}
+					reads++;
+				}
+			}
+			assertTrue("hot hit rate " + hits + "/" + reads, hits > reads * 9 / 10);
+			assertTrue(cache.getRejections() > 10000);
+		}
+	}
+}
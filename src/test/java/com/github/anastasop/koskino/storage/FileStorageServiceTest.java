@@ -0,0 +1,273 @@
+package com.github.anastasop.koskino.storage;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.github.anastasop.koskino.Score;
+
+public class FileStorageServiceTest {
+	@Rule
+	public TemporaryFolder tmp = new TemporaryFolder();
+
+	private final Random random = new Random(1);
+	private final List<byte[]> blocks = new ArrayList<>();
+
+	private void putBlocks(StorageService storage, int n) throws Exception {
+		for (int i = 0; i < n; i++) {
+			byte[] data = new byte[1 + random.nextInt(8192)];
+			random.nextBytes(data);
+			storage.put(data, 0, data.length, (byte)0);
+			blocks.add(data);
+		}
+	}
+
+	private void checkBlocks(StorageService storage) throws Exception {
+		for (byte[] data : blocks) {
+			Block block = storage.get(Score.forBlock(data), (byte)0);
+			assertNotNull(block);
+			assertArrayEquals(data, block.getData());
+		}
+	}
+
+	private File file(String name) {
+		return new File(tmp.getRoot(), name);
+	}
+
+	@Test
+	public void roundTrip() throws Exception {
+		FileStorageService storage = FileStorageService.forName(tmp.getRoot(), "x");
+		putBlocks(storage, 100);
+		checkBlocks(storage);
+		storage.close();
+		storage = FileStorageService.forName(tmp.getRoot(), "x");
+		checkBlocks(storage);
+		storage.close();
+	}
+
+	// readers run next to the appender, and every block put so far can be read
+	@Test
+	public void readsRunWhileBlocksAreAppended() throws Exception {
+		final FileStorageService storage = FileStorageService.forName(tmp.getRoot(), "x");
+		putBlocks(storage, 100);
+		final List<byte[]> written = new CopyOnWriteArrayList<>(blocks);
+		final AtomicBoolean writing = new AtomicBoolean(true);
+		ExecutorService pool = Executors.newFixedThreadPool(4);
+		try {
+			List<Future<Integer>> readers = new ArrayList<>();
+			for (int t = 0; t < 4; t++) {
+				final Random r = new Random(t);
+				readers.add(pool.submit(new Callable<Integer>() {
+					@Override
+					public Integer call() throws IOException {
+						int reads = 0;
+						while (writing.get() || reads < 1000) {
+							byte[] data = written.get(r.nextInt(written.size()));
+							Block block = storage.get(Score.forBlock(data), (byte)0);
+							assertNotNull(block);
+							assertArrayEquals(data, block.getData());
+							reads++;
+						}
+						return reads;
+					}
+				}));
+			}
+			for (int i = 0; i < 500; i++) {
+				byte[] data = new byte[1 + random.nextInt(8192)];
+				random.nextBytes(data);
+				storage.put(data, 0, data.length, (byte)0);
+				written.add(data);
+				blocks.add(data);
+			}
+			writing.set(false);
+			for (Future<Integer> f : readers) {
+				f.get(60, TimeUnit.SECONDS);
+			}
+		} finally {
+			writing.set(false);
+			pool.shutdownNow();
+		}
+		checkBlocks(storage);
+		storage.close();
+	}
+
+	@Test
+	public void reopenWithoutIndex() throws Exception {
+		FileStorageService storage = FileStorageService.forName(tmp.getRoot(), "x");
+		putBlocks(storage, 100);
+		storage.close();
+		assertTrue(file("x.idx").delete());
+		file("x.ckpt").delete();
+		assertTrue(file("x.filter").delete());
+		storage = FileStorageService.forName(tmp.getRoot(), "x");
+		checkBlocks(storage);
+		putBlocks(storage, 10);
+		storage.close();
+		storage = FileStorageService.forName(tmp.getRoot(), "x");
+		checkBlocks(storage);
+		storage.close();
+	}
+
+	@Test
+	public void reopenWithTruncatedIndex() throws Exception {
+		FileStorageService storage = FileStorageService.forName(tmp.getRoot(), "x");
+		putBlocks(storage, 100);
+		storage.close();
+		file("x.ckpt").delete();
+		try (RandomAccessFile idx = new RandomAccessFile(file("x.idx"), "rw")) {
+			// cuts a record in two
+			idx.setLength(idx.length() / 2 + 7);
+		}
+		storage = FileStorageService.forName(tmp.getRoot(), "x");
+		checkBlocks(storage);
+		storage.close();
+	}
+
+	@Test
+	public void reopenWithCheckpointPastTheIndex() throws Exception {
+		FileStorageService storage = FileStorageService.forName(tmp.getRoot(), "x");
+		putBlocks(storage, 100);
+		storage.close();
+		try (RandomAccessFile idx = new RandomAccessFile(file("x.idx"), "rw")) {
+			idx.setLength(idx.length() / 2);
+		}
+		storage = FileStorageService.forName(tmp.getRoot(), "x");
+		checkBlocks(storage);
+		storage.close();
+	}
+
+	@Test
+	public void rebuildIndex() throws Exception {
+		FileStorageService storage = FileStorageService.forName(tmp.getRoot(), "x", 16, 256 << 10);
+		putBlocks(storage, 300);
+		storage.close();
+		try (FileOutputStream log = new FileOutputStream(LogSegment.fileFor(tmp.getRoot(), "x", lastSegment()), true)) {
+			// a torn record at the end
+			log.write(new byte[] {0, 0, 0, 0, 1, 2, 3});
+		}
+		assertTrue(file("x.idx").delete());
+		String report = FileStorageService.rebuildIndex(tmp.getRoot(), "x", 2);
+		assertTrue(report, report.startsWith("x.log: sealed, "));
+		assertTrue(file("x.ckpt").exists());
+		storage = FileStorageService.forName(tmp.getRoot(), "x", 16, 256 << 10);
+		checkBlocks(storage);
+		putBlocks(storage, 10);
+		storage.close();
+		storage = FileStorageService.forName(tmp.getRoot(), "x", 16, 256 << 10);
+		checkBlocks(storage);
+		storage.close();
+	}
+
+	@Test
+	public void reopenAfterTornLog() throws Exception {
+		FileStorageService storage = FileStorageService.forName(tmp.getRoot(), "x");
+		putBlocks(storage, 100);
+		storage.close();
+		try (FileOutputStream log = new FileOutputStream(file("x.log"), true)) {
+			log.write(new byte[] {0, 0, 0, 0, 1, 2, 3});
+		}
+		storage = FileStorageService.forName(tmp.getRoot(), "x");
+		checkBlocks(storage);
+		putBlocks(storage, 10);
+		storage.close();
+		storage = FileStorageService.forName(tmp.getRoot(), "x");
+		checkBlocks(storage);
+		storage.close();
+	}
+
+	@Test
+	public void reopenSegmentsWithoutIndex() throws Exception {
+		FileStorageService storage = FileStorageService.forName(tmp.getRoot(), "x", 16, 256 << 10);
+		putBlocks(storage, 300);
+		storage.close();
+		assertTrue(file("x.00001.log").exists());
+		assertTrue(file("x.idx").delete());
+		file("x.ckpt").delete();
+		storage = FileStorageService.forName(tmp.getRoot(), "x", 16, 256 << 10);
+		checkBlocks(storage);
+		storage.close();
+	}
+
+	@Test
+	public void reopenFromOlderCheckpoint() throws Exception {
+		FileStorageService storage = FileStorageService.forName(tmp.getRoot(), "x");
+		putBlocks(storage, 100);
+		storage.close();
+		File older = tmp.newFile("older.ckpt");
+		Files.copy(file("x.ckpt").toPath(), older.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		storage = FileStorageService.forName(tmp.getRoot(), "x");
+		putBlocks(storage, 50);
+		storage.close();
+		// the .idx records past it are replayed
+		Files.copy(older.toPath(), file("x.ckpt").toPath(), StandardCopyOption.REPLACE_EXISTING);
+		storage = FileStorageService.forName(tmp.getRoot(), "x");
+		checkBlocks(storage);
+		storage.close();
+	}
+
+	@Test
+	public void reopenWithDamagedCheckpoint() throws Exception {
+		FileStorageService storage = FileStorageService.forName(tmp.getRoot(), "x");
+		putBlocks(storage, 100);
+		storage.close();
+		// an entry, then the header
+		for (long pos : new long[] {IndexCheckpoint.HEADER_LENGTH + 5, 20}) {
+			try (RandomAccessFile ckpt = new RandomAccessFile(file("x.ckpt"), "rw")) {
+				ckpt.seek(pos);
+				int b = ckpt.read();
+				ckpt.seek(pos);
+				ckpt.write(b ^ 0xFF);
+			}
+			storage = FileStorageService.forName(tmp.getRoot(), "x");
+			checkBlocks(storage);
+			putBlocks(storage, 10);
+			storage.close();
+		}
+		storage = FileStorageService.forName(tmp.getRoot(), "x");
+		checkBlocks(storage);
+		storage.close();
+	}
+
+	@Test
+	public void closeWaitsForTheSealers() throws Exception {
+		FileStorageService storage = FileStorageService.forName(tmp.getRoot(), "x", 16, 32 << 20);
+		// closes as soon as the log rolls over, while the full segment is
+		// being sealed
+		while (!file("x.00001.log").exists()) {
+			putBlocks(storage, 1);
+		}
+		storage.close();
+		LogSegment segment = LogSegment.open(tmp.getRoot(), "x", 0);
+		assertTrue(segment.isSealed());
+		segment.close();
+	}
+
+	private int lastSegment() {
+		int id = 0;
+		while (LogSegment.fileFor(tmp.getRoot(), "x", id + 1).exists()) {
+			id++;
+		}
+		return id;
+	}
+}
@@ -0,0 +1,136 @@
+package com.github.anastasop.koskino.storage;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Test;
+
+public class GroupCommitTest {
+	private final ExecutorService pool = Executors.newCachedThreadPool();
+
+	@After
+	public void shutdown() {
+		pool.shutdownNow();
+	}
+
+	// counts the flushes; the first one waits until release() is called
+	private static class HeldFlusher implements GroupCommit.Flusher {
+		final AtomicInteger flushes = new AtomicInteger();
+		final CountDownLatch started = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		IOException failSecond;
+
+		@Override
+		public void flush() throws IOException {
+			int n = flushes.incrementAndGet();
+			if (n == 1) {
+				started.countDown();
+				try {
+					release.await(10, TimeUnit.SECONDS);
+				} catch (InterruptedException e) {
+					throw new IOException(e);
+				}
+			} else if (n == 2 && failSecond != null) {
+				throw failSecond;
+			}
+		}
+	}
+
+	private Future<Void> syncLater(final GroupCommit commit) {
+		return pool.submit(new Callable<Void>() {
+			@Override
+			public Void call() throws IOException {
+				commit.sync();
+				return null;
+			}
+		});
+	}
+
+	// waits until the callers are parked in wait(), behind the running flush
+	private static void awaitWaiting(List<Future<Void>> callers) throws InterruptedException {
+		Thread.sleep(200);
+		for (Future<Void> f: callers) {
+			assertFalse(f.isDone());
+		}
+	}
+
+	@Test
+	public void aLoneSyncFlushes() throws Exception {
+		HeldFlusher flusher = new HeldFlusher();
+		flusher.release.countDown();
+		GroupCommit commit = new GroupCommit(flusher);
+		commit.sync();
+		commit.sync();
+		assertEquals(2, flusher.flushes.get());
+	}
+
+	@Test
+	public void syncsArrivingDuringAFlushShareTheNext() throws Exception {
+		HeldFlusher flusher = new HeldFlusher();
+		GroupCommit commit = new GroupCommit(flusher);
+		Future<Void> leader = syncLater(commit);
+		assertTrue(flusher.started.await(10, TimeUnit.SECONDS));
+		List<Future<Void>> followers = new ArrayList<>();
+		for (int i = 0; i < 8; i++) {
+			followers.add(syncLater(commit));
+		}
+		// the running flush started before them, it does not cover them
+		awaitWaiting(followers);
+		flusher.release.countDown();
+		leader.get(10, TimeUnit.SECONDS);
+		for (Future<Void> f: followers) {
+			f.get(10, TimeUnit.SECONDS);
+		}
+		assertEquals(2, flusher.flushes.get());
+	}
+
+	@Test
+	public void aFailedFlushFailsEveryCallerItCovered() throws Exception {
+		HeldFlusher flusher = new HeldFlusher();
+		flusher.failSecond = new IOException("disk gone");
+		GroupCommit commit = new GroupCommit(flusher);
+		Future<Void> leader = syncLater(commit);
+		assertTrue(flusher.started.await(10, TimeUnit.SECONDS));
+		List<Future<Void>> followers = new ArrayList<>();
+		for (int i = 0; i < 4; i++) {
+			followers.add(syncLater(commit));
+		}
+		awaitWaiting(followers);
+		flusher.release.countDown();
+		leader.get(10, TimeUnit.SECONDS);
+		// one of them flushed and got the error itself, the others get it
+		// as the cause
+		for (Future<Void> f: followers) {
+			try {
+				f.get(10, TimeUnit.SECONDS);
+				fail("sync succeeded after a failed flush");
+			} catch (ExecutionException e) {
+				Throwable t = e.getCause();
+				assertTrue(t instanceof IOException);
+				if (t != flusher.failSecond) {
+					assertSame(flusher.failSecond, t.getCause());
+				}
+			}
+		}
+		assertEquals(2, flusher.flushes.get());
+		// the next sync flushes again
+		commit.sync();
+		assertEquals(3, flusher.flushes.get());
+	}
+}
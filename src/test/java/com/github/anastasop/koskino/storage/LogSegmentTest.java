@@ -0,0 +1,157 @@
+package com.github.anastasop.koskino.storage;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.github.anastasop.koskino.Score;
+
+public class LogSegmentTest {
+	@Rule
+	public TemporaryFolder tmp = new TemporaryFolder();
+
+	private final Random random = new Random(1);
+	private final List<byte[]> blocks = new ArrayList<>();
+
+	// a log of n blocks in one segment, not sealed
+	private void writeLog(int n) throws Exception {
+		FileStorageService storage = FileStorageService.forName(tmp.getRoot(), "x");
+		for (int i = 0; i < n; i++) {
+			byte[] data = new byte[1 + random.nextInt(8192)];
+			random.nextBytes(data);
+			storage.put(data, 0, data.length, (byte)0);
+			blocks.add(data);
+		}
+		storage.close();
+	}
+
+	private File log() {
+		return LogSegment.fileFor(tmp.getRoot(), "x", 0);
+	}
+
+	private Set<Score> footer(LogSegment segment) throws IOException {
+		final Set<Score> scores = new HashSet<>();
+		segment.readFooter(0, new LogScanner.Sink() {
+			@Override
+			public void record(long offset, int length, byte type, Score score) {
+				scores.add(score);
+			}
+		});
+		return scores;
+	}
+
+	private void flip(long pos) throws IOException {
+		log().setWritable(true);
+		try (RandomAccessFile f = new RandomAccessFile(log(), "rw")) {
+			f.seek(pos);
+			int b = f.read();
+			f.seek(pos);
+			f.write(b ^ 0xFF);
+		}
+	}
+
+	@Test
+	public void sealAndReopen() throws Exception {
+		writeLog(100);
+		LogSegment segment = LogSegment.open(tmp.getRoot(), "x", 0);
+		assertFalse(segment.isSealed());
+		long end = segment.end();
+		LogScanner.Report report = segment.seal(end, 2);
+		assertEquals(100, report.records);
+		assertEquals(0, report.corruptRegions);
+		assertTrue(segment.isSealed());
+		assertTrue(segment.verify());
+		segment.close();
+
+		segment = LogSegment.open(tmp.getRoot(), "x", 0);
+		assertTrue(segment.isSealed());
+		assertEquals(end, segment.end());
+		assertTrue(segment.verify());
+		Set<Score> scores = footer(segment);
+		assertEquals(blocks.size(), scores.size());
+		for (byte[] data : blocks) {
+			assertTrue(scores.contains(Score.forBlock(data)));
+		}
+		segment.close();
+	}
+
+	@Test
+	public void verifyFindsDamagedRecords() throws Exception {
+		writeLog(100);
+		LogSegment segment = LogSegment.open(tmp.getRoot(), "x", 0);
+		long end = segment.end();
+		segment.seal(end, 2);
+		segment.close();
+		flip(end / 2);
+		segment = LogSegment.open(tmp.getRoot(), "x", 0);
+		// the trailer covers the footer, not the records
+		assertTrue(segment.isSealed());
+		assertFalse(segment.verify());
+		segment.close();
+		assertEquals("x.log: CRC mismatch", FileStorageService.verifyLog(tmp.getRoot(), "x"));
+	}
+
+	@Test
+	public void damagedTrailerIsNotSealed() throws Exception {
+		writeLog(100);
+		LogSegment segment = LogSegment.open(tmp.getRoot(), "x", 0);
+		segment.seal(segment.end(), 2);
+		segment.close();
+		// an entry of the footer
+		flip(log().length() - LogSegment.TRAILER_LENGTH - 3);
+		segment = LogSegment.open(tmp.getRoot(), "x", 0);
+		assertFalse(segment.isSealed());
+		segment.close();
+	}
+
+	@Test
+	public void reopenAfterCutShortSeal() throws Exception {
+		FileStorageService storage = FileStorageService.forName(tmp.getRoot(), "x", 16, 256 << 10);
+		for (int i = 0; i < 300; i++) {
+			byte[] data = new byte[1 + random.nextInt(8192)];
+			random.nextBytes(data);
+			storage.put(data, 0, data.length, (byte)0);
+			blocks.add(data);
+		}
+		storage.close();
+		LogSegment segment = LogSegment.open(tmp.getRoot(), "x", 0);
+		assertTrue(segment.isSealed());
+		long end = segment.end();
+		segment.close();
+		// a crash while the footer was written
+		log().setWritable(true);
+		try (RandomAccessFile f = new RandomAccessFile(log(), "rw")) {
+			f.setLength(end + 5 * LogSegment.ENTRY_LENGTH + 7);
+		}
+
+		storage = FileStorageService.forName(tmp.getRoot(), "x", 16, 256 << 10);
+		for (byte[] data : blocks) {
+			Block block = storage.get(Score.forBlock(data), (byte)0);
+			assertNotNull(block);
+			assertArrayEquals(data, block.getData());
+		}
+		storage.close();
+		// sealed again by the start
+		segment = LogSegment.open(tmp.getRoot(), "x", 0);
+		assertTrue(segment.isSealed());
+		assertEquals(end, segment.end());
+		assertTrue(segment.verify());
+		segment.close();
+		assertTrue(FileStorageService.verifyLog(tmp.getRoot(), "x").startsWith("x.log: ok"));
+	}
+}
@@ -0,0 +1,193 @@
+package com.github.anastasop.koskino.storage;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import com.github.anastasop.koskino.Score;
+
+public class PrefetcherTest {
+	private final Random random = new Random(1);
+
+	// blocks in memory, counting the gets
+	private static class CountingStorage implements StorageService {
+		final Map<Score, Block> blocks = new ConcurrentHashMap<>();
+		final AtomicInteger gets = new AtomicInteger();
+
+		Score add(byte type, byte[] data) {
+			Score score = Score.forBlock(data);
+			blocks.put(score, new Block(type, score, data));
+			return score;
+		}
+
+		@Override
+		public Block get(Score score, byte type) {
+			gets.incrementAndGet();
+			Block block = blocks.get(score);
+			return block != null && block.getType() == type ? block : null;
+		}
+
+		@Override
+		public Score put(byte[] data, int off, int len, byte type) {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public void sync() {
+		}
+
+		@Override
+		public void close() {
+		}
+	}
+
+	private byte[] randomData() {
+		byte[] data = new byte[1000];
+		random.nextBytes(data);
+		return data;
+	}
+
+	private static byte[] pointers(List<Score> scores) {
+		byte[] data = new byte[scores.size() * 20];
+		for (int i = 0; i < scores.size(); i++) {
+			System.arraycopy(scores.get(i).getBytes(), 0, data, i * 20, 20);
+		}
+		return data;
+	}
+
+	private static List<Score> scores(List<Prefetcher.Child> children) {
+		List<Score> scores = new ArrayList<>();
+		for (Prefetcher.Child c : children) {
+			scores.add(c.score);
+		}
+		return scores;
+	}
+
+	private static void awaitGets(CountingStorage storage, int n) throws InterruptedException {
+		for (int i = 0; storage.gets.get() < n; i++) {
+			if (i == 200) {
+				throw new AssertionError(storage.gets.get() + " gets, expected " + n);
+			}
+			Thread.sleep(10);
+		}
+	}
+
+	@Test
+	public void blocksThatHaveChildren() {
+		assertFalse(Prefetcher.hasChildren((byte)Prefetcher.DATA_TYPE));
+		assertTrue(Prefetcher.hasChildren((byte)(Prefetcher.DATA_TYPE + 1)));
+		assertTrue(Prefetcher.hasChildren((byte)Prefetcher.DIR_TYPE));
+		assertTrue(Prefetcher.hasChildren((byte)(Prefetcher.DIR_TYPE + 3)));
+		assertTrue(Prefetcher.hasChildren((byte)Prefetcher.ROOT_TYPE));
+		assertFalse(Prefetcher.hasChildren((byte)(Prefetcher.ROOT_TYPE + 1)));
+	}
+
+	@Test
+	public void childrenOfPointerBlocksSkipTheZeroScore() {
+		List<Score> expected = new ArrayList<>();
+		List<Score> all = new ArrayList<>();
+		for (int i = 0; i < 3; i++) {
+			Score s = Score.forBlock(randomData());
+			expected.add(s);
+			all.add(s);
+			all.add(Score.forBlock(new byte[0]));
+		}
+		Block block = new Block((byte)(Prefetcher.DATA_TYPE + 2), pointers(all));
+		List<Prefetcher.Child> children = Prefetcher.children(block);
+		assertEquals(expected, scores(children));
+		for (Prefetcher.Child c : children) {
+			assertEquals(Prefetcher.DATA_TYPE + 1, c.type);
+		}
+	}
+
+	@Test
+	public void childrenOfDirAndRootBlocks() {
+		Score file = Score.forBlock(randomData());
+		Score dir = Score.forBlock(randomData());
+		Score inactive = Score.forBlock(randomData());
+		byte[] entries = new byte[3 * 40];
+		// active, a file of depth 2
+		entries[8] = (byte)(1 | 2 << 2);
+		System.arraycopy(file.getBytes(), 0, entries, 20, 20);
+		// active, a directory of depth 0
+		entries[40 + 8] = (byte)(1 | 2);
+		System.arraycopy(dir.getBytes(), 0, entries, 40 + 20, 20);
+		System.arraycopy(inactive.getBytes(), 0, entries, 80 + 20, 20);
+		List<Prefetcher.Child> children = Prefetcher.children(new Block((byte)Prefetcher.DIR_TYPE, entries));
+		assertEquals(2, children.size());
+		assertEquals(file, children.get(0).score);
+		assertEquals(Prefetcher.DATA_TYPE + 2, children.get(0).type);
+		assertEquals(dir, children.get(1).score);
+		assertEquals(Prefetcher.DIR_TYPE, children.get(1).type);
+
+		byte[] root = new byte[300];
+		System.arraycopy(dir.getBytes(), 0, root, 258, 20);
+		children = Prefetcher.children(new Block((byte)Prefetcher.ROOT_TYPE, root));
+		assertEquals(1, children.size());
+		assertEquals(dir, children.get(0).score);
+		assertEquals(Prefetcher.DIR_TYPE, children.get(0).type);
+	}
+
+	@Test
+	public void childrenAreReadAheadWithinTheWindow() throws Exception {
+		CountingStorage storage = new CountingStorage();
+		List<Score> leaves = new ArrayList<>();
+		List<byte[]> data = new ArrayList<>();
+		for (int i = 0; i < 10; i++) {
+			data.add(randomData());
+			leaves.add(storage.add((byte)Prefetcher.DATA_TYPE, data.get(i)));
+		}
+		Score parent = storage.add((byte)(Prefetcher.DATA_TYPE + 1), pointers(leaves));
+		BlockCache cache = new BlockCache(1 << 20, false);
+		CachingStorageService caching = new CachingStorageService(storage, cache, 2);
+		// the parent must be served whole, its children are read from it
+		assertEquals(null, caching.getRegion(parent, (byte)(Prefetcher.DATA_TYPE + 1)));
+
+		caching.get(parent, (byte)(Prefetcher.DATA_TYPE + 1));
+		awaitGets(storage, 3);
+		Thread.sleep(100);
+		// two ahead, and the fetchers wait for them to be asked for
+		assertEquals(3, storage.gets.get());
+		for (int i = 0; i < leaves.size(); i++) {
+			// each one asked for makes room for the next
+			awaitGets(storage, 1 + Math.min(i + 2, leaves.size()));
+			assertTrue(cache.contains(leaves.get(i), (byte)Prefetcher.DATA_TYPE));
+			Block block = caching.get(leaves.get(i), (byte)Prefetcher.DATA_TYPE);
+			assertArrayEquals(data.get(i), block.getData());
+		}
+		// every leaf was read once, by the prefetcher
+		assertEquals(1 + leaves.size(), storage.gets.get());
+	}
+
+	@Test
+	public void missingChildrenAreNotWaitedFor() throws Exception {
+		CountingStorage storage = new CountingStorage();
+		List<Score> leaves = new ArrayList<>();
+		for (int i = 0; i < 4; i++) {
+			leaves.add(Score.forBlock(randomData()));
+		}
+		byte[] last = randomData();
+		leaves.add(storage.add((byte)Prefetcher.DATA_TYPE, last));
+		Score parent = storage.add((byte)(Prefetcher.DATA_TYPE + 1), pointers(leaves));
+		BlockCache cache = new BlockCache(1 << 20, false);
+		CachingStorageService caching = new CachingStorageService(storage, cache, 1);
+		caching.get(parent, (byte)(Prefetcher.DATA_TYPE + 1));
+		// a child that is not stored frees its place
+		awaitGets(storage, 1 + leaves.size());
+		for (int i = 0; i < 100 && !cache.contains(leaves.get(4), (byte)Prefetcher.DATA_TYPE); i++) {
+			Thread.sleep(10);
+		}
+		assertTrue(cache.contains(leaves.get(4), (byte)Prefetcher.DATA_TYPE));
+	}
+}
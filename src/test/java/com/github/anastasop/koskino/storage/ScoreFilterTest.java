@@ -0,0 +1,130 @@
+package com.github.anastasop.koskino.storage;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.Random;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.github.anastasop.koskino.Score;
+
+public class ScoreFilterTest {
+	// a layer holds at least this many scores
+	private static final int CAPACITY = 1 << 20;
+
+	@Rule
+	public TemporaryFolder tmp = new TemporaryFolder();
+
+	private static Score score(Random random) {
+		byte[] b = new byte[20];
+		random.nextBytes(b);
+		return Score.fromBytes(b);
+	}
+
+	private static ScoreFilter filled(int n) {
+		ScoreFilter filter = new ScoreFilter(CAPACITY, ScoreFilter.DEFAULT_BITS_PER_SCORE);
+		Random random = new Random(1);
+		for (int i = 0; i < n; i++) {
+			filter.add(score(random));
+		}
+		filter.setReady();
+		return filter;
+	}
+
+	private static void assertHasAll(ScoreFilter filter, int n) {
+		Random random = new Random(1);
+		for (int i = 0; i < n; i++) {
+			assertTrue(filter.mightContain(score(random)));
+		}
+	}
+
+	private static double falsePositiveRate(ScoreFilter filter) {
+		Random random = new Random(2);
+		int lookups = 1 << 20;
+		int hits = 0;
+		for (int i = 0; i < lookups; i++) {
+			if (filter.mightContain(score(random))) {
+				hits++;
+			}
+		}
+		return (double)hits / lookups;
+	}
+
+	@Test
+	public void aFullLayerKeepsItsFalsePositiveRate() {
+		ScoreFilter filter = filled(CAPACITY);
+		assertHasAll(filter, CAPACITY);
+		// 16 bits per score is about 0.2% at capacity
+		double rate = falsePositiveRate(filter);
+		assertTrue("false positive rate " + rate, rate < 0.004);
+	}
+
+	@Test
+	public void growingKeepsEveryScoreAndTheRateBounded() {
+		ScoreFilter filter = filled(3 * CAPACITY);
+		assertHasAll(filter, 3 * CAPACITY);
+		// the first layer and the second, twice as large, are both full
+		double rate = falsePositiveRate(filter);
+		assertTrue("false positive rate " + rate, rate < 0.008);
+	}
+
+	@Test
+	public void anUnreadyFilterLetsEverythingThrough() {
+		ScoreFilter filter = new ScoreFilter(CAPACITY, ScoreFilter.DEFAULT_BITS_PER_SCORE);
+		assertFalse(filter.isReady());
+		assertTrue(filter.mightContain(score(new Random(3))));
+		filter.setReady();
+		assertFalse(filter.mightContain(score(new Random(3))));
+	}
+
+	@Test
+	public void aDisabledFilterIsNeverReady() {
+		ScoreFilter filter = new ScoreFilter(CAPACITY, 0);
+		filter.add(score(new Random(3)));
+		filter.setReady();
+		assertFalse(filter.isReady());
+		assertTrue(filter.mightContain(score(new Random(4))));
+		assertEquals(0, filter.getMemoryUsage());
+	}
+
+	@Test
+	public void savedFiltersAreGoodForOneLoad() throws Exception {
+		ScoreFilter filter = filled(1000);
+		File file = new File(tmp.getRoot(), "x.filter");
+		filter.save(file, 1000);
+		ScoreFilter loaded = ScoreFilter.load(file, 1000, ScoreFilter.DEFAULT_BITS_PER_SCORE);
+		assertNotNull(loaded);
+		assertTrue(loaded.isReady());
+		assertHasAll(loaded, 1000);
+		// a crash after this load must not find it
+		assertFalse(file.exists());
+		assertNull(ScoreFilter.load(file, 1000, ScoreFilter.DEFAULT_BITS_PER_SCORE));
+	}
+
+	@Test
+	public void staleOrDamagedFiltersAreIgnored() throws Exception {
+		ScoreFilter filter = filled(1000);
+		File file = new File(tmp.getRoot(), "x.filter");
+		filter.save(file, 1000);
+		assertNull(ScoreFilter.load(file, 1001, ScoreFilter.DEFAULT_BITS_PER_SCORE));
+		filter.save(file, 1000);
+		assertNull(ScoreFilter.load(file, 1000, 8));
+		filter.save(file, 1000);
+		try (RandomAccessFile f = new RandomAccessFile(file, "rw")) {
+			f.seek(f.length() / 2);
+			int b = f.read();
+			f.seek(f.length() / 2);
+			f.write(b ^ 0xFF);
+		}
+		assertNull(ScoreFilter.load(file, 1000, ScoreFilter.DEFAULT_BITS_PER_SCORE));
+		assertFalse(file.exists());
+	}
+}
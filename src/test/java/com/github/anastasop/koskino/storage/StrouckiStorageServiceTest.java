@@ -0,0 +1,153 @@
+package com.github.anastasop.koskino.storage;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.github.anastasop.koskino.Score;
+
+// The engine keeps its tree in the working directory, which the build sets
+// to target/test-work, and is opened once for the class as its directories
+// take seconds to make.
+public class StrouckiStorageServiceTest {
+	private static StorageService storage;
+	private final Random random = new Random();
+
+	@BeforeClass
+	public static void open() throws IOException {
+		storage = StrouckiStorageService.forName(new File("."), "x");
+	}
+
+	@AfterClass
+	public static void close() throws Exception {
+		storage.close();
+	}
+
+	private byte[] block() {
+		byte[] data = new byte[1 + random.nextInt(8192)];
+		random.nextBytes(data);
+		return data;
+	}
+
+	// the third level of the directories of the block
+	private static File level3(Score score) {
+		byte[] b = score.getBytes();
+		return new File(String.format("%02x/%02x/%02x", b[0] & 0xFF, b[1] & 0xFF, b[2] & 0xFF));
+	}
+
+	private static void assertStored(byte[] data) throws IOException {
+		Block block = storage.get(Score.forBlock(data), (byte)0);
+		assertNotNull(block);
+		assertArrayEquals(data, block.getData());
+	}
+
+	@Test
+	public void blocksAreReadBackBeforeTheirWriteEnds() throws Exception {
+		List<byte[]> blocks = new ArrayList<>();
+		for (int i = 0; i < 500; i++) {
+			byte[] data = block();
+			storage.put(data, 0, data.length, (byte)0);
+			// served from the pending write, or from the file once written
+			assertStored(data);
+			blocks.add(data);
+		}
+		storage.sync();
+		for (byte[] data : blocks) {
+			assertStored(data);
+		}
+	}
+
+	@Test
+	public void aPutOfAPendingBlockIsCoalesced() throws Exception {
+		byte[] data = block();
+		for (int i = 0; i < 10; i++) {
+			storage.put(data, 0, data.length, (byte)0);
+		}
+		storage.sync();
+		assertStored(data);
+	}
+
+	@Test
+	public void roundTripAndReopen() throws Exception {
+		List<byte[]> blocks = new ArrayList<>();
+		for (int i = 0; i < 50; i++) {
+			byte[] data = block();
+			if (i % 2 == 0) {
+				// compresses
+				Arrays.fill(data, data.length / 4, data.length, (byte)i);
+			}
+			storage.put(data, 0, data.length, (byte)0);
+			blocks.add(data);
+		}
+		storage.sync();
+		// a clean close, then a crash that lost the filter
+		for (int i = 0; i < 2; i++) {
+			storage.close();
+			if (i == 1) {
+				new File("scores.filter").delete();
+			}
+			open();
+			for (byte[] data : blocks) {
+				assertStored(data);
+			}
+		}
+	}
+
+	@Test
+	public void onlyRawBlocksAreRegions() throws Exception {
+		byte[] raw = block();
+		byte[] lz4 = new byte[8192];
+		for (int i = 0; i < lz4.length; i++) {
+			lz4[i] = (i / 64) % 2 == 0 ? (byte)random.nextInt() : 0;
+		}
+		storage.put(raw, 0, raw.length, (byte)0);
+		storage.put(lz4, 0, lz4.length, (byte)0);
+		storage.sync();
+		RegionStorageService regions = (RegionStorageService)storage;
+		BlockRegion region = regions.getRegion(Score.forBlock(raw), (byte)0);
+		assertNotNull(region);
+		assertEquals(raw.length, region.getLength());
+		region.close();
+		assertNull(regions.getRegion(Score.forBlock(lz4), (byte)0));
+		assertArrayEquals(lz4, storage.get(Score.forBlock(lz4), (byte)0).getData());
+	}
+
+	@Test
+	public void failedWriteFailsSync() throws Exception {
+		byte[] data = block();
+		Score score = Score.forBlock(data);
+		// a file where the block needs a directory
+		File blocker = level3(score);
+		assertTrue(blocker.createNewFile());
+		try {
+			storage.put(data, 0, data.length, (byte)0);
+			try {
+				storage.sync();
+				fail("sync succeeded for a block that was not written");
+			} catch (IOException e) {
+				// expected
+			}
+			// reported once
+			storage.sync();
+		} finally {
+			assertTrue(blocker.delete());
+		}
+		storage.put(data, 0, data.length, (byte)0);
+		storage.sync();
+		assertStored(data);
+	}
+}
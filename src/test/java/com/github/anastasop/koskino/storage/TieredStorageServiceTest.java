@@ -0,0 +1,190 @@
+package com.github.anastasop.koskino.storage;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.nio.channels.Channels;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.github.anastasop.koskino.Score;
+
+public class TieredStorageServiceTest {
+	private static final long ARENA_SIZE = ArenaStorageService.MIN_ARENA_SIZE;
+
+	@Rule
+	public TemporaryFolder tmp = new TemporaryFolder();
+
+	private final Random random = new Random(1);
+	private final List<byte[]> blocks = new ArrayList<>();
+	private File fast;
+	private File capacity;
+
+	@Before
+	public void dirs() throws Exception {
+		fast = tmp.newFolder("fast");
+		capacity = tmp.newFolder("capacity");
+	}
+
+	// the tiering thread is not started, the tests run the rounds
+	private TieredStorageService open(long fastBytes) throws Exception {
+		ArenaStorageService storage = ArenaStorageService.forName(new File[] {fast}, capacity, "x", ARENA_SIZE, 1,
+				new CompactBlockIndex(), 16);
+		return new TieredStorageService(storage, capacity, fastBytes, TieredStorageService.DEFAULT_INTERVAL_MS);
+	}
+
+	private void putBlocks(StorageService storage, int n) throws Exception {
+		for (int i = 0; i < n; i++) {
+			byte[] data = new byte[1 + random.nextInt(16384)];
+			random.nextBytes(data);
+			storage.put(data, 0, data.length, (byte)0);
+			blocks.add(data);
+		}
+	}
+
+	private void checkBlocks(StorageService storage) throws Exception {
+		for (byte[] data : blocks) {
+			Block block = storage.get(Score.forBlock(data), (byte)0);
+			assertNotNull(block);
+			assertArrayEquals(data, block.getData());
+		}
+	}
+
+	private static File arena(File dir, int id) {
+		return new File(dir, String.format("x.%05d.arena", id));
+	}
+
+	@Test
+	public void demoteAndPromote() throws Exception {
+		TieredStorageService storage = open(0);
+		// fills arena 0, arena 1 is the one written
+		putBlocks(storage, 3000);
+		storage.retier();
+		assertTrue(arena(capacity, 0).exists());
+		assertFalse(arena(fast, 0).exists());
+		// the one written stays
+		assertTrue(arena(fast, 1).exists());
+		checkBlocks(storage);
+		storage.close();
+
+		storage = open(4 * ARENA_SIZE);
+		checkBlocks(storage);
+		for (long i = 0; i < TieredStorageService.PROMOTE_READS; i++) {
+			storage.get(Score.forBlock(blocks.get(0)), (byte)0);
+		}
+		storage.retier();
+		assertTrue(arena(fast, 0).exists());
+		assertFalse(arena(capacity, 0).exists());
+		checkBlocks(storage);
+		storage.close();
+	}
+
+	// a region holds its arena open, whatever the rounds in between
+	@Test
+	public void aRegionOutlivesTheMoveOfItsArena() throws Exception {
+		TieredStorageService storage = open(0);
+		putBlocks(storage, 3000);
+		byte[] data = blocks.get(0);
+		BlockRegion region = storage.getRegion(Score.forBlock(data), (byte)0);
+		assertNotNull(region);
+		storage.retier();
+		storage.retier();
+		assertTrue(arena(capacity, 0).exists());
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		region.transferFully(Channels.newChannel(out));
+		region.close();
+		assertArrayEquals(data, out.toByteArray());
+		// from the copy
+		region = storage.getRegion(Score.forBlock(data), (byte)0);
+		out.reset();
+		region.transferFully(Channels.newChannel(out));
+		region.close();
+		assertArrayEquals(data, out.toByteArray());
+		checkBlocks(storage);
+		storage.close();
+	}
+
+	@Test
+	public void readsRunWhileArenasMove() throws Exception {
+		final TieredStorageService storage = open(0);
+		// a few full arenas
+		putBlocks(storage, 8000);
+		final AtomicBoolean moving = new AtomicBoolean(true);
+		ExecutorService pool = Executors.newFixedThreadPool(4);
+		try {
+			List<Future<Integer>> readers = new ArrayList<>();
+			for (int t = 0; t < 4; t++) {
+				final Random r = new Random(t);
+				readers.add(pool.submit(new Callable<Integer>() {
+					@Override
+					public Integer call() throws Exception {
+						int reads = 0;
+						while (moving.get() || reads < 1000) {
+							byte[] data = blocks.get(r.nextInt(blocks.size()));
+							Score score = Score.forBlock(data);
+							Block block = storage.get(score, (byte)0);
+							assertNotNull(block);
+							assertArrayEquals(data, block.getData());
+							try (BlockRegion region = storage.getRegion(score, (byte)0)) {
+								assertNotNull(region);
+								assertEquals(data.length, region.getLength());
+							}
+							reads++;
+						}
+						return reads;
+					}
+				}));
+			}
+			storage.retier();
+			storage.retier();
+			moving.set(false);
+			for (Future<Integer> f : readers) {
+				f.get(60, TimeUnit.SECONDS);
+			}
+		} finally {
+			moving.set(false);
+			pool.shutdownNow();
+		}
+		assertTrue(capacity.list().length >= 3);
+		checkBlocks(storage);
+		storage.close();
+	}
+
+	@Test
+	public void reopenAfterInterruptedMove() throws Exception {
+		TieredStorageService storage = open(0);
+		putBlocks(storage, 3000);
+		storage.close();
+		// a crash after the copy was renamed and before the original was
+		// deleted leaves both, one before the rename a .tmp
+		Files.copy(arena(fast, 0).toPath(), arena(capacity, 0).toPath());
+		Files.copy(arena(fast, 0).toPath(), new File(capacity, arena(fast, 0).getName() + ".tmp").toPath());
+		storage = TieredStorageService.forName(new File[] {fast}, capacity, 0, "x", ARENA_SIZE, 1,
+				new CompactBlockIndex(), 16);
+		// one of the two is kept, whichever it is
+		assertTrue(arena(fast, 0).exists() ^ arena(capacity, 0).exists());
+		assertEquals(arena(capacity, 0).exists() ? 1 : 0, capacity.list().length);
+		checkBlocks(storage);
+		putBlocks(storage, 100);
+		checkBlocks(storage);
+		storage.close();
+	}
+}